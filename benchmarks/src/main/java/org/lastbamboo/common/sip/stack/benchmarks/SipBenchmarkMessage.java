@@ -0,0 +1,137 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.net.URI;
+
+import org.apache.commons.id.uuid.UUID;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * The messages the benchmarks run against, covering what a registrar and
+ * proxy see most of.
+ */
+public enum SipBenchmarkMessage
+    {
+
+    /**
+     * A REGISTER request.
+     */
+    REGISTER,
+
+    /**
+     * An INVITE request with an SDP offer.
+     */
+    INVITE_SDP,
+
+    /**
+     * A 200 OK to an INVITE with an SDP answer.
+     */
+    OK,
+
+    /**
+     * A 408 Request Timeout response to an INVITE.
+     */
+    REQUEST_TIMEOUT,
+
+    /**
+     * A double CRLF keep-alive.
+     */
+    KEEP_ALIVE,
+    ;
+
+    private static final String SDP =
+        "v=0\r\n" +
+        "o=alice 2890844526 2890844526 IN IP4 10.0.0.1\r\n" +
+        "s=-\r\n" +
+        "c=IN IP4 10.0.0.1\r\n" +
+        "t=0 0\r\n" +
+        "m=application 49170 TCP/TLS/RTP/AVP 99\r\n" +
+        "a=rtpmap:99 X-littleshoot/8000\r\n" +
+        "a=candidate:1 1 UDP 2130706431 10.0.0.1 49170 typ host\r\n" +
+        "a=candidate:2 1 UDP 1694498815 46.76.32.1 3525 typ srflx " +
+            "raddr 10.0.0.1 rport 49170\r\n" +
+        "a=candidate:3 1 TCP-PASS 2128609279 10.0.0.1 49171 typ host\r\n";
+
+    /**
+     * Creates a new instance of the message.
+     * 
+     * @param messageFactory The factory for creating messages.
+     * @param headerFactory The factory for creating headers.
+     * @return The new message.
+     * @throws Exception If the message could not be created.
+     */
+    public SipMessage create(final SipMessageFactory messageFactory, 
+        final SipHeaderFactory headerFactory) throws Exception
+        {
+        switch (this)
+            {
+            case REGISTER:
+                return createRegister(messageFactory, headerFactory);
+            case INVITE_SDP:
+                return createInvite(messageFactory, headerFactory);
+            case OK:
+                return messageFactory.createInviteOk(
+                    createInvite(messageFactory, headerFactory), 
+                    UUID.randomUUID(), new URI("sip:bob@10.0.0.2"), 
+                    MinaUtils.toBuf(SDP));
+            case REQUEST_TIMEOUT:
+                return messageFactory.createRequestTimeoutResponse(
+                    createInvite(messageFactory, headerFactory));
+            case KEEP_ALIVE:
+            default:
+                return new DoubleCrlfKeepAlive();
+            }
+        }
+
+    /**
+     * Creates a new INVITE with an SDP offer that has come through a proxy,
+     * so it has two Via headers.
+     * 
+     * @param messageFactory The factory for creating messages.
+     * @param headerFactory The factory for creating headers.
+     * @return The new INVITE.
+     * @throws Exception If the message could not be created.
+     */
+    public static Invite createInvite(final SipMessageFactory messageFactory, 
+        final SipHeaderFactory headerFactory) throws Exception
+        {
+        final ByteBuffer body = MinaUtils.toBuf(SDP);
+        final Invite invite = messageFactory.createInviteRequest("Alice", 
+            new URI("sip:bob@lastbamboo.org"), 
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("sip:alice@10.0.0.1"), body);
+        final Invite proxied = messageFactory.addVia(invite, 
+            headerFactory.createHeader("Via", "SIP/2.0/TCP 10.0.0.1;" +
+                "branch=z9hG4bK" + UUID.randomUUID().toString()));
+        return messageFactory.addVia(proxied, 
+            headerFactory.createHeader("Via", "SIP/2.0/TCP 46.76.32.2;" +
+                "branch=z9hG4bK" + UUID.randomUUID().toString()));
+        }
+
+    /**
+     * Creates a new REGISTER.
+     * 
+     * @param messageFactory The factory for creating messages.
+     * @param headerFactory The factory for creating headers.
+     * @return The new REGISTER.
+     * @throws Exception If the message could not be created.
+     */
+    public static Register createRegister(
+        final SipMessageFactory messageFactory, 
+        final SipHeaderFactory headerFactory) throws Exception
+        {
+        final Register register = messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice", 
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("sip:alice@10.0.0.1"));
+        return messageFactory.addVia(register, headerFactory.createHeader(
+            "Via", "SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK" + 
+            UUID.randomUUID().toString()));
+        }
+    }
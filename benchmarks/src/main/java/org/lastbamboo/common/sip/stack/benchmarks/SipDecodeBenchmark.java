@@ -0,0 +1,225 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.stack.codec.SipDecoderMode;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoderImpl;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark for decoding a single message with the decoders from
+ * {@link SipProtocolCodecFactory}.  Each operation feeds the decoder one
+ * complete message, either all at once, one byte at a time or in random 
+ * fragments as it might arrive off a slow TCP connection.<p>
+ *
+ * MINA's buffer pool is replaced with {@link SimpleByteBufferAllocator} so
+ * the allocation numbers from the gc profiler reflect what the decoder 
+ * really creates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipDecodeBenchmark
+    {
+
+    /**
+     * How a message arrives at the decoder.
+     */
+    public enum Delivery
+        {
+
+        /**
+         * The whole message in one buffer.
+         */
+        WHOLE,
+
+        /**
+         * One byte at a time.
+         */
+        BYTE_BY_BYTE,
+
+        /**
+         * In fragments of random sizes.
+         */
+        RANDOM_FRAGMENTS,
+        }
+
+    /**
+     * The number of different ways we split each message into random 
+     * fragments.  We cycle through them so the decoder can't settle on one
+     * pattern.
+     */
+    private static final int RANDOM_SPLITS = 64;
+
+    /**
+     * The largest random fragment, in bytes.
+     */
+    private static final int MAX_FRAGMENT = 128;
+
+    /**
+     * The message to decode.
+     */
+    @Param
+    public SipBenchmarkMessage message;
+
+    /**
+     * How the message arrives.
+     */
+    @Param
+    public Delivery delivery;
+
+    /**
+     * The decoder to use.
+     */
+    @Param
+    public SipDecoderMode decoderMode;
+
+    private ProtocolDecoder m_decoder;
+
+    private ByteBuffer m_buffer;
+
+    /**
+     * The limits to set on the buffer for each call to the decoder, for 
+     * each split of the message.
+     */
+    private int[][] m_splits;
+
+    private int m_split;
+
+    private final CountingOutput m_output = new CountingOutput();
+
+    /**
+     * Encodes the message and creates the decoder.
+     * 
+     * @param blackhole The blackhole to give decoded messages to.
+     * @throws Exception If anything goes wrong.
+     */
+    @Setup
+    public void setUp(final Blackhole blackhole) throws Exception
+        {
+        ByteBuffer.setUseDirectBuffers(false);
+        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        final ByteBuffer encoded = new SipMessageEncoderImpl().encode(
+            message.create(new SipMessageFactoryImpl(headerFactory), 
+                headerFactory));
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        this.m_buffer = ByteBuffer.wrap(bytes);
+        this.m_splits = createSplits(bytes.length);
+        this.m_output.m_blackhole = blackhole;
+        this.m_decoder = new SipProtocolCodecFactory(headerFactory, 
+            decoderMode).getDecoder();
+
+        // Make sure each operation really decodes exactly one message.
+        for (int i = 0; i < this.m_splits.length; i++)
+            {
+            this.m_output.m_count = 0;
+            decode();
+            if (this.m_output.m_count != 1)
+                {
+                throw new IllegalStateException("Decoded " + 
+                    this.m_output.m_count + " messages from " + message);
+                }
+            }
+        }
+
+    private int[][] createSplits(final int length)
+        {
+        switch (delivery)
+            {
+            case BYTE_BY_BYTE:
+                final int[] limits = new int[length];
+                for (int i = 0; i < length; i++)
+                    {
+                    limits[i] = i + 1;
+                    }
+                return new int[][] {limits};
+            case RANDOM_FRAGMENTS:
+                final Random random = new Random(42);
+                final int[][] splits = new int[RANDOM_SPLITS][];
+                final int[] scratch = new int[length];
+                for (int i = 0; i < RANDOM_SPLITS; i++)
+                    {
+                    int count = 0;
+                    int limit = 0;
+                    while (limit < length)
+                        {
+                        limit = Math.min(length, 
+                            limit + 1 + random.nextInt(MAX_FRAGMENT));
+                        scratch[count++] = limit;
+                        }
+                    splits[i] = new int[count];
+                    System.arraycopy(scratch, 0, splits[i], 0, count);
+                    }
+                return splits;
+            case WHOLE:
+            default:
+                return new int[][] {{length}};
+            }
+        }
+
+    /**
+     * Decodes one message.
+     * 
+     * @return The number of messages decoded so far, so the work can't be
+     * optimized away.
+     * @throws Exception If the message could not be decoded.
+     */
+    @Benchmark
+    public int decode() throws Exception
+        {
+        final int[] limits = this.m_splits[this.m_split];
+        this.m_split = (this.m_split + 1) % this.m_splits.length;
+        final ByteBuffer buffer = this.m_buffer;
+        buffer.clear();
+        for (int i = 0; i < limits.length; i++)
+            {
+            buffer.limit(limits[i]);
+            this.m_decoder.decode(null, buffer, this.m_output);
+            }
+        return this.m_output.m_count;
+        }
+
+    private static final class CountingOutput implements ProtocolDecoderOutput
+        {
+
+        private Blackhole m_blackhole;
+
+        private int m_count;
+
+        public void write(final Object decoded)
+            {
+            this.m_count++;
+            this.m_blackhole.consume(decoded);
+            }
+
+        public void flush()
+            {
+            }
+        }
+    }
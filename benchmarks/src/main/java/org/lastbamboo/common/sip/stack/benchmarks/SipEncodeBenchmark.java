@@ -0,0 +1,97 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.lastbamboo.common.sip.stack.codec.SipEncoderMode;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoder;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoderImpl;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessagePresizedEncoder;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for encoding a single message with {@link SipMessageEncoderImpl}
+ * and, for comparison, the {@link SipMessagePresizedEncoder}.  Each encoded
+ * buffer is released just as MINA releases it after writing, which returns
+ * buffers from the presized encoder to its pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipEncodeBenchmark
+    {
+
+    /**
+     * The message to encode.
+     */
+    @Param
+    public SipBenchmarkMessage message;
+
+    /**
+     * The encoder to use.
+     */
+    @Param
+    public SipEncoderMode encoderMode;
+
+    private SipMessage m_message;
+
+    private SipMessageEncoder m_encoder;
+
+    /**
+     * Creates the message and the encoder.
+     * 
+     * @throws Exception If anything goes wrong.
+     */
+    @Setup
+    public void setUp() throws Exception
+        {
+        ByteBuffer.setUseDirectBuffers(false);
+        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        this.m_message = message.create(
+            new SipMessageFactoryImpl(headerFactory), headerFactory);
+        switch (encoderMode)
+            {
+            case PRESIZED:
+                this.m_encoder = new SipMessagePresizedEncoder();
+                break;
+            case AUTO_EXPANDING:
+            default:
+                this.m_encoder = new SipMessageEncoderImpl();
+                break;
+            }
+        }
+
+    /**
+     * Encodes the message.
+     * 
+     * @return The number of bytes encoded.
+     */
+    @Benchmark
+    public int encode()
+        {
+        final ByteBuffer encoded = this.m_encoder.encode(this.m_message);
+        final int size = encoded.remaining();
+        encoded.release();
+        return size;
+        }
+    }
@@ -0,0 +1,541 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.id.uuid.UUID;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.mina.transport.socket.nio.SocketConnector;
+import org.littleshoot.mina.transport.socket.nio.SocketConnectorConfig;
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.codec.SipIoHandler;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.RequestTimeoutResponse;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
+import org.lastbamboo.common.sip.stack.message.SipMessageVisitorFactory;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransaction;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTracker;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
+
+/**
+ * In-process load generator for the whole stack.  This binds a
+ * {@link SipIoHandler} with the {@link SipProtocolCodecFactory} on the 
+ * loopback interface, answering every REGISTER and INVITE with a 200 OK, 
+ * and connects thousands of clients to it.  The clients send REGISTER 
+ * refreshes and INVITEs through {@link SipTcpTransportLayerImpl} at a fixed
+ * overall rate, along with double CRLF keep-alives.<p>
+ *
+ * Every second this prints the messages per second in both directions and
+ * the latency percentiles for the requests.  Requests go out on a fixed 
+ * schedule no matter how far behind the server falls, and latency is 
+ * measured from when each request should have been sent rather than when
+ * it was, so a stalled server can't hide its stall by holding up the 
+ * requests that would have measured it.  This is the coordinated omission
+ * correction.<p>
+ *
+ * Settings are given as name=value arguments:
+ * <pre>
+ * java -Xmx2g -cp target/benchmarks.jar \
+ *     org.lastbamboo.common.sip.stack.benchmarks.SipLoadGenerator \
+ *     clients=5000 rate=10000 seconds=60
+ * </pre>
+ * See {@link #main(String[])} for the full list.
+ */
+public final class SipLoadGenerator
+    {
+
+    /**
+     * The longest latency we can record, in microseconds.  Anything longer
+     * is recorded as this.
+     */
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final Recorder m_recorder = new Recorder(HIGHEST_MICROS, 3);
+
+    private final AtomicLong m_sent = new AtomicLong();
+
+    private final AtomicLong m_received = new AtomicLong();
+
+    private final AtomicLong m_failed = new AtomicLong();
+
+    private final int m_clients;
+
+    private final int m_rate;
+
+    private final int m_seconds;
+
+    private final int m_warmupSeconds;
+
+    private final double m_inviteRatio;
+
+    private final int m_keepAliveSeconds;
+
+    private final int m_drivers;
+
+    private final int m_port;
+
+    private final int m_t1;
+
+    private volatile boolean m_stopped;
+
+    private SipLoadGenerator(final Map<String, String> settings)
+        {
+        this.m_clients = intSetting(settings, "clients", 2000);
+        this.m_rate = intSetting(settings, "rate", 5000);
+        this.m_seconds = intSetting(settings, "seconds", 60);
+        this.m_warmupSeconds = intSetting(settings, "warmup", 10);
+        this.m_inviteRatio = 
+            Double.parseDouble(setting(settings, "inviteRatio", "0.2"));
+        this.m_keepAliveSeconds = intSetting(settings, "keepAlive", 30);
+        this.m_drivers = intSetting(settings, "drivers", 2);
+        this.m_port = intSetting(settings, "port", 15060);
+        this.m_t1 = intSetting(settings, "t1", 500);
+        }
+
+    /**
+     * Runs the load generator.  The settings, with their defaults, are:
+     * <ul>
+     * <li>clients=2000 -- the number of client connections</li>
+     * <li>rate=5000 -- REGISTERs and INVITEs per second, across all 
+     * clients</li>
+     * <li>seconds=60 -- how long to measure for</li>
+     * <li>warmup=10 -- how long to run before measuring</li>
+     * <li>inviteRatio=0.2 -- the fraction of requests that are INVITEs</li>
+     * <li>keepAlive=30 -- the seconds between keep-alives from each 
+     * client</li>
+     * <li>drivers=2 -- the number of threads sending requests</li>
+     * <li>port=15060 -- the loopback port to bind</li>
+     * <li>t1=500 -- T1 for client transactions, in milliseconds</li>
+     * </ul>
+     * 
+     * @param args The settings, as name=value pairs.
+     * @throws Exception If anything goes wrong.
+     */
+    public static void main(final String[] args) throws Exception
+        {
+        final Map<String, String> settings = new HashMap<String, String>();
+        for (final String arg : args)
+            {
+            final int equals = arg.indexOf('=');
+            if (equals < 1)
+                {
+                System.err.println("Expected name=value but was: " + arg);
+                System.exit(1);
+                }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        new SipLoadGenerator(settings).run();
+        }
+
+    private void run() throws Exception
+        {
+        final InetSocketAddress address = 
+            new InetSocketAddress("127.0.0.1", this.m_port);
+        final ExecutorService ioExecutor = Executors.newCachedThreadPool();
+        final int processors = Runtime.getRuntime().availableProcessors();
+
+        final SocketAcceptor acceptor = 
+            new SocketAcceptor(processors, ioExecutor);
+        final SocketAcceptorConfig acceptorConfig = new SocketAcceptorConfig();
+        acceptorConfig.setReuseAddress(true);
+        acceptorConfig.setThreadModel(ThreadModel.MANUAL);
+        acceptorConfig.getFilterChain().addLast("codec", 
+            new ProtocolCodecFilter(
+                new SipProtocolCodecFactory(this.m_headerFactory)));
+        acceptor.bind(address, 
+            new SipIoHandler(new ServerVisitorFactory()), acceptorConfig);
+
+        final SipTimer timer = new HashedWheelSipTimer("Load-Timer");
+        final SipTransactionTracker tracker = new SipTransactionTrackerImpl();
+        final SipTcpTransportLayer transport = new SipTcpTransportLayerImpl(
+            new SipTransactionFactoryImpl(tracker, this.m_messageFactory, 
+                this.m_t1, timer), 
+            this.m_headerFactory, this.m_messageFactory);
+
+        final SocketConnector connector = 
+            new SocketConnector(processors, ioExecutor);
+        final SocketConnectorConfig connectorConfig = 
+            new SocketConnectorConfig();
+        connectorConfig.setThreadModel(ThreadModel.MANUAL);
+        connectorConfig.getFilterChain().addLast("codec", 
+            new ProtocolCodecFilter(
+                new SipProtocolCodecFactory(this.m_headerFactory)));
+        final SipIoHandler clientHandler = 
+            new SipIoHandler(new ClientVisitorFactory(tracker));
+
+        System.out.println("Connecting " + this.m_clients + " clients...");
+        final IoSession[] sessions = new IoSession[this.m_clients];
+        for (int i = 0; i < this.m_clients; i++)
+            {
+            final ConnectFuture future = 
+                connector.connect(address, clientHandler, connectorConfig);
+            future.join();
+            sessions[i] = future.getSession();
+            }
+
+        final Thread[] drivers = new Thread[this.m_drivers];
+        for (int i = 0; i < this.m_drivers; i++)
+            {
+            final int from = this.m_clients * i / this.m_drivers;
+            final int to = this.m_clients * (i + 1) / this.m_drivers;
+            final IoSession[] driverSessions = new IoSession[to - from];
+            System.arraycopy(sessions, from, driverSessions, 0, 
+                driverSessions.length);
+            drivers[i] = new Thread(new Driver(driverSessions, transport), 
+                "Load-Driver-" + i);
+            drivers[i].start();
+            }
+
+        report();
+
+        this.m_stopped = true;
+        for (final Thread driver : drivers)
+            {
+            driver.join();
+            }
+        for (final IoSession session : sessions)
+            {
+            session.close();
+            }
+        acceptor.unbindAll();
+        timer.stop();
+        ioExecutor.shutdownNow();
+        }
+
+    /**
+     * Prints figures for each second, and for the whole run once it's 
+     * done.
+     */
+    private void report() throws InterruptedException
+        {
+        System.out.println(String.format("%6s %12s %10s %10s %10s %10s", 
+            "second", "msg/s", "p50 us", "p99 us", "p99.9 us", "max us"));
+        final Histogram total = new Histogram(HIGHEST_MICROS, 3);
+        Histogram interval = null;
+        long lastMessages = 0;
+        long measuredMessages = 0;
+        final int seconds = this.m_warmupSeconds + this.m_seconds;
+        for (int second = 1; second <= seconds; second++)
+            {
+            Thread.sleep(1000);
+            interval = this.m_recorder.getIntervalHistogram(interval);
+            final long messages = this.m_sent.get() + this.m_received.get();
+            final long perSecond = messages - lastMessages;
+            lastMessages = messages;
+            final boolean warmingUp = second <= this.m_warmupSeconds;
+            if (!warmingUp)
+                {
+                total.add(interval);
+                measuredMessages += perSecond;
+                }
+            System.out.println(String.format("%6d %,12d %,10d %,10d %,10d " +
+                "%,10d%s", second, perSecond, 
+                interval.getValueAtPercentile(50.0), 
+                interval.getValueAtPercentile(99.0), 
+                interval.getValueAtPercentile(99.9), interval.getMaxValue(), 
+                warmingUp ? "  (warmup)" : ""));
+            }
+
+        System.out.println();
+        System.out.println(String.format("Clients: %,d, target rate: %,d " +
+            "requests/s, INVITEs: %.0f%%", this.m_clients, this.m_rate, 
+            this.m_inviteRatio * 100));
+        System.out.println(String.format("Messages/s: %,d", 
+            measuredMessages / this.m_seconds));
+        System.out.println(String.format("Latency us: p50 %,d, p99 %,d, " +
+            "p99.9 %,d, max %,d", total.getValueAtPercentile(50.0), 
+            total.getValueAtPercentile(99.0), 
+            total.getValueAtPercentile(99.9), total.getMaxValue()));
+        System.out.println(String.format("Failed transactions: %,d", 
+            this.m_failed.get()));
+        }
+
+    private void record(final long intendedNanos)
+        {
+        final long micros = (System.nanoTime() - intendedNanos) / 1000;
+        this.m_recorder.recordValue(Math.min(Math.max(micros, 0), 
+            HIGHEST_MICROS));
+        }
+
+    /**
+     * Sends requests and keep-alives for a share of the clients, each at a
+     * fixed rate.
+     */
+    private final class Driver implements Runnable
+        {
+
+        private final IoSession[] m_sessions;
+
+        private final Register[] m_registers;
+
+        private final Invite[] m_invites;
+
+        private final SipTcpTransportLayer m_transport;
+
+        private final long m_requestIntervalNanos;
+
+        private final long m_keepAliveIntervalNanos;
+
+        /**
+         * Each driver has its own source of randomness so the drivers don't
+         * contend on one.
+         */
+        private final Random m_random = new Random();
+
+        private Driver(final IoSession[] sessions, 
+            final SipTcpTransportLayer transport) throws Exception
+            {
+            this.m_sessions = sessions;
+            this.m_transport = transport;
+            this.m_registers = new Register[sessions.length];
+            this.m_invites = new Invite[sessions.length];
+            final ByteBuffer sdp = SipBenchmarkMessage.createInvite(
+                m_messageFactory, m_headerFactory).getBody();
+            for (int i = 0; i < sessions.length; i++)
+                {
+                final UUID instanceId = UUID.randomUUID();
+                final URI aor = new URI("sip:" + instanceId + "@lastbamboo.org");
+                final URI contact = new URI("sip:" + instanceId + "@127.0.0.1");
+                this.m_registers[i] = m_messageFactory.createRegisterRequest(
+                    new URI("sip:lastbamboo.org"), "Client " + i, aor, 
+                    instanceId, contact);
+                this.m_invites[i] = m_messageFactory.createInviteRequest(
+                    "Client " + i, new URI("sip:bob@lastbamboo.org"), aor, 
+                    instanceId, contact, sdp.duplicate());
+                }
+            this.m_requestIntervalNanos = 
+                TimeUnit.SECONDS.toNanos(1) * m_drivers / m_rate;
+            this.m_keepAliveIntervalNanos = Math.max(1, 
+                TimeUnit.SECONDS.toNanos(m_keepAliveSeconds) / sessions.length);
+            }
+
+        public void run()
+            {
+            long nextRequest = System.nanoTime();
+            long nextKeepAlive = nextRequest;
+            int requestClient = 0;
+            int keepAliveClient = 0;
+            while (!m_stopped)
+                {
+                final long now = System.nanoTime();
+                while (nextRequest - now <= 0)
+                    {
+                    sendRequest(requestClient, nextRequest);
+                    requestClient = (requestClient + 1) % this.m_sessions.length;
+                    nextRequest += this.m_requestIntervalNanos;
+                    }
+                while (nextKeepAlive - now <= 0)
+                    {
+                    this.m_transport.writeCrlfKeepAlive(
+                        this.m_sessions[keepAliveClient]);
+                    m_sent.incrementAndGet();
+                    keepAliveClient = 
+                        (keepAliveClient + 1) % this.m_sessions.length;
+                    nextKeepAlive += this.m_keepAliveIntervalNanos;
+                    }
+                final long next = nextRequest - nextKeepAlive < 0 ? 
+                    nextRequest : nextKeepAlive;
+                LockSupport.parkNanos(next - System.nanoTime());
+                }
+            }
+
+        private void sendRequest(final int client, final long intendedNanos)
+            {
+            final IoSession session = this.m_sessions[client];
+            final LatencyListener listener = new LatencyListener(intendedNanos);
+            if (this.m_random.nextDouble() < m_inviteRatio)
+                {
+                this.m_transport.invite(this.m_invites[client], session, 
+                    listener);
+                }
+            else
+                {
+                this.m_transport.register(this.m_registers[client], session, 
+                    listener);
+                }
+            m_sent.incrementAndGet();
+            }
+        }
+
+    /**
+     * Records the latency of a single request from when it should have 
+     * been sent.
+     */
+    private final class LatencyListener 
+        implements OfferAnswerTransactionListener
+        {
+
+        private final long m_intendedNanos;
+
+        private LatencyListener(final long intendedNanos)
+            {
+            this.m_intendedNanos = intendedNanos;
+            }
+
+        public void onTransactionSucceeded(final OfferAnswerMessage message)
+            {
+            record(this.m_intendedNanos);
+            m_received.incrementAndGet();
+            }
+
+        public void onTransactionFailed(final OfferAnswerMessage message)
+            {
+            // Failures count towards latency too, or timeouts would make 
+            // the numbers look better.
+            record(this.m_intendedNanos);
+            m_failed.incrementAndGet();
+            }
+        }
+
+    /**
+     * Creates visitors that hand responses to their client transactions.
+     */
+    private static final class ClientVisitorFactory 
+        implements SipMessageVisitorFactory
+        {
+
+        private final SipMessageVisitor m_visitor;
+
+        private ClientVisitorFactory(final SipTransactionTracker tracker)
+            {
+            this.m_visitor = new SipMessageVisitor()
+                {
+                public void visitResponse(final SipResponse response)
+                    {
+                    final SipClientTransaction ct = 
+                        tracker.getClientTransaction(response);
+                    if (ct != null)
+                        {
+                        ct.visitResponse(response);
+                        }
+                    }
+
+                public void visitRequestTimedOut(
+                    final RequestTimeoutResponse response)
+                    {
+                    visitResponse(response);
+                    }
+
+                public void visitInvite(final Invite invite)
+                    {
+                    }
+
+                public void visitRegister(final Register register)
+                    {
+                    }
+
+                public void visitUnknownRequest(final UnknownSipRequest request)
+                    {
+                    }
+
+                public void visitDoubleCrlfKeepAlive(
+                    final DoubleCrlfKeepAlive keepAlive)
+                    {
+                    }
+                };
+            }
+
+        public SipMessageVisitor createVisitor(final IoSession session)
+            {
+            return this.m_visitor;
+            }
+        }
+
+    /**
+     * Creates visitors that answer every REGISTER and INVITE with a 200 OK
+     * and ignore keep-alives.
+     */
+    private final class ServerVisitorFactory 
+        implements SipMessageVisitorFactory
+        {
+
+        private final UUID m_instanceId = UUID.randomUUID();
+
+        private final URI m_contactUri = URI.create("sip:bob@127.0.0.1");
+
+        public SipMessageVisitor createVisitor(final IoSession session)
+            {
+            return new SipMessageVisitor()
+                {
+                public void visitRegister(final Register register)
+                    {
+                    session.write(m_messageFactory.createRegisterOk(register));
+                    }
+
+                public void visitInvite(final Invite invite)
+                    {
+                    session.write(m_messageFactory.createInviteOk(invite, 
+                        m_instanceId, m_contactUri, invite.getBody()));
+                    }
+
+                public void visitUnknownRequest(final UnknownSipRequest request)
+                    {
+                    }
+
+                public void visitDoubleCrlfKeepAlive(
+                    final DoubleCrlfKeepAlive keepAlive)
+                    {
+                    }
+
+                public void visitRequestTimedOut(
+                    final RequestTimeoutResponse response)
+                    {
+                    }
+
+                public void visitResponse(final SipResponse response)
+                    {
+                    }
+                };
+            }
+        }
+
+    private static String setting(final Map<String, String> settings, 
+        final String name, final String defaultValue)
+        {
+        final String value = settings.get(name);
+        return value == null ? defaultValue : value;
+        }
+
+    private static int intSetting(final Map<String, String> settings, 
+        final String name, final int defaultValue)
+        {
+        return Integer.parseInt(
+            setting(settings, name, String.valueOf(defaultValue)));
+        }
+    }
@@ -0,0 +1,186 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimeout;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for the cost of scheduling and cancelling a transaction timer
+ * with many timers outstanding, which is what every transaction that gets
+ * a response does with timer B or F.  {@link java.util.Timer}, which the 
+ * transactions used before the timing wheel, is included as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Threads(4)
+public class SipTimerBenchmark
+    {
+
+    /**
+     * The timers to compare.
+     */
+    public enum TimerType
+        {
+
+        /**
+         * {@link HashedWheelSipTimer}.
+         */
+        HASHED_WHEEL,
+
+        /**
+         * {@link java.util.Timer}.
+         */
+        JDK_TIMER,
+        }
+
+    /**
+     * The delay for every timeout, long enough that none fire during a 
+     * trial.  This is timer B with the default T1.
+     */
+    private static final long DELAY = 64 * 500;
+
+    private static final Runnable NOOP = new Runnable()
+        {
+        public void run()
+            {
+            }
+        };
+
+    /**
+     * The timer to use.
+     */
+    @Param
+    public TimerType timer;
+
+    /**
+     * The number of timeouts waiting to fire.
+     */
+    @Param({"10000", "100000", "1000000"})
+    public int outstanding;
+
+    private SipTimer m_timer;
+
+    /**
+     * Creates the timer and schedules the outstanding timeouts.
+     */
+    @Setup
+    public void setUp()
+        {
+        switch (timer)
+            {
+            case JDK_TIMER:
+                this.m_timer = new JdkSipTimer();
+                break;
+            case HASHED_WHEEL:
+            default:
+                this.m_timer = new HashedWheelSipTimer("Benchmark-Timer");
+                break;
+            }
+        for (int i = 0; i < outstanding; i++)
+            {
+            this.m_timer.schedule(NOOP, DELAY);
+            }
+        }
+
+    /**
+     * Stops the timer.
+     */
+    @TearDown
+    public void tearDown()
+        {
+        this.m_timer.stop();
+        }
+
+    /**
+     * Schedules a timeout and cancels it.
+     * 
+     * @return Whether the timeout was cancelled.
+     */
+    @Benchmark
+    public boolean scheduleAndCancel()
+        {
+        return this.m_timer.schedule(NOOP, DELAY).cancel();
+        }
+
+    /**
+     * {@link SipTimer} backed by a {@link Timer}.
+     */
+    private static final class JdkSipTimer implements SipTimer
+        {
+
+        private final Timer m_timer = new Timer("Benchmark-Timer", true);
+
+        public SipTimeout schedule(final Runnable task, final long delay)
+            {
+            final JdkSipTimeout timeout = new JdkSipTimeout(task);
+            this.m_timer.schedule(timeout, delay);
+            return timeout;
+            }
+
+        public void stop()
+            {
+            this.m_timer.cancel();
+            }
+        }
+
+    private static final class JdkSipTimeout extends TimerTask 
+        implements SipTimeout
+        {
+
+        private final Runnable m_task;
+
+        private volatile boolean m_cancelled;
+
+        private volatile boolean m_expired;
+
+        private JdkSipTimeout(final Runnable task)
+            {
+            this.m_task = task;
+            }
+
+        @Override
+        public void run()
+            {
+            this.m_expired = true;
+            this.m_task.run();
+            }
+
+        @Override
+        public boolean cancel()
+            {
+            this.m_cancelled = super.cancel();
+            return this.m_cancelled;
+            }
+
+        public boolean isCancelled()
+            {
+            return this.m_cancelled;
+            }
+
+        public boolean isExpired()
+            {
+            return this.m_expired;
+            }
+        }
+    }
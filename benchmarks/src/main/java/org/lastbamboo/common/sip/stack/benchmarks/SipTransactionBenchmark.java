@@ -0,0 +1,192 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransaction;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactory;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTracker;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for the client transaction layer with many transactions 
+ * outstanding.  Each trial starts with the given number of REGISTER 
+ * transactions waiting for responses, and threads then either match 
+ * responses against them or run new transactions from creation through to
+ * completion, which schedules and cancels timer F and adds and removes the
+ * transaction from the tracker.<p>
+ *
+ * Use -t to change the number of threads.  {@link SipTransactionStress} 
+ * covers timeouts and retained heap, which JMH doesn't measure well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Threads(4)
+public class SipTransactionBenchmark
+    {
+
+    /**
+     * The number of requests each thread cycles through when running whole 
+     * transactions.
+     */
+    private static final int REQUESTS_PER_THREAD = 1024;
+
+    /**
+     * T1 is long enough that nothing times out during a trial.
+     */
+    private static final int T1 = 60 * 1000;
+
+    /**
+     * The number of transactions waiting for a response.
+     */
+    @Param({"10000", "100000", "1000000"})
+    public int outstanding;
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final AtomicInteger m_completed = new AtomicInteger();
+
+    private final OfferAnswerTransactionListener m_listener = 
+        new OfferAnswerTransactionListener()
+        {
+        public void onTransactionSucceeded(final OfferAnswerMessage message)
+            {
+            m_completed.incrementAndGet();
+            }
+
+        public void onTransactionFailed(final OfferAnswerMessage message)
+            {
+            m_completed.incrementAndGet();
+            }
+        };
+
+    private SipTimer m_timer;
+
+    private SipTransactionTracker m_tracker;
+
+    private SipTransactionFactory m_transactionFactory;
+
+    private SipTransactionRequests m_outstanding;
+
+    /**
+     * Creates the outstanding transactions.
+     * 
+     * @throws Exception If anything goes wrong.
+     */
+    @Setup
+    public void setUp() throws Exception
+        {
+        this.m_timer = new HashedWheelSipTimer("Benchmark-Timer");
+        this.m_tracker = new SipTransactionTrackerImpl();
+        this.m_transactionFactory = new SipTransactionFactoryImpl(
+            this.m_tracker, this.m_messageFactory, T1, this.m_timer);
+        this.m_outstanding = new SipTransactionRequests(outstanding, 
+            this.m_messageFactory, this.m_headerFactory);
+        for (int i = 0; i < outstanding; i++)
+            {
+            this.m_transactionFactory.createClientTransaction(
+                this.m_outstanding.getRequest(i), this.m_listener);
+            }
+        }
+
+    /**
+     * Stops the timer.
+     */
+    @TearDown
+    public void tearDown()
+        {
+        this.m_timer.stop();
+        }
+
+    /**
+     * The requests for each thread, with branches no other thread uses.
+     */
+    @State(Scope.Thread)
+    public static class ThreadRequests
+        {
+
+        private SipTransactionRequests m_requests;
+
+        private int m_next;
+
+        /**
+         * Creates the requests.
+         * 
+         * @param benchmark The benchmark state, for its factories.
+         * @throws Exception If anything goes wrong.
+         */
+        @Setup
+        public void setUp(final SipTransactionBenchmark benchmark) 
+            throws Exception
+            {
+            this.m_requests = new SipTransactionRequests(REQUESTS_PER_THREAD, 
+                benchmark.m_messageFactory, benchmark.m_headerFactory);
+            }
+
+        private int next(final int size)
+            {
+            final int next = this.m_next;
+            this.m_next = (next + 1) % size;
+            return next;
+            }
+        }
+
+    /**
+     * Matches a response to one of the outstanding transactions.
+     * 
+     * @param requests The state of the calling thread.
+     * @return The matching transaction.
+     */
+    @Benchmark
+    public SipClientTransaction match(final ThreadRequests requests)
+        {
+        return this.m_tracker.getClientTransaction(
+            this.m_outstanding.getResponse(requests.next(outstanding)));
+        }
+
+    /**
+     * Creates a transaction and completes it with a 200 OK.
+     * 
+     * @param requests The state of the calling thread.
+     * @return The completed transaction.
+     */
+    @Benchmark
+    public SipClientTransaction createAndComplete(final ThreadRequests requests)
+        {
+        final int index = requests.next(REQUESTS_PER_THREAD);
+        final SipClientTransaction ct = 
+            this.m_transactionFactory.createClientTransaction(
+                requests.m_requests.getRequest(index), this.m_listener);
+        ct.visitResponse(requests.m_requests.getResponse(index));
+        return ct;
+        }
+    }
@@ -0,0 +1,62 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+
+/**
+ * REGISTER requests with their own branches, along with the responses that
+ * complete their transactions.  The requests share everything but the top
+ * Via, so a million of them fit in a reasonable heap.
+ */
+final class SipTransactionRequests
+    {
+
+    private final Register[] m_requests;
+
+    private final SipResponse[] m_responses;
+
+    /**
+     * Creates the requests and their responses.
+     * 
+     * @param count The number of requests.
+     * @param messageFactory The factory for creating messages.
+     * @param headerFactory The factory for creating headers.
+     * @throws Exception If the messages could not be created.
+     */
+    SipTransactionRequests(final int count, 
+        final SipMessageFactory messageFactory, 
+        final SipHeaderFactory headerFactory) throws Exception
+        {
+        final Register base = 
+            SipBenchmarkMessage.createRegister(messageFactory, headerFactory);
+        final String prefix = "SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK" + 
+            UUID.randomUUID().toString() + "-";
+        this.m_requests = new Register[count];
+        this.m_responses = new SipResponse[count];
+        for (int i = 0; i < count; i++)
+            {
+            this.m_requests[i] = messageFactory.addVia(base, 
+                headerFactory.createHeader("Via", prefix + i));
+            this.m_responses[i] = 
+                messageFactory.createRegisterOk(this.m_requests[i]);
+            }
+        }
+
+    Register getRequest(final int index)
+        {
+        return this.m_requests[index];
+        }
+
+    SipResponse getResponse(final int index)
+        {
+        return this.m_responses[index];
+        }
+
+    int size()
+        {
+        return this.m_requests.length;
+        }
+    }
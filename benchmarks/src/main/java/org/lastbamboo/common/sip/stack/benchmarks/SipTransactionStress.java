@@ -0,0 +1,256 @@
+package org.lastbamboo.common.sip.stack.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransaction;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactory;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTracker;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+
+/**
+ * Stress test for the client transaction layer.  For each transaction count
+ * this creates that many REGISTER transactions from several threads, 
+ * matches a response to every one of them, completes half of them and then
+ * waits for timer F to time out the rest.  It reports the throughput of 
+ * each phase, the heap retained by each outstanding transaction and how 
+ * late the last timeout fired.<p>
+ *
+ * Run with:
+ * <pre>
+ * java -Xmx4g -cp target/benchmarks.jar \
+ *     org.lastbamboo.common.sip.stack.benchmarks.SipTransactionStress \
+ *     [threads] [t1] [count...]
+ * </pre>
+ * The defaults are one thread per processor, a T1 of 500 milliseconds and
+ * 10,000, 100,000 and 1,000,000 transactions.  Every count waits 64*T1 for
+ * its timeouts, so smaller values of T1 make for quicker runs as long as 
+ * the earlier phases finish in time.
+ */
+public final class SipTransactionStress
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final int m_threads;
+
+    private final int m_t1;
+
+    private final AtomicInteger m_succeeded = new AtomicInteger();
+
+    private final AtomicInteger m_failed = new AtomicInteger();
+
+    private volatile long m_lastFailure;
+
+    private final OfferAnswerTransactionListener m_listener = 
+        new OfferAnswerTransactionListener()
+        {
+        public void onTransactionSucceeded(final OfferAnswerMessage message)
+            {
+            m_succeeded.incrementAndGet();
+            }
+
+        public void onTransactionFailed(final OfferAnswerMessage message)
+            {
+            m_lastFailure = System.nanoTime();
+            m_failed.incrementAndGet();
+            }
+        };
+
+    private SipTransactionStress(final int threads, final int t1)
+        {
+        this.m_threads = threads;
+        this.m_t1 = t1;
+        }
+
+    /**
+     * Runs the stress test.
+     * 
+     * @param args The number of threads, T1 and the transaction counts, all
+     * optional.
+     * @throws Exception If anything goes wrong.
+     */
+    public static void main(final String[] args) throws Exception
+        {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 
+            Runtime.getRuntime().availableProcessors();
+        final int t1 = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final int[] counts;
+        if (args.length > 2)
+            {
+            counts = new int[args.length - 2];
+            for (int i = 0; i < counts.length; i++)
+                {
+                counts[i] = Integer.parseInt(args[i + 2]);
+                }
+            }
+        else
+            {
+            counts = new int[] {10000, 100000, 1000000};
+            }
+
+        System.out.println("Threads: " + threads + ", T1: " + t1 + " ms");
+        for (final int count : counts)
+            {
+            new SipTransactionStress(threads, t1).run(count);
+            }
+        }
+
+    private void run(final int count) throws Exception
+        {
+        System.out.println();
+        System.out.println("Transactions: " + count);
+
+        final SipTimer timer = new HashedWheelSipTimer("Stress-Timer");
+        final SipTransactionTracker tracker = new SipTransactionTrackerImpl();
+        final SipTransactionFactory factory = new SipTransactionFactoryImpl(
+            tracker, this.m_messageFactory, this.m_t1, timer);
+        final SipTransactionRequests requests = new SipTransactionRequests(
+            count, this.m_messageFactory, this.m_headerFactory);
+
+        final long heapBefore = usedHeap();
+        final long createStart = System.nanoTime();
+        final long createNanos = parallel(count, new Task()
+            {
+            public void run(final int index)
+                {
+                factory.createClientTransaction(requests.getRequest(index), 
+                    m_listener);
+                }
+            });
+        final long createEnd = createStart + createNanos;
+        report("create", count, createNanos);
+        
+        final long retained = usedHeap() - heapBefore;
+        System.out.println(String.format("  %-10s %,d bytes per transaction", 
+            "heap", retained / count));
+
+        final AtomicInteger matched = new AtomicInteger();
+        report("match", count, parallel(count, new Task()
+            {
+            public void run(final int index)
+                {
+                if (tracker.getClientTransaction(
+                    requests.getResponse(index)) != null)
+                    {
+                    matched.incrementAndGet();
+                    }
+                }
+            }));
+
+        final int completions = count / 2;
+        report("complete", completions, parallel(completions, new Task()
+            {
+            public void run(final int index)
+                {
+                final SipResponse response = requests.getResponse(index);
+                final SipClientTransaction ct = 
+                    tracker.getClientTransaction(response);
+                ct.visitResponse(response);
+                }
+            }));
+
+        // Everything we didn't complete should time out.
+        final int timeouts = count - completions;
+        final long timeoutMillis = 64L * this.m_t1;
+        final long giveUp = System.currentTimeMillis() + timeoutMillis + 60000;
+        while (this.m_failed.get() < timeouts && 
+            System.currentTimeMillis() < giveUp)
+            {
+            Thread.sleep(100);
+            }
+        timer.stop();
+
+        final long lagMillis = 
+            (this.m_lastFailure - createEnd) / 1000000L - timeoutMillis;
+        System.out.println(String.format("  %-10s %,d of %,d, last fired " + 
+            "%,d ms late", "timeouts", this.m_failed.get(), timeouts, 
+            lagMillis));
+        if (matched.get() != count || this.m_succeeded.get() != completions)
+            {
+            System.out.println("  ERROR: matched " + matched.get() + 
+                ", succeeded " + this.m_succeeded.get());
+            }
+        }
+
+    private static void report(final String phase, final int count, 
+        final long nanos)
+        {
+        System.out.println(String.format("  %-10s %,.0f ops/s", phase, 
+            count * 1000000000.0 / nanos));
+        }
+
+    /**
+     * Runs the task for every index from zero up to the count, splitting 
+     * the indexes between the threads.
+     * 
+     * @return The time taken in nanoseconds.
+     */
+    private long parallel(final int count, final Task task) 
+        throws InterruptedException
+        {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(this.m_threads);
+        for (int i = 0; i < this.m_threads; i++)
+            {
+            final int from = (int) ((long) count * i / this.m_threads);
+            final int to = (int) ((long) count * (i + 1) / this.m_threads);
+            final Thread thread = new Thread(new Runnable()
+                {
+                public void run()
+                    {
+                    try
+                        {
+                        start.await();
+                        for (int index = from; index < to; index++)
+                            {
+                            task.run(index);
+                            }
+                        }
+                    catch (final InterruptedException e)
+                        {
+                        Thread.currentThread().interrupt();
+                        }
+                    finally
+                        {
+                        done.countDown();
+                        }
+                    }
+                }, "Stress-Thread-" + i);
+            thread.start();
+            }
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+        }
+
+    private static long usedHeap() throws InterruptedException
+        {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++)
+            {
+            System.gc();
+            Thread.sleep(100);
+            }
+        return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+    private interface Task
+        {
+        void run(int index);
+        }
+    }
@@ -0,0 +1,20 @@
+package org.lastbamboo.common.sip.stack;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * {@link IdleSipSessionListener} that's also told which session was closed
+ * and why.  Classes that close sessions call this instead of 
+ * {@link #onIdleSession()} for listeners that implement it.
+ */
+public interface IdleSipSessionEvictionListener extends IdleSipSessionListener
+    {
+
+    /**
+     * Called when a session is closed for being idle or unresponsive.
+     * 
+     * @param session The session.
+     * @param reason Why the session was closed.
+     */
+    void onIdleSession(IoSession session, SipSessionEvictionReason reason);
+    }
@@ -0,0 +1,393 @@
+package org.lastbamboo.common.sip.stack;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.timer.SipTimeout;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes sessions that have gone too long without any traffic.  This 
+ * replaces MINA's idle detection, which checks every session every second.
+ * Here each session sits in a bucket for the time it would become idle, 
+ * and only the sessions in the current bucket are checked.  Buckets are 
+ * coarse, so sessions are closed up to one bucket late.<p>
+ *
+ * Traffic doesn't move a session between buckets.  When its bucket comes 
+ * up, we look at the session's last I/O time, which MINA already keeps 
+ * track of.  A session that's had traffic since it was filed just moves to
+ * the bucket for its new deadline, so each session is looked at about 
+ * once per timeout however busy it is.<p>
+ *
+ * Sessions can have their own timeouts.  Given a capacity, timeouts also 
+ * shrink as the number of sessions nears it, from the full timeout at 80%
+ * of capacity down to the minimum timeout at capacity.  Sessions are then
+ * checked at least once per minimum timeout, so shorter timeouts take 
+ * effect soon after the load rises.
+ */
+public class IdleSipSessionEvictor
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default idle timeout, in milliseconds.  Clients send CRLF 
+     * keep-alives at most every 120 seconds, so this tolerates two missed
+     * keep-alives as well as slightly inaccurate timers.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 260 * 1000;
+
+    /**
+     * The default bucket size, in milliseconds.
+     */
+    public static final long DEFAULT_BUCKET_MILLIS = 5 * 1000;
+
+    /**
+     * The fraction of capacity at which timeouts start shrinking.
+     */
+    private static final double LOAD_THRESHOLD = 0.8;
+
+    private final ConcurrentMap<IoSession, Flow> m_flows =
+        new ConcurrentHashMap<IoSession, Flow>();
+
+    private final AtomicInteger m_count = new AtomicInteger();
+
+    private final SipTimer m_timer;
+
+    private final long m_timeoutMillis;
+
+    private final long m_minTimeoutMillis;
+
+    private final int m_capacity;
+
+    private final long m_bucketMillis;
+
+    private final IdleSipSessionListener m_listener;
+
+    private final Queue<Flow>[] m_buckets;
+
+    private final long m_startTime;
+
+    /**
+     * The bucket we're about to check.  Only the timer advances this.
+     */
+    private volatile long m_tick;
+
+    private volatile SipTimeout m_timeout;
+
+    private volatile boolean m_stopped;
+
+    /**
+     * Creates a new evictor with the default timeout and bucket size.
+     * 
+     * @param timer The timer for checking buckets.
+     * @param listener The listener to notify of evictions, or 
+     * <code>null</code> if there isn't one.
+     */
+    public IdleSipSessionEvictor(final SipTimer timer, 
+        final IdleSipSessionListener listener)
+        {
+        this(timer, DEFAULT_TIMEOUT_MILLIS, DEFAULT_BUCKET_MILLIS, listener);
+        }
+
+    /**
+     * Creates a new evictor with a fixed timeout.
+     * 
+     * @param timer The timer for checking buckets.
+     * @param timeoutMillis The idle timeout, in milliseconds.
+     * @param bucketMillis The size of each bucket, in milliseconds.
+     * @param listener The listener to notify of evictions, or 
+     * <code>null</code> if there isn't one.
+     */
+    public IdleSipSessionEvictor(final SipTimer timer, 
+        final long timeoutMillis, final long bucketMillis,
+        final IdleSipSessionListener listener)
+        {
+        this(timer, timeoutMillis, timeoutMillis, Integer.MAX_VALUE, 
+            bucketMillis, listener);
+        }
+
+    /**
+     * Creates a new evictor with timeouts that shrink as the number of 
+     * sessions nears capacity.
+     * 
+     * @param timer The timer for checking buckets.
+     * @param timeoutMillis The idle timeout, in milliseconds.
+     * @param minTimeoutMillis The idle timeout at capacity, in milliseconds.
+     * @param capacity The number of sessions we can handle.
+     * @param bucketMillis The size of each bucket, in milliseconds.
+     * @param listener The listener to notify of evictions, or 
+     * <code>null</code> if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public IdleSipSessionEvictor(final SipTimer timer, 
+        final long timeoutMillis, final long minTimeoutMillis, 
+        final int capacity, final long bucketMillis, 
+        final IdleSipSessionListener listener)
+        {
+        if (bucketMillis <= 0 || timeoutMillis < bucketMillis)
+            {
+            throw new IllegalArgumentException("Bad timeout " + 
+                timeoutMillis + " for bucket " + bucketMillis);
+            }
+        if (minTimeoutMillis <= 0 || minTimeoutMillis > timeoutMillis)
+            {
+            throw new IllegalArgumentException(
+                "Bad min timeout: " + minTimeoutMillis);
+            }
+        if (capacity <= 0)
+            {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+            }
+        this.m_timer = timer;
+        this.m_timeoutMillis = timeoutMillis;
+        this.m_minTimeoutMillis = minTimeoutMillis;
+        this.m_capacity = capacity;
+        this.m_bucketMillis = bucketMillis;
+        this.m_listener = listener;
+
+        // Enough buckets to cover the full timeout, plus the one we're
+        // checking.
+        final int bucketCount = (int) (timeoutMillis / bucketMillis) + 2;
+        this.m_buckets = new Queue[bucketCount];
+        for (int i = 0; i < bucketCount; i++)
+            {
+            this.m_buckets[i] = new ConcurrentLinkedQueue<Flow>();
+            }
+        this.m_startTime = System.currentTimeMillis();
+        scheduleTick();
+        }
+
+    /**
+     * Starts watching the specified session.
+     * 
+     * @param session The session.
+     */
+    public void add(final IoSession session)
+        {
+        add(session, 0);
+        }
+
+    /**
+     * Starts watching the specified session, with its own idle timeout.
+     * Load still shortens the session's timeout.
+     * 
+     * @param session The session.
+     * @param timeoutMillis The idle timeout for the session, in 
+     * milliseconds, or 0 to use the default.
+     */
+    public void add(final IoSession session, final long timeoutMillis)
+        {
+        final Flow flow = new Flow(session, timeoutMillis);
+        if (this.m_flows.putIfAbsent(session, flow) != null)
+            {
+            return;
+            }
+        this.m_count.incrementAndGet();
+        file(flow, System.currentTimeMillis() + 
+            Math.min(timeout(flow), this.m_minTimeoutMillis));
+        }
+
+    /**
+     * Stops watching the specified session.  This should be called when 
+     * the session closes.
+     * 
+     * @param session The session.
+     */
+    public void remove(final IoSession session)
+        {
+        final Flow flow = this.m_flows.remove(session);
+        if (flow != null)
+            {
+            // The flow's left in its bucket and skipped when it comes up.
+            flow.m_removed = true;
+            this.m_count.decrementAndGet();
+            }
+        }
+
+    /**
+     * Accessor for the number of sessions we're watching.
+     * 
+     * @return The number of sessions.
+     */
+    public int size()
+        {
+        return this.m_count.get();
+        }
+
+    /**
+     * Accessor for the idle timeout that currently applies to sessions 
+     * without their own, taking load into account.
+     * 
+     * @return The idle timeout, in milliseconds.
+     */
+    public long getTimeoutMillis()
+        {
+        return adapt(this.m_timeoutMillis);
+        }
+
+    /**
+     * Stops checking for idle sessions.
+     */
+    public void stop()
+        {
+        this.m_stopped = true;
+        final SipTimeout timeout = this.m_timeout;
+        if (timeout != null)
+            {
+            timeout.cancel();
+            }
+        }
+
+    private void scheduleTick()
+        {
+        if (this.m_stopped)
+            {
+            return;
+            }
+        final long nextTickTime = 
+            this.m_startTime + (this.m_tick + 1) * this.m_bucketMillis;
+        final long delay = 
+            Math.max(0, nextTickTime - System.currentTimeMillis());
+        this.m_timeout = this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    checkBucket();
+                    }
+                finally
+                    {
+                    scheduleTick();
+                    }
+                }
+            }, delay);
+        }
+
+    private void checkBucket()
+        {
+        final long tick = this.m_tick;
+        final Queue<Flow> bucket = 
+            this.m_buckets[(int) (tick % this.m_buckets.length)];
+        this.m_tick = tick + 1;
+
+        // Anything added to the bucket from now on is for a later tick, 
+        // since we've moved on.  Only take what was there to begin with.
+        final long now = System.currentTimeMillis();
+        int remaining = bucket.size();
+        while (remaining-- > 0)
+            {
+            final Flow flow = bucket.poll();
+            if (flow == null)
+                {
+                break;
+                }
+            check(flow, now);
+            }
+        }
+
+    private void check(final Flow flow, final long now)
+        {
+        if (flow.m_removed)
+            {
+            return;
+            }
+        final IoSession session = flow.m_session;
+        if (session.isClosing())
+            {
+            remove(session);
+            return;
+            }
+        final long lastIo = 
+            Math.max(session.getLastIoTime(), session.getCreationTime());
+        final long timeout = timeout(flow);
+        final long deadline = lastIo + timeout;
+        if (deadline > now)
+            {
+            file(flow, Math.min(deadline, now + this.m_minTimeoutMillis));
+            return;
+            }
+
+        final long fullTimeout = 
+            flow.m_timeoutMillis > 0 ? flow.m_timeoutMillis : m_timeoutMillis;
+        final SipSessionEvictionReason reason = 
+            lastIo + fullTimeout > now ? 
+                SipSessionEvictionReason.IDLE_UNDER_LOAD : 
+                SipSessionEvictionReason.IDLE;
+        m_log.debug("Closing idle session: {}", session);
+        remove(session);
+        session.close();
+        if (this.m_listener instanceof IdleSipSessionEvictionListener)
+            {
+            ((IdleSipSessionEvictionListener) this.m_listener).onIdleSession(
+                session, reason);
+            }
+        else if (this.m_listener != null)
+            {
+            this.m_listener.onIdleSession();
+            }
+        }
+
+    /**
+     * Puts a flow in the bucket for the specified deadline.  Deadlines 
+     * past the end of the wheel go in the last bucket, and the flow gets 
+     * filed again from there.
+     */
+    private void file(final Flow flow, final long deadline)
+        {
+        final long tick = this.m_tick;
+        long target = (deadline - this.m_startTime + this.m_bucketMillis - 1) 
+            / this.m_bucketMillis;
+        target = Math.max(target, tick + 1);
+        target = Math.min(target, tick + this.m_buckets.length - 1);
+        this.m_buckets[(int) (target % this.m_buckets.length)].add(flow);
+        }
+
+    private long timeout(final Flow flow)
+        {
+        if (flow.m_timeoutMillis > 0)
+            {
+            return adapt(flow.m_timeoutMillis);
+            }
+        return adapt(this.m_timeoutMillis);
+        }
+
+    /**
+     * Shortens a timeout according to how close we are to capacity.
+     */
+    private long adapt(final long timeoutMillis)
+        {
+        final double load = (double) this.m_count.get() / this.m_capacity;
+        if (load <= LOAD_THRESHOLD)
+            {
+            return timeoutMillis;
+            }
+        final long min = Math.min(this.m_minTimeoutMillis, timeoutMillis);
+        final double shrink = 
+            Math.min(1.0, (load - LOAD_THRESHOLD) / (1.0 - LOAD_THRESHOLD));
+        return timeoutMillis - (long) ((timeoutMillis - min) * shrink);
+        }
+
+    private static final class Flow
+        {
+
+        private final IoSession m_session;
+
+        private final long m_timeoutMillis;
+
+        private volatile boolean m_removed;
+
+        private Flow(final IoSession session, final long timeoutMillis)
+            {
+            this.m_session = session;
+            this.m_timeoutMillis = timeoutMillis;
+            }
+        }
+    }
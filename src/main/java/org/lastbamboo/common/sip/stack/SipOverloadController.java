@@ -0,0 +1,243 @@
+package org.lastbamboo.common.sip.stack;
+
+import java.util.Random;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderParamNames;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns away new requests with a 503 when we fall behind, so clients back
+ * off instead of timing out and retransmitting.  We measure how long each
+ * message waited between being decoded and being dispatched.  Short bursts
+ * are fine, but once that wait has stayed above the target for a whole
+ * interval we consider ourselves overloaded, and stay that way until a
+ * message gets through within the target again.<p>
+ *
+ * While overloaded, only new INVITEs and REGISTERs are shed.  Responses
+ * and requests within a dialog always go through, since they let work
+ * already underway finish.  Each 503 carries a random Retry-After so the
+ * clients we turn away don't all come back at once.  The Retry-After
+ * headers are created up front, so shedding a request only copies the
+ * headers a response has to echo.<p>
+ *
+ * The wait we measure is only the time a message spends queued between 
+ * the decoder and the handler, so this only works when messages are 
+ * handed off to other threads -- through a 
+ * {@link org.lastbamboo.common.sip.stack.codec.SipDispatchStage} given to
+ * the {@link org.lastbamboo.common.sip.stack.codec.SipIoHandler}, or an 
+ * <code>ExecutorFilter</code> after the codec in the filter chain.  When
+ * the I/O thread that decoded a message also handles it, the wait is 
+ * always close to zero, and we never shed anything no matter how far 
+ * behind we are.
+ */
+public class SipOverloadController
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default longest messages should wait to be dispatched, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_TARGET_DELAY_MILLIS = 50;
+
+    /**
+     * The default time the wait has to stay above the target before we
+     * start shedding, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 500;
+
+    /**
+     * The default shortest Retry-After, in seconds.
+     */
+    public static final int DEFAULT_MIN_RETRY_AFTER = 5;
+
+    /**
+     * The default longest Retry-After, in seconds.
+     */
+    public static final int DEFAULT_MAX_RETRY_AFTER = 20;
+
+    private final SipMessageFactory m_messageFactory;
+
+    private final long m_targetDelayNanos;
+
+    private final long m_intervalNanos;
+
+    /**
+     * The Retry-After headers we choose from, one for each number of
+     * seconds.
+     */
+    private final SipHeader[] m_retryAfters;
+
+    private final Random m_random = new Random();
+
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
+
+    /**
+     * When messages started waiting longer than the target, or
+     * <code>0</code> if the last message didn't.
+     */
+    private volatile long m_aboveTargetSince;
+
+    private volatile boolean m_overloaded;
+
+    /**
+     * Creates a new overload controller with the default target delay,
+     * interval and Retry-After range.
+     *
+     * @param messageFactory The factory for creating 503 responses.
+     * @param headerFactory The factory for creating Retry-After headers.
+     */
+    public SipOverloadController(final SipMessageFactory messageFactory,
+        final SipHeaderFactory headerFactory)
+        {
+        this(messageFactory, headerFactory, DEFAULT_TARGET_DELAY_MILLIS,
+            DEFAULT_INTERVAL_MILLIS, DEFAULT_MIN_RETRY_AFTER,
+            DEFAULT_MAX_RETRY_AFTER);
+        }
+
+    /**
+     * Creates a new overload controller.
+     *
+     * @param messageFactory The factory for creating 503 responses.
+     * @param headerFactory The factory for creating Retry-After headers.
+     * @param targetDelayMillis The longest messages should wait to be
+     * dispatched, in milliseconds.
+     * @param intervalMillis How long the wait has to stay above the target
+     * before we start shedding, in milliseconds.
+     * @param minRetryAfter The shortest Retry-After, in seconds.
+     * @param maxRetryAfter The longest Retry-After, in seconds.
+     */
+    public SipOverloadController(final SipMessageFactory messageFactory,
+        final SipHeaderFactory headerFactory, final long targetDelayMillis,
+        final long intervalMillis, final int minRetryAfter,
+        final int maxRetryAfter)
+        {
+        if (targetDelayMillis <= 0)
+            {
+            throw new IllegalArgumentException(
+                "Bad target delay: " + targetDelayMillis);
+            }
+        if (intervalMillis <= 0)
+            {
+            throw new IllegalArgumentException(
+                "Bad interval: " + intervalMillis);
+            }
+        if (minRetryAfter <= 0 || maxRetryAfter < minRetryAfter)
+            {
+            throw new IllegalArgumentException("Bad Retry-After range: " +
+                minRetryAfter + "-" + maxRetryAfter);
+            }
+        this.m_messageFactory = messageFactory;
+        this.m_targetDelayNanos = targetDelayMillis * 1000000L;
+        this.m_intervalNanos = intervalMillis * 1000000L;
+        this.m_retryAfters = new SipHeader[maxRetryAfter - minRetryAfter + 1];
+        for (int i = 0; i < this.m_retryAfters.length; i++)
+            {
+            this.m_retryAfters[i] = headerFactory.createHeader(
+                SipHeaderNames.RETRY_AFTER,
+                String.valueOf(minRetryAfter + i));
+            }
+        }
+
+    /**
+     * Records how long the specified message waited to be dispatched, and
+     * answers it with a 503 if we're overloaded and it's a request we can
+     * turn away.
+     *
+     * @param session The session the message arrived on.
+     * @param message The message.
+     * @return <code>true</code> if we turned the message away and it
+     * shouldn't be processed, otherwise <code>false</code>.
+     */
+    public boolean shed(final IoSession session, final SipMessage message)
+        {
+        onDispatch(message);
+        if (!this.m_overloaded || !isNewRequest(message))
+            {
+            return false;
+            }
+        final int index = this.m_random.nextInt(this.m_retryAfters.length);
+        final SipHeader retryAfter = this.m_retryAfters[index];
+        final SipResponse response =
+            this.m_messageFactory.createServiceUnavailableResponse(message,
+                retryAfter);
+        session.write(response);
+        this.m_metrics.onRequestShed();
+        return true;
+        }
+
+    /**
+     * Returns whether or not we're currently shedding new requests.
+     *
+     * @return <code>true</code> if we're overloaded, otherwise
+     * <code>false</code>.
+     */
+    public boolean isOverloaded()
+        {
+        return this.m_overloaded;
+        }
+
+    private void onDispatch(final SipMessage message)
+        {
+        final long decodeTime = message.getDecodeTime();
+        if (decodeTime == 0)
+            {
+            return;
+            }
+        final long now = System.nanoTime();
+        if (now - decodeTime < this.m_targetDelayNanos)
+            {
+            this.m_aboveTargetSince = 0;
+            if (this.m_overloaded)
+                {
+                this.m_overloaded = false;
+                m_log.info("No longer overloaded");
+                }
+            return;
+            }
+        final long since = this.m_aboveTargetSince;
+        if (since == 0)
+            {
+            this.m_aboveTargetSince = now;
+            }
+        else if (!this.m_overloaded && now - since >= this.m_intervalNanos)
+            {
+            this.m_overloaded = true;
+            m_log.warn("Overloaded -- shedding new requests");
+            }
+        }
+
+    /**
+     * Returns whether the message is a request that starts something new,
+     * rather than a response or a request within an existing dialog.
+     */
+    private static boolean isNewRequest(final SipMessage message)
+        {
+        // Responses report the method from their CSeq, so we go by type.
+        if (message instanceof Register)
+            {
+            return true;
+            }
+        if (!(message instanceof Invite))
+            {
+            return false;
+            }
+
+        // Requests within a dialog have a tag in the To header.
+        final SipHeader to = message.getHeader(SipHeaderName.TO);
+        return to == null || !to.getValue().hasParam(SipHeaderParamNames.TAG);
+        }
+    }
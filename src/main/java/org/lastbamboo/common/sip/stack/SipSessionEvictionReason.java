@@ -0,0 +1,24 @@
+package org.lastbamboo.common.sip.stack;
+
+/**
+ * Why we closed a SIP session.
+ */
+public enum SipSessionEvictionReason
+    {
+
+    /**
+     * There was no traffic on the session for its full idle timeout.
+     */
+    IDLE,
+
+    /**
+     * There was no traffic on the session for an idle timeout that was 
+     * shortened because we were near our connection limit.
+     */
+    IDLE_UNDER_LOAD,
+
+    /**
+     * The other side stopped answering keep-alives.
+     */
+    KEEP_ALIVE_TIMEOUT,
+    }
@@ -0,0 +1,23 @@
+package org.lastbamboo.common.sip.stack.codec;
+
+/**
+ * Enumeration of the available strategies for decoding SIP messages off the
+ * wire.
+ */
+public enum SipDecoderMode
+    {
+
+    /**
+     * The original decoder that walks a chain of decoding states for the
+     * start line, each header and the body.
+     */
+    STATE_MACHINE,
+
+    /**
+     * Decoder that scans each buffer once, recording offsets for the start
+     * line, headers and body, and that only creates the objects the message
+     * model needs once a complete message has arrived.
+     */
+    SINGLE_PASS,
+    ;
+    }
@@ -0,0 +1,333 @@
+package org.lastbamboo.common.sip.stack.codec;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.metrics.LatencyHistogram;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.metrics.StripedCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the work for each session on an {@link Executor} rather than on the
+ * MINA I/O thread that read it, so slow work on one connection doesn't hold
+ * up reads on every other connection sharing the I/O thread.<p>
+ *
+ * Each session has its own queue, and at most one task from a session runs
+ * at a time, so a session's messages are still handled in the order they
+ * arrived.  Different sessions run in parallel.  A session only holds on to
+ * a worker for a limited number of tasks before going to the back of the
+ * executor's queue, so a busy connection can't starve the others.<p>
+ *
+ * A session's queue is bounded by its read rate rather than by rejecting
+ * tasks.  Once a session has more than a high-water mark of tasks waiting
+ * we suspend reads on it, and resume them when it drains back down to a
+ * low-water mark, so TCP flow control pushes back on a client sending 
+ * faster than we can handle.  Messages already read when we suspend are
+ * still queued, so the queue can go a little past the high-water mark.<p>
+ *
+ * Each stage keeps its own queue depth and timings, and also adds them to
+ * the totals in {@link SipStackMetrics}.
+ */
+public class SipDispatchStage
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The most tasks we run for a session before letting other sessions
+     * have the worker.
+     */
+    private static final int MAX_TASKS_PER_RUN = 16;
+
+    /**
+     * The default number of queued tasks for a session at which we stop
+     * reading from it.
+     */
+    public static final int DEFAULT_HIGH_WATER_MARK = 1000;
+
+    /**
+     * The default number of queued tasks for a session at which we start
+     * reading from it again.
+     */
+    public static final int DEFAULT_LOW_WATER_MARK = 500;
+
+    private static final String QUEUE_KEY =
+        SipDispatchStage.class.getName() + ".queue";
+
+    private final Executor m_executor;
+
+    private final int m_highWaterMark;
+
+    private final int m_lowWaterMark;
+
+    private final StripedCounter m_queueDepth = new StripedCounter();
+
+    private final LatencyHistogram m_queueTime = new LatencyHistogram();
+
+    private final LatencyHistogram m_serviceTime = new LatencyHistogram();
+
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
+
+    /**
+     * Creates a new dispatch stage.
+     *
+     * @param executor The executor for running tasks.
+     */
+    public SipDispatchStage(final Executor executor)
+        {
+        this(executor, DEFAULT_HIGH_WATER_MARK, DEFAULT_LOW_WATER_MARK);
+        }
+
+    /**
+     * Creates a new dispatch stage.
+     *
+     * @param executor The executor for running tasks.
+     * @param highWaterMark The number of queued tasks for a session at 
+     * which we suspend reads on it.
+     * @param lowWaterMark The number of queued tasks for a session at 
+     * which we resume reads on it.
+     */
+    public SipDispatchStage(final Executor executor, final int highWaterMark,
+        final int lowWaterMark)
+        {
+        if (lowWaterMark < 0 || highWaterMark <= lowWaterMark)
+            {
+            throw new IllegalArgumentException("Bad water marks: " +
+                lowWaterMark + "-" + highWaterMark);
+            }
+        this.m_executor = executor;
+        this.m_highWaterMark = highWaterMark;
+        this.m_lowWaterMark = lowWaterMark;
+        }
+
+    /**
+     * Runs the specified task after any tasks already queued for the
+     * session.
+     *
+     * @param session The session the task is for.
+     * @param task The task.
+     */
+    public void execute(final IoSession session, final Runnable task)
+        {
+        final SessionQueue queue = getQueue(session);
+        this.m_queueDepth.increment();
+        this.m_metrics.onDispatchQueued();
+        queue.m_tasks.add(new QueuedTask(task, System.nanoTime()));
+        if (queue.m_size.incrementAndGet() >= this.m_highWaterMark)
+            {
+            queue.suspend();
+            }
+        if (queue.m_running.compareAndSet(false, true))
+            {
+            schedule(queue);
+            }
+        }
+
+    /**
+     * Accessor for the number of tasks waiting to run or running.
+     *
+     * @return The number of tasks.
+     */
+    public long getQueueDepth()
+        {
+        return this.m_queueDepth.sum();
+        }
+
+    /**
+     * Accessor for how long tasks waited to run.
+     *
+     * @return A snapshot of the times.
+     */
+    public LatencyHistogram.Snapshot getQueueTime()
+        {
+        return this.m_queueTime.getSnapshot();
+        }
+
+    /**
+     * Accessor for how long tasks took to run.
+     *
+     * @return A snapshot of the times.
+     */
+    public LatencyHistogram.Snapshot getServiceTime()
+        {
+        return this.m_serviceTime.getSnapshot();
+        }
+
+    private void schedule(final SessionQueue queue)
+        {
+        try
+            {
+            this.m_executor.execute(queue);
+            }
+        catch (final RejectedExecutionException e)
+            {
+            // We still hold the session's turn, so running the tasks here
+            // keeps them in order.
+            m_log.warn("Executor rejected tasks -- running them here", e);
+            queue.run();
+            }
+        }
+
+    private SessionQueue getQueue(final IoSession session)
+        {
+        final SessionQueue queue =
+            (SessionQueue) session.getAttribute(QUEUE_KEY);
+        if (queue != null)
+            {
+            return queue;
+            }
+        final SessionQueue newQueue = new SessionQueue(session);
+        final SessionQueue existing =
+            (SessionQueue) session.setAttributeIfAbsent(QUEUE_KEY, newQueue);
+        return existing == null ? newQueue : existing;
+        }
+
+    private static final class QueuedTask
+        {
+
+        private final Runnable m_task;
+
+        private final long m_queuedTime;
+
+        private QueuedTask(final Runnable task, final long queuedTime)
+            {
+            this.m_task = task;
+            this.m_queuedTime = queuedTime;
+            }
+        }
+
+    /**
+     * The tasks for a single session.  Whoever sets the running flag owns
+     * the session's turn until it clears the flag again.
+     */
+    private final class SessionQueue implements Runnable
+        {
+
+        private final IoSession m_session;
+
+        private final Queue<QueuedTask> m_tasks =
+            new ConcurrentLinkedQueue<QueuedTask>();
+
+        /**
+         * The number of tasks queued or running, since the queue's own 
+         * size isn't constant time.
+         */
+        private final AtomicInteger m_size = new AtomicInteger();
+
+        private final AtomicBoolean m_running = new AtomicBoolean();
+
+        /**
+         * Whether we've suspended reads.  This only changes while holding 
+         * the queue's lock, so suspending and resuming happen in the same
+         * order as the flag changes.
+         */
+        private volatile boolean m_suspended;
+
+        private SessionQueue(final IoSession session)
+            {
+            this.m_session = session;
+            }
+
+        public void run()
+            {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++)
+                {
+                final QueuedTask task = this.m_tasks.poll();
+                if (task == null)
+                    {
+                    break;
+                    }
+                runTask(task);
+                }
+            this.m_running.set(false);
+
+            // Anything added after our last poll is ours to schedule,
+            // unless another thread already has.
+            if (!this.m_tasks.isEmpty() &&
+                this.m_running.compareAndSet(false, true))
+                {
+                schedule(this);
+                }
+            }
+
+        private void runTask(final QueuedTask task)
+            {
+            final long start = System.nanoTime();
+            final long queueNanos = start - task.m_queuedTime;
+            m_queueTime.recordNanos(queueNanos);
+            try
+                {
+                task.m_task.run();
+                }
+            catch (final Throwable t)
+                {
+                m_log.warn("Exception running task", t);
+                }
+            finally
+                {
+                final long serviceNanos = System.nanoTime() - start;
+                m_serviceTime.recordNanos(serviceNanos);
+                m_queueDepth.decrement();
+                m_metrics.onDispatchCompleted(queueNanos, serviceNanos);
+                if (this.m_size.decrementAndGet() <= m_lowWaterMark)
+                    {
+                    resume();
+                    }
+                }
+            }
+
+        private void suspend()
+            {
+            if (this.m_suspended)
+                {
+                return;
+                }
+            synchronized (this)
+                {
+                if (this.m_suspended)
+                    {
+                    return;
+                    }
+
+                // We set the flag before checking the size again, so 
+                // either we see the queue has drained or the thread that
+                // drained it sees the flag and resumes after we're done.
+                this.m_suspended = true;
+                if (this.m_size.get() <= m_lowWaterMark)
+                    {
+                    this.m_suspended = false;
+                    return;
+                    }
+                m_log.debug("Suspending reads on backed up session: {}", 
+                    this.m_session);
+                this.m_session.suspendRead();
+                }
+            }
+
+        private void resume()
+            {
+            if (!this.m_suspended)
+                {
+                return;
+                }
+            synchronized (this)
+                {
+                if (!this.m_suspended || 
+                    this.m_size.get() > m_lowWaterMark)
+                    {
+                    return;
+                    }
+                this.m_suspended = false;
+                m_log.debug("Resuming reads on session: {}", this.m_session);
+                this.m_session.resumeRead();
+                }
+            }
+        }
+    }
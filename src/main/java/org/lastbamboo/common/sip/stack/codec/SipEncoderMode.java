@@ -0,0 +1,23 @@
+package org.lastbamboo.common.sip.stack.codec;
+
+/**
+ * Enumeration of the available strategies for encoding SIP messages to the
+ * wire.
+ */
+public enum SipEncoderMode
+    {
+
+    /**
+     * The original encoder that writes to a small, auto-expanding buffer
+     * through a charset encoder.
+     */
+    AUTO_EXPANDING,
+
+    /**
+     * Encoder that computes the exact size of each message up front and
+     * writes it to a buffer of that size taken from a pool.  MINA returns
+     * the buffer to the pool once it's been written.
+     */
+    PRESIZED,
+    ;
+    }
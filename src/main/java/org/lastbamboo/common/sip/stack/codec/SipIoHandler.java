@@ -6,10 +6,14 @@ import org.littleshoot.mina.common.IdleStatus;
 import org.littleshoot.mina.common.IoHandler;
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.mina.util.SessionUtil;
+import org.lastbamboo.common.sip.stack.IdleSipSessionEvictor;
 import org.lastbamboo.common.sip.stack.IdleSipSessionListener;
+import org.lastbamboo.common.sip.stack.SipOverloadController;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitorFactory;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.registrar.SipLocationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,9 +28,17 @@ public class SipIoHandler implements IoHandler
     
     private final SipMessageVisitorFactory m_visitorFactory;
 
-    private static int s_messagesRead = 0;
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
 
     private final IdleSipSessionListener m_idleSipSessionListener;
+
+    private final IdleSipSessionEvictor m_evictor;
+
+    private final SipOverloadController m_overloadController;
+
+    private final SipDispatchStage m_dispatchStage;
+
+    private final SipLocationService m_locationService;
     
     /**
      * Creates a new protocol handler.
@@ -37,8 +49,7 @@ public class SipIoHandler implements IoHandler
      */
     public SipIoHandler(final SipMessageVisitorFactory visitorFactory)
         {
-        this.m_visitorFactory = visitorFactory;
-        this.m_idleSipSessionListener = null;
+        this(visitorFactory, null);
         }
 
     /**
@@ -52,8 +63,43 @@ public class SipIoHandler implements IoHandler
     public SipIoHandler(final SipMessageVisitorFactory visitorFactory,
         final IdleSipSessionListener idleSipSessionListener)
         {
-        m_visitorFactory = visitorFactory;
+        this(visitorFactory, idleSipSessionListener, null, null, null, null);
+        }
+
+    /**
+     * Creates a new protocol handler with every option.  Any option can be
+     * <code>null</code> to go without it.
+     * 
+     * @param visitorFactory The factory for creating visitors for read 
+     * messages.  Factories might create specialized visitors for clients or
+     * servers, for example.
+     * @param idleSipSessionListener Listener for sessions MINA reports as 
+     * idle, or <code>null</code> for none.  With an evictor, give the 
+     * listener to the evictor instead.
+     * @param evictor The evictor for closing idle sessions, or 
+     * <code>null</code> to leave closing idle sessions to MINA.
+     * @param overloadController The controller deciding which requests to
+     * turn away, or <code>null</code> to process everything.  Without a 
+     * dispatch stage, it only sees a backlog if there's an 
+     * <code>ExecutorFilter</code> between the codec and this handler.
+     * @param dispatchStage The stage for handling messages, or 
+     * <code>null</code> to handle them on the I/O thread that read them.
+     * @param locationService The location service to attach new sessions 
+     * to, or <code>null</code> if this isn't a registrar.
+     */
+    public SipIoHandler(final SipMessageVisitorFactory visitorFactory,
+        final IdleSipSessionListener idleSipSessionListener,
+        final IdleSipSessionEvictor evictor, 
+        final SipOverloadController overloadController,
+        final SipDispatchStage dispatchStage,
+        final SipLocationService locationService)
+        {
+        this.m_visitorFactory = visitorFactory;
         this.m_idleSipSessionListener = idleSipSessionListener;
+        this.m_evictor = evictor;
+        this.m_overloadController = overloadController;
+        this.m_dispatchStage = dispatchStage;
+        this.m_locationService = locationService;
         }
     
     public void exceptionCaught(final IoSession session, 
@@ -69,12 +115,41 @@ public class SipIoHandler implements IoHandler
     public final void messageReceived(final IoSession session, 
         final Object message) throws Exception
         {
-        s_messagesRead++;
-        if (m_log.isDebugEnabled())
+        final SipMessage sipMessage = (SipMessage) message;
+        this.m_metrics.onMessageDecoded(sipMessage);
+        if (this.m_dispatchStage == null)
             {
-            m_log.debug("Received message.  Now read: {} ", s_messagesRead);
+            dispatch(session, sipMessage);
+            return;
+            }
+        this.m_dispatchStage.execute(session, new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    dispatch(session, sipMessage);
+                    }
+                catch (final RuntimeException e)
+                    {
+                    // Just as if MINA had caught it on the I/O thread.
+                    m_log.warn("Unexpected exception:", e);
+                    session.close();
+                    }
+                }
+            });
+        }
+
+    private void dispatch(final IoSession session, 
+        final SipMessage sipMessage)
+        {
+        // With a dispatch stage, this also counts the time the message
+        // waited in the stage.
+        if (this.m_overloadController != null && 
+            this.m_overloadController.shed(session, sipMessage))
+            {
+            return;
             }
-        final SipMessage sipMessage = (SipMessage) message;
         final SipMessageVisitor visitor = 
             this.m_visitorFactory.createVisitor(session);
         sipMessage.accept(visitor);
@@ -93,16 +168,31 @@ public class SipIoHandler implements IoHandler
     public void sessionOpened(final IoSession session) throws Exception
         {
         m_log.debug("Session opened!!!");
+        this.m_metrics.onConnectionOpened();
         }
     
     public void sessionClosed(final IoSession session) throws Exception
         {
         m_log.debug("Session closed!!!");
+        this.m_metrics.onConnectionClosed();
+        if (this.m_evictor != null)
+            {
+            this.m_evictor.remove(session);
+            }
         }
 
     public void sessionCreated(final IoSession session) throws Exception
         {
         SessionUtil.initialize(session);
+        if (this.m_locationService != null)
+            {
+            this.m_locationService.attach(session);
+            }
+        if (this.m_evictor != null)
+            {
+            this.m_evictor.add(session);
+            return;
+            }
         
         // The idle time is in seconds.  If there's been no traffic in either
         // direction for awhile, we free the connection to limit load on the
@@ -0,0 +1,89 @@
+package org.lastbamboo.common.sip.stack.codec;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+
+/**
+ * Decoder that records the bytes read and any decoding failures before 
+ * passing everything on to the decoder that does the work.  It also stamps
+ * each decoded message with the time it was decoded, so the handler can 
+ * tell how long messages wait before they're dispatched.
+ */
+final class SipMeteredProtocolDecoder implements ProtocolDecoder
+    {
+
+    private final ProtocolDecoder m_decoder;
+
+    private final SipStackMetrics m_metrics;
+
+    /**
+     * Creates a new decoder.
+     * 
+     * @param decoder The decoder that does the work.
+     * @param metrics The metrics to record to.
+     */
+    SipMeteredProtocolDecoder(final ProtocolDecoder decoder, 
+        final SipStackMetrics metrics)
+        {
+        this.m_decoder = decoder;
+        this.m_metrics = metrics;
+        }
+
+    public void decode(final IoSession session, final ByteBuffer in, 
+        final ProtocolDecoderOutput out) throws Exception
+        {
+        this.m_metrics.onBytesIn(in.remaining());
+        try
+            {
+            this.m_decoder.decode(session, in, new TimingOutput(out));
+            }
+        catch (final Exception e)
+            {
+            this.m_metrics.onDecodeFailure();
+            throw e;
+            }
+        }
+
+    public void finishDecode(final IoSession session, 
+        final ProtocolDecoderOutput out) throws Exception
+        {
+        this.m_decoder.finishDecode(session, out);
+        }
+
+    public void dispose(final IoSession session) throws Exception
+        {
+        this.m_decoder.dispose(session);
+        }
+
+    /**
+     * Output that stamps messages with the time they were decoded.
+     */
+    private static final class TimingOutput implements ProtocolDecoderOutput
+        {
+
+        private final ProtocolDecoderOutput m_out;
+
+        private TimingOutput(final ProtocolDecoderOutput out)
+            {
+            this.m_out = out;
+            }
+
+        public void write(final Object message)
+            {
+            if (message instanceof SipMessage)
+                {
+                ((SipMessage) message).setDecodeTime(System.nanoTime());
+                }
+            this.m_out.write(message);
+            }
+
+        public void flush()
+            {
+            this.m_out.flush();
+            }
+        }
+    }
@@ -4,8 +4,11 @@ import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
 import org.littleshoot.mina.filter.codec.ProtocolDecoder;
 import org.littleshoot.mina.filter.codec.ProtocolEncoder;
 import org.lastbamboo.common.sip.stack.codec.decoder.SipMessageDecodingState;
+import org.lastbamboo.common.sip.stack.codec.decoder.SipMessageScanningDecoder;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessagePresizedEncoder;
 import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageProtocolEncoder;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
 import org.littleshoot.util.mina.StateMachineProtocolDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,29 +22,78 @@ public class SipProtocolCodecFactory implements ProtocolCodecFactory
     private final Logger m_log = 
         LoggerFactory.getLogger(SipProtocolCodecFactory.class);
     private final SipHeaderFactory m_headerFactory;
+    private final SipDecoderMode m_decoderMode;
+    private final SipEncoderMode m_encoderMode;
     
     /**
-     * Creates a new codec factory for SIP messages.
-     * 
+     * Creates a new codec factory for SIP messages using the state machine
+     * decoder.
+     *
      * @param headerFactory The factory for creating SIP headers.
      */
     public SipProtocolCodecFactory(final SipHeaderFactory headerFactory)
+        {
+        this(headerFactory, SipDecoderMode.STATE_MACHINE);
+        }
+
+    /**
+     * Creates a new codec factory for SIP messages.
+     *
+     * @param headerFactory The factory for creating SIP headers.
+     * @param decoderMode The strategy to use for decoding messages.
+     */
+    public SipProtocolCodecFactory(final SipHeaderFactory headerFactory,
+        final SipDecoderMode decoderMode)
+        {
+        this(headerFactory, decoderMode, SipEncoderMode.AUTO_EXPANDING);
+        }
+
+    /**
+     * Creates a new codec factory for SIP messages.
+     *
+     * @param headerFactory The factory for creating SIP headers.
+     * @param decoderMode The strategy to use for decoding messages.
+     * @param encoderMode The strategy to use for encoding messages.
+     */
+    public SipProtocolCodecFactory(final SipHeaderFactory headerFactory,
+        final SipDecoderMode decoderMode, final SipEncoderMode encoderMode)
         {
         m_headerFactory = headerFactory;
+        m_decoderMode = decoderMode;
+        m_encoderMode = encoderMode;
         }
 
     public ProtocolDecoder getDecoder() throws Exception
         {
         m_log.debug("Creating new decoder...");
-        final SipMessageDecodingState startState = 
-            new SipMessageDecodingState(m_headerFactory);
-
-        return new StateMachineProtocolDecoder(startState);
+        final ProtocolDecoder decoder;
+        switch (m_decoderMode)
+            {
+            case SINGLE_PASS:
+                decoder = new SipMessageScanningDecoder(m_headerFactory);
+                break;
+            case STATE_MACHINE:
+            default:
+                final SipMessageDecodingState startState =
+                    new SipMessageDecodingState(m_headerFactory);
+                decoder = new StateMachineProtocolDecoder(startState);
+                break;
+            }
+        return new SipMeteredProtocolDecoder(decoder, 
+            SipStackMetrics.getInstance());
         }
     
     public ProtocolEncoder getEncoder() throws Exception
         {
-        return new SipMessageProtocolEncoder();
+        switch (m_encoderMode)
+            {
+            case PRESIZED:
+                return new SipMessageProtocolEncoder(
+                    new SipMessagePresizedEncoder());
+            case AUTO_EXPANDING:
+            default:
+                return new SipMessageProtocolEncoder();
+            }
         }
 
     }
@@ -2,13 +2,13 @@ package org.lastbamboo.common.sip.stack.codec.decoder;
 
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.util.Map;
-import java.util.TreeMap;
 
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderMap;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
 import org.littleshoot.util.mina.ConsumeToCrlfDecodingState;
 import org.littleshoot.util.mina.ConsumeToTerminatorDecodingState;
 import org.littleshoot.util.mina.CrlfDecodingState;
@@ -32,8 +32,7 @@ abstract class SipHeaderDecodingState extends DecodingStateMachine
 
     private final CharsetDecoder m_asciiDecoder = US_ASCII.newDecoder();
 
-    private Map<String, SipHeader> m_headers = 
-        new TreeMap<String, SipHeader>();
+    private final SipHeaderMap m_headers = new SipHeaderMap();
 
     private final SipHeaderFactory m_headerFactory;
     
@@ -73,8 +72,37 @@ abstract class SipHeaderDecodingState extends DecodingStateMachine
             final ByteBuffer product, final ProtocolDecoderOutput out) 
             throws Exception
             {
-            final String headerName = product.getString(m_asciiDecoder);
-            return new AfterHeaderColonState(headerName);
+            final SipHeaderName knownHeader = lookupHeaderName(product);
+            final String headerName;
+            if (knownHeader == null)
+                {
+                headerName = product.getString(m_asciiDecoder);
+                }
+            else
+                {
+                // No need to decode the name of a header we know about.
+                headerName = knownHeader.getName();
+                }
+            return new AfterHeaderColonState(headerName, knownHeader);
+            }
+
+        private SipHeaderName lookupHeaderName(final ByteBuffer product)
+            {
+            if (!product.hasArray())
+                {
+                return null;
+                }
+            final byte[] bytes = product.array();
+            final int offset = product.arrayOffset() + product.position();
+            int length = product.remaining();
+            
+            // Allow for whitespace between the name and the colon.
+            while (length > 0 && (bytes[offset + length - 1] == ' ' || 
+                bytes[offset + length - 1] == '\t'))
+                {
+                length--;
+                }
+            return SipHeaderName.lookup(bytes, offset, length);
             }
         
         }
@@ -83,16 +111,20 @@ abstract class SipHeaderDecodingState extends DecodingStateMachine
         {
 
         private final String m_headerName;
+        private final SipHeaderName m_knownHeader;
 
-        private AfterHeaderColonState(String headerName)
+        private AfterHeaderColonState(final String headerName,
+            final SipHeaderName knownHeader)
             {
             m_headerName = headerName;
+            m_knownHeader = knownHeader;
             }
 
         @Override
         protected DecodingState finishDecode() throws Exception
             {
-            return new HeaderValueDecodingState(this.m_headerName);
+            return new HeaderValueDecodingState(this.m_headerName, 
+                this.m_knownHeader);
             }
     
         }
@@ -102,10 +134,13 @@ abstract class SipHeaderDecodingState extends DecodingStateMachine
         {
     
         private final String m_headerName;
+        private final SipHeaderName m_knownHeader;
 
-        private HeaderValueDecodingState(final String headerName)
+        private HeaderValueDecodingState(final String headerName,
+            final SipHeaderName knownHeader)
             {
             m_headerName = headerName;
+            m_knownHeader = knownHeader;
             }
 
         @Override
@@ -116,7 +151,14 @@ abstract class SipHeaderDecodingState extends DecodingStateMachine
             LOG.debug("Read header value: {}", headerValue);
             final SipHeader header = 
                 m_headerFactory.createHeader(this.m_headerName, headerValue);
-            m_headers.put(this.m_headerName, header);
+            if (this.m_knownHeader == null)
+                {
+                m_headers.put(this.m_headerName, header);
+                }
+            else
+                {
+                m_headers.put(this.m_knownHeader, header);
+                }
             return new FindEmptyLine();
             }
     
@@ -0,0 +1,722 @@
+package org.lastbamboo.common.sip.stack.codec.decoder;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.littleshoot.mina.common.BufferDataException;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.stack.codec.SipMessageType;
+import org.lastbamboo.common.sip.stack.message.AbstractSipMessage;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderMap;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder that reads SIP messages in a single pass over the incoming bytes.
+ * Rather than walking a chain of decoding states and decoding every token
+ * as it arrives, this scans each line once, records the offsets of the start
+ * line, each header name and value and the body, and only creates the
+ * message once all of its bytes have arrived.<p>
+ *
+ * MINA releases the read buffer once decoding returns, so every complete
+ * message is copied exactly once into its own array.  Header values and the
+ * body are then read from that array.  Bytes from a message that is only
+ * partially delivered are carried over to the next call, and scanning picks
+ * up where it left off rather than starting over.<p>
+ *
+ * Like the {@link SipMessageDecodingState}, this keeps per-connection
+ * state, so a new instance is required for each session.
+ */
+public class SipMessageScanningDecoder implements ProtocolDecoder
+    {
+
+    private final Logger m_log =
+        LoggerFactory.getLogger(SipMessageScanningDecoder.class);
+
+    /**
+     * The default limit on the size of a single message, including its body.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 64 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+    private static final byte HTAB = '\t';
+    private static final byte COLON = ':';
+
+    private static final SipHeaderName[] KNOWN_HEADERS =
+        SipHeaderName.values();
+
+    /**
+     * The number of offsets we record for each header:  the start and end of
+     * the name followed by the start and end of the value, and finally the
+     * ordinal of the {@link SipHeaderName} or -1 if it's not a header we
+     * know about.
+     */
+    private static final int OFFSETS_PER_HEADER = 5;
+
+    private final SipHeaderFactory m_headerFactory;
+
+    private final int m_maxMessageLength;
+
+    /**
+     * Bytes of a message that has not completely arrived.  The first byte
+     * of the pending message is always at index zero.
+     */
+    private byte[] m_pending = new byte[512];
+
+    private int m_pendingLength = 0;
+
+    /**
+     * Header offsets for the message currently being scanned, relative to
+     * the start of the message.  This is reused for every message.
+     */
+    private int[] m_offsets = new int[OFFSETS_PER_HEADER * 16];
+
+    private int m_headerCount;
+
+    /**
+     * The next byte to scan, relative to the start of the message.
+     */
+    private int m_scanPosition;
+
+    /**
+     * The start of the line currently being scanned, relative to the start
+     * of the message.
+     */
+    private int m_lineStart;
+
+    /**
+     * The end of the start line, or -1 if we haven't found it yet.
+     */
+    private int m_startLineEnd;
+
+    /**
+     * The index of the first body byte, or -1 if we haven't found the empty
+     * line ending the headers yet.
+     */
+    private int m_bodyStart;
+
+    private int m_contentLength;
+
+    /**
+     * Creates a new single pass decoder.
+     *
+     * @param headerFactory The factory for creating header instances from
+     * read values.
+     */
+    public SipMessageScanningDecoder(final SipHeaderFactory headerFactory)
+        {
+        this(headerFactory, DEFAULT_MAX_MESSAGE_LENGTH);
+        }
+
+    /**
+     * Creates a new single pass decoder.
+     *
+     * @param headerFactory The factory for creating header instances from
+     * read values.
+     * @param maxMessageLength The maximum number of bytes we'll accept for
+     * a single message, body included.
+     */
+    public SipMessageScanningDecoder(final SipHeaderFactory headerFactory,
+        final int maxMessageLength)
+        {
+        m_headerFactory = headerFactory;
+        m_maxMessageLength = maxMessageLength;
+        reset();
+        }
+
+    public void decode(final IoSession session, final ByteBuffer in,
+        final ProtocolDecoderOutput out) throws Exception
+        {
+        try
+            {
+            decodeBuffer(in, out);
+            }
+        catch (final Exception e)
+            {
+            // There's no way to resynchronize with the stream after bad
+            // data, so just throw away whatever we have.
+            m_pendingLength = 0;
+            reset();
+            throw e;
+            }
+        }
+
+    private void decodeBuffer(final ByteBuffer in,
+        final ProtocolDecoderOutput out) throws Exception
+        {
+        final java.nio.ByteBuffer nioBuf = in.buf();
+        if (m_pendingLength == 0 && nioBuf.hasArray())
+            {
+            // The common case -- no leftovers from the last read, so scan
+            // the read buffer directly.
+            final int start = nioBuf.arrayOffset() + nioBuf.position();
+            final int limit = nioBuf.arrayOffset() + nioBuf.limit();
+            final int consumed =
+                decodeMessages(nioBuf.array(), start, limit, out);
+
+            // Hold on to anything left over for the next read.
+            appendPending(nioBuf.array(), start + consumed,
+                limit - start - consumed);
+            in.position(in.limit());
+            }
+        else
+            {
+            final int remaining = in.remaining();
+            ensurePendingCapacity(m_pendingLength + remaining);
+            in.get(m_pending, m_pendingLength, remaining);
+            m_pendingLength += remaining;
+
+            final int consumed =
+                decodeMessages(m_pending, 0, m_pendingLength, out);
+            if (consumed > 0)
+                {
+                System.arraycopy(m_pending, consumed, m_pending, 0,
+                    m_pendingLength - consumed);
+                m_pendingLength -= consumed;
+                }
+            }
+        }
+
+    /**
+     * Decodes as many complete messages as possible from the specified
+     * bytes.
+     *
+     * @param bytes The bytes to decode.
+     * @param start The index of the first byte to decode.
+     * @param limit The index after the last byte to decode.
+     * @param out The output to write decoded messages to.
+     * @return The number of bytes consumed by complete messages.
+     * @throws Exception If the data is not valid SIP.
+     */
+    private int decodeMessages(final byte[] bytes, final int start,
+        final int limit, final ProtocolDecoderOutput out) throws Exception
+        {
+        int messageStart = start;
+        while (messageStart < limit)
+            {
+            final int length = scan(bytes, messageStart, limit);
+            if (length == -1)
+                {
+                break;
+                }
+            writeMessage(bytes, messageStart, length, out);
+            messageStart += length;
+            reset();
+            }
+        return messageStart - start;
+        }
+
+    /**
+     * Scans the message starting at the specified index, picking up where
+     * the last scan of the same message left off.
+     *
+     * @param bytes The bytes to scan.
+     * @param messageStart The index of the first byte of the message.
+     * @param limit The index after the last available byte.
+     * @return The length of the complete message, or -1 if we need more
+     * data.
+     */
+    private int scan(final byte[] bytes, final int messageStart,
+        final int limit)
+        {
+        final int available = limit - messageStart;
+        if (m_bodyStart != -1)
+            {
+            return completeLength(available);
+            }
+
+        if (m_scanPosition == 0 && available > 0 && bytes[messageStart] == CR)
+            {
+            return scanCrlfs(bytes, messageStart, available);
+            }
+
+        int i = messageStart + m_scanPosition;
+        while (i < limit)
+            {
+            if (bytes[i] != LF || i - messageStart == 0 ||
+                bytes[i-1] != CR)
+                {
+                i++;
+                continue;
+                }
+
+            // We've found a full line.
+            final int lineStart = m_lineStart;
+            final int lineEnd = i - 1 - messageStart;
+            m_lineStart = i + 1 - messageStart;
+            i++;
+
+            if (m_startLineEnd == -1)
+                {
+                m_startLineEnd = lineEnd;
+                }
+            else if (lineStart == lineEnd)
+                {
+                m_bodyStart = m_lineStart;
+                m_scanPosition = m_lineStart;
+                return completeLength(available);
+                }
+            else
+                {
+                addHeader(bytes, messageStart, lineStart, lineEnd);
+                }
+            }
+
+        m_scanPosition = i - messageStart;
+        if (m_scanPosition > m_maxMessageLength)
+            {
+            throw new BufferDataException("Message headers too long: " +
+                available);
+            }
+        return -1;
+        }
+
+    private int completeLength(final int available)
+        {
+        final int length = m_bodyStart + m_contentLength;
+        if (length > m_maxMessageLength)
+            {
+            throw new BufferDataException("Message too long: " + length);
+            }
+        if (available < length)
+            {
+            return -1;
+            }
+        return length;
+        }
+
+    /**
+     * Handles a message that starts with a CR.  This is either the double
+     * CRLF keep-alive or a single CRLF sent in response to a keep-alive, as
+     * described in SIP outbound.  We have to wait for the byte after a
+     * single CRLF to tell which one it is.
+     */
+    private int scanCrlfs(final byte[] bytes, final int messageStart,
+        final int available)
+        {
+        if (available < 3)
+            {
+            return -1;
+            }
+        if (bytes[messageStart + 1] != LF)
+            {
+            throw new IllegalArgumentException("Bare CR at start of message");
+            }
+        if (bytes[messageStart + 2] != CR)
+            {
+            // Just a single CRLF.
+            m_log.debug("Skipping single CRLF");
+            return 2;
+            }
+        if (available < 4)
+            {
+            return -1;
+            }
+        return 4;
+        }
+
+    private void addHeader(final byte[] bytes, final int messageStart,
+        final int lineStart, final int lineEnd)
+        {
+        final int first = messageStart + lineStart;
+        final int last = messageStart + lineEnd;
+
+        if (bytes[first] == SP || bytes[first] == HTAB)
+            {
+            // This is a folded continuation of the previous header's value,
+            // as described in RFC 3261 section 7.3.1.
+            if (m_headerCount == 0)
+                {
+                throw new IllegalArgumentException(
+                    "Continuation line before first header");
+                }
+            m_offsets[(m_headerCount - 1) * OFFSETS_PER_HEADER + 3] =
+                trimEnd(bytes, first, last) - messageStart;
+            return;
+            }
+
+        int colon = first;
+        while (colon < last && bytes[colon] != COLON)
+            {
+            colon++;
+            }
+        final int nameEnd = trimEnd(bytes, first, colon);
+        if (colon == last || nameEnd == first)
+            {
+            throw new IllegalArgumentException("Bad header line: " +
+                toAsciiString(bytes, first, last));
+            }
+        int valueStart = colon + 1;
+        while (valueStart < last &&
+            (bytes[valueStart] == SP || bytes[valueStart] == HTAB))
+            {
+            valueStart++;
+            }
+        final int valueEnd = trimEnd(bytes, valueStart, last);
+
+        final int index = m_headerCount * OFFSETS_PER_HEADER;
+        if (index + OFFSETS_PER_HEADER > m_offsets.length)
+            {
+            final int[] offsets = new int[m_offsets.length * 2];
+            System.arraycopy(m_offsets, 0, offsets, 0, m_offsets.length);
+            m_offsets = offsets;
+            }
+        m_offsets[index] = lineStart;
+        m_offsets[index + 1] = nameEnd - messageStart;
+        m_offsets[index + 2] = valueStart - messageStart;
+        m_offsets[index + 3] = valueEnd - messageStart;
+        m_headerCount++;
+
+        final SipHeaderName known =
+            SipHeaderName.lookup(bytes, first, nameEnd - first);
+        m_offsets[index + 4] = known == null ? -1 : known.ordinal();
+        if (known == SipHeaderName.CONTENT_LENGTH)
+            {
+            m_contentLength = parseContentLength(bytes, valueStart, valueEnd);
+            }
+        }
+
+    private int parseContentLength(final byte[] bytes, final int start,
+        final int end)
+        {
+        if (start == end)
+            {
+            m_log.warn("Empty Content-Length");
+            return 0;
+            }
+        int length = 0;
+        for (int i = start; i < end; i++)
+            {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                {
+                m_log.warn("Content-Length not a number: " +
+                    toAsciiString(bytes, start, end));
+                return 0;
+                }
+            if (length > m_maxMessageLength)
+                {
+                // This is too long no matter what the remaining digits are.
+                // Don't risk overflowing -- the length check will reject
+                // the message.
+                return length;
+                }
+            length = length * 10 + digit;
+            }
+        return length;
+        }
+
+    private void writeMessage(final byte[] bytes, final int messageStart,
+        final int length, final ProtocolDecoderOutput out) throws Exception
+        {
+        if (m_startLineEnd == -1)
+            {
+            if (length == 4)
+                {
+                out.write(new DoubleCrlfKeepAlive());
+                }
+            return;
+            }
+
+        // Copy the message out of the read buffer.  This is the only copy
+        // we make -- everything else refers to this array.
+        final byte[] raw = new byte[length];
+        System.arraycopy(bytes, messageStart, raw, 0, length);
+
+        final Map<String, SipHeader> headers = createHeaders(raw);
+        final ByteBuffer body;
+        if (m_contentLength == 0)
+            {
+            body = ByteBuffer.wrap(new byte[0]);
+            }
+        else
+            {
+            body = ByteBuffer.wrap(raw, m_bodyStart, m_contentLength).slice();
+            }
+        final SipMessage message = createMessage(raw, headers, body);
+        recordDecodedBytes(raw, message);
+        out.write(message);
+        }
+
+    /**
+     * Hands the raw bytes of the message to the message itself along with
+     * the location of the top Via value, so the message can be written or
+     * forwarded without encoding it again.
+     */
+    private void recordDecodedBytes(final byte[] raw, final SipMessage message)
+        {
+        if (!(message instanceof AbstractSipMessage))
+            {
+            return;
+            }
+        final int viaOrdinal = SipHeaderName.VIA.ordinal();
+        for (int i = 0; i < m_headerCount; i++)
+            {
+            final int index = i * OFFSETS_PER_HEADER;
+            if (m_offsets[index + 4] == viaOrdinal)
+                {
+                final int valueStart = m_offsets[index + 2];
+                final int valueEnd = m_offsets[index + 3];
+                final int viaEnd = trimEnd(raw, valueStart,
+                    firstValueEnd(raw, valueStart, valueEnd));
+                ((AbstractSipMessage) message).setDecodedBytes(raw,
+                    valueStart, viaEnd);
+                return;
+                }
+            }
+        }
+
+    /**
+     * Finds the end of the first value in a header that may contain several
+     * comma separated values, ignoring commas in quoted strings.
+     */
+    private static int firstValueEnd(final byte[] bytes, final int start,
+        final int end)
+        {
+        boolean quoted = false;
+        for (int i = start; i < end; i++)
+            {
+            final byte b = bytes[i];
+            if (b == '"')
+                {
+                quoted = !quoted;
+                }
+            else if (b == ',' && !quoted)
+                {
+                return i;
+                }
+            }
+        return end;
+        }
+
+    private Map<String, SipHeader> createHeaders(final byte[] raw)
+        {
+        final SipHeaderMap headers = new SipHeaderMap();
+        for (int i = 0; i < m_headerCount; i++)
+            {
+            final int index = i * OFFSETS_PER_HEADER;
+            final int ordinal = m_offsets[index + 4];
+            final SipHeaderName known =
+                ordinal == -1 ? null : KNOWN_HEADERS[ordinal];
+            
+            // Known headers use the canonical name, so we only need to
+            // create strings for names we don't know about.
+            final String name;
+            if (known == null)
+                {
+                name = toAsciiString(raw, m_offsets[index],
+                    m_offsets[index + 1]);
+                }
+            else
+                {
+                name = known.getName();
+                }
+            final int valueStart = m_offsets[index + 2];
+            final SipHeader header = m_headerFactory.createHeader(name, raw,
+                valueStart, m_offsets[index + 3] - valueStart);
+            final SipHeader existing = 
+                known == null ? headers.get(name) : headers.get(known);
+            final SipHeader merged;
+            if (existing == null)
+                {
+                merged = header;
+                }
+            else
+                {
+                // Combine repeated headers into a single header, as
+                // specified in RFC 3261 section 7.3.1.
+                final List<SipHeaderValue> values =
+                    new ArrayList<SipHeaderValue>(existing.getValues());
+                values.addAll(header.getValues());
+                merged = new SipHeaderImpl(name, values);
+                }
+            if (known == null)
+                {
+                headers.put(name, merged);
+                }
+            else
+                {
+                headers.put(known, merged);
+                }
+            }
+        return headers;
+        }
+
+    private SipMessage createMessage(final byte[] raw,
+        final Map<String, SipHeader> headers, final ByteBuffer body)
+        throws Exception
+        {
+        final int firstSpace = indexOf(raw, 0, m_startLineEnd, SP);
+        if (firstSpace == -1)
+            {
+            throw new IllegalArgumentException("Bad start line: " +
+                toAsciiString(raw, 0, m_startLineEnd));
+            }
+        final String firstWord = toAsciiString(raw, 0, firstSpace);
+        final int secondSpace =
+            indexOf(raw, firstSpace + 1, m_startLineEnd, SP);
+        final int secondEnd =
+            secondSpace == -1 ? m_startLineEnd : secondSpace;
+
+        if (SipMessageType.SIP_2_0.convert().equals(firstWord))
+            {
+            final int statusCode =
+                parseStatusCode(raw, firstSpace + 1, secondEnd);
+            final String reasonPhrase = secondSpace == -1 ? "" :
+                toAsciiString(raw, secondSpace + 1, m_startLineEnd);
+            return new SipResponse(statusCode, reasonPhrase, headers, body);
+            }
+
+        final String startLine = toAsciiString(raw, 0, m_startLineEnd);
+        if (SipMessageType.INVITE.convert().equals(firstWord))
+            {
+            return new Invite(startLine, headers, body);
+            }
+        if (SipMessageType.REGISTER.convert().equals(firstWord))
+            {
+            return new Register(startLine, headers, body);
+            }
+
+        // Maybe it's a method we don't know about?  Assume it's some sort
+        // of request and process it as such.
+        m_log.warn("Unknown message type: '{}'", firstWord);
+        final URI uri =
+            new URI(toAsciiString(raw, firstSpace + 1, secondEnd));
+        return new UnknownSipRequest(firstWord, uri, headers, body);
+        }
+
+    private static int parseStatusCode(final byte[] bytes, final int start,
+        final int end)
+        {
+        int statusCode = 0;
+        for (int i = start; i < end; i++)
+            {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                {
+                statusCode = -1;
+                break;
+                }
+            statusCode = statusCode * 10 + digit;
+            }
+        if (statusCode < 100 || statusCode > 699)
+            {
+            throw new IllegalArgumentException("Bad status code: " +
+                toAsciiString(bytes, start, end));
+            }
+        return statusCode;
+        }
+
+    private void reset()
+        {
+        m_headerCount = 0;
+        m_scanPosition = 0;
+        m_lineStart = 0;
+        m_startLineEnd = -1;
+        m_bodyStart = -1;
+        m_contentLength = 0;
+        }
+
+    private void appendPending(final byte[] bytes, final int start,
+        final int length)
+        {
+        if (length == 0)
+            {
+            return;
+            }
+        ensurePendingCapacity(m_pendingLength + length);
+        System.arraycopy(bytes, start, m_pending, m_pendingLength, length);
+        m_pendingLength += length;
+        }
+
+    private void ensurePendingCapacity(final int capacity)
+        {
+        if (capacity <= m_pending.length)
+            {
+            return;
+            }
+        int newLength = m_pending.length * 2;
+        while (newLength < capacity)
+            {
+            newLength *= 2;
+            }
+        final byte[] pending = new byte[newLength];
+        System.arraycopy(m_pending, 0, pending, 0, m_pendingLength);
+        m_pending = pending;
+        }
+
+    public void finishDecode(final IoSession session,
+        final ProtocolDecoderOutput out) throws Exception
+        {
+        }
+
+    public void dispose(final IoSession session) throws Exception
+        {
+        m_pending = new byte[0];
+        m_pendingLength = 0;
+        }
+
+    private static int trimEnd(final byte[] bytes, final int start,
+        final int end)
+        {
+        int i = end;
+        while (i > start && (bytes[i-1] == SP || bytes[i-1] == HTAB))
+            {
+            i--;
+            }
+        return i;
+        }
+
+    private static int indexOf(final byte[] bytes, final int start,
+        final int end, final byte b)
+        {
+        for (int i = start; i < end; i++)
+            {
+            if (bytes[i] == b)
+                {
+                return i;
+                }
+            }
+        return -1;
+        }
+
+    /**
+     * Creates a string from US-ASCII bytes without going through a
+     * {@link java.nio.charset.CharsetDecoder}.  The CR and LF characters of
+     * folded header lines are dropped, leaving the whitespace that follows
+     * them.
+     */
+    private static String toAsciiString(final byte[] bytes, final int start,
+        final int end)
+        {
+        final char[] chars = new char[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++)
+            {
+            final byte b = bytes[i];
+            if (b != CR && b != LF)
+                {
+                chars[length++] = (char) (b & 0xff);
+                }
+            }
+        return new String(chars, 0, length);
+        }
+    }
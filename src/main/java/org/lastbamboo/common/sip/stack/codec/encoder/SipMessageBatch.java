@@ -0,0 +1,40 @@
+package org.lastbamboo.common.sip.stack.codec.encoder;
+
+import java.util.List;
+
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+
+/**
+ * Messages for the same session to encode and send in a single write.
+ */
+public class SipMessageBatch
+    {
+
+    private final List<SipMessage> m_messages;
+
+    /**
+     * Creates a new batch.
+     * 
+     * @param messages The messages, in the order to send them.
+     */
+    public SipMessageBatch(final List<SipMessage> messages)
+        {
+        this.m_messages = messages;
+        }
+
+    /**
+     * Accessor for the messages in the batch.
+     * 
+     * @return The messages, in the order to send them.
+     */
+    public List<SipMessage> getMessages()
+        {
+        return m_messages;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "Batch of " + m_messages.size() + " messages";
+        }
+    }
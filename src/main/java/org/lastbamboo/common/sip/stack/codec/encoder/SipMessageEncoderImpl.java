@@ -3,10 +3,6 @@ package org.lastbamboo.common.sip.stack.codec.encoder;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.util.mina.MinaCodecUtils;
@@ -18,8 +14,7 @@ import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
 import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
-import org.lastbamboo.common.sip.stack.message.header.SipHeader;
-import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -94,6 +89,9 @@ public class SipMessageEncoderImpl implements SipMessageEncoder
     
         public void visitUnknownRequest(final UnknownSipRequest request)
             {
+            // We only create requests for methods we don't otherwise 
+            // model, such as ACK, so send them like any other message.
+            standardEncode(request);
             }
     
         private void encodeStartLine(final SipMessage message, 
@@ -114,48 +112,76 @@ public class SipMessageEncoderImpl implements SipMessageEncoder
         private void encodeHeaders(final SipMessage message, 
             final ByteBuffer buffer)
             {
-            LOG.debug("Appending headers: {}", message.getHeaders());
-            final Map<String, SipHeader> headers = message.getHeaders();
-            for (final Map.Entry<String, SipHeader> entry : headers.entrySet())
+            final HeaderEncoder headerEncoder = new HeaderEncoder(buffer);
+            message.acceptHeaders(headerEncoder);
+            headerEncoder.endHeader();
+            MinaCodecUtils.appendCRLF(buffer);
+            }
+    
+        /**
+         * Writes each header as the message hands it over, so we never copy
+         * the message's headers.
+         */
+        private final class HeaderEncoder implements SipHeaderVisitor
+            {
+            
+            private final ByteBuffer m_headerBuffer;
+            
+            private boolean m_inHeader;
+            
+            private boolean m_firstValue;
+            
+            private HeaderEncoder(final ByteBuffer buffer)
                 {
-                final SipHeader header = entry.getValue();
-                final List<SipHeaderValue> values = header.getValues();
-                try
+                this.m_headerBuffer = buffer;
+                }
+            
+            public void visitHeaderName(final String name)
+                {
+                endHeader();
+                putString(name);
+                m_headerBuffer.put(MinaCodecUtils.COLON);
+                m_headerBuffer.put(MinaCodecUtils.SPACE);
+                m_inHeader = true;
+                m_firstValue = true;
+                }
+            
+            public void visitHeaderValue(final String baseValue)
+                {
+                if (!m_firstValue)
                     {
-                    buffer.putString(header.getName(), m_asciiEncoder);
-                    buffer.put(MinaCodecUtils.COLON);
-                    buffer.put(MinaCodecUtils.SPACE);
-                    appendHeaderValues(buffer, values);
-                    MinaCodecUtils.appendCRLF(buffer);
+                    m_headerBuffer.put(MinaCodecUtils.COMMA);
                     }
-                catch (final CharacterCodingException e)
+                m_firstValue = false;
+                putString(baseValue);
+                }
+            
+            public void visitHeaderParam(final String name, final String value)
+                {
+                m_headerBuffer.put(MinaCodecUtils.SEMI_COLON);
+                putString(name);
+                m_headerBuffer.put(MinaCodecUtils.EQUALS);
+                putString(value);
+                }
+            
+            private void endHeader()
+                {
+                if (m_inHeader)
                     {
-                    LOG.error("Bad encoding?", e);
+                    MinaCodecUtils.appendCRLF(m_headerBuffer);
+                    m_inHeader = false;
                     }
                 }
-            MinaCodecUtils.appendCRLF(buffer);
-            }
-    
-        private void appendHeaderValues(final ByteBuffer buffer,
-            final List<SipHeaderValue> values) throws CharacterCodingException
-            {
-            for (final Iterator<SipHeaderValue> iter = values.iterator(); iter
-                    .hasNext();)
+            
+            private void putString(final String string)
                 {
-                final SipHeaderValue value = iter.next();
-                buffer.putString(value.getBaseValue(), m_asciiEncoder);
-                final Map<String, String> params = value.getParams();
-                final Set<Map.Entry<String, String>> entries = params.entrySet();
-                for (final Map.Entry<String, String> entry : entries)
+                try
                     {
-                    buffer.put(MinaCodecUtils.SEMI_COLON);
-                    buffer.putString(entry.getKey(), m_asciiEncoder);
-                    buffer.put(MinaCodecUtils.EQUALS);
-                    buffer.putString(entry.getValue(), m_asciiEncoder);
+                    m_headerBuffer.putString(string, m_asciiEncoder);
                     }
-                if (iter.hasNext())
+                catch (final CharacterCodingException e)
                     {
-                    buffer.put(MinaCodecUtils.COMMA);
+                    LOG.error("Bad encoding?", e);
                     }
                 }
             }
@@ -169,7 +195,7 @@ public class SipMessageEncoderImpl implements SipMessageEncoder
         private void encodeBody(final SipMessage message, final ByteBuffer buffer)
             {
             final ByteBuffer body = message.getBody();
-            buffer.put(body);
+            buffer.put(body.duplicate());
             }
         }
     }
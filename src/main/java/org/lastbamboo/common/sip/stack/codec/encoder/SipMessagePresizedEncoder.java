@@ -0,0 +1,329 @@
+package org.lastbamboo.common.sip.stack.codec.encoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.ByteBufferAllocator;
+import org.littleshoot.mina.common.PooledByteBufferAllocator;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.RequestTimeoutResponse;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encoder that works out the exact encoded size of a message before
+ * writing anything, so the output buffer never has to grow.  Buffers come
+ * from a {@link PooledByteBufferAllocator}, and MINA releases them back to
+ * the pool once it has written them to the socket.<p>
+ *
+ * Start lines, header names and header values are written as US-ASCII one
+ * character at a time rather than through a
+ * {@link java.nio.charset.CharsetEncoder}.  Any character outside of
+ * US-ASCII is written as '?', which keeps the computed size exact.<p>
+ *
+ * Header values and parameters are only read once -- we walk the message's
+ * own header structures with a {@link SipHeaderVisitor}, record the parts
+ * while computing the size and then write the recorded strings.  Nothing
+ * about the message is copied.  Instances reuse their working state, so
+ * they synchronize on themselves while encoding.  Codec factories create
+ * one encoder per session, so this is normally uncontended.
+ */
+public class SipMessagePresizedEncoder implements SipMessageEncoder
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SipMessagePresizedEncoder.class);
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte COLON = ':';
+    private static final byte SPACE = ' ';
+    private static final byte SEMI_COLON = ';';
+    private static final byte EQUALS = '=';
+    private static final byte COMMA = ',';
+
+    /**
+     * Marks a header name in the recorded parts.
+     */
+    private static final int NAME = 0;
+
+    /**
+     * Marks the first value of a header.
+     */
+    private static final int FIRST_VALUE = 1;
+
+    /**
+     * Marks any value of a header after the first, which is preceded by a
+     * comma.
+     */
+    private static final int NEXT_VALUE = 2;
+
+    /**
+     * Marks a parameter name, which is preceded by a semi-colon.
+     */
+    private static final int PARAM_NAME = 3;
+
+    /**
+     * Marks a parameter value, which is preceded by an equals sign.
+     */
+    private static final int PARAM_VALUE = 4;
+
+    /**
+     * The allocator shared by all encoders that aren't given their own.
+     * This is created lazily so nothing starts the pool's expiration thread
+     * unless the presized encoder is actually used.
+     */
+    private static final class SharedAllocator
+        {
+        private static final ByteBufferAllocator INSTANCE =
+            new PooledByteBufferAllocator();
+        }
+
+    private final ByteBufferAllocator m_allocator;
+
+    private final List<String> m_parts = new ArrayList<String>(64);
+
+    private int[] m_kinds = new int[64];
+
+    private final SizingVisitor m_sizingVisitor = new SizingVisitor();
+
+    /**
+     * Whether we've had to replace any characters in the current message.
+     */
+    private boolean m_replaced;
+
+    /**
+     * Creates a new encoder using the shared buffer pool.
+     */
+    public SipMessagePresizedEncoder()
+        {
+        this(SharedAllocator.INSTANCE);
+        }
+
+    /**
+     * Creates a new encoder using the specified allocator.
+     *
+     * @param allocator The allocator for output buffers.
+     */
+    public SipMessagePresizedEncoder(final ByteBufferAllocator allocator)
+        {
+        m_allocator = allocator;
+        }
+
+    public synchronized ByteBuffer encode(final SipMessage message)
+        {
+        final SizingVisitor visitor = this.m_sizingVisitor;
+        visitor.m_type = MessageType.EMPTY;
+        visitor.m_size = 0;
+        message.accept(visitor);
+
+        final ByteBuffer buffer = m_allocator.allocate(visitor.m_size, false);
+        buffer.clear();
+        try
+            {
+            switch (visitor.m_type)
+                {
+                case STANDARD:
+                    write(message, buffer);
+                    break;
+                case DOUBLE_CRLF:
+                    buffer.put(CR).put(LF).put(CR).put(LF);
+                    break;
+                case EMPTY:
+                default:
+                    break;
+                }
+            }
+        finally
+            {
+            m_parts.clear();
+            if (m_replaced)
+                {
+                m_replaced = false;
+                LOG.warn("Replaced non-ASCII characters in: {}", 
+                    message.getStartLine());
+                }
+            }
+        buffer.flip();
+        return buffer;
+        }
+
+    private enum MessageType
+        {
+        STANDARD,
+        DOUBLE_CRLF,
+        EMPTY,
+        }
+
+    /**
+     * Visitor that computes the size of a message, recording the header
+     * names and values along the way.
+     */
+    private final class SizingVisitor implements SipMessageVisitor,
+        SipHeaderVisitor
+        {
+
+        private MessageType m_type = MessageType.EMPTY;
+
+        private int m_size;
+
+        private boolean m_firstValue;
+
+        public void visitDoubleCrlfKeepAlive(final DoubleCrlfKeepAlive keepAlive)
+            {
+            m_type = MessageType.DOUBLE_CRLF;
+            m_size = 4;
+            }
+
+        public void visitInvite(final Invite invite)
+            {
+            standardSize(invite);
+            }
+
+        public void visitRegister(final Register register)
+            {
+            standardSize(register);
+            }
+
+        public void visitRequestTimedOut(final RequestTimeoutResponse response)
+            {
+            standardSize(response);
+            }
+
+        public void visitResponse(final SipResponse response)
+            {
+            standardSize(response);
+            }
+
+        public void visitUnknownRequest(final UnknownSipRequest request)
+            {
+            // We only create requests for methods we don't otherwise 
+            // model, such as ACK, so send them like any other message.
+            standardSize(request);
+            }
+
+        private void standardSize(final SipMessage message)
+            {
+            m_type = MessageType.STANDARD;
+
+            // The start line and the CRLF that ends it.
+            m_size = message.getStartLine().length() + 2;
+
+            message.acceptHeaders(this);
+
+            // The empty line after the headers and the body.
+            m_size += 2;
+            m_size += message.getBody().remaining();
+            }
+
+        public void visitHeaderName(final String name)
+            {
+            // The name, the colon and space and the final CRLF.
+            m_size += add(NAME, name) + 4;
+            m_firstValue = true;
+            }
+
+        public void visitHeaderValue(final String baseValue)
+            {
+            if (m_firstValue)
+                {
+                m_size += add(FIRST_VALUE, baseValue);
+                m_firstValue = false;
+                }
+            else
+                {
+                m_size += add(NEXT_VALUE, baseValue) + 1;
+                }
+            }
+
+        public void visitHeaderParam(final String name, final String value)
+            {
+            m_size += add(PARAM_NAME, name) + 1;
+            m_size += add(PARAM_VALUE, value) + 1;
+            }
+        }
+
+    private int add(final int kind, final String part)
+        {
+        final int index = m_parts.size();
+        if (index == m_kinds.length)
+            {
+            final int[] kinds = new int[m_kinds.length * 2];
+            System.arraycopy(m_kinds, 0, kinds, 0, m_kinds.length);
+            m_kinds = kinds;
+            }
+        m_kinds[index] = kind;
+        m_parts.add(part);
+        return part.length();
+        }
+
+    private void write(final SipMessage message, final ByteBuffer buffer)
+        {
+        putAscii(buffer, message.getStartLine());
+        buffer.put(CR).put(LF);
+
+        final int count = m_parts.size();
+        for (int i = 0; i < count; i++)
+            {
+            switch (m_kinds[i])
+                {
+                case NAME:
+                    if (i > 0)
+                        {
+                        buffer.put(CR).put(LF);
+                        }
+                    putAscii(buffer, m_parts.get(i));
+                    buffer.put(COLON).put(SPACE);
+                    break;
+                case NEXT_VALUE:
+                    buffer.put(COMMA);
+                    putAscii(buffer, m_parts.get(i));
+                    break;
+                case PARAM_NAME:
+                    buffer.put(SEMI_COLON);
+                    putAscii(buffer, m_parts.get(i));
+                    break;
+                case PARAM_VALUE:
+                    buffer.put(EQUALS);
+                    putAscii(buffer, m_parts.get(i));
+                    break;
+                case FIRST_VALUE:
+                default:
+                    putAscii(buffer, m_parts.get(i));
+                    break;
+                }
+            }
+        if (count > 0)
+            {
+            buffer.put(CR).put(LF);
+            }
+        buffer.put(CR).put(LF);
+        buffer.put(message.getBody().duplicate());
+        }
+
+    private void putAscii(final ByteBuffer buffer, final String string)
+        {
+        final int length = string.length();
+        for (int i = 0; i < length; i++)
+            {
+            final char c = string.charAt(i);
+            if (c < 128)
+                {
+                buffer.put((byte) c);
+                }
+            else
+                {
+                m_replaced = true;
+                buffer.put((byte) '?');
+                }
+            }
+        }
+    }
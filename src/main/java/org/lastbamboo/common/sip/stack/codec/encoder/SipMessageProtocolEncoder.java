@@ -8,13 +8,15 @@ import org.littleshoot.mina.common.WriteFuture;
 import org.littleshoot.mina.filter.codec.ProtocolEncoder;
 import org.littleshoot.mina.filter.codec.ProtocolEncoderOutput;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
 import org.littleshoot.util.mina.MinaUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * {@link ProtocolEncoder} for SIP messages.  The actual encoding takes place
- * in a delegate class for easier testing.
+ * in a delegate class for easier testing.  A {@link SipMessageBatch} is 
+ * encoded into a single buffer, so the whole batch goes out in one write.
  */
 public class SipMessageProtocolEncoder implements ProtocolEncoder, 
     IoFutureListener 
@@ -23,21 +25,70 @@ public class SipMessageProtocolEncoder implements ProtocolEncoder,
     private final Logger LOG = 
         LoggerFactory.getLogger(SipMessageProtocolEncoder.class);
     
-    private final SipMessageEncoder m_encoder = new SipMessageEncoderImpl();
+    private final SipMessageEncoder m_encoder;
 
-    private volatile static int s_encodesCompleted = 0;
-
-    private volatile static int s_encodeAttempts = 0;
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
     
+    /**
+     * Creates a new encoder using the default {@link SipMessageEncoderImpl}.
+     */
+    public SipMessageProtocolEncoder()
+        {
+        this(new SipMessageEncoderImpl());
+        }
+
+    /**
+     * Creates a new encoder that delegates to the specified encoder.
+     *
+     * @param encoder The class that actually encodes messages.
+     */
+    public SipMessageProtocolEncoder(final SipMessageEncoder encoder)
+        {
+        m_encoder = encoder;
+        }
+
     public void encode(final IoSession session, final Object message,
         final ProtocolEncoderOutput out) throws Exception
         {
-        s_encodeAttempts++;
-        if (LOG.isDebugEnabled())
+        if (message instanceof SipMessageBatch)
             {
-            LOG.debug("Attempted encodes: "+s_encodeAttempts);
+            final SipMessageBatch batch = (SipMessageBatch) message;
+            for (final SipMessage sipMessage : batch.getMessages())
+                {
+                encode(sipMessage, out);
+                }
+            out.mergeAll();
+            return;
             }
-        final ByteBuffer buffer = this.m_encoder.encode((SipMessage) message);
+        encode((SipMessage) message, out);
+        }
+
+    private void encode(final SipMessage sipMessage, 
+        final ProtocolEncoderOutput out)
+        {
+        // Messages are immutable, so if we've encoded this one before we
+        // can just write the same bytes again.
+        final ByteBuffer[] cached = sipMessage.getWireFormSlices();
+        if (cached != null)
+            {
+            int length = 0;
+            for (final ByteBuffer slice : cached)
+                {
+                length += slice.remaining();
+                out.write(slice);
+                }
+            this.m_metrics.onMessageEncoded(sipMessage, length);
+            return;
+            }
+        final ByteBuffer buffer = this.m_encoder.encode(sipMessage);
+        
+        // Caching copies the bytes, and most messages are only written 
+        // once, so we only cache messages we're writing again.
+        if (sipMessage.markWritten())
+            {
+            sipMessage.setWireForm(buffer);
+            }
+        this.m_metrics.onMessageEncoded(sipMessage, buffer.remaining());
         //LOG.debug("Writing buffer: \n{}", MinaUtils.toAsciiString(buffer));
         
         out.write(buffer);
@@ -49,10 +100,6 @@ public class SipMessageProtocolEncoder implements ProtocolEncoder,
 
     public void operationComplete(final IoFuture future)
         {
-        s_encodesCompleted++;
-        if (LOG.isDebugEnabled())
-            {
-            LOG.debug("Completed encodes: "+s_encodesCompleted);
-            }
+        LOG.debug("Completed encode");
         }
     }
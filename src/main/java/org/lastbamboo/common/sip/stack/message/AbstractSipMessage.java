@@ -4,14 +4,16 @@ import java.net.URI;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.littleshoot.mina.common.ByteBuffer;
 import org.lastbamboo.common.sip.stack.codec.SipMessageType;
 import org.lastbamboo.common.sip.stack.codec.SipMethod;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderMap;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,7 +25,7 @@ public abstract class AbstractSipMessage implements SipMessage {
     private static final Logger LOG = 
         LoggerFactory.getLogger(AbstractSipMessage.class);
     
-    private final Map<String, SipHeader> m_headers;
+    private final SipHeaderMap m_headers;
     
     private final SipMethod m_method;
 
@@ -33,6 +35,39 @@ public abstract class AbstractSipMessage implements SipMessage {
     
     private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0);
     
+    /**
+     * The encoded message, set the first time the message is written.  We
+     * keep this as a plain NIO buffer so that MINA never returns it to a 
+     * buffer pool when it releases the buffers we write.
+     */
+    private volatile java.nio.ByteBuffer m_wireForm;
+
+    /**
+     * The bytes this message was decoded from, if we have them.  This is 
+     * written after the Via offsets and read before them.
+     */
+    private volatile byte[] m_decodedBytes;
+    
+    private volatile long m_decodeTime;
+
+    private volatile boolean m_written;
+    
+    private int m_topViaStart = -1;
+    
+    private int m_topViaEnd = -1;
+
+    /**
+     * For messages forwarded by splicing in a new top Via, the bytes of 
+     * the message we're forwarding, otherwise <code>null</code>.
+     */
+    private final byte[] m_forwardedBytes;
+
+    /**
+     * For messages forwarded by splicing in a new top Via, the new top Via
+     * value, otherwise <code>null</code>.
+     */
+    private final byte[] m_topVia;
+    
     /**
      * Creates a new SIP message with the specified first line of the message,
      * the specified headers, and the specified message body.
@@ -44,9 +79,38 @@ public abstract class AbstractSipMessage implements SipMessage {
     public AbstractSipMessage(final String startLine, final SipMethod method,
             final Map<String, SipHeader> headers, final ByteBuffer body) {
         this.m_startLine = startLine;
-        this.m_headers = headers;
+        this.m_headers = SipHeaderMap.asHeaderMap(headers);
         this.m_method = method;
         this.m_messageBody = body.asReadOnlyBuffer();
+        this.m_forwardedBytes = null;
+        this.m_topVia = null;
+    }
+
+    /**
+     * Creates a copy of a decoded message with a new top Via value, for
+     * forwarding the message.  The copy shares every header except Via with
+     * the original, and its wire form is the bytes the original was decoded
+     * from with the new top Via value in place of the old one.  None of the
+     * original bytes are copied.
+     * 
+     * @param message The message to forward.  This must have been decoded
+     * with its bytes -- see {@link #getDecodedBytes()}.
+     * @param via The complete Via header for the new message.
+     * @param topVia The US-ASCII bytes of the new top Via value.
+     */
+    protected AbstractSipMessage(final AbstractSipMessage message,
+            final SipHeader via, final byte[] topVia) {
+        this.m_startLine = message.m_startLine;
+        this.m_method = message.m_method;
+        this.m_messageBody = message.m_messageBody;
+        synchronized (message.m_headers) {
+            this.m_headers = SipHeaderMap.copyReplacing(message.m_headers,
+                    SipHeaderName.VIA, via);
+        }
+        this.m_forwardedBytes = message.getDecodedBytes();
+        this.m_topViaStart = message.getTopViaStart();
+        this.m_topViaEnd = message.getTopViaEnd();
+        this.m_topVia = topVia;
     }
 
     public AbstractSipMessage(final SipMethod method, final URI requestUri,
@@ -111,12 +175,22 @@ public abstract class AbstractSipMessage implements SipMessage {
         return this.m_headers.get(headerName);
     }
 
+    public SipHeader getHeader(final SipHeaderName headerName) {
+        return this.m_headers.get(headerName);
+    }
+
     public Map<String, SipHeader> getHeaders() {
         // Return a copy of the headers to preserve the immutability of this
         // class. This will only really get called when we're making a copy
         // of a message any way, so we might as well just make a copy.
         synchronized (this.m_headers) {
-            return new ConcurrentHashMap<String, SipHeader>(this.m_headers);
+            return new SipHeaderMap(this.m_headers);
+        }
+    }
+
+    public void acceptHeaders(final SipHeaderVisitor visitor) {
+        synchronized (this.m_headers) {
+            this.m_headers.accept(visitor);
         }
     }
 
@@ -125,7 +199,7 @@ public abstract class AbstractSipMessage implements SipMessage {
     }
 
     public final String getBranchId() {
-        final SipHeader via = this.m_headers.get(SipHeaderNames.VIA);
+        final SipHeader via = this.m_headers.get(SipHeaderName.VIA);
         return via.getValue().getParamValue("branch");
     }
 
@@ -134,8 +208,8 @@ public abstract class AbstractSipMessage implements SipMessage {
     }
 
     public List<SipHeaderValue> getRouteSet() {
-        final SipHeader recordRoute = this.m_headers
-                .get(SipHeaderNames.RECORD_ROUTE);
+        final SipHeader recordRoute = 
+            this.m_headers.get(SipHeaderName.RECORD_ROUTE);
 
         if (recordRoute == null) {
             return Collections.emptyList();
@@ -161,4 +235,124 @@ public abstract class AbstractSipMessage implements SipMessage {
     public byte[] getKey() {
         return null;
     }
+
+    public ByteBuffer getWireForm() {
+        if (this.m_topVia != null) {
+            // Only the encoder needs this to be fast, and it writes the
+            // slices.
+            final byte[] bytes = new byte[this.m_forwardedBytes.length - 
+                    (this.m_topViaEnd - this.m_topViaStart) + 
+                    this.m_topVia.length];
+            final java.nio.ByteBuffer wireForm = 
+                    java.nio.ByteBuffer.wrap(bytes);
+            for (final ByteBuffer slice : getWireFormSlices()) {
+                wireForm.put(slice.buf());
+            }
+            wireForm.flip();
+            return ByteBuffer.wrap(wireForm);
+        }
+        final java.nio.ByteBuffer wireForm = this.m_wireForm;
+        if (wireForm == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(wireForm.duplicate());
+    }
+
+    public ByteBuffer[] getWireFormSlices() {
+        final byte[] bytes = this.m_forwardedBytes;
+        if (bytes != null) {
+            return new ByteBuffer[] {
+                wrap(bytes, 0, this.m_topViaStart),
+                wrap(this.m_topVia, 0, this.m_topVia.length),
+                wrap(bytes, this.m_topViaEnd, 
+                        bytes.length - this.m_topViaEnd)
+            };
+        }
+        final ByteBuffer wireForm = getWireForm();
+        if (wireForm == null) {
+            return null;
+        }
+        return new ByteBuffer[] {wireForm};
+    }
+
+    private static ByteBuffer wrap(final byte[] bytes, final int offset,
+            final int length) {
+        return ByteBuffer.wrap(java.nio.ByteBuffer.wrap(bytes, offset, 
+                length).slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Records the exact bytes this message was read from, along with the
+     * location of the topmost Via header value within them.  The bytes also
+     * become the wire form of the message, and they allow messages to be
+     * forwarded by rewriting only the top Via -- see
+     * {@link SipMessageFactory#createInviteToForward}.  The array is not 
+     * copied, so callers must not modify it.
+     * 
+     * @param bytes The bytes of the complete message.
+     * @param topViaStart The offset of the first byte of the top Via value.
+     * @param topViaEnd The offset just past the last byte of the top Via 
+     * value.
+     */
+    public void setDecodedBytes(final byte[] bytes, final int topViaStart,
+            final int topViaEnd) {
+        this.m_topViaStart = topViaStart;
+        this.m_topViaEnd = topViaEnd;
+        this.m_decodedBytes = bytes;
+        this.m_wireForm = java.nio.ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Accessor for the bytes this message was decoded from.
+     * 
+     * @return The bytes, or <code>null</code> if the message wasn't decoded
+     * by a decoder that keeps them.
+     */
+    byte[] getDecodedBytes() {
+        return this.m_decodedBytes;
+    }
+
+    /**
+     * Accessor for the offset of the top Via value in the decoded bytes.
+     * Only valid if {@link #getDecodedBytes()} is not <code>null</code>.
+     * 
+     * @return The offset of the top Via value.
+     */
+    int getTopViaStart() {
+        return this.m_topViaStart;
+    }
+
+    /**
+     * Accessor for the offset just past the end of the top Via value in the
+     * decoded bytes.  Only valid if {@link #getDecodedBytes()} is not 
+     * <code>null</code>.
+     * 
+     * @return The offset just past the top Via value.
+     */
+    int getTopViaEnd() {
+        return this.m_topViaEnd;
+    }
+
+    public void setWireForm(final ByteBuffer encoded) {
+        final java.nio.ByteBuffer source = encoded.buf().duplicate();
+        final byte[] bytes = new byte[source.remaining()];
+        source.get(bytes);
+        this.m_wireForm = java.nio.ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public boolean markWritten() {
+        // Two threads writing the message for the first time at once can
+        // both see false, which just means neither caches it yet.
+        final boolean written = this.m_written;
+        this.m_written = true;
+        return written;
+    }
+
+    public long getDecodeTime() {
+        return this.m_decodeTime;
+    }
+
+    public void setDecodeTime(final long decodeTime) {
+        this.m_decodeTime = decodeTime;
+    }
 }
@@ -7,7 +7,9 @@ import java.util.Map;
 import org.littleshoot.mina.common.ByteBuffer;
 import org.lastbamboo.common.sip.stack.codec.SipMethod;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderVisitor;
 import org.littleshoot.util.StringUtils;
 
 /**
@@ -18,8 +20,8 @@ import org.littleshoot.util.StringUtils;
  */
 public class DoubleCrlfKeepAlive implements SipMessage {
 
-    private static final ByteBuffer DOUBLE_CRLF = 
-        ByteBuffer.wrap(StringUtils.toAsciiBytes("\r\n\r\n"));
+    private static final ByteBuffer DOUBLE_CRLF = ByteBuffer.wrap(
+        StringUtils.toAsciiBytes("\r\n\r\n")).asReadOnlyBuffer();
 
     public void accept(final SipMessageVisitor visitor) {
         visitor.visitDoubleCrlfKeepAlive(this);
@@ -37,10 +39,18 @@ public class DoubleCrlfKeepAlive implements SipMessage {
         return null;
     }
 
+    public SipHeader getHeader(final SipHeaderName headerName) {
+        return null;
+    }
+
     public Map<String, SipHeader> getHeaders() {
         return Collections.emptyMap();
     }
 
+    public void acceptHeaders(final SipHeaderVisitor visitor) {
+        // Keep alives don't have any headers.
+    }
+
     public SipMethod getMethod() {
         return SipMethod.DOUBLE_CRLF_KEEP_ALIVE;
     }
@@ -62,4 +72,41 @@ public class DoubleCrlfKeepAlive implements SipMessage {
     public byte[] getKey() {
         return null;
     }
+
+    /**
+     * Returns the encoded form of every keep alive, so callers writing a 
+     * keep alive can skip the message and the encoder altogether.
+     * 
+     * @return A new buffer sharing the keep alive's bytes.
+     */
+    public static ByteBuffer getSharedWireForm() {
+        return ByteBuffer.wrap(DOUBLE_CRLF.buf().duplicate());
+    }
+
+    public ByteBuffer getWireForm() {
+        // All keep alives share the same bytes, so there's never anything
+        // to encode.
+        return getSharedWireForm();
+    }
+
+    public ByteBuffer[] getWireFormSlices() {
+        return new ByteBuffer[] {getWireForm()};
+    }
+
+    public void setWireForm(final ByteBuffer encoded) {
+        // The wire form is always the double CRLF.
+    }
+
+    public boolean markWritten() {
+        // There's always a wire form, so there's nothing to decide.
+        return true;
+    }
+
+    public long getDecodeTime() {
+        return 0;
+    }
+
+    public void setDecodeTime(final long decodeTime) {
+        // Keep alives are never dispatched, so there's nothing to time.
+    }
 }
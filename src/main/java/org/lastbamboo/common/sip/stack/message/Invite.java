@@ -37,6 +37,18 @@ public class Invite extends AbstractSipMessage {
         super(startLine, SipMethod.INVITE, headers, body);
     }
 
+    /**
+     * Creates a copy of a decoded INVITE with a new top Via value, for 
+     * forwarding it without copying its headers or its bytes.
+     * 
+     * @param invite The INVITE to forward.
+     * @param via The complete Via header for the new INVITE.
+     * @param topVia The US-ASCII bytes of the new top Via value.
+     */
+    Invite(final Invite invite, final SipHeader via, final byte[] topVia) {
+        super(invite, via, topVia);
+    }
+
     public void accept(final SipMessageVisitor visitor) {
         visitor.visitInvite(this);
     }
@@ -7,7 +7,9 @@ import org.littleshoot.mina.common.ByteBuffer;
 import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
 import org.lastbamboo.common.sip.stack.codec.SipMethod;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderVisitor;
 
 /**
  * Interface for a single SIP message.
@@ -37,6 +39,16 @@ public interface SipMessage extends OfferAnswerMessage
      */
     SipHeader getHeader(final String headerName);
 
+    /**
+     * Accessor for one of the headers the stack knows about.  This avoids
+     * hashing the header name.
+     * 
+     * @param headerName The header to access.
+     * @return The complete header instance, or <code>null</code> if the
+     * message doesn't have the header.
+     */
+    SipHeader getHeader(final SipHeaderName headerName);
+
     /**
      * Accessor for the list of routes for this message.
      * 
@@ -75,4 +87,72 @@ public interface SipMessage extends OfferAnswerMessage
      */
     Map<String, SipHeader> getHeaders();
     
+    /**
+     * Calls the specified visitor with each header in the message, in the
+     * same order as {@link #getHeaders()} but without copying anything.
+     * 
+     * @param visitor The visitor to accept.
+     */
+    void acceptHeaders(SipHeaderVisitor visitor);
+    
+    /**
+     * Accessor for the cached form of the message as it's written to the 
+     * wire.  Messages are immutable, so once a message has been encoded we
+     * can write the same bytes again without re-encoding it, such as when 
+     * retransmitting it or sending it on more than one connection.  Most
+     * messages are only ever written once, so encoders only cache the wire
+     * form once a message is written a second time -- see 
+     * {@link #markWritten()}.
+     * 
+     * @return A new buffer sharing the cached bytes, or <code>null</code> if
+     * the message hasn't been encoded yet.
+     */
+    ByteBuffer getWireForm();
+    
+    /**
+     * Caches the encoded form of the message.  This copies the remaining 
+     * bytes in the buffer without changing its position, so the buffer can 
+     * still be written and released as usual.
+     * 
+     * @param encoded The encoded message.
+     */
+    void setWireForm(ByteBuffer encoded);
+    
+    /**
+     * Accessor for the cached wire form as the buffers it's made of, in the
+     * order they're written.  This is usually just the wire form, but 
+     * messages forwarded by splicing a new top Via into the bytes they were
+     * read from are written as the bytes before the top Via, the new top 
+     * Via and the bytes after it, without copying the original bytes.
+     * 
+     * @return New buffers sharing the cached bytes, or <code>null</code> if
+     * the message hasn't been encoded yet.
+     */
+    ByteBuffer[] getWireFormSlices();
+    
+    /**
+     * Records that the message is being written.
+     * 
+     * @return <code>true</code> if the message has been written before, 
+     * otherwise <code>false</code>.
+     */
+    boolean markWritten();
+    
+    /**
+     * Accessor for when the message finished decoding, so we can tell how 
+     * long it waited before we got to it.
+     * 
+     * @return The {@link System#nanoTime()} the message was decoded at, or
+     * <code>0</code> if it wasn't decoded or the time wasn't recorded.
+     */
+    long getDecodeTime();
+    
+    /**
+     * Records when the message finished decoding.
+     * 
+     * @param decodeTime The {@link System#nanoTime()} the message was 
+     * decoded at.
+     */
+    void setDecodeTime(long decodeTime);
+    
     }
@@ -128,6 +128,18 @@ public interface SipMessageFactory
      */
     SipResponse createRequestTimeoutResponse(SipMessage request);
 
+    /**
+     * Creates a 503 Service Unavailable response for turning away requests
+     * while we're overloaded.
+     * 
+     * @param request The request we're turning away.
+     * @param retryAfter The Retry-After header telling the client when to 
+     * try again.
+     * @return The 503 Service Unavailable response.
+     */
+    SipResponse createServiceUnavailableResponse(SipMessage request, 
+        SipHeader retryAfter);
+
     /**
      * Creates a new message to forward with all of the appropriate 
      * modifications to the Via header based on the remote reading of the 
@@ -142,4 +154,17 @@ public interface SipMessageFactory
     Invite createInviteToForward(final InetSocketAddress socketAddress, 
         final Invite invite) throws IOException;
 
+    /**
+     * Creates the ACK for a non-2xx final response to an INVITE, as 
+     * specified in RFC 3261 section 17.1.1.3.  The ACK is part of the INVITE
+     * client transaction, so it carries only the top Via from the INVITE.
+     * 
+     * @param invite The INVITE request.
+     * @param response The non-2xx final response to the INVITE.
+     * @return The ACK request.
+     * @throws IOException If the INVITE does not match the expected syntax.
+     */
+    SipMessage createAck(SipMessage invite, SipResponse response) 
+        throws IOException;
+
     }
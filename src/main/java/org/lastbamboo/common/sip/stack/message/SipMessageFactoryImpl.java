@@ -3,6 +3,7 @@ package org.lastbamboo.common.sip.stack.message;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -261,6 +262,57 @@ public class SipMessageFactoryImpl implements SipMessageFactory
         final Map<String, SipHeader> headers = createResponseHeaders(request);
         return new RequestTimeoutResponse(headers);
         }
+    
+    public SipResponse createServiceUnavailableResponse(
+        final SipMessage request, final SipHeader retryAfter)
+        {
+        final Map<String, SipHeader> headers = createResponseHeaders(request);
+        headers.put(retryAfter.getName(), retryAfter);
+        addContentLength(headers, 0);
+        return new SipResponse(SipResponseCode.SERVICE_UNAVAILABLE, 
+            "Service Unavailable", headers);
+        }
+
+    public SipMessage createAck(final SipMessage invite, 
+        final SipResponse response) throws IOException
+        {
+        final SipHeader via = invite.getHeader(SipHeaderNames.VIA);
+        if (via == null)
+            {
+            throw new IOException("No Via in message: "+invite);
+            }
+        final Map<String, SipHeader> headers = 
+            new ConcurrentHashMap<String, SipHeader>();
+        
+        // Only the top Via, as specified in RFC 3261 section 17.1.1.3.
+        final List<SipHeaderValue> topVia = new ArrayList<SipHeaderValue>(1);
+        topVia.add(via.getValue());
+        headers.put(SipHeaderNames.VIA, 
+            new SipHeaderImpl(SipHeaderNames.VIA, topVia));
+        copyHeader(headers, invite, SipHeaderNames.MAX_FORWARDS);
+        copyHeader(headers, invite, SipHeaderNames.FROM);
+        copyHeader(headers, invite, SipHeaderNames.CALL_ID);
+        
+        // The To header comes from the response so it includes the tag.
+        copyHeader(headers, response, SipHeaderNames.TO);
+        
+        final int sequenceNumber;
+        try
+            {
+            sequenceNumber = SipMessageUtils.extractCSeqNumber(invite);
+            }
+        catch (final IllegalArgumentException e)
+            {
+            throw new IOException("Bad CSeq in message: "+invite);
+            }
+        final SipHeader cseq = this.m_headerFactory.createHeader(
+            SipHeaderNames.CSEQ, sequenceNumber + " ACK");
+        headers.put(cseq.getName(), cseq);
+        addContentLength(headers, 0);
+        
+        final URI requestUri = SipMessageUtils.extractUriFromRequestLine(invite);
+        return new UnknownSipRequest("ACK", requestUri, headers, EMPTY_BODY);
+        }
 
     private Map<String, SipHeader> createResponseHeaders(
         final SipMessage request)
@@ -375,6 +427,16 @@ public class SipMessageFactoryImpl implements SipMessageFactory
         final SipHeader newVia = 
             new SipHeaderImpl(SipHeaderNames.VIA, viaValues);
         
+        if (invite.getDecodedBytes() != null)
+            {
+            // We still have the bytes the INVITE was read from, so we can
+            // share its headers and bytes and just splice in the new top
+            // Via when we write it.
+            final String topVia = viaValue.getBaseValue() + 
+                SipMessageUtils.toParamString(params);
+            return new Invite(invite, newVia, toAsciiBytes(topVia));
+            }
+        
         // Note this returns a full copy of the headers.
         final Map<String, SipHeader> headers = invite.getHeaders();
         
@@ -382,8 +444,19 @@ public class SipMessageFactoryImpl implements SipMessageFactory
         // containing the new parameter as opposed to adding a Via 
         // header.
         headers.put(newVia.getName(), newVia);
-        return new Invite(invite.getStartLine(), headers, 
-            invite.getBody());
+        return new Invite(invite.getStartLine(), headers, invite.getBody());
+        }
+
+    private static byte[] toAsciiBytes(final String string)
+        {
+        final int length = string.length();
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            {
+            final char c = string.charAt(i);
+            bytes[i] = c < 128 ? (byte) c : (byte) '?';
+            }
+        return bytes;
         }
 
     }
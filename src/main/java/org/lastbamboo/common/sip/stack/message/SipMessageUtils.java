@@ -22,6 +22,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderMap;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderParamNames;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
@@ -334,7 +336,8 @@ public class SipMessageUtils
 
     public static int extractContentLength(final Map<String, SipHeader> headers)
         {
-        final SipHeader header = headers.get(SipHeaderNames.CONTENT_LENGTH);
+        final SipHeader header = 
+            findHeader(headers, SipHeaderName.CONTENT_LENGTH);
         if (header == null)
             {
             if (LOG.isDebugEnabled())
@@ -355,4 +358,35 @@ public class SipMessageUtils
             }
         return Integer.parseInt(lengthString);
         }
+
+    /**
+     * Finds the specified header, regardless of the case of the header name
+     * or whether the header uses its compact form.  Maps from our decoders
+     * always use canonical names, but maps from anywhere else might not.
+     * 
+     * @param headers The headers to search.
+     * @param name The header to look for.
+     * @return The header, or <code>null</code> if there's no such header.
+     */
+    private static SipHeader findHeader(final Map<String, SipHeader> headers,
+        final SipHeaderName name)
+        {
+        if (headers instanceof SipHeaderMap)
+            {
+            return ((SipHeaderMap) headers).get(name);
+            }
+        final SipHeader header = headers.get(name.getName());
+        if (header != null)
+            {
+            return header;
+            }
+        for (final Map.Entry<String, SipHeader> entry : headers.entrySet())
+            {
+            if (SipHeaderName.lookup(entry.getKey()) == name)
+                {
+                return entry.getValue();
+                }
+            }
+        return null;
+        }
     }
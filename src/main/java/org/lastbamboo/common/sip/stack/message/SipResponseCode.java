@@ -18,4 +18,9 @@ public final class SipResponseCode
      * 408 Response Timeout.
      */
     public static final int REQUEST_TIMEOUT = 408;
+    
+    /**
+     * 503 Service Unavailable.
+     */
+    public static final int SERVICE_UNAVAILABLE = 503;
     }
@@ -0,0 +1,217 @@
+package org.lastbamboo.common.sip.stack.message.header;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.littleshoot.util.RuntimeIoException;
+
+/**
+ * SIP header that holds on to the raw header value and only splits it into
+ * individual values the first time they're accessed.  Most headers in a
+ * message, such as User-Agent, Allow or Supported, are never read by the
+ * stack, so there's no reason to parse them.
+ */
+public class LazySipHeader implements SipHeader
+    {
+
+    private final String m_headerName;
+
+    /**
+     * The raw bytes of the header value, or <code>null</code> if we were
+     * given the value as a string or have already parsed it.
+     */
+    private byte[] m_bytes;
+    private int m_offset;
+    private int m_length;
+
+    /**
+     * The raw header value, or <code>null</code> if we have the bytes
+     * instead or have already parsed it.
+     */
+    private String m_valueString;
+
+    /**
+     * The parsed header values, or <code>null</code> until they're first
+     * accessed.
+     */
+    private List<SipHeaderValue> m_headerValues;
+
+    /**
+     * Creates a new header with the specified name and the unparsed value
+     * string.
+     *
+     * @param headerName The name of the header.
+     * @param valueString The complete header value as read from the wire.
+     */
+    public LazySipHeader(final String headerName, final String valueString)
+        {
+        this.m_headerName = headerName;
+        this.m_valueString = valueString;
+        }
+
+    /**
+     * Creates a new header with the specified name and the US-ASCII bytes of
+     * the unparsed header value.  The bytes are not copied, so callers must
+     * not modify them afterwards.
+     *
+     * @param headerName The name of the header.
+     * @param bytes The array containing the header value.
+     * @param offset The offset of the header value in the array.
+     * @param length The length of the header value.
+     */
+    public LazySipHeader(final String headerName, final byte[] bytes,
+        final int offset, final int length)
+        {
+        this.m_headerName = headerName;
+        this.m_bytes = bytes;
+        this.m_offset = offset;
+        this.m_length = length;
+        }
+
+    public String getName()
+        {
+        return this.m_headerName;
+        }
+
+    public synchronized List<SipHeaderValue> getValues()
+        {
+        return new ArrayList<SipHeaderValue>(values());
+        }
+
+    public synchronized SipHeaderValue getValue()
+        {
+        return values().get(0);
+        }
+
+    public synchronized void addValue(final SipHeaderValue headerValue)
+        {
+        values().add(0, headerValue);
+        }
+
+    public synchronized void accept(final SipHeaderVisitor visitor)
+        {
+        visitor.visitHeaderName(this.m_headerName);
+        final List<SipHeaderValue> values = values();
+        final int size = values.size();
+        for (int i = 0; i < size; i++)
+            {
+            values.get(i).accept(visitor);
+            }
+        }
+
+    private List<SipHeaderValue> values()
+        {
+        if (this.m_headerValues == null)
+            {
+            this.m_headerValues = createHeaderValues(valueString());
+            this.m_bytes = null;
+            this.m_valueString = null;
+            }
+        return this.m_headerValues;
+        }
+
+    private String valueString()
+        {
+        if (this.m_valueString != null)
+            {
+            return this.m_valueString;
+            }
+
+        // Build the string directly from the US-ASCII bytes, dropping the
+        // CR and LF characters of any folded lines.
+        final char[] chars = new char[this.m_length];
+        int length = 0;
+        final int end = this.m_offset + this.m_length;
+        for (int i = this.m_offset; i < end; i++)
+            {
+            final byte b = this.m_bytes[i];
+            if (b != '\r' && b != '\n')
+                {
+                chars[length++] = (char) (b & 0xff);
+                }
+            }
+        return new String(chars, 0, length);
+        }
+
+    /**
+     * Splits the header value on commas that are not inside quoted strings
+     * or angle brackets, as specified in RFC 3261 section 7.3.1.
+     *
+     * @param headerValueString The header value string.
+     * @return A list of header value instances.
+     */
+    private static List<SipHeaderValue> createHeaderValues(
+        final String headerValueString)
+        {
+        final List<SipHeaderValue> valuesList =
+            new ArrayList<SipHeaderValue>(2);
+        boolean quoted = false;
+        boolean bracketed = false;
+        int start = 0;
+        for (int i = 0; i < headerValueString.length(); i++)
+            {
+            final char c = headerValueString.charAt(i);
+            if (c == '"')
+                {
+                quoted = !quoted;
+                }
+            else if (quoted)
+                {
+                if (c == '\\')
+                    {
+                    // Skip the escaped character.
+                    i++;
+                    }
+                }
+            else if (c == '<')
+                {
+                bracketed = true;
+                }
+            else if (c == '>')
+                {
+                bracketed = false;
+                }
+            else if (c == ',' && !bracketed)
+                {
+                addValue(valuesList, headerValueString.substring(start, i));
+                start = i + 1;
+                }
+            }
+
+        addValue(valuesList, headerValueString.substring(start));
+        if (valuesList.isEmpty())
+            {
+            // Headers always have at least one value, even if it's empty.
+            valuesList.add(createValue(""));
+            }
+        return valuesList;
+        }
+
+    private static void addValue(final List<SipHeaderValue> valuesList,
+        final String value)
+        {
+        final String trimmed = value.trim();
+        if (trimmed.length() > 0)
+            {
+            valuesList.add(createValue(trimmed));
+            }
+        }
+
+    private static SipHeaderValue createValue(final String value)
+        {
+        try
+            {
+            return new SipHeaderValueImpl(value);
+            }
+        catch (final IOException e)
+            {
+            throw new RuntimeIoException(e);
+            }
+        }
+
+    public String toString()
+        {
+        return this.m_headerName + ": " + getValues();
+        }
+    }
@@ -77,4 +77,12 @@ public interface SipHeader
      */
     SipHeaderValue getValue();
 
+    /**
+     * Accepts the specified visitor, calling it with the name of this 
+     * header followed by each of its values.
+     * 
+     * @param visitor The visitor to accept.
+     */
+    void accept(SipHeaderVisitor visitor);
+
     }
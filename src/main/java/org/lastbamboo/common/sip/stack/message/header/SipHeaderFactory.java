@@ -14,6 +14,19 @@ public interface SipHeaderFactory
 
     SipHeader createHeader(String name, String value);
 
+    /**
+     * Creates a new header from the raw US-ASCII bytes of the header value.
+     * The value is not parsed until it's first accessed, and the bytes are
+     * not copied, so callers must not modify them afterwards.
+     * 
+     * @param name The name of the header.
+     * @param bytes The array containing the header value.
+     * @param offset The offset of the header value in the array.
+     * @param length The length of the header value.
+     * @return The new header.
+     */
+    SipHeader createHeader(String name, byte[] bytes, int offset, int length);
+
     /**
      * Creates a new Via header indicating the "sent-by" address of the
      * host processing the message.  This is specified in RFC 3261 
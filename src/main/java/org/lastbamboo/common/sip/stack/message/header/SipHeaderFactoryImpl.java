@@ -1,19 +1,14 @@
 package org.lastbamboo.common.sip.stack.message.header;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.id.uuid.UUID;
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.littleshoot.util.RuntimeIoException;
 
 /**
  * Factory for creating SIP headers.
@@ -27,51 +22,13 @@ public class SipHeaderFactoryImpl implements SipHeaderFactory
     
     public SipHeader createHeader(final String name, final String value) 
         {
-        final List<SipHeaderValue> headerValues;
-        try
-            {
-            headerValues = createHeaderValues(value);
-            }
-        catch (final IOException e)
-            {
-            LOG.error("Could not parse header");
-            throw new RuntimeIoException(e);
-            }
-        return new SipHeaderImpl(name, headerValues);
+        return new LazySipHeader(name, value);
         }
 
-    /**
-     * Creates a list of header values.
-     * 
-     * @param headerValueString The header value string.
-     * @return A list of header value instances.
-     * @throws IOException If the header values don't match the expected 
-     * syntax.
-     * 
-     * TODO: This should really be handled at the protocol reading level 
-     * rather than re-parsing read data here.
-     */
-    private List<SipHeaderValue> createHeaderValues(
-        final String headerValueString) throws IOException
-        {
-        final List<SipHeaderValue> valuesList = new ArrayList<SipHeaderValue>();
-        if (!StringUtils.contains(headerValueString, ","))
-            {
-            final SipHeaderValue value = 
-                new SipHeaderValueImpl(headerValueString);
-            valuesList.add(value);
-            return valuesList;
-            }
-        final String[] values = StringUtils.split(headerValueString, ",");
-        
-        for (int i = 0; i < values.length; i++)
-            {
-            final SipHeaderValue value = 
-                new SipHeaderValueImpl(values[i].trim());
-            valuesList.add(value);
-            }
-        
-        return valuesList;
+    public SipHeader createHeader(final String name, final byte[] bytes,
+        final int offset, final int length)
+        {
+        return new LazySipHeader(name, bytes, offset, length);
         }
 
     public SipHeader createSentByVia(final InetAddress address)
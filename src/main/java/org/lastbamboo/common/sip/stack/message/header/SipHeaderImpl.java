@@ -77,6 +77,19 @@ public class SipHeaderImpl implements SipHeader
         this.m_headerValues.add(0, headerValue);
         }
     
+    public void accept(final SipHeaderVisitor visitor)
+        {
+        visitor.visitHeaderName(this.m_headerName);
+        synchronized(this.m_headerValues)
+            {
+            final int size = this.m_headerValues.size();
+            for (int i = 0; i < size; i++)
+                {
+                this.m_headerValues.get(i).accept(visitor);
+                }
+            }
+        }
+    
     public String toString()
         {
         return this.m_headerName + ": " + getValues();
@@ -0,0 +1,470 @@
+package org.lastbamboo.common.sip.stack.message.header;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of SIP headers keyed by header name.  Headers we know about are
+ * stored in an array indexed by {@link SipHeaderName} ordinal, so looking
+ * them up never hashes a string.  Any other headers go in a fallback map
+ * that's only created when a message has headers we don't know about.<p>
+ *
+ * Known headers always use the canonical header name as their key, so
+ * looking up a compact form such as "v" returns the Via header.  Iteration
+ * returns known headers first, in {@link SipHeaderName} order, followed by
+ * all other headers in the order they were added.<p>
+ *
+ * Like {@link java.util.HashMap}, this is not thread safe.
+ */
+public class SipHeaderMap extends AbstractMap<String, SipHeader>
+    {
+
+    private static final SipHeaderName[] KNOWN_HEADERS =
+        SipHeaderName.values();
+
+    private final SipHeader[] m_knownHeaders =
+        new SipHeader[KNOWN_HEADERS.length];
+
+    private int m_knownCount;
+
+    /**
+     * Headers we don't know about, or <code>null</code> if there aren't any.
+     */
+    private Map<String, SipHeader> m_otherHeaders;
+
+    /**
+     * Whether {@link #m_otherHeaders} is shared with another map, in which
+     * case we copy it before changing it.
+     */
+    private boolean m_otherShared;
+
+    private Set<Map.Entry<String, SipHeader>> m_entrySet;
+
+    /**
+     * Creates a new, empty map.
+     */
+    public SipHeaderMap()
+        {
+        }
+
+    /**
+     * Creates a new map containing all of the specified headers.
+     *
+     * @param headers The headers to copy.
+     */
+    public SipHeaderMap(final Map<String, SipHeader> headers)
+        {
+        if (headers instanceof SipHeaderMap)
+            {
+            final SipHeaderMap map = (SipHeaderMap) headers;
+            System.arraycopy(map.m_knownHeaders, 0, m_knownHeaders, 0,
+                m_knownHeaders.length);
+            m_knownCount = map.m_knownCount;
+            if (map.m_otherHeaders != null)
+                {
+                m_otherHeaders =
+                    new LinkedHashMap<String, SipHeader>(map.m_otherHeaders);
+                }
+            }
+        else
+            {
+            putAll(headers);
+            }
+        }
+
+    /**
+     * Returns the specified headers as a {@link SipHeaderMap}, copying them
+     * only if they're not one already.
+     *
+     * @param headers The headers.
+     * @return The headers as a {@link SipHeaderMap}.
+     */
+    public static SipHeaderMap asHeaderMap(final Map<String, SipHeader> headers)
+        {
+        if (headers instanceof SipHeaderMap)
+            {
+            return (SipHeaderMap) headers;
+            }
+        return new SipHeaderMap(headers);
+        }
+
+    /**
+     * Creates a copy of the specified map with one known header replaced.
+     * Only the known header slots are copied.  Any other headers are shared
+     * between the two maps until either of them changes one, so this is
+     * cheap enough to use when forwarding messages.
+     *
+     * @param headers The headers to copy.
+     * @param name The header to replace.
+     * @param header The new header.
+     * @return The new map.
+     */
+    public static SipHeaderMap copyReplacing(final SipHeaderMap headers,
+        final SipHeaderName name, final SipHeader header)
+        {
+        final SipHeaderMap copy = new SipHeaderMap();
+        System.arraycopy(headers.m_knownHeaders, 0, copy.m_knownHeaders, 0,
+            copy.m_knownHeaders.length);
+        copy.m_knownCount = headers.m_knownCount;
+        if (headers.m_otherHeaders != null)
+            {
+            copy.m_otherHeaders = headers.m_otherHeaders;
+            copy.m_otherShared = true;
+            headers.m_otherShared = true;
+            }
+        copy.put(name, header);
+        return copy;
+        }
+
+    /**
+     * Accessor for a known header.
+     *
+     * @param name The header.
+     * @return The header, or <code>null</code> if the map doesn't contain
+     * it.
+     */
+    public SipHeader get(final SipHeaderName name)
+        {
+        return m_knownHeaders[name.ordinal()];
+        }
+
+    /**
+     * Adds a known header, replacing any existing header with the same name.
+     *
+     * @param name The header name.
+     * @param header The header.
+     * @return The header previously stored under the name, if any.
+     */
+    public SipHeader put(final SipHeaderName name, final SipHeader header)
+        {
+        if (header == null)
+            {
+            throw new NullPointerException("Null header");
+            }
+        final int index = name.ordinal();
+        final SipHeader previous = m_knownHeaders[index];
+        m_knownHeaders[index] = header;
+        if (previous == null)
+            {
+            m_knownCount++;
+            }
+        return previous;
+        }
+
+    /**
+     * Removes a known header.
+     *
+     * @param name The header to remove.
+     * @return The removed header, or <code>null</code> if the map didn't
+     * contain it.
+     */
+    public SipHeader remove(final SipHeaderName name)
+        {
+        final int index = name.ordinal();
+        final SipHeader previous = m_knownHeaders[index];
+        if (previous != null)
+            {
+            m_knownHeaders[index] = null;
+            m_knownCount--;
+            }
+        return previous;
+        }
+
+    @Override
+    public SipHeader get(final Object key)
+        {
+        if (!(key instanceof String))
+            {
+            return null;
+            }
+        final SipHeaderName name = SipHeaderName.lookup((String) key);
+        if (name != null)
+            {
+            return get(name);
+            }
+        if (m_otherHeaders == null)
+            {
+            return null;
+            }
+        return m_otherHeaders.get(key);
+        }
+
+    @Override
+    public boolean containsKey(final Object key)
+        {
+        return get(key) != null;
+        }
+
+    @Override
+    public SipHeader put(final String key, final SipHeader header)
+        {
+        final SipHeaderName name = SipHeaderName.lookup(key);
+        if (name != null)
+            {
+            return put(name, header);
+            }
+        if (header == null)
+            {
+            throw new NullPointerException("Null header");
+            }
+        if (m_otherHeaders == null)
+            {
+            m_otherHeaders = new LinkedHashMap<String, SipHeader>(4);
+            }
+        return otherHeaders().put(key, header);
+        }
+
+    @Override
+    public SipHeader remove(final Object key)
+        {
+        if (!(key instanceof String))
+            {
+            return null;
+            }
+        final SipHeaderName name = SipHeaderName.lookup((String) key);
+        if (name != null)
+            {
+            return remove(name);
+            }
+        if (m_otherHeaders == null)
+            {
+            return null;
+            }
+        return otherHeaders().remove(key);
+        }
+
+    /**
+     * Calls the specified visitor with every header in the map, in the same
+     * order as iterating over the map but without creating any entries.
+     *
+     * @param visitor The visitor to accept.
+     */
+    public void accept(final SipHeaderVisitor visitor)
+        {
+        for (int i = 0; i < m_knownHeaders.length; i++)
+            {
+            if (m_knownHeaders[i] != null)
+                {
+                m_knownHeaders[i].accept(visitor);
+                }
+            }
+        if (m_otherHeaders != null)
+            {
+            for (final SipHeader header : m_otherHeaders.values())
+                {
+                header.accept(visitor);
+                }
+            }
+        }
+
+    @Override
+    public int size()
+        {
+        if (m_otherHeaders == null)
+            {
+            return m_knownCount;
+            }
+        return m_knownCount + m_otherHeaders.size();
+        }
+
+    @Override
+    public void clear()
+        {
+        for (int i = 0; i < m_knownHeaders.length; i++)
+            {
+            m_knownHeaders[i] = null;
+            }
+        m_knownCount = 0;
+        m_otherHeaders = null;
+        m_otherShared = false;
+        }
+
+    /**
+     * Accessor for the other headers when we're about to change them,
+     * copying them first if they're shared with another map.
+     *
+     * @return The other headers.
+     */
+    private Map<String, SipHeader> otherHeaders()
+        {
+        if (m_otherShared)
+            {
+            m_otherHeaders =
+                new LinkedHashMap<String, SipHeader>(m_otherHeaders);
+            m_otherShared = false;
+            }
+        return m_otherHeaders;
+        }
+
+    @Override
+    public Set<Map.Entry<String, SipHeader>> entrySet()
+        {
+        if (m_entrySet == null)
+            {
+            m_entrySet = new EntrySet();
+            }
+        return m_entrySet;
+        }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, SipHeader>>
+        {
+
+        @Override
+        public Iterator<Map.Entry<String, SipHeader>> iterator()
+            {
+            return new EntryIterator();
+            }
+
+        @Override
+        public int size()
+            {
+            return SipHeaderMap.this.size();
+            }
+
+        @Override
+        public void clear()
+            {
+            SipHeaderMap.this.clear();
+            }
+        }
+
+    private final class KnownEntry implements Map.Entry<String, SipHeader>
+        {
+
+        private final int m_index;
+
+        private KnownEntry(final int index)
+            {
+            m_index = index;
+            }
+
+        public String getKey()
+            {
+            return KNOWN_HEADERS[m_index].getName();
+            }
+
+        public SipHeader getValue()
+            {
+            return m_knownHeaders[m_index];
+            }
+
+        public SipHeader setValue(final SipHeader value)
+            {
+            if (value == null)
+                {
+                throw new NullPointerException("Null header");
+                }
+            final SipHeader previous = m_knownHeaders[m_index];
+            m_knownHeaders[m_index] = value;
+            return previous;
+            }
+
+        @Override
+        public boolean equals(final Object obj)
+            {
+            if (!(obj instanceof Map.Entry))
+                {
+                return false;
+                }
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) obj;
+            return getKey().equals(entry.getKey()) &&
+                getValue().equals(entry.getValue());
+            }
+
+        @Override
+        public int hashCode()
+            {
+            return getKey().hashCode() ^ getValue().hashCode();
+            }
+
+        @Override
+        public String toString()
+            {
+            return getKey() + "=" + getValue();
+            }
+        }
+
+    private final class EntryIterator
+        implements Iterator<Map.Entry<String, SipHeader>>
+        {
+
+        /**
+         * The index of the next known header to return, or the number of
+         * known header slots once we've moved on to the other headers.
+         */
+        private int m_nextIndex = -1;
+
+        private int m_lastIndex = -1;
+
+        private Iterator<Map.Entry<String, SipHeader>> m_otherIterator;
+
+        private boolean m_lastFromOther;
+
+        private EntryIterator()
+            {
+            advance();
+            }
+
+        private void advance()
+            {
+            m_nextIndex++;
+            while (m_nextIndex < m_knownHeaders.length &&
+                m_knownHeaders[m_nextIndex] == null)
+                {
+                m_nextIndex++;
+                }
+            if (m_nextIndex == m_knownHeaders.length &&
+                m_otherHeaders != null)
+                {
+                // Iterators can remove headers, so don't share them.
+                m_otherIterator = otherHeaders().entrySet().iterator();
+                }
+            }
+
+        public boolean hasNext()
+            {
+            if (m_nextIndex < m_knownHeaders.length)
+                {
+                return true;
+                }
+            return m_otherIterator != null && m_otherIterator.hasNext();
+            }
+
+        public Map.Entry<String, SipHeader> next()
+            {
+            if (m_nextIndex < m_knownHeaders.length)
+                {
+                m_lastIndex = m_nextIndex;
+                m_lastFromOther = false;
+                advance();
+                return new KnownEntry(m_lastIndex);
+                }
+            if (m_otherIterator == null)
+                {
+                throw new NoSuchElementException();
+                }
+            m_lastFromOther = true;
+            return m_otherIterator.next();
+            }
+
+        public void remove()
+            {
+            if (m_lastFromOther)
+                {
+                m_otherIterator.remove();
+                return;
+                }
+            if (m_lastIndex == -1 || m_knownHeaders[m_lastIndex] == null)
+                {
+                throw new IllegalStateException();
+                }
+            m_knownHeaders[m_lastIndex] = null;
+            m_knownCount--;
+            }
+        }
+    }
@@ -0,0 +1,302 @@
+package org.lastbamboo.common.sip.stack.message.header;
+
+/**
+ * Enumeration of the SIP headers the stack knows about.  Each constant has
+ * the canonical header name and, if it has one, the compact form from RFC
+ * 3261 section 7.3.3.  Header names can be resolved directly from the bytes
+ * read off the wire without creating a string, and messages store these
+ * headers in an array indexed by ordinal -- see {@link SipHeaderMap}.<p>
+ *
+ * Header names are case-insensitive, so resolution folds case as it goes
+ * using a perfect hash over both the full names and the compact forms.
+ * Every name lands in its own slot, so a lookup is a single hash of the
+ * name followed by a single comparison.
+ */
+public enum SipHeaderName
+    {
+
+    /**
+     * The Via header.
+     */
+    VIA (SipHeaderNames.VIA, 'v'),
+
+    /**
+     * The Max-Forwards header.
+     */
+    MAX_FORWARDS (SipHeaderNames.MAX_FORWARDS),
+
+    /**
+     * The To header.
+     */
+    TO (SipHeaderNames.TO, 't'),
+
+    /**
+     * The From header.
+     */
+    FROM (SipHeaderNames.FROM, 'f'),
+
+    /**
+     * The Call-ID header.
+     */
+    CALL_ID (SipHeaderNames.CALL_ID, 'i'),
+
+    /**
+     * The CSeq header.
+     */
+    CSEQ (SipHeaderNames.CSEQ),
+
+    /**
+     * The Contact header.
+     */
+    CONTACT (SipHeaderNames.CONTACT, 'm'),
+
+    /**
+     * The Record-Route header.
+     */
+    RECORD_ROUTE (SipHeaderNames.RECORD_ROUTE),
+
+    /**
+     * The Expires header.
+     */
+    EXPIRES (SipHeaderNames.EXPIRES),
+
+    /**
+     * The Supported header.
+     */
+    SUPPORTED (SipHeaderNames.SUPPORTED, 'k'),
+
+    /**
+     * The Content-Length header.
+     */
+    CONTENT_LENGTH (SipHeaderNames.CONTENT_LENGTH, 'l'),
+    ;
+
+    private static final char NO_COMPACT_FORM = 0;
+
+    /**
+     * The size of the perfect hash table.  This must be a power of two.
+     */
+    private static final int TABLE_SIZE = 64;
+
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    /**
+     * The header for each slot in the perfect hash table, with both full
+     * names and compact forms hashing to their own slot.
+     */
+    private static final SipHeaderName[] TABLE =
+        new SipHeaderName[TABLE_SIZE];
+
+    /**
+     * The lower case name or compact form stored in each slot, for
+     * confirming a match.
+     */
+    private static final byte[][] TABLE_KEYS = new byte[TABLE_SIZE][];
+
+    /**
+     * The seed that gives every name and compact form its own slot.  This
+     * is found when the class loads, so adding headers never requires
+     * recomputing it by hand.
+     */
+    private static final int SEED;
+
+    static
+        {
+        final SipHeaderName[] headers = values();
+        final int keyCount = headers.length * 2;
+        final byte[][] keys = new byte[keyCount][];
+        final SipHeaderName[] keyHeaders = new SipHeaderName[keyCount];
+        int count = 0;
+        for (final SipHeaderName header : headers)
+            {
+            keys[count] = toLowerCaseBytes(header.m_name);
+            keyHeaders[count++] = header;
+            if (header.m_compactForm != NO_COMPACT_FORM)
+                {
+                keys[count] = 
+                    toLowerCaseBytes(String.valueOf(header.m_compactForm));
+                keyHeaders[count++] = header;
+                }
+            }
+
+        int seed = 0;
+        while (!fill(seed, keys, keyHeaders, count))
+            {
+            seed++;
+            }
+        SEED = seed;
+        }
+
+    private final String m_name;
+
+    private final char m_compactForm;
+
+    private SipHeaderName(final String name)
+        {
+        this(name, NO_COMPACT_FORM);
+        }
+
+    private SipHeaderName(final String name, final char compactForm)
+        {
+        m_name = name;
+        m_compactForm = compactForm;
+        }
+
+    /**
+     * Accessor for the canonical name of the header, such as "Call-ID".
+     *
+     * @return The canonical name of the header.
+     */
+    public String getName()
+        {
+        return m_name;
+        }
+
+    /**
+     * Accessor for the single character compact form of the header, if any.
+     *
+     * @return The compact form, or <code>0</code> if the header has none.
+     */
+    public char getCompactForm()
+        {
+        return m_compactForm;
+        }
+
+    /**
+     * Resolves the header with the specified name or compact form, ignoring
+     * case.
+     *
+     * @param name The header name.
+     * @return The matching header, or <code>null</code> if it's not a header
+     * we know about.
+     */
+    public static SipHeaderName lookup(final String name)
+        {
+        final int length = name.length();
+        int hash = SEED;
+        for (int i = 0; i < length; i++)
+            {
+            final char c = name.charAt(i);
+            if (c > 127)
+                {
+                return null;
+                }
+            hash = hash(hash, c);
+            }
+        final int slot = slot(hash);
+        final byte[] key = TABLE_KEYS[slot];
+        if (key == null || key.length != length)
+            {
+            return null;
+            }
+        for (int i = 0; i < length; i++)
+            {
+            if (toLowerCase(name.charAt(i)) != key[i])
+                {
+                return null;
+                }
+            }
+        return TABLE[slot];
+        }
+
+    /**
+     * Resolves the header whose name or compact form is in the specified
+     * range of bytes, ignoring case.  This does not allocate.
+     *
+     * @param bytes The array containing the header name.
+     * @param offset The offset of the name in the array.
+     * @param length The length of the name.
+     * @return The matching header, or <code>null</code> if it's not a header
+     * we know about.
+     */
+    public static SipHeaderName lookup(final byte[] bytes, final int offset,
+        final int length)
+        {
+        final int end = offset + length;
+        int hash = SEED;
+        for (int i = offset; i < end; i++)
+            {
+            hash = hash(hash, bytes[i]);
+            }
+        final int slot = slot(hash);
+        final byte[] key = TABLE_KEYS[slot];
+        if (key == null || key.length != length)
+            {
+            return null;
+            }
+        for (int i = 0; i < length; i++)
+            {
+            if (toLowerCase(bytes[offset + i]) != key[i])
+                {
+                return null;
+                }
+            }
+        return TABLE[slot];
+        }
+
+    /**
+     * Tries to place every key in the table using the specified seed.
+     *
+     * @return <code>true</code> if no two keys landed in the same slot,
+     * otherwise <code>false</code> with the table cleared.
+     */
+    private static boolean fill(final int seed, final byte[][] keys,
+        final SipHeaderName[] keyHeaders, final int count)
+        {
+        for (int i = 0; i < count; i++)
+            {
+            int hash = seed;
+            for (int j = 0; j < keys[i].length; j++)
+                {
+                hash = hash(hash, keys[i][j]);
+                }
+            final int slot = slot(hash);
+            if (TABLE_KEYS[slot] != null)
+                {
+                for (int j = 0; j < TABLE_SIZE; j++)
+                    {
+                    TABLE_KEYS[j] = null;
+                    TABLE[j] = null;
+                    }
+                return false;
+                }
+            TABLE_KEYS[slot] = keys[i];
+            TABLE[slot] = keyHeaders[i];
+            }
+        return true;
+        }
+
+    /**
+     * Mixes the next character of a name into the hash.  Setting the 0x20
+     * bit folds upper case ASCII letters to lower case, so names that only
+     * differ in case hash the same.
+     */
+    private static int hash(final int hash, final int c)
+        {
+        return (hash ^ (c | 0x20)) * 0x01000193;
+        }
+
+    private static int slot(final int hash)
+        {
+        return (hash ^ (hash >>> 16)) & TABLE_MASK;
+        }
+
+    private static int toLowerCase(final int c)
+        {
+        if (c >= 'A' && c <= 'Z')
+            {
+            return c + ('a' - 'A');
+            }
+        return c;
+        }
+
+    private static byte[] toLowerCaseBytes(final String name)
+        {
+        final byte[] bytes = new byte[name.length()];
+        for (int i = 0; i < bytes.length; i++)
+            {
+            bytes[i] = (byte) toLowerCase(name.charAt(i));
+            }
+        return bytes;
+        }
+    }
@@ -27,4 +27,9 @@ public final class SipHeaderNames
      */
     public static final String SUPPORTED = "Supported";
     
+    /**
+     * Constant for the Retry-After header.
+     */
+    public static final String RETRY_AFTER = "Retry-After";
+    
     }
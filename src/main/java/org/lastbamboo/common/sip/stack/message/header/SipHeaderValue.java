@@ -43,4 +43,12 @@ public interface SipHeaderValue
      */
     Map<String, String> getParams();
 
+    /**
+     * Accepts the specified visitor, calling it with the base value and then
+     * each parameter without copying the parameters.
+     * 
+     * @param visitor The visitor to accept.
+     */
+    void accept(SipHeaderVisitor visitor);
+
     }
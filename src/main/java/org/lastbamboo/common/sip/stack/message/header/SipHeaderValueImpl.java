@@ -6,6 +6,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.littleshoot.util.RuntimeIoException;
 
 /**
  * Class representing a single SIP header value.  If a SIP header contains
@@ -14,11 +15,18 @@ import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
 public class SipHeaderValueImpl implements SipHeaderValue
     {
 
-    private final Map<String, String> m_params;
-    private final String m_baseValue;
+    /**
+     * The raw value string, or <code>null</code> once it has been parsed
+     * into the base value and parameters.
+     */
+    private String m_valueString;
+    private Map<String, String> m_params;
+    private String m_baseValue;
 
     /**
-     * Creates a new SIP header value with the specified string.
+     * Creates a new SIP header value with the specified string.  The string
+     * is not split into the base value and parameters until one of them is
+     * first accessed, since most headers are never read at all.
      * 
      * @param valueString The header value as a string.
      * @throws IOException If the header value does not match the expected
@@ -26,8 +34,7 @@ public class SipHeaderValueImpl implements SipHeaderValue
      */
     public SipHeaderValueImpl(final String valueString) throws IOException
         {
-        this.m_baseValue = createBaseValue(valueString);
-        this.m_params = SipMessageUtils.extractHeaderParams(valueString);
+        this.m_valueString = valueString;
         }
 
     /**
@@ -44,6 +51,34 @@ public class SipHeaderValueImpl implements SipHeaderValue
         this.m_params = params;
         }
     
+    /**
+     * Parses the raw value string if we haven't done so already.
+     */
+    private synchronized void parse()
+        {
+        if (this.m_valueString == null)
+            {
+            return;
+            }
+        try
+            {
+            this.m_params = 
+                SipMessageUtils.extractHeaderParams(this.m_valueString);
+            }
+        catch (final IOException e)
+            {
+            throw new RuntimeIoException(e);
+            }
+        this.m_baseValue = createBaseValue(this.m_valueString);
+        this.m_valueString = null;
+        }
+    
+    private synchronized Map<String, String> params()
+        {
+        parse();
+        return this.m_params;
+        }
+    
     private String createBaseValue(final String valueString)
         {
         if (StringUtils.contains(valueString, ";"))
@@ -55,26 +90,41 @@ public class SipHeaderValueImpl implements SipHeaderValue
     
     public Map<String, String> getParams()
         {
+        final Map<String, String> params = params();
         // We favor immutability here.
-        synchronized (this.m_params)
+        synchronized (params)
             {
-            return new ConcurrentHashMap<String, String>(this.m_params);
+            return new ConcurrentHashMap<String, String>(params);
             }
         }
 
-    public String getBaseValue()
+    public synchronized String getBaseValue()
         {
+        parse();
         return this.m_baseValue;
         }
 
+    public void accept(final SipHeaderVisitor visitor)
+        {
+        visitor.visitHeaderValue(getBaseValue());
+        final Map<String, String> params = params();
+        synchronized (params)
+            {
+            for (final Map.Entry<String, String> param : params.entrySet())
+                {
+                visitor.visitHeaderParam(param.getKey(), param.getValue());
+                }
+            }
+        }
+
     public boolean hasParam(final String paramName)
         {
-        return this.m_params.containsKey(paramName);
+        return params().containsKey(paramName);
         }
 
     public String getParamValue(final String paramName)
         {
-        return this.m_params.get(paramName);
+        return params().get(paramName);
         }
 
     public boolean equals(final Object obj)
@@ -84,14 +134,15 @@ public class SipHeaderValueImpl implements SipHeaderValue
             return false;
             }
         final SipHeaderValueImpl value = (SipHeaderValueImpl) obj;
-        if (this.m_baseValue.equals(value.getBaseValue()))
+        if (getBaseValue().equals(value.getBaseValue()))
             {
             final Map params = value.getParams();
-            synchronized (this.m_params)
+            final Map<String, String> thisParams = params();
+            synchronized (thisParams)
                 {
                 synchronized (params)
                     {
-                    return this.m_params.equals(params);
+                    return thisParams.equals(params);
                     }
                 }
             }
@@ -100,14 +151,15 @@ public class SipHeaderValueImpl implements SipHeaderValue
     
     public int hashCode()
         {
-        synchronized (this.m_params)
+        final Map<String, String> params = params();
+        synchronized (params)
             {
-            return 17 * this.m_params.hashCode() * this.m_baseValue.hashCode();
+            return 17 * params.hashCode() * getBaseValue().hashCode();
             }
         }
     
     public String toString()
         {
-        return this.m_baseValue + " " + this.m_params;
+        return getBaseValue() + " " + params();
         }
     }
@@ -0,0 +1,32 @@
+package org.lastbamboo.common.sip.stack.message.header;
+
+/**
+ * Visitor for the headers of a message, called with the parts of each
+ * header in the order they're written.  This lets encoders walk a message's
+ * headers without copying the header map, value lists or parameter maps.
+ */
+public interface SipHeaderVisitor
+    {
+
+    /**
+     * Called at the start of each header.
+     *
+     * @param name The name of the header.
+     */
+    void visitHeaderName(String name);
+
+    /**
+     * Called for each value of the current header, in order.
+     *
+     * @param baseValue The value with no parameters.
+     */
+    void visitHeaderValue(String baseValue);
+
+    /**
+     * Called for each parameter of the current header value.
+     *
+     * @param name The name of the parameter.
+     * @param value The value of the parameter.
+     */
+    void visitHeaderParam(String name, String value);
+    }
@@ -0,0 +1,208 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with fixed memory.  Buckets are 
+ * log-linear: every power of two range is split into the same number of 
+ * equal buckets, so any recorded value is reported to within 1/64th, or
+ * about one and a half percent, no matter how large it is.  Values up to
+ * {@link #HIGHEST_MICROS} are tracked, and anything larger is recorded as
+ * that.<p>
+ *
+ * Recording is a few atomic operations on preallocated arrays, with no 
+ * locking or allocation, so it's safe to call from any thread on the hot
+ * path.  Reading takes a {@link Snapshot}.
+ */
+public final class LatencyHistogram
+    {
+
+    /**
+     * The largest latency we track, a little over 71 minutes.
+     */
+    public static final long HIGHEST_MICROS = (1L << 32) - 1;
+
+    /**
+     * The number of bits of each value we keep.  Values below 2^7 are 
+     * counted exactly, and larger values to within 1/64th.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private static final int BUCKETS = index(HIGHEST_MICROS) + 1;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+
+    private final StripedCounter m_totalMicros = new StripedCounter();
+
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     * 
+     * @param nanos The latency in nanoseconds.
+     */
+    public void recordNanos(final long nanos)
+        {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+    /**
+     * Records a latency.
+     * 
+     * @param micros The latency in microseconds.
+     */
+    public void record(final long micros)
+        {
+        final long value = Math.min(Math.max(micros, 0L), HIGHEST_MICROS);
+        this.m_counts.incrementAndGet(index(value));
+        this.m_totalMicros.add(value);
+        long max = this.m_max.get();
+        while (value > max && !this.m_max.compareAndSet(max, value))
+            {
+            max = this.m_max.get();
+            }
+        }
+
+    /**
+     * Takes a snapshot of the latencies recorded so far.
+     * 
+     * @return The snapshot.
+     */
+    public Snapshot getSnapshot()
+        {
+        final long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++)
+            {
+            counts[i] = this.m_counts.get(i);
+            total += counts[i];
+            }
+        return new Snapshot(counts, total, this.m_totalMicros.sum(), 
+            this.m_max.get());
+        }
+
+    /**
+     * Works out the bucket for a value.  Values below the number of sub 
+     * buckets map straight to their bucket.  Above that, each doubling of
+     * the value gets another half set of sub buckets, indexed by the top 
+     * bits of the value.
+     */
+    private static int index(final long value)
+        {
+        if (value < SUB_BUCKETS)
+            {
+            return (int) value;
+            }
+        final int shift = 
+            (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+    /**
+     * Works out the highest value that maps to a bucket.
+     */
+    private static long highestValue(final int index)
+        {
+        if (index < SUB_BUCKETS)
+            {
+            return index;
+            }
+        final int shift = index / HALF_SUB_BUCKETS - 1;
+        final long subBucket = index - shift * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+        }
+
+    /**
+     * The latencies recorded by a histogram at one point in time.
+     */
+    public static final class Snapshot
+        {
+
+        private final long[] m_counts;
+
+        private final long m_count;
+
+        private final long m_totalMicros;
+
+        private final long m_max;
+
+        private Snapshot(final long[] counts, final long count, 
+            final long totalMicros, final long max)
+            {
+            this.m_counts = counts;
+            this.m_count = count;
+            this.m_totalMicros = totalMicros;
+            this.m_max = max;
+            }
+
+        /**
+         * Accessor for the number of latencies recorded.
+         * 
+         * @return The number of latencies.
+         */
+        public long getCount()
+            {
+            return this.m_count;
+            }
+
+        /**
+         * Accessor for the largest latency recorded.
+         * 
+         * @return The largest latency in microseconds.
+         */
+        public long getMax()
+            {
+            return this.m_max;
+            }
+
+        /**
+         * Accessor for the mean latency.
+         * 
+         * @return The mean latency in microseconds, or 0 if nothing has
+         * been recorded.
+         */
+        public double getMean()
+            {
+            if (this.m_count == 0)
+                {
+                return 0.0;
+                }
+            return (double) this.m_totalMicros / this.m_count;
+            }
+
+        /**
+         * Accessor for the latency at the specified percentile.
+         * 
+         * @param percentile The percentile, such as 99.9.
+         * @return The latency in microseconds that the specified percentage
+         * of recorded latencies are at or below, or 0 if nothing has been 
+         * recorded.
+         */
+        public long getValueAtPercentile(final double percentile)
+            {
+            if (this.m_count == 0)
+                {
+                return 0L;
+                }
+            final double fraction = Math.min(Math.max(percentile, 0.0), 100.0);
+            final long rank = Math.max(1L, 
+                (long) Math.ceil(fraction / 100.0 * this.m_count));
+            long seen = 0L;
+            for (int i = 0; i < this.m_counts.length; i++)
+                {
+                seen += this.m_counts[i];
+                if (seen >= rank)
+                    {
+                    return Math.min(highestValue(i), this.m_max);
+                    }
+                }
+            return this.m_max;
+            }
+        }
+    }
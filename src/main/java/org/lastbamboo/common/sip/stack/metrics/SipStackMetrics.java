@@ -0,0 +1,602 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.lastbamboo.common.sip.stack.codec.SipMethod;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters for the traffic through the stack.  Every counter is a 
+ * {@link StripedCounter}, so the I/O threads can update them without 
+ * contending with each other.<p>
+ *
+ * The stack records everything to the shared instance from 
+ * {@link #getInstance()}, which is registered with the platform MBean 
+ * server under {@link #OBJECT_NAME}.  Callers can read the same numbers 
+ * directly from the accessors here.
+ */
+public final class SipStackMetrics implements SipStackMetricsMXBean
+    {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(SipStackMetrics.class);
+
+    /**
+     * The name the shared instance is registered under with JMX.
+     */
+    public static final String OBJECT_NAME = 
+        "org.lastbamboo.common.sip.stack:type=SipStackMetrics";
+
+    /**
+     * The number of status classes, 1xx through 6xx.
+     */
+    private static final int STATUS_CLASSES = 6;
+
+    private static final SipMethod[] METHODS = SipMethod.values();
+
+    private static final SipTransactionOutcome[] OUTCOMES = 
+        SipTransactionOutcome.values();
+
+    /**
+     * The methods we report transaction latencies for over JMX.
+     */
+    private static final SipMethod[] TRANSACTION_METHODS = 
+        {SipMethod.REGISTER, SipMethod.INVITE};
+
+    /**
+     * Holds the shared instance, so it's only created and registered with 
+     * JMX when the stack first uses it.
+     */
+    private static final class Shared
+        {
+        private static final SipStackMetrics INSTANCE = register();
+
+        private static SipStackMetrics register()
+            {
+            final SipStackMetrics metrics = new SipStackMetrics();
+            try
+                {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    metrics, new ObjectName(OBJECT_NAME));
+                }
+            catch (final JMException e)
+                {
+                LOG.warn("Could not register metrics with JMX", e);
+                }
+            return metrics;
+            }
+        }
+
+    private final StripedCounter[] m_requestsDecoded = 
+        counters(METHODS.length);
+
+    private final StripedCounter[] m_responsesDecoded = 
+        counters(STATUS_CLASSES);
+
+    private final StripedCounter[] m_requestsEncoded = 
+        counters(METHODS.length);
+
+    private final StripedCounter[] m_responsesEncoded = 
+        counters(STATUS_CLASSES);
+
+    private final StripedCounter m_decodeFailures = new StripedCounter();
+
+    private final StripedCounter m_bytesIn = new StripedCounter();
+
+    private final StripedCounter m_bytesOut = new StripedCounter();
+
+    private final StripedCounter m_activeConnections = new StripedCounter();
+
+    private final StripedCounter m_activeClientTransactions = 
+        new StripedCounter();
+
+    private final StripedCounter m_activeServerTransactions = 
+        new StripedCounter();
+
+    private final StripedCounter m_timerBFirings = new StripedCounter();
+
+    private final StripedCounter m_timerFFirings = new StripedCounter();
+
+    private final StripedCounter m_timerCFirings = new StripedCounter();
+
+    private final StripedCounter m_writesRejected = new StripedCounter();
+
+    private final StripedCounter m_keepAlivesDropped = new StripedCounter();
+
+    private final StripedCounter m_slowConsumersClosed = new StripedCounter();
+
+    private final StripedCounter m_writeStalls = new StripedCounter();
+
+    private final StripedCounter m_requestsShed = new StripedCounter();
+
+    private final StripedCounter m_dispatchQueueDepth = new StripedCounter();
+
+    private final LatencyHistogram m_dispatchQueueTime = 
+        new LatencyHistogram();
+
+    private final LatencyHistogram m_dispatchServiceTime = 
+        new LatencyHistogram();
+
+    /**
+     * Client transaction latencies, indexed by method and then outcome.
+     */
+    private final LatencyHistogram[][] m_transactionLatencies = 
+        histograms(METHODS.length, OUTCOMES.length);
+
+    /**
+     * Creates new metrics, separate from the shared instance the stack 
+     * records to.
+     */
+    public SipStackMetrics()
+        {
+        }
+
+    /**
+     * Accessor for the metrics the stack records to.
+     * 
+     * @return The shared metrics.
+     */
+    public static SipStackMetrics getInstance()
+        {
+        return Shared.INSTANCE;
+        }
+
+    /**
+     * Records a decoded message.
+     * 
+     * @param message The message.
+     */
+    public void onMessageDecoded(final SipMessage message)
+        {
+        counter(message, this.m_requestsDecoded, 
+            this.m_responsesDecoded).increment();
+        }
+
+    /**
+     * Records an encoded message.
+     * 
+     * @param message The message.
+     * @param bytes The number of bytes the message encoded to.
+     */
+    public void onMessageEncoded(final SipMessage message, final int bytes)
+        {
+        counter(message, this.m_requestsEncoded, 
+            this.m_responsesEncoded).increment();
+        this.m_bytesOut.add(bytes);
+        }
+
+    /**
+     * Records bytes handed to a decoder.
+     * 
+     * @param bytes The number of bytes.
+     */
+    public void onBytesIn(final int bytes)
+        {
+        this.m_bytesIn.add(bytes);
+        }
+
+    /**
+     * Records a decoding failure.
+     */
+    public void onDecodeFailure()
+        {
+        this.m_decodeFailures.increment();
+        }
+
+    /**
+     * Records a new connection.
+     */
+    public void onConnectionOpened()
+        {
+        this.m_activeConnections.increment();
+        }
+
+    /**
+     * Records a closed connection.
+     */
+    public void onConnectionClosed()
+        {
+        this.m_activeConnections.decrement();
+        }
+
+    /**
+     * Records a new client transaction.
+     */
+    public void onClientTransactionCreated()
+        {
+        this.m_activeClientTransactions.increment();
+        }
+
+    /**
+     * Records a terminated client transaction.
+     */
+    public void onClientTransactionTerminated()
+        {
+        this.m_activeClientTransactions.decrement();
+        }
+
+    /**
+     * Records a new server transaction.
+     */
+    public void onServerTransactionCreated()
+        {
+        this.m_activeServerTransactions.increment();
+        }
+
+    /**
+     * Records a server transaction we've stopped tracking.
+     */
+    public void onServerTransactionTerminated()
+        {
+        this.m_activeServerTransactions.decrement();
+        }
+
+    /**
+     * Records timer B firing for an INVITE client transaction.
+     */
+    public void onTimerB()
+        {
+        this.m_timerBFirings.increment();
+        }
+
+    /**
+     * Records timer F firing for a non-INVITE client transaction.
+     */
+    public void onTimerF()
+        {
+        this.m_timerFFirings.increment();
+        }
+
+    /**
+     * Records timer C firing for an INVITE client transaction that got a
+     * provisional response but no final response.
+     */
+    public void onTimerC()
+        {
+        this.m_timerCFirings.increment();
+        }
+
+    /**
+     * Records a message we didn't write because the session's write queue
+     * was full.
+     */
+    public void onWriteRejected()
+        {
+        this.m_writesRejected.increment();
+        }
+
+    /**
+     * Records a keep-alive we didn't write because the session's write 
+     * queue was full.
+     */
+    public void onKeepAliveDropped()
+        {
+        this.m_keepAlivesDropped.increment();
+        }
+
+    /**
+     * Records closing a session because its write queue was full.
+     */
+    public void onSlowConsumerClosed()
+        {
+        this.m_slowConsumersClosed.increment();
+        }
+
+    /**
+     * Records a session that stopped draining its write queue.
+     */
+    public void onWriteStall()
+        {
+        this.m_writeStalls.increment();
+        }
+
+    /**
+     * Records a request we turned away with a 503 because we were 
+     * overloaded.
+     */
+    public void onRequestShed()
+        {
+        this.m_requestsShed.increment();
+        }
+
+    /**
+     * Records a task queued to run off the I/O thread.
+     */
+    public void onDispatchQueued()
+        {
+        this.m_dispatchQueueDepth.increment();
+        }
+
+    /**
+     * Records a task that ran off the I/O thread.
+     * 
+     * @param queueNanos How long the task waited to run, in nanoseconds.
+     * @param serviceNanos How long the task took to run, in nanoseconds.
+     */
+    public void onDispatchCompleted(final long queueNanos, 
+        final long serviceNanos)
+        {
+        this.m_dispatchQueueDepth.decrement();
+        this.m_dispatchQueueTime.recordNanos(queueNanos);
+        this.m_dispatchServiceTime.recordNanos(serviceNanos);
+        }
+
+    /**
+     * Records how long a client transaction took.
+     * 
+     * @param method The method of the transaction's request.
+     * @param outcome How the transaction ended.
+     * @param nanos The time from sending the request to the final response
+     * or timeout, in nanoseconds.
+     */
+    public void onTransactionCompleted(final SipMethod method, 
+        final SipTransactionOutcome outcome, final long nanos)
+        {
+        this.m_transactionLatencies[method.ordinal()][outcome.ordinal()].
+            recordNanos(nanos);
+        }
+
+    /**
+     * Accessor for the latencies of client transactions with the 
+     * specified method and outcome.
+     * 
+     * @param method The method.
+     * @param outcome The outcome.
+     * @return A snapshot of the latencies.
+     */
+    public LatencyHistogram.Snapshot getTransactionLatency(
+        final SipMethod method, final SipTransactionOutcome outcome)
+        {
+        return this.m_transactionLatencies[method.ordinal()][
+            outcome.ordinal()].getSnapshot();
+        }
+
+    /**
+     * Accessor for the number of requests decoded with the specified 
+     * method.
+     * 
+     * @param method The method.
+     * @return The number of requests decoded.
+     */
+    public long getRequestsDecoded(final SipMethod method)
+        {
+        return this.m_requestsDecoded[method.ordinal()].sum();
+        }
+
+    /**
+     * Accessor for the number of responses decoded in the specified status
+     * class.
+     * 
+     * @param statusClass The status class, from 1 for 1xx to 6 for 6xx.
+     * @return The number of responses decoded.
+     */
+    public long getResponsesDecoded(final int statusClass)
+        {
+        return this.m_responsesDecoded[statusClass - 1].sum();
+        }
+
+    /**
+     * Accessor for the number of requests encoded with the specified 
+     * method.
+     * 
+     * @param method The method.
+     * @return The number of requests encoded.
+     */
+    public long getRequestsEncoded(final SipMethod method)
+        {
+        return this.m_requestsEncoded[method.ordinal()].sum();
+        }
+
+    /**
+     * Accessor for the number of responses encoded in the specified status
+     * class.
+     * 
+     * @param statusClass The status class, from 1 for 1xx to 6 for 6xx.
+     * @return The number of responses encoded.
+     */
+    public long getResponsesEncoded(final int statusClass)
+        {
+        return this.m_responsesEncoded[statusClass - 1].sum();
+        }
+
+    public Map<String, Long> getRequestsDecoded()
+        {
+        return byMethod(this.m_requestsDecoded);
+        }
+
+    public Map<String, Long> getResponsesDecoded()
+        {
+        return byStatusClass(this.m_responsesDecoded);
+        }
+
+    public Map<String, Long> getRequestsEncoded()
+        {
+        return byMethod(this.m_requestsEncoded);
+        }
+
+    public Map<String, Long> getResponsesEncoded()
+        {
+        return byStatusClass(this.m_responsesEncoded);
+        }
+
+    public long getDecodeFailures()
+        {
+        return this.m_decodeFailures.sum();
+        }
+
+    public long getBytesIn()
+        {
+        return this.m_bytesIn.sum();
+        }
+
+    public long getBytesOut()
+        {
+        return this.m_bytesOut.sum();
+        }
+
+    public long getActiveConnections()
+        {
+        return this.m_activeConnections.sum();
+        }
+
+    public long getActiveClientTransactions()
+        {
+        return this.m_activeClientTransactions.sum();
+        }
+
+    public long getActiveServerTransactions()
+        {
+        return this.m_activeServerTransactions.sum();
+        }
+
+    public long getTimerBFirings()
+        {
+        return this.m_timerBFirings.sum();
+        }
+
+    public long getTimerFFirings()
+        {
+        return this.m_timerFFirings.sum();
+        }
+
+    public long getTimerCFirings()
+        {
+        return this.m_timerCFirings.sum();
+        }
+
+    public long getWritesRejected()
+        {
+        return this.m_writesRejected.sum();
+        }
+
+    public long getKeepAlivesDropped()
+        {
+        return this.m_keepAlivesDropped.sum();
+        }
+
+    public long getSlowConsumersClosed()
+        {
+        return this.m_slowConsumersClosed.sum();
+        }
+
+    public long getWriteStalls()
+        {
+        return this.m_writeStalls.sum();
+        }
+
+    public long getRequestsShed()
+        {
+        return this.m_requestsShed.sum();
+        }
+
+    public long getDispatchQueueDepth()
+        {
+        return this.m_dispatchQueueDepth.sum();
+        }
+
+    public Map<String, Long> getDispatchLatencyMicros()
+        {
+        final Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+        addLatencies(latencies, "queue", 
+            this.m_dispatchQueueTime.getSnapshot());
+        addLatencies(latencies, "service", 
+            this.m_dispatchServiceTime.getSnapshot());
+        return latencies;
+        }
+
+    public Map<String, Long> getTransactionLatencyMicros()
+        {
+        final Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+        for (final SipMethod method : TRANSACTION_METHODS)
+            {
+            for (final SipTransactionOutcome outcome : OUTCOMES)
+                {
+                addLatencies(latencies, method.name() + " " + outcome.name(),
+                    getTransactionLatency(method, outcome));
+                }
+            }
+        return latencies;
+        }
+
+    private static void addLatencies(final Map<String, Long> latencies,
+        final String prefix, final LatencyHistogram.Snapshot snapshot)
+        {
+        latencies.put(prefix + " count", Long.valueOf(snapshot.getCount()));
+        latencies.put(prefix + " p50", 
+            Long.valueOf(snapshot.getValueAtPercentile(50.0)));
+        latencies.put(prefix + " p99", 
+            Long.valueOf(snapshot.getValueAtPercentile(99.0)));
+        latencies.put(prefix + " p99.9", 
+            Long.valueOf(snapshot.getValueAtPercentile(99.9)));
+        latencies.put(prefix + " max", Long.valueOf(snapshot.getMax()));
+        }
+
+    private static StripedCounter counter(final SipMessage message, 
+        final StripedCounter[] requests, final StripedCounter[] responses)
+        {
+        if (message instanceof SipResponse)
+            {
+            final int statusClass = 
+                ((SipResponse) message).getStatusCode() / 100;
+            final int index = 
+                Math.min(Math.max(statusClass, 1), STATUS_CLASSES) - 1;
+            return responses[index];
+            }
+        return requests[message.getMethod().ordinal()];
+        }
+
+    private static Map<String, Long> byMethod(final StripedCounter[] counters)
+        {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (final SipMethod method : METHODS)
+            {
+            counts.put(method.name(), 
+                Long.valueOf(counters[method.ordinal()].sum()));
+            }
+        return counts;
+        }
+
+    private static Map<String, Long> byStatusClass(
+        final StripedCounter[] counters)
+        {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < STATUS_CLASSES; i++)
+            {
+            counts.put((i + 1) + "xx", Long.valueOf(counters[i].sum()));
+            }
+        return counts;
+        }
+
+    private static LatencyHistogram[][] histograms(final int rows, 
+        final int columns)
+        {
+        final LatencyHistogram[][] histograms = 
+            new LatencyHistogram[rows][columns];
+        for (int i = 0; i < rows; i++)
+            {
+            for (int j = 0; j < columns; j++)
+                {
+                histograms[i][j] = new LatencyHistogram();
+                }
+            }
+        return histograms;
+        }
+
+    private static StripedCounter[] counters(final int count)
+        {
+        final StripedCounter[] counters = new StripedCounter[count];
+        for (int i = 0; i < count; i++)
+            {
+            counters[i] = new StripedCounter();
+            }
+        return counters;
+        }
+    }
@@ -0,0 +1,173 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link SipStackMetrics}.
+ */
+public interface SipStackMetricsMXBean
+    {
+
+    /**
+     * Accessor for the number of requests decoded, by method.
+     * 
+     * @return The number of requests decoded for each method.
+     */
+    Map<String, Long> getRequestsDecoded();
+
+    /**
+     * Accessor for the number of responses decoded, by status class.
+     * 
+     * @return The number of responses decoded for each status class, 
+     * keyed by "1xx" through "6xx".
+     */
+    Map<String, Long> getResponsesDecoded();
+
+    /**
+     * Accessor for the number of requests encoded, by method.
+     * 
+     * @return The number of requests encoded for each method.
+     */
+    Map<String, Long> getRequestsEncoded();
+
+    /**
+     * Accessor for the number of responses encoded, by status class.
+     * 
+     * @return The number of responses encoded for each status class, 
+     * keyed by "1xx" through "6xx".
+     */
+    Map<String, Long> getResponsesEncoded();
+
+    /**
+     * Accessor for the number of times decoding failed.
+     * 
+     * @return The number of decoding failures.
+     */
+    long getDecodeFailures();
+
+    /**
+     * Accessor for the number of bytes read.
+     * 
+     * @return The number of bytes handed to the decoders.
+     */
+    long getBytesIn();
+
+    /**
+     * Accessor for the number of bytes written.
+     * 
+     * @return The number of bytes produced by the encoders.
+     */
+    long getBytesOut();
+
+    /**
+     * Accessor for the number of open connections.
+     * 
+     * @return The number of open connections.
+     */
+    long getActiveConnections();
+
+    /**
+     * Accessor for the number of client transactions that have not yet 
+     * terminated.
+     * 
+     * @return The number of active client transactions.
+     */
+    long getActiveClientTransactions();
+
+    /**
+     * Accessor for the number of server transactions we're tracking.
+     * 
+     * @return The number of active server transactions.
+     */
+    long getActiveServerTransactions();
+
+    /**
+     * Accessor for the number of INVITE client transactions that timed out
+     * waiting for a response.
+     * 
+     * @return The number of times timer B fired.
+     */
+    long getTimerBFirings();
+
+    /**
+     * Accessor for the number of non-INVITE client transactions that timed
+     * out waiting for a final response.
+     * 
+     * @return The number of times timer F fired.
+     */
+    long getTimerFFirings();
+
+    /**
+     * Accessor for the number of INVITE client transactions that got a
+     * provisional response and then timed out waiting for a final response.
+     * 
+     * @return The number of times timer C fired.
+     */
+    long getTimerCFirings();
+
+    /**
+     * Accessor for the number of messages we didn't write because the 
+     * session's write queue was full.
+     * 
+     * @return The number of rejected writes.
+     */
+    long getWritesRejected();
+
+    /**
+     * Accessor for the number of keep-alives we didn't write because the 
+     * session's write queue was full.
+     * 
+     * @return The number of dropped keep-alives.
+     */
+    long getKeepAlivesDropped();
+
+    /**
+     * Accessor for the number of sessions we closed because their write 
+     * queue was full.
+     * 
+     * @return The number of slow consumers closed.
+     */
+    long getSlowConsumersClosed();
+
+    /**
+     * Accessor for the number of times a session stopped draining its 
+     * write queue.
+     * 
+     * @return The number of write stalls.
+     */
+    long getWriteStalls();
+
+    /**
+     * Accessor for the number of requests we turned away with a 503 
+     * because we were overloaded.
+     * 
+     * @return The number of requests shed.
+     */
+    long getRequestsShed();
+
+    /**
+     * Accessor for the number of messages waiting to be handled off the 
+     * I/O threads, or being handled.
+     * 
+     * @return The number of messages.
+     */
+    long getDispatchQueueDepth();
+
+    /**
+     * Accessor for how long messages handled off the I/O threads waited 
+     * and how long they took.  There's a count, p50, p99, p99.9 and max for
+     * each, keyed like "queue p99" and "service p99".
+     * 
+     * @return The times in microseconds.
+     */
+    Map<String, Long> getDispatchLatencyMicros();
+
+    /**
+     * Accessor for client transaction latencies for REGISTERs and INVITEs.
+     * There's a count, p50, p99, p99.9 and max for each method and 
+     * outcome, keyed like "INVITE SUCCESS p99".
+     * 
+     * @return The latencies in microseconds.
+     */
+    Map<String, Long> getTransactionLatencyMicros();
+    }
@@ -0,0 +1,25 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+/**
+ * The ways a client transaction can end, for grouping transaction 
+ * latencies.
+ */
+public enum SipTransactionOutcome
+    {
+
+    /**
+     * A 2xx final response.
+     */
+    SUCCESS,
+
+    /**
+     * A final response other than 2xx, including a 408 from the transport.
+     */
+    FAILURE,
+
+    /**
+     * No final response before timer B for INVITEs or timer F otherwise.
+     */
+    TIMEOUT,
+    ;
+    }
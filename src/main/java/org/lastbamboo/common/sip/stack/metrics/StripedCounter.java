@@ -0,0 +1,102 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that many threads can update at once without contending.  Each
+ * thread adds to one of several cells, picked from its thread ID, and the
+ * cells are spaced a cache line apart so threads on different cells never
+ * share a line.  Reading the count sums the cells, so reads cost more than
+ * updates and aren't a snapshot -- fine for metrics, which are written far
+ * more often than they're read.<p>
+ *
+ * Deltas can be negative, so this works as a gauge as well.
+ */
+public final class StripedCounter
+    {
+
+    /**
+     * The number of longs in a 64 byte cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * The number of cells, a power of two at least twice the number of 
+     * processors so threads rarely land on the same cell.
+     */
+    private static final int CELLS;
+
+    static
+        {
+        final int target = Runtime.getRuntime().availableProcessors() * 2;
+        int cells = 1;
+        while (cells < target)
+            {
+            cells <<= 1;
+            }
+        CELLS = cells;
+        }
+
+    private final AtomicLongArray m_cells = 
+        new AtomicLongArray((CELLS + 1) * PADDING);
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment()
+        {
+        add(1L);
+        }
+
+    /**
+     * Subtracts one from the count.
+     */
+    public void decrement()
+        {
+        add(-1L);
+        }
+
+    /**
+     * Adds the specified amount to the count.
+     * 
+     * @param delta The amount to add, which may be negative.
+     */
+    public void add(final long delta)
+        {
+        this.m_cells.addAndGet(index(), delta);
+        }
+
+    /**
+     * Accessor for the current count.
+     * 
+     * @return The sum of all cells.
+     */
+    public long sum()
+        {
+        long sum = 0L;
+        for (int i = 1; i <= CELLS; i++)
+            {
+            sum += this.m_cells.get(i * PADDING);
+            }
+        return sum;
+        }
+
+    /**
+     * Picks the cell for the calling thread.  The first line of the array is
+     * left empty so no cell shares a line with the array header.
+     */
+    private static int index()
+        {
+        final long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32));
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return ((hash & (CELLS - 1)) + 1) * PADDING;
+        }
+
+    @Override
+    public String toString()
+        {
+        return String.valueOf(sum());
+        }
+    }
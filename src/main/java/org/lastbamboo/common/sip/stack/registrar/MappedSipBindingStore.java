@@ -0,0 +1,459 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SipBindingStore} that appends records to a memory-mapped file.
+ * Appending a record is just a copy into the mapping, and the operating 
+ * system writes it out in the background, so registering doesn't wait on
+ * the disk.  Loading reads the whole file sequentially out of the 
+ * mapping, which takes a few seconds for a million bindings.<p>
+ *
+ * The file starts with a magic number and version, followed by records 
+ * that each start with their length, then the record type and the 
+ * address-of-record.  The length is written after the 
+ * rest of the record, so a record torn by a crash reads back as a zero 
+ * length, which ends the log.  The mapping grows by doubling.<p>
+ *
+ * Compaction writes the live bindings to a new file without holding the 
+ * lock, so adds and removes carry on while it runs.  They're still 
+ * appended to the old file, and we also keep a copy of each one.  Once 
+ * the live bindings are written, we take the lock, append those copies to
+ * the new file and rename it over the old one, so only that last step 
+ * holds up adds and removes.
+ */
+public class MappedSipBindingStore implements SipBindingStore
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private static final int MAGIC = 0x53495042;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private static final byte ADD = 1;
+
+    private static final byte REMOVE = 2;
+
+    /**
+     * Marks a missing string.
+     */
+    private static final int NULL_STRING = 0xFFFF;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File m_file;
+
+    private RandomAccessFile m_randomAccessFile;
+
+    private MappedByteBuffer m_buffer;
+
+    private int m_position;
+
+    private int m_recordCount;
+
+    /**
+     * Copies of the records appended while compacting, or 
+     * <code>null</code> if we're not compacting.
+     */
+    private List<byte[]> m_compactionRecords;
+
+    /**
+     * Creates a new store, creating the file if it doesn't exist.
+     * 
+     * @param file The file to store bindings in.
+     * @throws IOException If the file couldn't be opened or isn't a binding
+     * log.
+     */
+    public MappedSipBindingStore(final File file) throws IOException
+        {
+        this.m_file = file;
+        open();
+        }
+
+    public synchronized void add(final SipBindingRecord record) 
+        throws IOException
+        {
+        final byte[] aor = encode(record.getAddressOfRecord().toString());
+        final byte[] contact = encode(record.getContactUri().toString());
+        final byte[] instance = encode(record.getInstanceId());
+        final InetSocketAddress remoteAddress = record.getRemoteAddress();
+        final byte[] address;
+        if (remoteAddress == null || remoteAddress.getAddress() == null)
+            {
+            address = new byte[0];
+            }
+        else
+            {
+            address = remoteAddress.getAddress().getAddress();
+            }
+
+        final int length = 1 + 8 + stringLength(aor) + 
+            stringLength(contact) + stringLength(instance) + 
+            1 + address.length + 4;
+        final ByteBuffer buffer = startRecord(length);
+        buffer.put(ADD);
+        putString(buffer, aor);
+        buffer.putLong(record.getExpirationTime());
+        putString(buffer, contact);
+        putString(buffer, instance);
+        buffer.put((byte) address.length);
+        buffer.put(address);
+        buffer.putInt(remoteAddress == null ? 0 : remoteAddress.getPort());
+        endRecord(length);
+        }
+
+    public synchronized void remove(final URI addressOfRecord) 
+        throws IOException
+        {
+        final byte[] aor = encode(addressOfRecord.toString());
+        final int length = 1 + stringLength(aor);
+        final ByteBuffer buffer = startRecord(length);
+        buffer.put(REMOVE);
+        putString(buffer, aor);
+        endRecord(length);
+        }
+
+    public synchronized List<SipBindingRecord> load() throws IOException
+        {
+        final Map<URI, SipBindingRecord> records = 
+            new LinkedHashMap<URI, SipBindingRecord>(
+                Math.max(16, this.m_recordCount * 4 / 3 + 1));
+        final ByteBuffer buffer = this.m_buffer.duplicate();
+        buffer.position(HEADER_LENGTH);
+        buffer.limit(this.m_position);
+        final byte[] scratch = new byte[NULL_STRING];
+        int count = 0;
+        while (buffer.hasRemaining())
+            {
+            final int length = buffer.getInt();
+            final int end = buffer.position() + length;
+            try
+                {
+                final byte type = buffer.get();
+                final URI aor = URI.create(getString(buffer, scratch));
+                if (type == ADD)
+                    {
+                    records.put(aor, readAdd(aor, buffer, scratch));
+                    }
+                else if (type == REMOVE)
+                    {
+                    records.remove(aor);
+                    }
+                else
+                    {
+                    m_log.warn("Unknown record type: " + type);
+                    }
+                }
+            catch (final RuntimeException e)
+                {
+                // Bad URIs, missing strings or lengths that run past the
+                // record.  Skip the record rather than losing the rest.
+                m_log.warn("Skipping bad record at " + (end - length), e);
+                }
+            buffer.position(end);
+            count++;
+            }
+        this.m_recordCount = count;
+        m_log.debug("Loaded {} bindings", records.size());
+        return new ArrayList<SipBindingRecord>(records.values());
+        }
+
+    public void compact(final Iterable<SipBindingRecord> records) 
+        throws IOException
+        {
+        final File temp = 
+            new File(this.m_file.getPath() + ".compact");
+        synchronized (this)
+            {
+            if (this.m_compactionRecords != null)
+                {
+                throw new IOException("Already compacting: " + m_file);
+                }
+            if (temp.exists() && !temp.delete())
+                {
+                throw new IOException("Could not delete: " + temp);
+                }
+
+            // We start keeping copies before the caller looks at its 
+            // bindings, so anything that changes after that is replayed.
+            this.m_compactionRecords = new ArrayList<byte[]>();
+            }
+        try
+            {
+            final MappedSipBindingStore compacted = 
+                new MappedSipBindingStore(temp);
+            try
+                {
+                for (final SipBindingRecord record : records)
+                    {
+                    compacted.add(record);
+                    }
+                synchronized (this)
+                    {
+                    for (final byte[] record : this.m_compactionRecords)
+                        {
+                        compacted.append(record);
+                        }
+                    compacted.close();
+                    replace(temp);
+                    }
+                }
+            finally
+                {
+                compacted.close();
+                }
+            }
+        finally
+            {
+            synchronized (this)
+                {
+                this.m_compactionRecords = null;
+                }
+            }
+        }
+
+    /**
+     * Renames the compacted file over ours and opens it.
+     */
+    private void replace(final File temp) throws IOException
+        {
+        closeFile();
+        if (!temp.renameTo(this.m_file))
+            {
+            // Some platforms won't rename over an existing file.
+            if (!this.m_file.delete() || !temp.renameTo(this.m_file))
+                {
+                open();
+                throw new IOException("Could not replace " + m_file);
+                }
+            }
+        open();
+        }
+
+    public synchronized int getRecordCount()
+        {
+        return this.m_recordCount;
+        }
+
+    public synchronized void close() throws IOException
+        {
+        closeFile();
+        }
+
+    private void open() throws IOException
+        {
+        this.m_randomAccessFile = new RandomAccessFile(this.m_file, "rw");
+        final long fileLength = this.m_randomAccessFile.length();
+        if (fileLength > Integer.MAX_VALUE)
+            {
+            closeFile();
+            throw new IOException("Binding log too large: " + m_file);
+            }
+        map(Math.max(INITIAL_CAPACITY, (int) fileLength));
+        if (fileLength == 0)
+            {
+            this.m_buffer.putInt(0, MAGIC);
+            this.m_buffer.putInt(4, VERSION);
+            this.m_position = HEADER_LENGTH;
+            this.m_recordCount = 0;
+            return;
+            }
+        if (this.m_buffer.getInt(0) != MAGIC || 
+            this.m_buffer.getInt(4) != VERSION)
+            {
+            closeFile();
+            throw new IOException("Not a binding log: " + m_file);
+            }
+        findEnd();
+        }
+
+    /**
+     * Skips over the records to find where to append, without decoding 
+     * them.
+     */
+    private void findEnd()
+        {
+        int position = HEADER_LENGTH;
+        int count = 0;
+        final int capacity = this.m_buffer.capacity();
+        while (position + 4 <= capacity)
+            {
+            final int length = this.m_buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > capacity)
+                {
+                break;
+                }
+            position += 4 + length;
+            count++;
+            }
+        this.m_position = position;
+        this.m_recordCount = count;
+        }
+
+    private void map(final int capacity) throws IOException
+        {
+        if (this.m_buffer != null)
+            {
+            this.m_buffer.force();
+            }
+        this.m_buffer = this.m_randomAccessFile.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+    private void closeFile() throws IOException
+        {
+        if (this.m_buffer != null)
+            {
+            this.m_buffer.force();
+            this.m_buffer = null;
+            }
+        if (this.m_randomAccessFile != null)
+            {
+            this.m_randomAccessFile.close();
+            this.m_randomAccessFile = null;
+            }
+        }
+
+    /**
+     * Makes room for a record and returns a buffer positioned at the start 
+     * of its body.
+     */
+    private ByteBuffer startRecord(final int length) throws IOException
+        {
+        if (this.m_buffer == null)
+            {
+            throw new IOException("Binding log closed: " + m_file);
+            }
+        final long needed = (long) this.m_position + 4 + length + 4;
+        if (needed > this.m_buffer.capacity())
+            {
+            long capacity = this.m_buffer.capacity();
+            while (capacity < needed)
+                {
+                capacity *= 2;
+                }
+            if (capacity > Integer.MAX_VALUE)
+                {
+                throw new IOException("Binding log full: " + m_file);
+                }
+            map((int) capacity);
+            }
+        final ByteBuffer buffer = this.m_buffer.duplicate();
+        buffer.position(this.m_position + 4);
+        return buffer;
+        }
+
+    private void endRecord(final int length)
+        {
+        if (this.m_compactionRecords != null)
+            {
+            final byte[] record = new byte[length];
+            final ByteBuffer buffer = this.m_buffer.duplicate();
+            buffer.position(this.m_position + 4);
+            buffer.get(record);
+            this.m_compactionRecords.add(record);
+            }
+        this.m_buffer.putInt(this.m_position, length);
+        this.m_position += 4 + length;
+        this.m_recordCount++;
+        }
+
+    /**
+     * Appends a record already in the log's format.
+     */
+    private synchronized void append(final byte[] record) throws IOException
+        {
+        final ByteBuffer buffer = startRecord(record.length);
+        buffer.put(record);
+        endRecord(record.length);
+        }
+
+    private SipBindingRecord readAdd(final URI aor, final ByteBuffer buffer,
+        final byte[] scratch)
+        {
+        final long expirationTime = buffer.getLong();
+        final URI contact = URI.create(getString(buffer, scratch));
+        final String instanceId = getString(buffer, scratch);
+        final byte[] address = new byte[buffer.get()];
+        buffer.get(address);
+        final int port = buffer.getInt();
+        InetSocketAddress remoteAddress = null;
+        if (address.length > 0)
+            {
+            try
+                {
+                remoteAddress = new InetSocketAddress(
+                    InetAddress.getByAddress(address), port);
+                }
+            catch (final IOException e)
+                {
+                m_log.warn("Bad address in record for: " + aor);
+                }
+            }
+        return new SipBindingRecord(aor, contact, instanceId, 
+            remoteAddress, expirationTime);
+        }
+
+    private static byte[] encode(final String string)
+        {
+        if (string == null)
+            {
+            return null;
+            }
+        final byte[] bytes = string.getBytes(UTF_8);
+        if (bytes.length >= NULL_STRING)
+            {
+            throw new IllegalArgumentException("String too long: " + string);
+            }
+        return bytes;
+        }
+
+    private static int stringLength(final byte[] bytes)
+        {
+        return 2 + (bytes == null ? 0 : bytes.length);
+        }
+
+    private static void putString(final ByteBuffer buffer, final byte[] bytes)
+        {
+        if (bytes == null)
+            {
+            buffer.putShort((short) NULL_STRING);
+            return;
+            }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        }
+
+    private static String getString(final ByteBuffer buffer, 
+        final byte[] scratch)
+        {
+        final int length = buffer.getShort() & 0xFFFF;
+        if (length == NULL_STRING)
+            {
+            return null;
+            }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, UTF_8);
+        }
+    }
@@ -0,0 +1,62 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * A binding from an address-of-record to the contact that registered it, 
+ * as described in RFC 3261 section 10.
+ */
+public interface SipBinding
+    {
+
+    /**
+     * Accessor for the address-of-record, taken from the To header of the
+     * REGISTER request.
+     * 
+     * @return The address-of-record.
+     */
+    URI getAddressOfRecord();
+
+    /**
+     * Accessor for the contact URI the address-of-record is bound to.
+     * 
+     * @return The contact URI.
+     */
+    URI getContactUri();
+
+    /**
+     * Accessor for the "+sip.instance" value of the contact, without the
+     * surrounding quotes and angle brackets.
+     * 
+     * @return The instance ID, or <code>null</code> if the contact didn't 
+     * include one.
+     */
+    String getInstanceId();
+
+    /**
+     * Accessor for the session the REGISTER request arrived on.
+     * 
+     * @return The session for reaching the registered contact, or 
+     * <code>null</code> if the binding was restored after a restart and the
+     * client hasn't reconnected yet.
+     */
+    IoSession getSession();
+
+    /**
+     * Accessor for the remote address of the connection the binding was
+     * registered on.
+     * 
+     * @return The remote address.
+     */
+    InetSocketAddress getRemoteAddress();
+
+    /**
+     * Accessor for when the binding expires.
+     * 
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    long getExpirationTime();
+    }
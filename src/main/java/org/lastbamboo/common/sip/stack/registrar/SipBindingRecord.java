@@ -0,0 +1,115 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/**
+ * The parts of a binding that outlive the connection it arrived on, as 
+ * saved by a {@link SipBindingStore}.
+ */
+public class SipBindingRecord
+    {
+
+    private final URI m_addressOfRecord;
+
+    private final URI m_contactUri;
+
+    private final String m_instanceId;
+
+    private final InetSocketAddress m_remoteAddress;
+
+    private final long m_expirationTime;
+
+    /**
+     * Creates a new record.
+     * 
+     * @param addressOfRecord The address-of-record.
+     * @param contactUri The contact URI.
+     * @param instanceId The instance ID, or <code>null</code> if there 
+     * isn't one.
+     * @param remoteAddress The remote address of the connection the binding
+     * was registered on, or <code>null</code> if it's not known.
+     * @param expirationTime When the binding expires, in milliseconds since
+     * the epoch.
+     */
+    public SipBindingRecord(final URI addressOfRecord, final URI contactUri,
+        final String instanceId, final InetSocketAddress remoteAddress, 
+        final long expirationTime)
+        {
+        this.m_addressOfRecord = addressOfRecord;
+        this.m_contactUri = contactUri;
+        this.m_instanceId = instanceId;
+        this.m_remoteAddress = remoteAddress;
+        this.m_expirationTime = expirationTime;
+        }
+
+    /**
+     * Creates a record for a binding.
+     * 
+     * @param binding The binding.
+     */
+    public SipBindingRecord(final SipBinding binding)
+        {
+        this(binding.getAddressOfRecord(), binding.getContactUri(), 
+            binding.getInstanceId(), binding.getRemoteAddress(), 
+            binding.getExpirationTime());
+        }
+
+    /**
+     * Accessor for the address-of-record.
+     * 
+     * @return The address-of-record.
+     */
+    public URI getAddressOfRecord()
+        {
+        return m_addressOfRecord;
+        }
+
+    /**
+     * Accessor for the contact URI.
+     * 
+     * @return The contact URI.
+     */
+    public URI getContactUri()
+        {
+        return m_contactUri;
+        }
+
+    /**
+     * Accessor for the instance ID.
+     * 
+     * @return The instance ID, or <code>null</code> if there isn't one.
+     */
+    public String getInstanceId()
+        {
+        return m_instanceId;
+        }
+
+    /**
+     * Accessor for the remote address of the connection the binding was
+     * registered on.
+     * 
+     * @return The remote address, or <code>null</code> if it's not known.
+     */
+    public InetSocketAddress getRemoteAddress()
+        {
+        return m_remoteAddress;
+        }
+
+    /**
+     * Accessor for when the binding expires.
+     * 
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime()
+        {
+        return m_expirationTime;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "Record: " + m_addressOfRecord + " -> " + m_contactUri + 
+            " from: " + m_remoteAddress;
+        }
+    }
@@ -0,0 +1,67 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Durable log of registration bindings, so a registrar can restore its
+ * bindings after a restart instead of waiting for every client to 
+ * register again.  Adds and removes are appended to the log, and the log 
+ * is periodically compacted down to the live bindings.
+ */
+public interface SipBindingStore
+    {
+
+    /**
+     * Records a new or refreshed binding.
+     * 
+     * @param record The binding.
+     * @throws IOException If the record couldn't be written.
+     */
+    void add(SipBindingRecord record) throws IOException;
+
+    /**
+     * Records the removal of the binding for an address-of-record.
+     * 
+     * @param addressOfRecord The address-of-record.
+     * @throws IOException If the record couldn't be written.
+     */
+    void remove(URI addressOfRecord) throws IOException;
+
+    /**
+     * Reads back the bindings in the log, with later records for the same 
+     * address-of-record replacing earlier ones.  This includes bindings 
+     * that have since expired.
+     * 
+     * @return The bindings.
+     * @throws IOException If the log couldn't be read.
+     */
+    List<SipBindingRecord> load() throws IOException;
+
+    /**
+     * Replaces the log with just the specified bindings.  Adds and removes
+     * can go on while this runs, and any made after we start iterating the
+     * bindings are kept in the compacted log, so callers can pass a live
+     * view of their bindings.
+     * 
+     * @param records The live bindings.
+     * @throws IOException If the log couldn't be rewritten.
+     */
+    void compact(Iterable<SipBindingRecord> records) throws IOException;
+
+    /**
+     * Accessor for the number of records appended since the log was last
+     * loaded or compacted, including removals.
+     * 
+     * @return The number of records in the log.
+     */
+    int getRecordCount();
+
+    /**
+     * Flushes and closes the log.
+     * 
+     * @throws IOException If the log couldn't be closed cleanly.
+     */
+    void close() throws IOException;
+    }
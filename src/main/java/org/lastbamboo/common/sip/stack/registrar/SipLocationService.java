@@ -0,0 +1,94 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.net.URI;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.Register;
+
+/**
+ * Location service for a registrar, mapping addresses-of-record to the 
+ * sessions of the clients that registered them.  Each address-of-record
+ * has at most one binding -- a new registration replaces the old one, 
+ * which is what we want for clients that reconnect.
+ */
+public interface SipLocationService
+    {
+
+    /**
+     * Adds, refreshes or removes the binding in the specified REGISTER
+     * request.  The binding expires after the time in the "expires" 
+     * parameter of the Contact header, or in the Expires header if the 
+     * contact doesn't have one.  An expiration of zero removes the binding.
+     * 
+     * @param register The REGISTER request.
+     * @param session The session the request arrived on.
+     * @return The new binding, or <code>null</code> if the request removed
+     * the binding.
+     */
+    SipBinding register(Register register, IoSession session);
+
+    /**
+     * Matches a new connection to a binding restored from an earlier run,
+     * so the client is reachable again as soon as it reconnects rather 
+     * than after it registers again.  Connections are matched on their 
+     * full remote address, never on the IP address alone, since different
+     * clients behind a NAT share it.  A client that reconnects from a new
+     * port is reachable again once it registers.  This should be called as
+     * each connection is created.
+     * 
+     * @param session The session for the new connection.
+     * @return The binding the session was attached to, or <code>null</code>
+     * if no restored binding was waiting for it.
+     */
+    SipBinding attach(IoSession session);
+
+    /**
+     * Removes the binding for the specified address-of-record.
+     * 
+     * @param addressOfRecord The address-of-record.
+     * @return The removed binding, or <code>null</code> if there wasn't one.
+     */
+    SipBinding unregister(URI addressOfRecord);
+
+    /**
+     * Accessor for the binding for the specified address-of-record.
+     * 
+     * @param addressOfRecord The address-of-record.
+     * @return The binding, or <code>null</code> if there's no live binding.
+     */
+    SipBinding getBinding(URI addressOfRecord);
+
+    /**
+     * Accessor for the binding with the specified contact URI.
+     * 
+     * @param contactUri The contact URI.
+     * @return The binding, or <code>null</code> if there's no live binding.
+     */
+    SipBinding getBindingForContact(URI contactUri);
+
+    /**
+     * Accessor for the binding with the specified "+sip.instance" value.
+     * 
+     * @param instanceId The instance ID, with or without the surrounding 
+     * quotes and angle brackets.
+     * @return The binding, or <code>null</code> if there's no live binding.
+     */
+    SipBinding getBindingForInstance(String instanceId);
+
+    /**
+     * Accessor for the session of the client registered for the specified 
+     * address-of-record.
+     * 
+     * @param addressOfRecord The address-of-record.
+     * @return The session, or <code>null</code> if there's no live binding
+     * or the client hasn't reconnected since its binding was restored.
+     */
+    IoSession getSession(URI addressOfRecord);
+
+    /**
+     * Accessor for the number of bindings.
+     * 
+     * @return The number of bindings.
+     */
+    int size();
+    }
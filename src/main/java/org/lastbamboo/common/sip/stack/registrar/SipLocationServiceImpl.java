@@ -0,0 +1,604 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderParamNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.timer.SipTimeout;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SipLocationService} that keeps bindings in memory.  Bindings are
+ * indexed by address-of-record, contact URI and instance ID, so every 
+ * lookup is a single hash map probe.  Each binding schedules its own 
+ * expiration on the timer, and refreshing a binding cancels the old one,
+ * so the timer only ever holds one timeout per binding.<p>
+ *
+ * Bindings whose session has closed are removed the next time we look 
+ * them up rather than when the session closes, since clients usually 
+ * reconnect and register again well before anyone routes to them.<p>
+ *
+ * Given a {@link SipBindingStore}, we also save each registration and 
+ * unregistration so {@link #restore()} can reload the bindings after a 
+ * restart.  Restored bindings have no session until the client reconnects
+ * from the same address or registers again.  We never match on the IP
+ * address alone, since clients behind the same NAT share it.  Bindings 
+ * dropped because their connection closed or they expired aren't recorded
+ * as removed -- a dropped connection doesn't unregister the client, and 
+ * expired records are skipped when we restore.  The store is compacted down to the live
+ * bindings on a background thread whenever it grows past twice their 
+ * number.
+ */
+public class SipLocationServiceImpl implements SipLocationService
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The expiration we use when the request doesn't specify one, in 
+     * seconds.  This is the default from RFC 3261 section 10.2.1.1.
+     */
+    public static final int DEFAULT_EXPIRES = 3600;
+
+    private static final String EXPIRES = "expires";
+
+    private static final String WILDCARD = "*";
+
+    /**
+     * The fewest records in the store before we bother compacting it.
+     */
+    private static final int MIN_COMPACTION_RECORDS = 10000;
+
+    private final ConcurrentMap<URI, Binding> m_bindings =
+        new ConcurrentHashMap<URI, Binding>();
+
+    private final ConcurrentMap<URI, Binding> m_contacts =
+        new ConcurrentHashMap<URI, Binding>();
+
+    private final ConcurrentMap<String, Binding> m_instances =
+        new ConcurrentHashMap<String, Binding>();
+
+    /**
+     * Restored bindings waiting for their client to reconnect, keyed by 
+     * the client's address.
+     */
+    private final ConcurrentMap<InetSocketAddress, Binding> m_restored =
+        new ConcurrentHashMap<InetSocketAddress, Binding>();
+
+    private final SipTimer m_timer;
+
+    private final int m_maxExpires;
+
+    private final SipBindingStore m_store;
+
+    private final AtomicBoolean m_compacting = new AtomicBoolean(false);
+
+    /**
+     * Creates a new location service that accepts any expiration clients
+     * ask for.
+     * 
+     * @param timer The timer for expiring bindings.
+     */
+    public SipLocationServiceImpl(final SipTimer timer)
+        {
+        this(timer, Integer.MAX_VALUE);
+        }
+
+    /**
+     * Creates a new location service.
+     * 
+     * @param timer The timer for expiring bindings.
+     * @param maxExpires The longest expiration we allow, in seconds.  Longer
+     * expirations are shortened to this.
+     */
+    public SipLocationServiceImpl(final SipTimer timer, final int maxExpires)
+        {
+        this(timer, maxExpires, null);
+        }
+
+    /**
+     * Creates a new location service that saves its bindings.
+     * 
+     * @param timer The timer for expiring bindings.
+     * @param maxExpires The longest expiration we allow, in seconds.  Longer
+     * expirations are shortened to this.
+     * @param store The store for saving bindings, or <code>null</code> to 
+     * only keep them in memory.
+     */
+    public SipLocationServiceImpl(final SipTimer timer, final int maxExpires,
+        final SipBindingStore store)
+        {
+        if (maxExpires <= 0)
+            {
+            throw new IllegalArgumentException(
+                "Bad max expires: " + maxExpires);
+            }
+        this.m_timer = timer;
+        this.m_maxExpires = maxExpires;
+        this.m_store = store;
+        }
+
+    /**
+     * Reloads the bindings saved by an earlier run.  This should be called
+     * before accepting connections.  Bindings that have expired since they
+     * were saved are skipped, as are any for addresses-of-record that have
+     * already registered again.
+     * 
+     * @return The number of bindings restored.
+     * @throws IOException If the store couldn't be read.
+     */
+    public int restore() throws IOException
+        {
+        if (this.m_store == null)
+            {
+            return 0;
+            }
+        final List<SipBindingRecord> records = this.m_store.load();
+        final long now = System.currentTimeMillis();
+        int restored = 0;
+        for (final SipBindingRecord record : records)
+            {
+            final long remaining = record.getExpirationTime() - now;
+            if (remaining <= 0)
+                {
+                continue;
+                }
+            final Binding binding = new Binding(record.getAddressOfRecord(), 
+                record.getContactUri(), record.getInstanceId(), null, 
+                record.getRemoteAddress(), record.getExpirationTime());
+            binding.m_timeout = schedule(binding, remaining);
+            if (this.m_bindings.putIfAbsent(
+                binding.m_addressOfRecord, binding) != null)
+                {
+                binding.m_timeout.cancel();
+                continue;
+                }
+            index(binding);
+            if (binding.m_remoteAddress != null)
+                {
+                this.m_restored.put(binding.m_remoteAddress, binding);
+                }
+            restored++;
+            }
+        m_log.info("Restored " + restored + " of " + records.size() + 
+            " saved bindings");
+        maybeCompact();
+        return restored;
+        }
+
+    /**
+     * Rewrites the store with just the current bindings.  This normally 
+     * happens on its own as the store grows.
+     * 
+     * @throws IOException If the store couldn't be rewritten.
+     */
+    public void compact() throws IOException
+        {
+        if (this.m_store == null)
+            {
+            return;
+            }
+        this.m_store.compact(new Iterable<SipBindingRecord>()
+            {
+            public Iterator<SipBindingRecord> iterator()
+                {
+                // The store replays any adds and removes made after it 
+                // calls this, so anything that changes after we copy the
+                // bindings still ends up in the compacted store.
+                final List<SipBindingRecord> records = 
+                    new ArrayList<SipBindingRecord>(m_bindings.size());
+                for (final Binding binding : m_bindings.values())
+                    {
+                    records.add(new SipBindingRecord(binding));
+                    }
+                return records.iterator();
+                }
+            });
+        }
+
+    public SipBinding register(final Register register, 
+        final IoSession session)
+        {
+        final SipHeader to = register.getHeader(SipHeaderName.TO);
+        if (to == null)
+            {
+            throw new IllegalArgumentException("No To header in: " + register);
+            }
+        final URI addressOfRecord = SipMessageUtils.extractUri(to);
+        final SipHeader contact = register.getHeader(SipHeaderName.CONTACT);
+        if (contact == null)
+            {
+            // This is just asking for the current binding.
+            return getBinding(addressOfRecord);
+            }
+        final SipHeaderValue contactValue = contact.getValue();
+        if (WILDCARD.equals(contactValue.getBaseValue().trim()))
+            {
+            unregister(addressOfRecord);
+            return null;
+            }
+
+        final URI contactUri = SipMessageUtils.extractUri(contact);
+        final int expires = Math.min(getExpires(register, contactValue), 
+            this.m_maxExpires);
+        if (expires <= 0)
+            {
+            final Binding existing = this.m_bindings.get(addressOfRecord);
+            if (existing != null && 
+                existing.m_contactUri.equals(contactUri) &&
+                remove(existing))
+                {
+                saveRemoval(addressOfRecord);
+                }
+            return null;
+            }
+
+        final long expiresMillis = expires * 1000L;
+        final Binding binding = new Binding(addressOfRecord, contactUri, 
+            normalizeInstanceId(contactValue.getParamValue(
+                SipHeaderParamNames.SIP_INSTANCE)), 
+            session, (InetSocketAddress) session.getRemoteAddress(), 
+            System.currentTimeMillis() + expiresMillis);
+        binding.m_timeout = schedule(binding, expiresMillis);
+
+        final Binding old = this.m_bindings.put(addressOfRecord, binding);
+        if (old != null)
+            {
+            removeIndexes(old);
+            }
+        index(binding);
+        if (m_log.isDebugEnabled())
+            {
+            m_log.debug("Registered binding: " + binding);
+            }
+        if (this.m_store != null)
+            {
+            try
+                {
+                this.m_store.add(new SipBindingRecord(binding));
+                }
+            catch (final IOException e)
+                {
+                m_log.warn("Could not save binding: " + binding, e);
+                }
+            maybeCompact();
+            }
+        return binding;
+        }
+
+    public SipBinding attach(final IoSession session)
+        {
+        final InetSocketAddress address = 
+            (InetSocketAddress) session.getRemoteAddress();
+        if (address == null)
+            {
+            return null;
+            }
+        final Binding binding = this.m_restored.get(address);
+        if (binding == null || !unrestore(binding) ||
+            this.m_bindings.get(binding.m_addressOfRecord) != binding)
+            {
+            return null;
+            }
+        binding.m_session = session;
+        m_log.debug("Attached session to restored binding: {}", binding);
+        return binding;
+        }
+
+    /**
+     * Takes a restored binding out of the bindings waiting for their client
+     * to reconnect.
+     * 
+     * @return <code>true</code> if the binding was waiting, or 
+     * <code>false</code> if it had already been attached or removed.
+     */
+    private boolean unrestore(final Binding binding)
+        {
+        if (binding.m_remoteAddress == null)
+            {
+            return false;
+            }
+        return this.m_restored.remove(binding.m_remoteAddress, binding);
+        }
+
+    public SipBinding unregister(final URI addressOfRecord)
+        {
+        final Binding binding = this.m_bindings.remove(addressOfRecord);
+        if (binding != null)
+            {
+            removeIndexes(binding);
+            saveRemoval(addressOfRecord);
+            }
+        return binding;
+        }
+
+    public SipBinding getBinding(final URI addressOfRecord)
+        {
+        return live(this.m_bindings.get(addressOfRecord));
+        }
+
+    public SipBinding getBindingForContact(final URI contactUri)
+        {
+        return live(this.m_contacts.get(contactUri));
+        }
+
+    public SipBinding getBindingForInstance(final String instanceId)
+        {
+        final String normalized = normalizeInstanceId(instanceId);
+        if (normalized == null)
+            {
+            return null;
+            }
+        return live(this.m_instances.get(normalized));
+        }
+
+    public IoSession getSession(final URI addressOfRecord)
+        {
+        final SipBinding binding = getBinding(addressOfRecord);
+        if (binding == null)
+            {
+            return null;
+            }
+        return binding.getSession();
+        }
+
+    public int size()
+        {
+        return this.m_bindings.size();
+        }
+
+    /**
+     * Checks that a binding we've looked up is still usable, removing it
+     * if its session has closed.
+     */
+    private Binding live(final Binding binding)
+        {
+        if (binding == null)
+            {
+            return null;
+            }
+        final IoSession session = binding.m_session;
+        if (session != null && session.isClosing())
+            {
+            m_log.debug("Removing binding for closed session: {}", binding);
+            remove(binding);
+            return null;
+            }
+        return binding;
+        }
+
+    private SipTimeout schedule(final Binding binding, final long delay)
+        {
+        return this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                m_log.debug("Binding expired: {}", binding);
+                remove(binding);
+                }
+            }, delay);
+        }
+
+    private void index(final Binding binding)
+        {
+        this.m_contacts.put(binding.m_contactUri, binding);
+        if (binding.m_instanceId != null)
+            {
+            this.m_instances.put(binding.m_instanceId, binding);
+            }
+        }
+
+    private boolean remove(final Binding binding)
+        {
+        if (this.m_bindings.remove(binding.m_addressOfRecord, binding))
+            {
+            removeIndexes(binding);
+            return true;
+            }
+        return false;
+        }
+
+    private void removeIndexes(final Binding binding)
+        {
+        final SipTimeout timeout = binding.m_timeout;
+        if (timeout != null)
+            {
+            timeout.cancel();
+            }
+        this.m_contacts.remove(binding.m_contactUri, binding);
+        if (binding.m_instanceId != null)
+            {
+            this.m_instances.remove(binding.m_instanceId, binding);
+            }
+        unrestore(binding);
+        }
+
+    private void saveRemoval(final URI addressOfRecord)
+        {
+        if (this.m_store == null)
+            {
+            return;
+            }
+        try
+            {
+            this.m_store.remove(addressOfRecord);
+            }
+        catch (final IOException e)
+            {
+            m_log.warn("Could not save removal of: " + addressOfRecord, e);
+            }
+        maybeCompact();
+        }
+
+    private void maybeCompact()
+        {
+        final int records = this.m_store.getRecordCount();
+        if (records < MIN_COMPACTION_RECORDS || records <= 2 * size())
+            {
+            return;
+            }
+        if (!this.m_compacting.compareAndSet(false, true))
+            {
+            return;
+            }
+
+        // Compacting rewrites every live binding, so we keep it off the 
+        // I/O thread that registered the client.  It's rare enough that a 
+        // thread of its own each time is fine.
+        final Thread compactor = new Thread(new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    m_log.debug("Compacting {} records", records);
+                    compact();
+                    }
+                catch (final IOException e)
+                    {
+                    m_log.warn("Could not compact binding store", e);
+                    }
+                finally
+                    {
+                    m_compacting.set(false);
+                    }
+                }
+            }, "SIP-Binding-Compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+        }
+
+    private int getExpires(final Register register, 
+        final SipHeaderValue contactValue)
+        {
+        final String contactExpires = contactValue.getParamValue(EXPIRES);
+        if (contactExpires != null)
+            {
+            return parseExpires(contactExpires);
+            }
+        final SipHeader expires = register.getHeader(SipHeaderName.EXPIRES);
+        if (expires != null)
+            {
+            return parseExpires(expires.getValue().getBaseValue());
+            }
+        return DEFAULT_EXPIRES;
+        }
+
+    private int parseExpires(final String expires)
+        {
+        try
+            {
+            return Integer.parseInt(expires.trim());
+            }
+        catch (final NumberFormatException e)
+            {
+            m_log.warn("Bad expires value: " + expires);
+            return DEFAULT_EXPIRES;
+            }
+        }
+
+    /**
+     * Strips the quotes and angle brackets from a "+sip.instance" value, 
+     * so instance IDs match however the client wrote them.
+     */
+    private static String normalizeInstanceId(final String instanceId)
+        {
+        if (StringUtils.isBlank(instanceId))
+            {
+            return null;
+            }
+        final String stripped = 
+            StringUtils.strip(instanceId.trim(), "\"<>");
+        if (StringUtils.isBlank(stripped))
+            {
+            return null;
+            }
+        return stripped.toLowerCase();
+        }
+
+    private static final class Binding implements SipBinding
+        {
+
+        private final URI m_addressOfRecord;
+
+        private final URI m_contactUri;
+
+        private final String m_instanceId;
+
+        private final InetSocketAddress m_remoteAddress;
+
+        private final long m_expirationTime;
+
+        /**
+         * The session, which is only set later for restored bindings.
+         */
+        private volatile IoSession m_session;
+
+        private volatile SipTimeout m_timeout;
+
+        private Binding(final URI addressOfRecord, final URI contactUri, 
+            final String instanceId, final IoSession session, 
+            final InetSocketAddress remoteAddress, final long expirationTime)
+            {
+            this.m_addressOfRecord = addressOfRecord;
+            this.m_contactUri = contactUri;
+            this.m_instanceId = instanceId;
+            this.m_session = session;
+            this.m_remoteAddress = remoteAddress;
+            this.m_expirationTime = expirationTime;
+            }
+
+        public URI getAddressOfRecord()
+            {
+            return m_addressOfRecord;
+            }
+
+        public URI getContactUri()
+            {
+            return m_contactUri;
+            }
+
+        public String getInstanceId()
+            {
+            return m_instanceId;
+            }
+
+        public IoSession getSession()
+            {
+            return m_session;
+            }
+
+        public InetSocketAddress getRemoteAddress()
+            {
+            return m_remoteAddress;
+            }
+
+        public long getExpirationTime()
+            {
+            return m_expirationTime;
+            }
+
+        @Override
+        public String toString()
+            {
+            return "Binding: " + m_addressOfRecord + " -> " + m_contactUri + 
+                " instance: " + m_instanceId;
+            }
+        }
+    }
@@ -0,0 +1,390 @@
+package org.lastbamboo.common.sip.stack.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SipTimer} using a hashed timing wheel.  The wheel is an array of
+ * buckets, each covering one tick.  A timeout goes in the bucket for the
+ * tick it expires on, along with the number of full turns of the wheel
+ * still to wait, so scheduling and cancelling are both constant time no
+ * matter how many timeouts are outstanding.  Cancelled timeouts are unlinked
+ * from their bucket right away rather than waiting to expire, unlike the
+ * tasks in a {@link java.util.Timer}.<p>
+ *
+ * A single thread advances the wheel.  Only that thread touches the buckets
+ * -- new and cancelled timeouts are handed to it through queues, so callers
+ * never contend on a lock.  Timeouts fire up to one tick late.<p>
+ *
+ * Expired tasks run on the wheel thread unless the timer is given an
+ * {@link Executor}.  Slow tasks on the wheel thread delay every timeout
+ * after them, so anything that might block should use an executor.
+ */
+public class HashedWheelSipTimer implements SipTimer, Runnable
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default tick length, in milliseconds.
+     */
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * The default number of ticks in the wheel.
+     */
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    /**
+     * The most new timeouts we add to the wheel on a single tick, so a flood
+     * of new timeouts can't stop the wheel from turning.
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private final long m_tickMillis;
+
+    private final Bucket[] m_wheel;
+
+    private final int m_mask;
+
+    private final Executor m_executor;
+
+    private final Queue<WheelTimeout> m_newTimeouts =
+        new ConcurrentLinkedQueue<WheelTimeout>();
+
+    private final Queue<WheelTimeout> m_cancelledTimeouts =
+        new ConcurrentLinkedQueue<WheelTimeout>();
+
+    private final long m_startTime;
+
+    private final Thread m_worker;
+
+    private volatile boolean m_stopped = false;
+
+    /**
+     * The current tick.  Only accessed by the wheel thread.
+     */
+    private long m_tick = 0;
+
+    /**
+     * Creates a new timer with the default tick length and wheel size that
+     * runs expired tasks on the wheel thread.
+     *
+     * @param threadName The name of the wheel thread.
+     */
+    public HashedWheelSipTimer(final String threadName)
+        {
+        this(threadName, DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL, null);
+        }
+
+    /**
+     * Creates a new timer.
+     *
+     * @param threadName The name of the wheel thread.
+     * @param tickMillis The length of each tick in milliseconds.
+     * @param ticksPerWheel The number of ticks in the wheel.  This is
+     * rounded up to a power of two.
+     * @param executor The executor for running expired tasks, or
+     * <code>null</code> to run them on the wheel thread.
+     */
+    public HashedWheelSipTimer(final String threadName, final long tickMillis,
+        final int ticksPerWheel, final Executor executor)
+        {
+        if (tickMillis <= 0)
+            {
+            throw new IllegalArgumentException("Bad tick: " + tickMillis);
+            }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+            {
+            throw new IllegalArgumentException(
+                "Bad ticks per wheel: " + ticksPerWheel);
+            }
+        int wheelSize = 1;
+        while (wheelSize < ticksPerWheel)
+            {
+            wheelSize <<= 1;
+            }
+        this.m_tickMillis = tickMillis;
+        this.m_wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++)
+            {
+            this.m_wheel[i] = new Bucket();
+            }
+        this.m_mask = wheelSize - 1;
+        this.m_executor = executor;
+        this.m_startTime = currentTimeMillis();
+        this.m_worker = new Thread(this, threadName);
+        this.m_worker.setDaemon(true);
+        this.m_worker.start();
+        }
+
+    public SipTimeout schedule(final Runnable task, final long delay)
+        {
+        if (m_stopped)
+            {
+            throw new IllegalStateException("Timer stopped");
+            }
+        final long deadline =
+            currentTimeMillis() - this.m_startTime + Math.max(0, delay);
+        final WheelTimeout timeout = new WheelTimeout(task, deadline);
+        this.m_newTimeouts.add(timeout);
+        return timeout;
+        }
+
+    public void stop()
+        {
+        this.m_stopped = true;
+        if (Thread.currentThread() != this.m_worker)
+            {
+            this.m_worker.interrupt();
+            }
+        }
+
+    public void run()
+        {
+        while (!m_stopped)
+            {
+            final long elapsed = waitForNextTick();
+            if (elapsed < 0)
+                {
+                continue;
+                }
+            removeCancelled();
+            transferNewTimeouts();
+            final Bucket bucket = this.m_wheel[(int) (this.m_tick & m_mask)];
+            expire(bucket, elapsed);
+            this.m_tick++;
+            }
+        m_log.debug("Timing wheel stopped");
+        }
+
+    /**
+     * Sleeps until the end of the current tick.
+     *
+     * @return The number of milliseconds since the timer started, or -1 if
+     * we were interrupted.
+     */
+    private long waitForNextTick()
+        {
+        final long tickEnd = this.m_tickMillis * (this.m_tick + 1);
+        while (true)
+            {
+            final long elapsed = currentTimeMillis() - this.m_startTime;
+            final long sleep = tickEnd - elapsed;
+            if (sleep <= 0)
+                {
+                return elapsed;
+                }
+            try
+                {
+                Thread.sleep(sleep);
+                }
+            catch (final InterruptedException e)
+                {
+                if (m_stopped)
+                    {
+                    return -1;
+                    }
+                }
+            }
+        }
+
+    private void removeCancelled()
+        {
+        while (true)
+            {
+            final WheelTimeout timeout = this.m_cancelledTimeouts.poll();
+            if (timeout == null)
+                {
+                return;
+                }
+            if (timeout.m_bucket != null)
+                {
+                timeout.m_bucket.remove(timeout);
+                }
+            }
+        }
+
+    private void transferNewTimeouts()
+        {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++)
+            {
+            final WheelTimeout timeout = this.m_newTimeouts.poll();
+            if (timeout == null)
+                {
+                return;
+                }
+            if (timeout.isCancelled())
+                {
+                continue;
+                }
+            final long expiryTick = timeout.m_deadline / this.m_tickMillis;
+            timeout.m_remainingRounds =
+                (expiryTick - this.m_tick) / this.m_wheel.length;
+
+            // Anything already due goes in the current bucket.
+            final long tick = Math.max(expiryTick, this.m_tick);
+            this.m_wheel[(int) (tick & m_mask)].add(timeout);
+            }
+        }
+
+    private void expire(final Bucket bucket, final long elapsed)
+        {
+        WheelTimeout timeout = bucket.m_head;
+        while (timeout != null)
+            {
+            final WheelTimeout next = timeout.m_next;
+            if (timeout.m_remainingRounds <= 0 &&
+                timeout.m_deadline <= elapsed)
+                {
+                bucket.remove(timeout);
+                timeout.expire();
+                }
+            else if (timeout.isCancelled())
+                {
+                bucket.remove(timeout);
+                }
+            else if (timeout.m_remainingRounds > 0)
+                {
+                timeout.m_remainingRounds--;
+                }
+            timeout = next;
+            }
+        }
+
+    private static long currentTimeMillis()
+        {
+        return System.nanoTime() / 1000000L;
+        }
+
+    /**
+     * A single slot in the wheel, holding a doubly linked list of timeouts
+     * so any timeout can be removed in constant time.
+     */
+    private static final class Bucket
+        {
+
+        private WheelTimeout m_head;
+
+        private WheelTimeout m_tail;
+
+        private void add(final WheelTimeout timeout)
+            {
+            timeout.m_bucket = this;
+            if (m_head == null)
+                {
+                m_head = m_tail = timeout;
+                }
+            else
+                {
+                m_tail.m_next = timeout;
+                timeout.m_prev = m_tail;
+                m_tail = timeout;
+                }
+            }
+
+        private void remove(final WheelTimeout timeout)
+            {
+            final WheelTimeout next = timeout.m_next;
+            if (timeout.m_prev != null)
+                {
+                timeout.m_prev.m_next = next;
+                }
+            if (next != null)
+                {
+                next.m_prev = timeout.m_prev;
+                }
+            if (timeout == m_head)
+                {
+                m_head = next;
+                }
+            if (timeout == m_tail)
+                {
+                m_tail = timeout.m_prev;
+                }
+            timeout.m_prev = null;
+            timeout.m_next = null;
+            timeout.m_bucket = null;
+            }
+        }
+
+    private final class WheelTimeout implements SipTimeout
+        {
+
+        private final Runnable m_task;
+
+        /**
+         * The time this expires, in milliseconds since the timer started.
+         */
+        private final long m_deadline;
+
+        private final AtomicInteger m_state = new AtomicInteger(STATE_INIT);
+
+        // The following are only accessed by the wheel thread.
+        private long m_remainingRounds;
+
+        private Bucket m_bucket;
+
+        private WheelTimeout m_next;
+
+        private WheelTimeout m_prev;
+
+        private WheelTimeout(final Runnable task, final long deadline)
+            {
+            this.m_task = task;
+            this.m_deadline = deadline;
+            }
+
+        public boolean cancel()
+            {
+            if (!this.m_state.compareAndSet(STATE_INIT, STATE_CANCELLED))
+                {
+                return false;
+                }
+            m_cancelledTimeouts.add(this);
+            return true;
+            }
+
+        public boolean isCancelled()
+            {
+            return this.m_state.get() == STATE_CANCELLED;
+            }
+
+        public boolean isExpired()
+            {
+            return this.m_state.get() == STATE_EXPIRED;
+            }
+
+        private void expire()
+            {
+            if (!this.m_state.compareAndSet(STATE_INIT, STATE_EXPIRED))
+                {
+                return;
+                }
+            try
+                {
+                if (m_executor == null)
+                    {
+                    this.m_task.run();
+                    }
+                else
+                    {
+                    m_executor.execute(this.m_task);
+                    }
+                }
+            catch (final Throwable t)
+                {
+                m_log.warn("Exception running timer task", t);
+                }
+            }
+        }
+    }
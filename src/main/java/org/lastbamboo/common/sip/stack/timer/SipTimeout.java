@@ -0,0 +1,31 @@
+package org.lastbamboo.common.sip.stack.timer;
+
+/**
+ * Handle for a task scheduled with a {@link SipTimer}.
+ */
+public interface SipTimeout
+    {
+
+    /**
+     * Cancels the task if it hasn't already run.
+     * 
+     * @return <code>true</code> if the task was cancelled, or 
+     * <code>false</code> if it had already expired or been cancelled.
+     */
+    boolean cancel();
+
+    /**
+     * Returns whether or not the task was cancelled before it expired.
+     * 
+     * @return <code>true</code> if the task was cancelled.
+     */
+    boolean isCancelled();
+
+    /**
+     * Returns whether or not the timeout has expired and the task has been
+     * run or handed off to be run.
+     * 
+     * @return <code>true</code> if the timeout has expired.
+     */
+    boolean isExpired();
+    }
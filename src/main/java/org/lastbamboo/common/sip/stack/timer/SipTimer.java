@@ -0,0 +1,25 @@
+package org.lastbamboo.common.sip.stack.timer;
+
+/**
+ * Schedules the timers used by SIP transactions, such as timers A through K
+ * in RFC 3261 section 17.  Scheduling and cancelling are expected to be
+ * cheap, since every transaction schedules at least one timer and almost
+ * all of them are cancelled when the response arrives.
+ */
+public interface SipTimer
+    {
+
+    /**
+     * Schedules the specified task to run once after the specified delay.
+     * 
+     * @param task The task to run.
+     * @param delay The delay in milliseconds.
+     * @return The handle for cancelling the task.
+     */
+    SipTimeout schedule(Runnable task, long delay);
+
+    /**
+     * Stops the timer.  Tasks that haven't run yet never will.
+     */
+    void stop();
+    }
@@ -33,4 +33,23 @@ public interface SipClientTransaction extends SipMessageVisitor
      */
     void addListener(OfferAnswerTransactionListener listener);
 
+    /**
+     * Accessor for the current state of the transaction.
+     * 
+     * @return The current state of the transaction.
+     */
+    SipClientTransactionState getState();
+
+    /**
+     * Abandons the transaction without waiting for a final response.  This
+     * stops the transaction's timers and stops tracking the transaction, so
+     * any response that arrives later is ignored.  Listeners aren't 
+     * notified, and no CANCEL request is sent.
+     * 
+     * @return <code>true</code> if we abandoned the transaction, or 
+     * <code>false</code> if it had already received a final response or
+     * timed out.
+     */
+    boolean cancel();
+
     }
@@ -0,0 +1,163 @@
+package org.lastbamboo.common.sip.stack.transaction.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+
+/**
+ * The final response to a request sent in a client transaction, for
+ * callers that would rather wait on a {@link Future} than implement a
+ * listener.  The future completes with whatever final response ends the
+ * transaction, successful or not, so callers check the status code.  When
+ * the transaction times out on timer B, C or F, that's the 408 the
+ * transaction creates for the timeout, so the future always completes.<p>
+ *
+ * Cancelling the future abandons the transaction -- it stops the
+ * transaction's timers and removes it from its
+ * {@link SipTransactionTracker}, and any response that arrives later is
+ * ignored.  This doesn't send a CANCEL request.<p>
+ *
+ * Waiting uses a {@link CountDownLatch} rather than a monitor, so waiting
+ * threads just park until the response arrives.
+ */
+public class SipClientTransactionFuture implements Future<SipResponse>,
+    OfferAnswerTransactionListener
+    {
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_COMPLETING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    private final AtomicInteger m_state = new AtomicInteger(STATE_WAITING);
+
+    private final CountDownLatch m_done = new CountDownLatch(1);
+
+    private volatile SipClientTransaction m_transaction;
+
+    // These are written before the latch is released, which publishes them
+    // to waiting threads.
+    private SipResponse m_response;
+
+    private Throwable m_cause;
+
+    /**
+     * Sets the transaction this is the future for, so cancelling the
+     * future can abandon it.
+     *
+     * @param transaction The transaction.
+     */
+    public void setTransaction(final SipClientTransaction transaction)
+        {
+        this.m_transaction = transaction;
+        if (isCancelled())
+            {
+            transaction.cancel();
+            }
+        }
+
+    /**
+     * Fails the future because we couldn't send the request at all.
+     *
+     * @param cause The reason we couldn't send the request.
+     * @return <code>true</code> if this failed the future, or
+     * <code>false</code> if it had already finished.
+     */
+    public boolean setFailure(final Throwable cause)
+        {
+        if (!this.m_state.compareAndSet(STATE_WAITING, STATE_COMPLETING))
+            {
+            return false;
+            }
+        this.m_cause = cause;
+        this.m_state.set(STATE_FAILED);
+        this.m_done.countDown();
+        return true;
+        }
+
+    public void onTransactionSucceeded(final OfferAnswerMessage response)
+        {
+        setResponse(response);
+        }
+
+    public void onTransactionFailed(final OfferAnswerMessage response)
+        {
+        setResponse(response);
+        }
+
+    private void setResponse(final OfferAnswerMessage response)
+        {
+        if (!this.m_state.compareAndSet(STATE_WAITING, STATE_COMPLETING))
+            {
+            return;
+            }
+        this.m_response = (SipResponse) response;
+        this.m_state.set(STATE_DONE);
+        this.m_done.countDown();
+        }
+
+    public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+        if (!this.m_state.compareAndSet(STATE_WAITING, STATE_CANCELLED))
+            {
+            return false;
+            }
+        final SipClientTransaction transaction = this.m_transaction;
+        if (transaction != null)
+            {
+            transaction.cancel();
+            }
+        this.m_done.countDown();
+        return true;
+        }
+
+    public boolean isCancelled()
+        {
+        return this.m_state.get() == STATE_CANCELLED;
+        }
+
+    public boolean isDone()
+        {
+        return this.m_state.get() > STATE_COMPLETING;
+        }
+
+    public SipResponse get() throws InterruptedException, ExecutionException
+        {
+        this.m_done.await();
+        return getResult();
+        }
+
+    public SipResponse get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+        {
+        if (!this.m_done.await(timeout, unit))
+            {
+            throw new TimeoutException("No final response after " +
+                timeout + " " + unit);
+            }
+        return getResult();
+        }
+
+    private SipResponse getResult() throws ExecutionException
+        {
+        switch (this.m_state.get())
+            {
+            case STATE_DONE:
+                return this.m_response;
+            case STATE_FAILED:
+                throw new ExecutionException(this.m_cause);
+            case STATE_CANCELLED:
+            default:
+                throw new CancellationException();
+            }
+        }
+    }
@@ -1,11 +1,14 @@
 package org.lastbamboo.common.sip.stack.transaction.client;
 
+import java.io.IOException;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
 import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
 import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.codec.SipMethod;
 import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
 import org.lastbamboo.common.sip.stack.message.Invite;
 import org.lastbamboo.common.sip.stack.message.Register;
@@ -14,75 +17,192 @@ import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
 import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.metrics.SipTransactionOutcome;
+import org.lastbamboo.common.sip.stack.timer.SipTimeout;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Implementation of a SIP client transaction.
+ * Implementation of a SIP client transaction.  This follows the INVITE and
+ * non-INVITE client transaction state machines from RFC 3261 sections
+ * 17.1.1 and 17.1.2, with all timers scheduled on a shared
+ * {@link SipTimer}:<p>
+ *
+ * <ul>
+ *   <li>INVITE: timer A retransmits the request, timer B times out the
+ *   transaction, and timer D absorbs retransmitted final responses.  Once
+ *   a provisional response stops timer B, timer C from RFC 3261 section
+ *   16.6 times out the transaction if no final response follows.</li>
+ *   <li>Non-INVITE: timer E retransmits the request, timer F times out the
+ *   transaction, and timer K absorbs retransmitted final responses.</li>
+ * </ul>
+ *
+ * Retransmission timers only run over unreliable transports, and timers D
+ * and K are zero over reliable transports, so over TCP a transaction
+ * terminates as soon as it receives a final response.  Once terminated, the
+ * transaction removes itself from the {@link SipTransactionTracker}.
  */
 public class SipClientTransactionImpl implements SipClientTransaction
     {
-    
+
     private final Logger m_log = LoggerFactory.getLogger(getClass());
-    
+
+    /**
+     * T2 from RFC 3261 section 17.1.2.2 -- the longest retransmit interval
+     * for non-INVITE requests.
+     */
+    private static final long T2 = 4000;
+
+    /**
+     * T4 from RFC 3261 section 17.1.2.2 -- how long messages stay in the
+     * network.
+     */
+    private static final long T4 = 5000;
+
+    /**
+     * Timer D over unreliable transports, from RFC 3261 section 17.1.1.2.
+     */
+    private static final long TIMER_D = 32000;
+
+    /**
+     * Timer C as a multiple of T1.  RFC 3261 section 16.6 requires timer C
+     * to be more than three minutes, and this makes it 181 seconds with the
+     * default T1 of 500 milliseconds.  Scaling it with T1 keeps it in
+     * proportion with the other timers when T1 is shortened for testing.
+     */
+    private static final long TIMER_C_T1_MULTIPLE = 362;
+
     private final SipMessage m_request;
 
-    private long m_transactionTime = Long.MAX_VALUE;
+    private volatile long m_transactionTime = Long.MAX_VALUE;
 
     private final List<OfferAnswerTransactionListener> m_transactionListeners;
 
-    private final long m_transactionStartTime;
+    private final long m_transactionStartNanos;
 
     private final SipMessageFactory m_messageFactory;
-    
+
+    private final SipTransactionTracker m_tracker;
+
+    private final SipTimer m_timer;
+
+    private final IoSession m_io;
+
+    private final boolean m_invite;
+
+    private final boolean m_reliable;
+
+    private final long m_timerC;
+
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
+
+    // The following are all guarded by this.
+    private SipClientTransactionState m_state;
+
+    /**
+     * Timer A for INVITEs or timer E otherwise.
+     */
+    private SipTimeout m_retransmitTimer;
+
+    private long m_retransmitInterval;
+
     /**
-     * Flag for whether or not timer B has already fired.
+     * Timer B for INVITEs or timer F otherwise.
      */
-    private volatile boolean m_timerBFired = false;
+    private SipTimeout m_timeoutTimer;
 
-    private final TimerTask m_timerB;
+    /**
+     * Timer C for INVITEs that have had a provisional response.
+     */
+    private SipTimeout m_provisionalTimer;
+
+    /**
+     * Timer D for INVITEs or timer K otherwise.
+     */
+    private SipTimeout m_completedTimer;
+
+    /**
+     * The ACK for a non-2xx final response to an INVITE, which we send again
+     * for each retransmission of the response.
+     */
+    private SipMessage m_ack;
 
     /**
      * Creates a new SIP client transaction.
-     * 
+     *
      * @param request The request starting the transaction.
      * @param transactionListeners The listeners for transaction events.
      * @param messageFactory The factory for creating SIP messages.
-     * @param timer The timer to add timer B tasks to.
+     * @param tracker The tracker to remove the transaction from when it
+     * terminates.
+     * @param timer The timer to schedule transaction timers with.
      * @param t1 The value to use for T1, as specified in RFC 3261 section
-     * 17.1.1.2 on page 126.  T1 is multiplied by 64 to give the 
-     * timeout for transactions.  The default value is 500, but this can be 
+     * 17.1.1.2 on page 126.  T1 is multiplied by 64 to give the
+     * timeout for transactions.  The default value is 500, but this can be
      * modified for testing, for example.
+     * @param io The session the request is sent on, used for sending
+     * retransmissions and ACKs.  This can be <code>null</code>, in which
+     * case the transport is assumed to be reliable and nothing is sent.
      */
-    public SipClientTransactionImpl(final SipMessage request, 
-        final List<OfferAnswerTransactionListener> transactionListeners, 
+    public SipClientTransactionImpl(final SipMessage request,
+        final List<OfferAnswerTransactionListener> transactionListeners,
         final SipMessageFactory messageFactory,
-        final Timer timer, final int t1)
+        final SipTransactionTracker tracker, final SipTimer timer,
+        final int t1, final IoSession io)
         {
         this.m_request = request;
         this.m_transactionListeners = transactionListeners;
-        this.m_transactionStartTime = System.currentTimeMillis();
+        this.m_transactionStartNanos = System.nanoTime();
         this.m_messageFactory = messageFactory;
-        
-        // Start timer B, as specified for INVITE client transactions in
-        // RFC 3261 section 17.1.1.2 on page 125.
-        this.m_timerB = new TimerTask()
+        this.m_tracker = tracker;
+        this.m_timer = timer;
+        this.m_io = io;
+        this.m_invite = request.getMethod() == SipMethod.INVITE;
+        this.m_reliable = isReliable(io);
+        this.m_timerC = TIMER_C_T1_MULTIPLE * t1;
+
+        this.m_metrics.onClientTransactionCreated();
+        synchronized (this)
             {
-            @Override
-            public void run()
+            if (this.m_invite)
+                {
+                this.m_state = SipClientTransactionState.CALLING;
+                }
+            else
                 {
-                m_log.warn("Timer B firing!!  The client transaction timed out" +
-                    " for request: " + m_request);
-                m_timerBFired = true;
-                final SipResponse timeout = 
-                    m_messageFactory.createRequestTimeoutResponse(m_request);
-                notifyListenersOfFailure(timeout);
+                this.m_state = SipClientTransactionState.TRYING;
                 }
-            };
-            
-        timer.schedule(this.m_timerB, 64 * t1);
+
+            // Start timer B or F.
+            this.m_timeoutTimer = timer.schedule(new Runnable()
+                {
+                public void run()
+                    {
+                    onTimeout(false);
+                    }
+                }, 64L * t1);
+
+            // Start timer A or E.
+            if (!this.m_reliable)
+                {
+                this.m_retransmitInterval = t1;
+                scheduleRetransmit();
+                }
+            }
+        }
+
+    private static boolean isReliable(final IoSession io)
+        {
+        if (io == null)
+            {
+            return true;
+            }
+        final TransportType type = io.getTransportType();
+        return type == null || !type.isConnectionless();
         }
-    
+
     public void addListener(final OfferAnswerTransactionListener listener)
         {
         this.m_transactionListeners.add(listener);
@@ -92,33 +212,92 @@ public class SipClientTransactionImpl implements SipClientTransaction
         {
         return this.m_request;
         }
-    
+
     public long getTransactionTime()
         {
         return m_transactionTime;
         }
-    
+
+    public synchronized SipClientTransactionState getState()
+        {
+        return this.m_state;
+        }
+
+    public synchronized boolean cancel()
+        {
+        if (this.m_state == SipClientTransactionState.COMPLETED ||
+            this.m_state == SipClientTransactionState.TERMINATED)
+            {
+            return false;
+            }
+        m_log.debug("Cancelling transaction for: {}", this.m_request);
+        setTransactionTime(SipTransactionOutcome.FAILURE);
+        terminate();
+        return true;
+        }
+
     public void visitResponse(final SipResponse response)
         {
-        m_log.debug("SIP client transaction visiting response...");
-        if (this.m_timerBFired)
+        final int statusCode = response.getStatusCode();
+        if (m_log.isDebugEnabled())
             {
-            m_log.warn("Received response after timer B fired!!");
-            return;
+            m_log.debug("SIP client transaction visiting response: " +
+                statusCode);
             }
-        
-        m_log.debug("Canceling TIMER B");
-        // Tell timer B not to fire.
-        this.m_timerB.cancel();
-        
-        if (response.getStatusCode() == 200)
+        synchronized (this)
             {
-            setTransactionTime();
-            if (m_log.isDebugEnabled())
+            switch (this.m_state)
+                {
+                case CALLING:
+                case TRYING:
+                case PROCEEDING:
+                    if (statusCode < 200)
+                        {
+                        onProvisionalResponse();
+                        return;
+                        }
+                    break;
+                case COMPLETED:
+                    // This is a retransmission of the final response.  For
+                    // INVITEs we send the ACK again.
+                    if (this.m_ack != null)
+                        {
+                        write(this.m_ack);
+                        }
+                    return;
+                case TERMINATED:
+                default:
+                    m_log.debug("Received response after termination");
+                    return;
+                }
+
+            setTransactionTime(statusCode < 300 ? 
+                SipTransactionOutcome.SUCCESS : SipTransactionOutcome.FAILURE);
+            cancel(this.m_retransmitTimer);
+            cancel(this.m_timeoutTimer);
+            cancel(this.m_provisionalTimer);
+            if (this.m_invite && statusCode < 300)
+                {
+                // The TU handles the ACK for 2xx responses.
+                terminate();
+                }
+            else
                 {
-                m_log.debug("Transaction time: "+getTransactionTime());
+                if (this.m_invite)
+                    {
+                    this.m_ack = createAck(response);
+                    if (this.m_ack != null)
+                        {
+                        write(this.m_ack);
+                        }
+                    }
+                complete();
                 }
-            for (final OfferAnswerTransactionListener listener : 
+            }
+
+        if (statusCode < 300)
+            {
+            for (final OfferAnswerTransactionListener listener :
                 this.m_transactionListeners)
                 {
                 listener.onTransactionSucceeded(response);
@@ -126,37 +305,238 @@ public class SipClientTransactionImpl implements SipClientTransaction
             }
         else
             {
-            m_log.warn("Received non OK response: "+response.getStatusCode());
+            m_log.debug("Received non-2xx final response: {}", statusCode);
+            notifyListenersOfFailure(response);
             }
         }
 
     public void visitRequestTimedOut(final RequestTimeoutResponse response)
         {
-        if (this.m_timerBFired)
+        synchronized (this)
             {
-            m_log.warn("Received OK after timer B fired!!");
-            return;
+            if (this.m_state == SipClientTransactionState.COMPLETED ||
+                this.m_state == SipClientTransactionState.TERMINATED)
+                {
+                m_log.debug("Received timeout after final response");
+                return;
+                }
+            setTransactionTime(SipTransactionOutcome.FAILURE);
+            terminate();
             }
-        
-        // Tell timer B not to fire.
-        this.m_timerB.cancel();
         notifyListenersOfFailure(response);
         }
 
+    private void onProvisionalResponse()
+        {
+        if (this.m_invite)
+            {
+            if (this.m_state == SipClientTransactionState.CALLING)
+                {
+                // Per RFC 3261 section 17.1.1.2, we stop retransmitting and
+                // timer B only applies in the calling state.
+                cancel(this.m_retransmitTimer);
+                cancel(this.m_timeoutTimer);
+                }
+
+            // Timer C makes sure we still give up if the final response
+            // never comes, and each provisional response restarts it.
+            cancel(this.m_provisionalTimer);
+            this.m_provisionalTimer = this.m_timer.schedule(new Runnable()
+                {
+                public void run()
+                    {
+                    onTimeout(true);
+                    }
+                }, this.m_timerC);
+            }
+        else if (this.m_state == SipClientTransactionState.TRYING)
+            {
+            // Keep retransmitting, but only every T2.  Timer F still runs.
+            this.m_retransmitInterval = T2;
+            }
+        this.m_state = SipClientTransactionState.PROCEEDING;
+        }
+
+    private void scheduleRetransmit()
+        {
+        this.m_retransmitTimer = this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                onRetransmit();
+                }
+            }, this.m_retransmitInterval);
+        }
+
+    private synchronized void onRetransmit()
+        {
+        switch (this.m_state)
+            {
+            case CALLING:
+                // Timer A doubles each time.
+                write(this.m_request);
+                this.m_retransmitInterval *= 2;
+                scheduleRetransmit();
+                break;
+            case TRYING:
+                // Timer E doubles up to T2.
+                write(this.m_request);
+                this.m_retransmitInterval =
+                    Math.min(this.m_retransmitInterval * 2, T2);
+                scheduleRetransmit();
+                break;
+            case PROCEEDING:
+                if (!this.m_invite)
+                    {
+                    write(this.m_request);
+                    scheduleRetransmit();
+                    }
+                break;
+            default:
+                break;
+            }
+        }
+
+    private void onTimeout(final boolean timerC)
+        {
+        synchronized (this)
+            {
+            if (this.m_state == SipClientTransactionState.COMPLETED ||
+                this.m_state == SipClientTransactionState.TERMINATED)
+                {
+                return;
+                }
+            if (this.m_invite && !timerC &&
+                this.m_state == SipClientTransactionState.PROCEEDING)
+                {
+                // Timer B fired just as it was cancelled.  Timer C covers
+                // INVITEs from here.
+                return;
+                }
+            m_log.warn("Client transaction timed out for request: " +
+                m_request);
+            if (timerC)
+                {
+                this.m_metrics.onTimerC();
+                }
+            else if (this.m_invite)
+                {
+                this.m_metrics.onTimerB();
+                }
+            else
+                {
+                this.m_metrics.onTimerF();
+                }
+            setTransactionTime(SipTransactionOutcome.TIMEOUT);
+            terminate();
+            }
+        final SipResponse timeout =
+            m_messageFactory.createRequestTimeoutResponse(m_request);
+        notifyListenersOfFailure(timeout);
+        }
+
+    private void complete()
+        {
+        this.m_state = SipClientTransactionState.COMPLETED;
+        final long delay;
+        if (this.m_reliable)
+            {
+            delay = 0;
+            }
+        else if (this.m_invite)
+            {
+            delay = TIMER_D;
+            }
+        else
+            {
+            delay = T4;
+            }
+        if (delay == 0)
+            {
+            terminate();
+            return;
+            }
+
+        // Start timer D or K.
+        this.m_completedTimer = this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                synchronized (SipClientTransactionImpl.this)
+                    {
+                    if (m_state == SipClientTransactionState.COMPLETED)
+                        {
+                        terminate();
+                        }
+                    }
+                }
+            }, delay);
+        }
+
+    private void terminate()
+        {
+        if (this.m_state == SipClientTransactionState.TERMINATED)
+            {
+            return;
+            }
+        this.m_state = SipClientTransactionState.TERMINATED;
+        this.m_metrics.onClientTransactionTerminated();
+        cancel(this.m_retransmitTimer);
+        cancel(this.m_timeoutTimer);
+        cancel(this.m_provisionalTimer);
+        cancel(this.m_completedTimer);
+        this.m_tracker.removeTransaction(this);
+        }
+
+    private SipMessage createAck(final SipResponse response)
+        {
+        if (this.m_io == null)
+            {
+            return null;
+            }
+        try
+            {
+            return this.m_messageFactory.createAck(this.m_request, response);
+            }
+        catch (final IOException e)
+            {
+            m_log.warn("Could not create ACK for: " + response, e);
+            return null;
+            }
+        }
+
+    private void write(final SipMessage message)
+        {
+        if (this.m_io == null || this.m_io.isClosing())
+            {
+            return;
+            }
+        this.m_io.write(message);
+        }
+
+    private static void cancel(final SipTimeout timeout)
+        {
+        if (timeout != null)
+            {
+            timeout.cancel();
+            }
+        }
+
     private void notifyListenersOfFailure(final OfferAnswerMessage response)
         {
-        setTransactionTime();
-        for (final OfferAnswerTransactionListener listener : 
+        for (final OfferAnswerTransactionListener listener :
             this.m_transactionListeners)
             {
             listener.onTransactionFailed(response);
             }
         }
 
-    private void setTransactionTime()
+    private void setTransactionTime(final SipTransactionOutcome outcome)
         {
-        this.m_transactionTime = 
-            System.currentTimeMillis() - this.m_transactionStartTime;
+        final long nanos = System.nanoTime() - this.m_transactionStartNanos;
+        this.m_transactionTime = TimeUnit.NANOSECONDS.toMillis(nanos);
+        this.m_metrics.onTransactionCompleted(this.m_request.getMethod(), 
+            outcome, nanos);
         }
 
     public void visitInvite(final Invite invite)
@@ -166,7 +546,7 @@ public class SipClientTransactionImpl implements SipClientTransaction
 
     public void visitRegister(final Register register)
         {
-        m_log.warn("Should not receive registers on client transactions: " + 
+        m_log.warn("Should not receive registers on client transactions: " +
             register);
         }
 
@@ -0,0 +1,38 @@
+package org.lastbamboo.common.sip.stack.transaction.client;
+
+/**
+ * The states of a SIP client transaction, as specified in RFC 3261 
+ * section 17.1.  INVITE transactions start in {@link #CALLING}, while all 
+ * other transactions start in {@link #TRYING}.
+ */
+public enum SipClientTransactionState
+    {
+
+    /**
+     * An INVITE has been sent and we haven't heard anything back yet.
+     */
+    CALLING,
+
+    /**
+     * A non-INVITE request has been sent and we haven't heard anything back
+     * yet.
+     */
+    TRYING,
+
+    /**
+     * We've received a provisional response.
+     */
+    PROCEEDING,
+
+    /**
+     * We've received a final response and are waiting to absorb any 
+     * retransmissions of it.
+     */
+    COMPLETED,
+
+    /**
+     * The transaction is over.
+     */
+    TERMINATED,
+    ;
+    }
@@ -1,5 +1,6 @@
 package org.lastbamboo.common.sip.stack.transaction.client;
 
+import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
 
@@ -20,4 +21,17 @@ public interface SipTransactionFactory
     SipClientTransaction createClientTransaction(SipMessage request, 
         OfferAnswerTransactionListener transactionListener);
 
+    /**
+     * Creates a new client transaction for a request sent on the specified
+     * session.  The transaction uses the session to send any 
+     * retransmissions and ACKs.
+     * 
+     * @param request The SIP request creating the client transaction.
+     * @param transactionListener The listener for transaction events.
+     * @param io The session the request is sent on.
+     * @return The new client transaction.
+     */
+    SipClientTransaction createClientTransaction(SipMessage request, 
+        OfferAnswerTransactionListener transactionListener, IoSession io);
+
     }
@@ -2,11 +2,13 @@ package org.lastbamboo.common.sip.stack.transaction.client;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
 
+import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
 
 /**
  * Class for creating SIP transactions.
@@ -16,7 +18,7 @@ public class SipTransactionFactoryImpl implements SipTransactionFactory
 
     private final SipTransactionTracker m_transactionTracker;
     private final SipMessageFactory m_messageFactory;
-    private final Timer m_timerBThread;
+    private final SipTimer m_timer;
     private final int m_t1;
 
     /**
@@ -31,21 +33,48 @@ public class SipTransactionFactoryImpl implements SipTransactionFactory
     public SipTransactionFactoryImpl(final SipTransactionTracker tracker,
         final SipMessageFactory messageFactory, final int t1)
         {
+        this(tracker, messageFactory, t1, 
+            new HashedWheelSipTimer("SIP-Timer-Thread"));
+        }
+    
+    /**
+     * Creates a new transaction factory with the specified tracker and
+     * timer.
+     * 
+     * @param tracker The class that keeps track of transactions.
+     * @param messageFactory The factory for creating SIP messages.
+     * @param t1 The value to use for T1, as specified in RFC 3261 section 
+     * 17.1.1.2 on page 126.  T1 is multiplied by 64 to give the 
+     * timeout for transactions.
+     * @param timer The timer for scheduling transaction timers.
+     */
+    public SipTransactionFactoryImpl(final SipTransactionTracker tracker,
+        final SipMessageFactory messageFactory, final int t1, 
+        final SipTimer timer)
+        {
         this.m_transactionTracker = tracker;
         this.m_messageFactory = messageFactory;
-        this.m_timerBThread = new Timer("SIP-TimerB-Thread", true);
+        this.m_timer = timer;
         this.m_t1 = t1;
         }
     
     public SipClientTransaction createClientTransaction(
         final SipMessage request, final OfferAnswerTransactionListener listener)
         {
+        return createClientTransaction(request, listener, null);
+        }
+    
+    public SipClientTransaction createClientTransaction(
+        final SipMessage request, final OfferAnswerTransactionListener listener,
+        final IoSession io)
+        {
         final List<OfferAnswerTransactionListener> listeners =
             new ArrayList<OfferAnswerTransactionListener>();
         listeners.add(listener);
         final SipClientTransaction ct = 
             new SipClientTransactionImpl(request, listeners, 
-                this.m_messageFactory, this.m_timerBThread, this.m_t1);
+                this.m_messageFactory, this.m_transactionTracker, 
+                this.m_timer, this.m_t1, io);
         this.m_transactionTracker.trackTransaction(ct);
         return ct;
         }
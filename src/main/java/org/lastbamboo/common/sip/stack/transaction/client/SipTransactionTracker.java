@@ -27,4 +27,12 @@ public interface SipTransactionTracker
      */
     SipClientTransaction getClientTransaction(SipMessage message);
 
+    /**
+     * Tells the tracker to stop tracking the specified transaction.  
+     * Transactions call this when they terminate.
+     * 
+     * @param ct The transaction to remove.
+     */
+    void removeTransaction(SipClientTransaction ct);
+
     }
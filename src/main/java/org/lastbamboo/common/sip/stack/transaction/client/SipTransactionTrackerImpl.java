@@ -1,11 +1,9 @@
 package org.lastbamboo.common.sip.stack.transaction.client;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
-import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
-import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,13 +11,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Class for matching requests and responses to their associated transactions.
  */
-public class SipTransactionTrackerImpl implements SipTransactionTracker, 
-    OfferAnswerTransactionListener
+public class SipTransactionTrackerImpl implements SipTransactionTracker
     {
     
     private final Logger m_log = LoggerFactory.getLogger(getClass());
     
-    private final Map<String, SipClientTransaction> m_transactions = 
+    private final ConcurrentMap<String, SipClientTransaction> m_transactions = 
         new ConcurrentHashMap<String, SipClientTransaction>();
 
     public void trackTransaction(final SipClientTransaction ct)
@@ -28,7 +25,6 @@ public class SipTransactionTrackerImpl implements SipTransactionTracker,
         final SipMessage message = ct.getRequest();
         final String key = message.getTransactionKey();//getTransactionKey(message);
         this.m_transactions.put(key, ct);
-        ct.addListener(this);
         }
 
     public SipClientTransaction getClientTransaction(final SipMessage message)
@@ -59,25 +55,15 @@ public class SipTransactionTrackerImpl implements SipTransactionTracker,
         }
         */
 
-    public void onTransactionSucceeded(final OfferAnswerMessage message)
+    public void removeTransaction(final SipClientTransaction ct)
         {
-        removeTransaction(message);
-        }
-
-    public void onTransactionFailed(final OfferAnswerMessage message)
-        {
-        removeTransaction(message);
-        }
-
-    private void removeTransaction(final OfferAnswerMessage message)
-        {
-        // We now consider the transaction completed and remove the 
-        // transaction.
-        final String key = message.getTransactionKey();//getTransactionKey(message);
+        // Transactions remove themselves once they terminate, which for
+        // non-2xx responses over unreliable transports is some time after 
+        // the listeners hear about the response.
+        final String key = ct.getRequest().getTransactionKey();
         
         m_log.debug("Removing transaction with key '" + key + "'");
-        final SipClientTransaction removed = this.m_transactions.remove(key);
-        if (removed == null)
+        if (!this.m_transactions.remove(key, ct))
             {
             m_log.warn("Could not find transaction!!");
             }
@@ -0,0 +1,106 @@
+package org.lastbamboo.common.sip.stack.transaction.server;
+
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.timer.SipTimeout;
+
+/**
+ * A single SIP server transaction.  This holds the request that started 
+ * the transaction and the last response we sent for it.  The tracker 
+ * drives the state changes.
+ */
+public final class SipServerTransaction
+    {
+
+    private final String m_key;
+
+    private final SipMessage m_request;
+
+    private final boolean m_invite;
+
+    // The following are all guarded by this.
+    private SipServerTransactionState m_state;
+
+    private SipResponse m_lastResponse;
+
+    private SipTimeout m_expiry;
+
+    SipServerTransaction(final String key, final SipMessage request, 
+        final boolean invite)
+        {
+        this.m_key = key;
+        this.m_request = request;
+        this.m_invite = invite;
+        if (invite)
+            {
+            this.m_state = SipServerTransactionState.PROCEEDING;
+            }
+        else
+            {
+            this.m_state = SipServerTransactionState.TRYING;
+            }
+        }
+
+    /**
+     * Accessor for the request that started the transaction.
+     * 
+     * @return The request that started the transaction.
+     */
+    public SipMessage getRequest()
+        {
+        return this.m_request;
+        }
+
+    /**
+     * Accessor for the current state of the transaction.
+     * 
+     * @return The current state.
+     */
+    public synchronized SipServerTransactionState getState()
+        {
+        return this.m_state;
+        }
+
+    /**
+     * Accessor for the last response sent for the transaction.
+     * 
+     * @return The last response, or <code>null</code> if we haven't sent one.
+     */
+    public synchronized SipResponse getLastResponse()
+        {
+        return this.m_lastResponse;
+        }
+
+    String getKey()
+        {
+        return this.m_key;
+        }
+
+    boolean isInvite()
+        {
+        return this.m_invite;
+        }
+
+    synchronized void setState(final SipServerTransactionState state)
+        {
+        this.m_state = state;
+        }
+
+    synchronized void setLastResponse(final SipResponse response)
+        {
+        this.m_lastResponse = response;
+        }
+
+    /**
+     * Replaces the timeout for removing the transaction, cancelling any
+     * earlier one.
+     */
+    synchronized void setExpiry(final SipTimeout expiry)
+        {
+        if (this.m_expiry != null)
+            {
+            this.m_expiry.cancel();
+            }
+        this.m_expiry = expiry;
+        }
+    }
@@ -0,0 +1,37 @@
+package org.lastbamboo.common.sip.stack.transaction.server;
+
+/**
+ * The states of a SIP server transaction, following RFC 3261 section 17.2.
+ * INVITE transactions start in {@link #PROCEEDING}, while all other 
+ * transactions start in {@link #TRYING}.
+ */
+public enum SipServerTransactionState
+    {
+
+    /**
+     * A non-INVITE request has arrived and we haven't responded yet.
+     */
+    TRYING,
+
+    /**
+     * We've sent a provisional response, or an INVITE has arrived.
+     */
+    PROCEEDING,
+
+    /**
+     * We've sent a final response and are absorbing retransmissions of the
+     * request.
+     */
+    COMPLETED,
+
+    /**
+     * We've received the ACK for a non-2xx final response to an INVITE.
+     */
+    CONFIRMED,
+
+    /**
+     * The transaction is over and no longer tracked.
+     */
+    TERMINATED,
+    ;
+    }
@@ -0,0 +1,45 @@
+package org.lastbamboo.common.sip.stack.transaction.server;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+
+/**
+ * Interface for classes that keep track of server transactions.  This 
+ * matches incoming requests to existing transactions so that 
+ * retransmissions are answered with the last response we sent instead of 
+ * being processed again.
+ */
+public interface SipServerTransactionTracker
+    {
+
+    /**
+     * Called for each incoming request.  If the request is a retransmission
+     * of a request with an existing transaction, this writes the last 
+     * response for the transaction, if any, to the session.  ACKs for 
+     * non-2xx final responses are also absorbed here.
+     * 
+     * @param request The incoming request.
+     * @param session The session the request arrived on.
+     * @return <code>true</code> if the request is new and should be 
+     * processed, or <code>false</code> if it was absorbed.
+     */
+    boolean onRequest(SipMessage request, IoSession session);
+
+    /**
+     * Called for each response we send, so the matching transaction can 
+     * replay it for retransmitted requests.
+     * 
+     * @param response The response being sent.
+     */
+    void onResponse(SipResponse response);
+
+    /**
+     * Accessor for the server transaction for the specified request or 
+     * response.
+     * 
+     * @param message The request or response.
+     * @return The transaction, or <code>null</code> if there is none.
+     */
+    SipServerTransaction getServerTransaction(SipMessage message);
+    }
@@ -0,0 +1,229 @@
+package org.lastbamboo.common.sip.stack.transaction.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.codec.SipMethod;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of server transactions, keyed by the branch, method and 
+ * sent-by of the top Via as described in RFC 3261 section 17.2.3.<p>
+ *
+ * Transactions stay around for 64*T1 after the final response so we can
+ * absorb retransmitted requests.  RFC 3261 only requires this for 
+ * unreliable transports, but we do it for TCP as well, since clients on 
+ * flaky networks will resend a request with the same branch after 
+ * reconnecting.
+ */
+public class SipServerTransactionTrackerImpl 
+    implements SipServerTransactionTracker
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * How long we wait for the final response to an INVITE before we stop
+     * tracking the transaction.  This is the three minute default INVITE
+     * expiration from RFC 3261 section 13.3.1.
+     */
+    private static final long INVITE_PENDING_MILLIS = 3 * 60 * 1000;
+
+    private static final String ACK = "ACK";
+
+    private final ConcurrentMap<String, SipServerTransaction> m_transactions =
+        new ConcurrentHashMap<String, SipServerTransaction>();
+
+    private final SipTimer m_timer;
+
+    private final long m_lingerMillis;
+
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
+
+    /**
+     * Creates a new server transaction tracker.
+     * 
+     * @param timer The timer for removing old transactions.
+     * @param t1 The value to use for T1, as specified in RFC 3261 section 
+     * 17.1.1.2.  Transactions are kept for 64*T1 after their final response,
+     * and non-INVITE transactions are kept for at most 64*T1 waiting for 
+     * one.
+     */
+    public SipServerTransactionTrackerImpl(final SipTimer timer, final int t1)
+        {
+        this.m_timer = timer;
+        this.m_lingerMillis = 64L * t1;
+        }
+
+    public boolean onRequest(final SipMessage request, final IoSession session)
+        {
+        final String method = 
+            StringUtils.substringBefore(request.getStartLine(), " ");
+        if (ACK.equals(method))
+            {
+            return onAck(request);
+            }
+        final String key = createKey(request, method);
+        if (key == null)
+            {
+            m_log.debug("Not tracking request with no branch");
+            return true;
+            }
+        final boolean invite = request.getMethod() == SipMethod.INVITE;
+        final SipServerTransaction st = 
+            new SipServerTransaction(key, request, invite);
+        final SipServerTransaction existing = 
+            this.m_transactions.putIfAbsent(key, st);
+        if (existing == null)
+            {
+            this.m_metrics.onServerTransactionCreated();
+            expire(st, invite ? INVITE_PENDING_MILLIS : this.m_lingerMillis);
+            return true;
+            }
+        
+        if (m_log.isDebugEnabled())
+            {
+            m_log.debug("Absorbing retransmitted request: " + key);
+            }
+        final SipResponse lastResponse = existing.getLastResponse();
+        if (lastResponse != null && session != null)
+            {
+            session.write(lastResponse);
+            }
+        return false;
+        }
+
+    /**
+     * An ACK for a non-2xx response matches the INVITE transaction, and 
+     * we absorb it.  ACKs for 2xx responses have their own branch, so they 
+     * don't match anything and go to the application.
+     */
+    private boolean onAck(final SipMessage ack)
+        {
+        final String key = createKey(ack, SipMethod.INVITE.name());
+        if (key == null)
+            {
+            return true;
+            }
+        final SipServerTransaction st = this.m_transactions.get(key);
+        if (st == null)
+            {
+            return true;
+            }
+        synchronized (st)
+            {
+            if (st.getState() == SipServerTransactionState.COMPLETED)
+                {
+                st.setState(SipServerTransactionState.CONFIRMED);
+                }
+            }
+        return false;
+        }
+
+    public void onResponse(final SipResponse response)
+        {
+        final SipHeader cseq = response.getHeader(SipHeaderName.CSEQ);
+        if (cseq == null)
+            {
+            return;
+            }
+        final String key = 
+            createKey(response, SipMessageUtils.extractCSeqMethod(cseq));
+        if (key == null)
+            {
+            return;
+            }
+        final SipServerTransaction st = this.m_transactions.get(key);
+        if (st == null)
+            {
+            return;
+            }
+        synchronized (st)
+            {
+            final SipServerTransactionState state = st.getState();
+            if (state != SipServerTransactionState.TRYING &&
+                state != SipServerTransactionState.PROCEEDING)
+                {
+                m_log.debug("Ignoring response in state: {}", state);
+                return;
+                }
+            st.setLastResponse(response);
+            if (response.getStatusCode() < 200)
+                {
+                st.setState(SipServerTransactionState.PROCEEDING);
+                return;
+                }
+            st.setState(SipServerTransactionState.COMPLETED);
+            }
+        expire(st, this.m_lingerMillis);
+        }
+
+    public SipServerTransaction getServerTransaction(final SipMessage message)
+        {
+        final String method;
+        if (message instanceof SipResponse)
+            {
+            final SipHeader cseq = message.getHeader(SipHeaderName.CSEQ);
+            if (cseq == null)
+                {
+                return null;
+                }
+            method = SipMessageUtils.extractCSeqMethod(cseq);
+            }
+        else
+            {
+            method = StringUtils.substringBefore(message.getStartLine(), " ");
+            }
+        final String key = createKey(message, method);
+        if (key == null)
+            {
+            return null;
+            }
+        return this.m_transactions.get(key);
+        }
+
+    private void expire(final SipServerTransaction st, final long delay)
+        {
+        st.setExpiry(this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                st.setState(SipServerTransactionState.TERMINATED);
+                if (m_transactions.remove(st.getKey(), st))
+                    {
+                    m_metrics.onServerTransactionTerminated();
+                    }
+                }
+            }, delay));
+        }
+
+    private static String createKey(final SipMessage message, 
+        final String method)
+        {
+        final SipHeader via = message.getHeader(SipHeaderName.VIA);
+        if (via == null)
+            {
+            return null;
+            }
+        final SipHeaderValue topVia = via.getValue();
+        final String branch = topVia.getParamValue("branch");
+        if (StringUtils.isBlank(branch))
+            {
+            return null;
+            }
+        final String sentBy = 
+            StringUtils.substringAfterLast(topVia.getBaseValue().trim(), " ");
+        return branch + "|" + method + "|" + sentBy;
+        }
+    }
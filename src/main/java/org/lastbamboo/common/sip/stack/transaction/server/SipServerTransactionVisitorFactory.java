@@ -0,0 +1,115 @@
+package org.lastbamboo.common.sip.stack.transaction.server;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.RequestTimeoutResponse;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
+import org.lastbamboo.common.sip.stack.message.SipMessageVisitorFactory;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+
+/**
+ * Visitor factory that runs incoming requests through the server 
+ * transactions before handing them to the visitors from another factory.
+ * Retransmitted requests are answered from the transaction and never reach
+ * the wrapped visitor.
+ */
+public class SipServerTransactionVisitorFactory 
+    implements SipMessageVisitorFactory
+    {
+
+    private final SipMessageVisitorFactory m_delegate;
+    private final SipServerTransactionTracker m_tracker;
+
+    /**
+     * Creates a new factory.
+     * 
+     * @param delegate The factory for the visitors that process new 
+     * requests.
+     * @param tracker The tracker for server transactions.
+     */
+    public SipServerTransactionVisitorFactory(
+        final SipMessageVisitorFactory delegate, 
+        final SipServerTransactionTracker tracker)
+        {
+        this.m_delegate = delegate;
+        this.m_tracker = tracker;
+        }
+
+    public SipMessageVisitor createVisitor(final IoSession session)
+        {
+        return new ServerTransactionVisitor(session);
+        }
+
+    private final class ServerTransactionVisitor implements SipMessageVisitor
+        {
+
+        private final IoSession m_session;
+
+        /**
+         * The wrapped visitor, created the first time a message gets through.
+         */
+        private SipMessageVisitor m_visitor;
+
+        private ServerTransactionVisitor(final IoSession session)
+            {
+            this.m_session = session;
+            }
+
+        private SipMessageVisitor visitor()
+            {
+            if (this.m_visitor == null)
+                {
+                this.m_visitor = m_delegate.createVisitor(this.m_session);
+                }
+            return this.m_visitor;
+            }
+
+        private boolean isNew(final SipMessage request)
+            {
+            return m_tracker.onRequest(request, this.m_session);
+            }
+
+        public void visitInvite(final Invite invite)
+            {
+            if (isNew(invite))
+                {
+                visitor().visitInvite(invite);
+                }
+            }
+
+        public void visitRegister(final Register register)
+            {
+            if (isNew(register))
+                {
+                visitor().visitRegister(register);
+                }
+            }
+
+        public void visitUnknownRequest(final UnknownSipRequest request)
+            {
+            if (isNew(request))
+                {
+                visitor().visitUnknownRequest(request);
+                }
+            }
+
+        public void visitDoubleCrlfKeepAlive(final DoubleCrlfKeepAlive keepAlive)
+            {
+            visitor().visitDoubleCrlfKeepAlive(keepAlive);
+            }
+
+        public void visitRequestTimedOut(final RequestTimeoutResponse response)
+            {
+            visitor().visitRequestTimedOut(response);
+            }
+
+        public void visitResponse(final SipResponse response)
+            {
+            visitor().visitResponse(response);
+            }
+        }
+    }
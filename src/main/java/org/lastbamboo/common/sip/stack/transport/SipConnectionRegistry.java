@@ -0,0 +1,146 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connections keyed by the remote address of each session.  Lookups for a
+ * set of candidate addresses probe each candidate in turn, so routing a 
+ * request costs the same however many clients are connected, and nothing
+ * here takes a lock that other callers wait on.<p>
+ *
+ * Entries remove themselves when their session closes.  Lookups also skip
+ * and remove any session that's closing, in case we get to it before the
+ * close notification does.  Removal only ever removes the session that 
+ * was registered, so a client that reconnects from the same address isn't
+ * dropped when its old session finishes closing.
+ */
+public class SipConnectionRegistry
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<InetSocketAddress, IoSession> m_sessions =
+        new ConcurrentHashMap<InetSocketAddress, IoSession>();
+
+    private final IoFutureListener m_closeListener = new IoFutureListener()
+        {
+        public void operationComplete(final IoFuture future)
+            {
+            remove(future.getSession());
+            }
+        };
+
+    /**
+     * Adds a connection, replacing any existing connection from the same
+     * address.
+     * 
+     * @param session The session for the connection.
+     */
+    public void add(final IoSession session)
+        {
+        final InetSocketAddress address = 
+            (InetSocketAddress) session.getRemoteAddress();
+        this.m_sessions.put(address, session);
+        final CloseFuture closeFuture = session.getCloseFuture();
+        if (closeFuture != null)
+            {
+            // This is called right away if the session's already closed.
+            closeFuture.addListener(this.m_closeListener);
+            }
+        }
+
+    /**
+     * Removes a connection.  This does nothing if another session has 
+     * since been added for the same address.
+     * 
+     * @param session The session for the connection.
+     * @return <code>true</code> if the session was removed, otherwise 
+     * <code>false</code>.
+     */
+    public boolean remove(final IoSession session)
+        {
+        final InetSocketAddress address = 
+            (InetSocketAddress) session.getRemoteAddress();
+        if (address == null)
+            {
+            return false;
+            }
+        return this.m_sessions.remove(address, session);
+        }
+
+    /**
+     * Accessor for the open connection from the specified address.
+     * 
+     * @param address The remote address.
+     * @return The session, or <code>null</code> if there's no open 
+     * connection from the address.
+     */
+    public IoSession get(final InetSocketAddress address)
+        {
+        final IoSession session = this.m_sessions.get(address);
+        if (session == null)
+            {
+            return null;
+            }
+        if (session.isClosing())
+            {
+            m_log.debug("Removing closing session for: {}", address);
+            this.m_sessions.remove(address, session);
+            return null;
+            }
+        return session;
+        }
+
+    /**
+     * Finds an open connection from any of the specified addresses, 
+     * checking them in order.
+     * 
+     * @param addresses The candidate addresses.
+     * @return The session for the first address with an open connection, 
+     * or <code>null</code> if none of them has one.
+     */
+    public IoSession getAny(final Collection<InetSocketAddress> addresses)
+        {
+        for (final InetSocketAddress address : addresses)
+            {
+            final IoSession session = get(address);
+            if (session != null)
+                {
+                return session;
+                }
+            }
+        return null;
+        }
+
+    /**
+     * Accessor for the number of connections.
+     * 
+     * @return The number of connections.
+     */
+    public int size()
+        {
+        return this.m_sessions.size();
+        }
+
+    /**
+     * Accessor for the addresses we have connections from.  This is a live
+     * view, mostly useful for debugging.
+     * 
+     * @return The addresses.
+     */
+    public Set<InetSocketAddress> getAddresses()
+        {
+        return this.m_sessions.keySet();
+        }
+    }
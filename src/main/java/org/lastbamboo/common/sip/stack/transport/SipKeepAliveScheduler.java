@@ -0,0 +1,265 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.IdleSipSessionEvictionListener;
+import org.lastbamboo.common.sip.stack.IdleSipSessionListener;
+import org.lastbamboo.common.sip.stack.SipSessionEvictionReason;
+import org.lastbamboo.common.sip.stack.timer.SipTimeout;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends double CRLF keep-alives on every registered flow and closes flows
+ * that stop answering, as described in RFC 5626 section 4.4.1.  Each flow
+ * pings at a random time between 80% and 100% of the keep-alive interval,
+ * so pings from flows registered together don't all go out at once.  Flows
+ * that have read anything within that time are left alone, since traffic
+ * from the other side already tells us the flow is alive.<p>
+ *
+ * After each ping we expect the single CRLF pong within the pong timeout.
+ * The decoders discard pongs without passing them on, so rather than 
+ * watching for decoded pongs we check whether the session has read 
+ * anything at all since the ping.  Any traffic counts.<p>
+ *
+ * Each flow only ever has one timeout on the timer.  Flows whose session 
+ * has closed drop out on their next timeout.
+ */
+public class SipKeepAliveScheduler
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default keep-alive interval from RFC 5626 section 4.4.1, in 
+     * milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 120 * 1000;
+
+    /**
+     * The default time to wait for a pong, in milliseconds.  This is the 
+     * 10 seconds RFC 5626 section 4.4.1 suggests.
+     */
+    public static final long DEFAULT_PONG_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final ConcurrentMap<IoSession, Flow> m_flows =
+        new ConcurrentHashMap<IoSession, Flow>();
+
+    private final SipTcpTransportLayer m_transport;
+
+    private final SipTimer m_timer;
+
+    private final long m_intervalMillis;
+
+    private final long m_pongTimeoutMillis;
+
+    private final IdleSipSessionListener m_deadFlowListener;
+
+    private final Random m_random = new Random();
+
+    /**
+     * Creates a new keep-alive scheduler with the default interval and pong
+     * timeout.
+     * 
+     * @param transport The transport for writing keep-alives.
+     * @param timer The timer for scheduling keep-alives.
+     */
+    public SipKeepAliveScheduler(final SipTcpTransportLayer transport, 
+        final SipTimer timer)
+        {
+        this(transport, timer, DEFAULT_INTERVAL_MILLIS, 
+            DEFAULT_PONG_TIMEOUT_MILLIS, null);
+        }
+
+    /**
+     * Creates a new keep-alive scheduler.
+     * 
+     * @param transport The transport for writing keep-alives.
+     * @param timer The timer for scheduling keep-alives.
+     * @param intervalMillis The longest a flow goes without a keep-alive 
+     * or other traffic, in milliseconds.
+     * @param pongTimeoutMillis How long we wait for a pong before we close
+     * the flow, in milliseconds.  This must be less than the interval.
+     * @param deadFlowListener Listener notified when we close a flow that
+     * stopped answering, or <code>null</code> if there isn't one.  An
+     * {@link IdleSipSessionEvictionListener} is also told the session.
+     */
+    public SipKeepAliveScheduler(final SipTcpTransportLayer transport, 
+        final SipTimer timer, final long intervalMillis, 
+        final long pongTimeoutMillis, 
+        final IdleSipSessionListener deadFlowListener)
+        {
+        if (pongTimeoutMillis <= 0 || pongTimeoutMillis >= intervalMillis)
+            {
+            throw new IllegalArgumentException("Bad pong timeout " + 
+                pongTimeoutMillis + " for interval " + intervalMillis);
+            }
+        this.m_transport = transport;
+        this.m_timer = timer;
+        this.m_intervalMillis = intervalMillis;
+        this.m_pongTimeoutMillis = pongTimeoutMillis;
+        this.m_deadFlowListener = deadFlowListener;
+        }
+
+    /**
+     * Starts sending keep-alives on the specified flow.
+     * 
+     * @param session The session for the flow.
+     */
+    public void add(final IoSession session)
+        {
+        final Flow flow = new Flow(session);
+        if (this.m_flows.putIfAbsent(session, flow) != null)
+            {
+            return;
+            }
+        flow.schedule(nextInterval());
+        }
+
+    /**
+     * Stops sending keep-alives on the specified flow.
+     * 
+     * @param session The session for the flow.
+     */
+    public void remove(final IoSession session)
+        {
+        final Flow flow = this.m_flows.remove(session);
+        if (flow != null)
+            {
+            flow.cancel();
+            }
+        }
+
+    /**
+     * Accessor for the number of flows we're sending keep-alives on.
+     * 
+     * @return The number of flows.
+     */
+    public int size()
+        {
+        return this.m_flows.size();
+        }
+
+    /**
+     * Returns a random keep-alive interval between 80% and 100% of the 
+     * configured interval.
+     */
+    private long nextInterval()
+        {
+        final long min = this.m_intervalMillis * 4 / 5;
+        final long jitter = this.m_intervalMillis - min;
+        final double random;
+        synchronized (this.m_random)
+            {
+            random = this.m_random.nextDouble();
+            }
+        return min + (long) (random * jitter);
+        }
+
+    /**
+     * The keep-alive state of a single flow.  A flow has at most one 
+     * timeout pending, so runs never overlap and the fields only they use
+     * don't need to be volatile.
+     */
+    private final class Flow implements Runnable
+        {
+
+        private final IoSession m_session;
+
+        private volatile SipTimeout m_timeout;
+
+        private volatile boolean m_cancelled;
+
+        /**
+         * When we sent the ping we're waiting for a pong to, or 0 if we're
+         * not waiting for one.
+         */
+        private long m_pingTime;
+
+        private Flow(final IoSession session)
+            {
+            this.m_session = session;
+            }
+
+        public void run()
+            {
+            if (this.m_cancelled)
+                {
+                return;
+                }
+            if (this.m_session.isClosing())
+                {
+                m_flows.remove(this.m_session, this);
+                return;
+                }
+            final long now = System.currentTimeMillis();
+            final long lastRead = this.m_session.getLastReadTime();
+            if (this.m_pingTime != 0)
+                {
+                checkPong(now, lastRead);
+                }
+            else
+                {
+                ping(now, lastRead);
+                }
+            }
+
+        private void ping(final long now, final long lastRead)
+            {
+            final long interval = nextInterval();
+            final long sinceRead = now - lastRead;
+            if (sinceRead < interval)
+                {
+                // We've heard from the other side recently enough.
+                schedule(interval - sinceRead);
+                return;
+                }
+            this.m_pingTime = now;
+            m_transport.writeCrlfKeepAlive(this.m_session);
+            schedule(m_pongTimeoutMillis);
+            }
+
+        private void checkPong(final long now, final long lastRead)
+            {
+            final long pingTime = this.m_pingTime;
+            this.m_pingTime = 0;
+            if (lastRead >= pingTime)
+                {
+                schedule(Math.max(0, nextInterval() - (now - pingTime)));
+                return;
+                }
+            m_log.debug("No pong from flow, closing: {}", this.m_session);
+            m_flows.remove(this.m_session, this);
+            this.m_session.close();
+            if (m_deadFlowListener instanceof IdleSipSessionEvictionListener)
+                {
+                ((IdleSipSessionEvictionListener) m_deadFlowListener).
+                    onIdleSession(this.m_session, 
+                        SipSessionEvictionReason.KEEP_ALIVE_TIMEOUT);
+                }
+            else if (m_deadFlowListener != null)
+                {
+                m_deadFlowListener.onIdleSession();
+                }
+            }
+
+        private void schedule(final long delay)
+            {
+            this.m_timeout = m_timer.schedule(this, delay);
+            }
+
+        private void cancel()
+            {
+            this.m_cancelled = true;
+            final SipTimeout timeout = this.m_timeout;
+            if (timeout != null)
+                {
+                timeout.cancel();
+                }
+            }
+        }
+    }
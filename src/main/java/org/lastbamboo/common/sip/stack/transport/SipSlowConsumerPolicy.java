@@ -0,0 +1,27 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+/**
+ * What to do with a message for a session whose write queue is full.
+ * Keep-alives for a backed up session are always dropped, since the flow
+ * is plainly carrying traffic already.
+ */
+public enum SipSlowConsumerPolicy
+    {
+
+    /**
+     * Only drop keep-alives, and keep writing everything else.
+     */
+    DROP_KEEP_ALIVES,
+
+    /**
+     * Don't write new messages.  Requests fail their client transactions
+     * with a 408 right away.
+     */
+    REJECT,
+
+    /**
+     * Close the session.  Requests fail their client transactions with a
+     * 408 right away.
+     */
+    CLOSE,
+    }
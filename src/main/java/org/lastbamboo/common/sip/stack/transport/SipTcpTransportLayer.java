@@ -3,6 +3,8 @@ package org.lastbamboo.common.sip.stack.transport;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.mina.common.WriteFuture;
@@ -11,6 +13,7 @@ import org.lastbamboo.common.sip.stack.message.Invite;
 import org.lastbamboo.common.sip.stack.message.Register;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
 import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransaction;
+import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransactionFuture;
 
 /**
  * Interface for calls to the TCP transport layer, as specified in section
@@ -55,6 +58,106 @@ public interface SipTcpTransportLayer
     SipClientTransaction invite(Invite message, 
         IoSession io, OfferAnswerTransactionListener listener);
 
+    /**
+     * Writes a REGISTER request in a new client transaction, returning a 
+     * future for the final response rather than taking a listener.  If 
+     * the transaction times out, the future completes with a 408.
+     * 
+     * @param message The REGISTER request.
+     * @param io The connection to write the request to.
+     * @return The future for the final response.  This fails if we 
+     * couldn't send the request, and cancelling it abandons the 
+     * transaction.
+     */
+    SipClientTransactionFuture registerAsync(Register message, IoSession io);
+
+    /**
+     * Writes an INVITE request in a new client transaction, returning a 
+     * future for the final response rather than taking a listener.  If 
+     * the transaction times out, the future completes with a 408.
+     * 
+     * @param message The INVITE request.
+     * @param io The connection to write the request to.
+     * @return The future for the final response.  This fails if we 
+     * couldn't send the request, and cancelling it abandons the 
+     * transaction.
+     */
+    SipClientTransactionFuture inviteAsync(Invite message, IoSession io);
+
+    /**
+     * Writes a REGISTER request in a new client transaction and waits for 
+     * the final response.  This always returns eventually, since timer F
+     * ends the transaction after 64*T1 even if the response never comes.
+     * 
+     * @param message The REGISTER request.
+     * @param io The connection to write the request to.
+     * @return The final response, which is a 408 if the transaction timed
+     * out.
+     * @throws IOException If we couldn't send the request.
+     * @throws InterruptedException If we're interrupted while waiting, in
+     * which case the transaction is abandoned.
+     */
+    SipResponse registerAndWait(Register message, IoSession io) 
+        throws IOException, InterruptedException;
+
+    /**
+     * Writes a REGISTER request in a new client transaction and waits at 
+     * most the specified time for the final response.
+     * 
+     * @param message The REGISTER request.
+     * @param io The connection to write the request to.
+     * @param timeout The longest to wait.
+     * @param unit The unit of the timeout.
+     * @return The final response, which is a 408 if the transaction timed
+     * out.
+     * @throws IOException If we couldn't send the request.
+     * @throws InterruptedException If we're interrupted while waiting, in
+     * which case the transaction is abandoned.
+     * @throws TimeoutException If there's no final response in time, in 
+     * which case the transaction is abandoned.
+     */
+    SipResponse registerAndWait(Register message, IoSession io, 
+        long timeout, TimeUnit unit) 
+        throws IOException, InterruptedException, TimeoutException;
+
+    /**
+     * Writes an INVITE request in a new client transaction and waits for 
+     * the final response.  This always returns eventually, since timer B
+     * ends the transaction if nothing comes back, and timer C ends it if a
+     * provisional response comes but a final one doesn't.  Timer C is over
+     * three minutes, though, so most callers should give a timeout.
+     * 
+     * @param message The INVITE request.
+     * @param io The connection to write the request to.
+     * @return The final response, which is a 408 if the transaction timed
+     * out.
+     * @throws IOException If we couldn't send the request.
+     * @throws InterruptedException If we're interrupted while waiting, in
+     * which case the transaction is abandoned.
+     */
+    SipResponse inviteAndWait(Invite message, IoSession io) 
+        throws IOException, InterruptedException;
+
+    /**
+     * Writes an INVITE request in a new client transaction and waits at 
+     * most the specified time for the final response.
+     * 
+     * @param message The INVITE request.
+     * @param io The connection to write the request to.
+     * @param timeout The longest to wait.
+     * @param unit The unit of the timeout.
+     * @return The final response, which is a 408 if the transaction timed
+     * out.
+     * @throws IOException If we couldn't send the request.
+     * @throws InterruptedException If we're interrupted while waiting, in
+     * which case the transaction is abandoned.
+     * @throws TimeoutException If there's no final response in time, in 
+     * which case the transaction is abandoned.
+     */
+    SipResponse inviteAndWait(Invite message, IoSession io, long timeout,
+        TimeUnit unit) 
+        throws IOException, InterruptedException, TimeoutException;
+
     /**
      * Writes the specified request without creating a transaction.
      * 
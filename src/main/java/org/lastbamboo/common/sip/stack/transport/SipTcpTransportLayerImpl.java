@@ -1,24 +1,24 @@
 package org.lastbamboo.common.sip.stack.transport;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IoFuture;
 import org.littleshoot.mina.common.IoFutureListener;
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.mina.common.support.DefaultWriteFuture;
 import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
 import org.lastbamboo.common.sip.stack.message.Invite;
 import org.lastbamboo.common.sip.stack.message.Register;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
@@ -27,8 +27,11 @@ import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
 import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransaction;
+import org.lastbamboo.common.sip.stack.transaction.client.SipClientTransactionFuture;
 import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactory;
+import org.lastbamboo.common.sip.stack.transaction.server.SipServerTransactionTracker;
 import org.littleshoot.util.NetworkUtils;
 
 /**
@@ -40,14 +43,15 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
 
     private final Logger LOG = LoggerFactory.getLogger(getClass());
     
-    /**
-     * Map of InetSocketAddresses to IoSessions.
-     */
-    private final Map<InetSocketAddress, IoSession> m_socketAddressesToIo = 
-        new ConcurrentHashMap<InetSocketAddress, IoSession>();
+    private final SipConnectionRegistry m_connections = 
+        new SipConnectionRegistry();
     private final SipHeaderFactory m_headerFactory;
     private final SipTransactionFactory m_transactionFactory;
     private final SipMessageFactory m_messageFactory;
+    private final SipServerTransactionTracker m_serverTransactions;
+    private final SipWriteCoalescer m_coalescer;
+    private final SipWriteLimiter m_limiter;
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
     
     /**
      * Constructs an instance of the TCP transport layer.
@@ -62,9 +66,85 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
         final SipHeaderFactory headerFactory, 
         final SipMessageFactory messageFactory)
         {
+        this(transactionFactory, headerFactory, messageFactory, null);
+        }
+    
+    /**
+     * Constructs an instance of the TCP transport layer that records the
+     * responses it writes with the specified server transactions, so
+     * retransmitted requests can be answered with the last response.
+     * 
+     * @param transactionFactory The factory for creating transactions.
+     * @param headerFactory The factory for creating any headers necessary
+     * before writing messages, such as the Via header.
+     * @param messageFactory The factory for creating SIP messages.
+     * @param serverTransactions The tracker for server transactions, or
+     * <code>null</code> to not track them.
+     */
+    public SipTcpTransportLayerImpl(
+        final SipTransactionFactory transactionFactory,
+        final SipHeaderFactory headerFactory, 
+        final SipMessageFactory messageFactory,
+        final SipServerTransactionTracker serverTransactions)
+        {
+        this(transactionFactory, headerFactory, messageFactory, 
+            serverTransactions, null);
+        }
+    
+    /**
+     * Constructs an instance of the TCP transport layer that optionally 
+     * coalesces the messages written to each connection, for connections
+     * carrying many messages a second.
+     * 
+     * @param transactionFactory The factory for creating transactions.
+     * @param headerFactory The factory for creating any headers necessary
+     * before writing messages, such as the Via header.
+     * @param messageFactory The factory for creating SIP messages.
+     * @param serverTransactions The tracker for server transactions, or
+     * <code>null</code> to not track them.
+     * @param coalescer The coalescer for batching writes, or 
+     * <code>null</code> to write each message as soon as it's sent.
+     */
+    public SipTcpTransportLayerImpl(
+        final SipTransactionFactory transactionFactory,
+        final SipHeaderFactory headerFactory, 
+        final SipMessageFactory messageFactory,
+        final SipServerTransactionTracker serverTransactions,
+        final SipWriteCoalescer coalescer)
+        {
+        this(transactionFactory, headerFactory, messageFactory, 
+            serverTransactions, coalescer, null);
+        }
+    
+    /**
+     * Constructs an instance of the TCP transport layer that optionally
+     * limits how much can wait to be written to each connection, so peers
+     * that stop reading can't make us buffer without bound.
+     * 
+     * @param transactionFactory The factory for creating transactions.
+     * @param headerFactory The factory for creating any headers necessary
+     * before writing messages, such as the Via header.
+     * @param messageFactory The factory for creating SIP messages.
+     * @param serverTransactions The tracker for server transactions, or
+     * <code>null</code> to not track them.
+     * @param coalescer The coalescer for batching writes, or 
+     * <code>null</code> to write each message as soon as it's sent.
+     * @param limiter The limiter for each connection's write queue, or
+     * <code>null</code> to not limit them.
+     */
+    public SipTcpTransportLayerImpl(
+        final SipTransactionFactory transactionFactory,
+        final SipHeaderFactory headerFactory, 
+        final SipMessageFactory messageFactory,
+        final SipServerTransactionTracker serverTransactions,
+        final SipWriteCoalescer coalescer, final SipWriteLimiter limiter)
+        {
         this.m_transactionFactory = transactionFactory;
         this.m_headerFactory = headerFactory;
         this.m_messageFactory = messageFactory;
+        this.m_serverTransactions = serverTransactions;
+        this.m_coalescer = coalescer;
+        this.m_limiter = limiter;
         }
     
     public void addConnection(final IoSession io)
@@ -76,7 +156,7 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
             {
             LOG.debug("Adding connection for socket address: "+remoteAddress);
             }
-        this.m_socketAddressesToIo.put(remoteAddress, io);
+        this.m_connections.add(io);
         }
     
     public void removeConnection(final IoSession io)
@@ -88,7 +168,7 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
             {
             LOG.debug("Removing connection for socket address: "+remoteAddress);
             }
-        this.m_socketAddressesToIo.remove(remoteAddress);
+        this.m_connections.remove(io);
         }
     
     public SipClientTransaction invite(final Invite request, 
@@ -98,25 +178,15 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
             {
             LOG.debug("Writing request to: "+io);
             }
-        final SipMessage viaAdded;
         try
             {
-            viaAdded = addVia(request);
+            return send(addVia(request), io, transactionListener);
             }
         catch (final UnknownHostException e)
             {
             LOG.error("Could not get local host", e);
             return null;
             }
-        // We need to create the transaction after adding the Via header
-        // because the branch ID in the Via is used in the key for the
-        // transaction.
-        final SipClientTransaction clientTransaction = 
-            this.m_transactionFactory.createClientTransaction(viaAdded, 
-                transactionListener);
-        
-        write(viaAdded, io, true);
-        return clientTransaction;
         }
     
     public SipClientTransaction register(final Register request, 
@@ -126,24 +196,151 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
             {
             LOG.debug("Writing request to: "+io);
             }
-        final SipMessage viaAdded;
         try
             {
-            viaAdded = addVia(request);
+            return send(addVia(request), io, transactionListener);
             }
         catch (final UnknownHostException e)
             {
             LOG.error("Could not get local host", e);
             return null;
             }
+        }
+    
+    public SipClientTransactionFuture inviteAsync(final Invite request, 
+        final IoSession io)
+        {
+        final SipClientTransactionFuture future = 
+            new SipClientTransactionFuture();
+        try
+            {
+            future.setTransaction(send(addVia(request), io, future));
+            }
+        catch (final UnknownHostException e)
+            {
+            LOG.error("Could not get local host", e);
+            future.setFailure(e);
+            }
+        return future;
+        }
+    
+    public SipClientTransactionFuture registerAsync(final Register request, 
+        final IoSession io)
+        {
+        final SipClientTransactionFuture future = 
+            new SipClientTransactionFuture();
+        try
+            {
+            future.setTransaction(send(addVia(request), io, future));
+            }
+        catch (final UnknownHostException e)
+            {
+            LOG.error("Could not get local host", e);
+            future.setFailure(e);
+            }
+        return future;
+        }
+    
+    public SipResponse inviteAndWait(final Invite request, final IoSession io)
+        throws IOException, InterruptedException
+        {
+        return await(inviteAsync(request, io));
+        }
+    
+    public SipResponse inviteAndWait(final Invite request, final IoSession io,
+        final long timeout, final TimeUnit unit) 
+        throws IOException, InterruptedException, TimeoutException
+        {
+        return await(inviteAsync(request, io), timeout, unit);
+        }
+    
+    public SipResponse registerAndWait(final Register request, 
+        final IoSession io) throws IOException, InterruptedException
+        {
+        return await(registerAsync(request, io));
+        }
+    
+    public SipResponse registerAndWait(final Register request, 
+        final IoSession io, final long timeout, final TimeUnit unit) 
+        throws IOException, InterruptedException, TimeoutException
+        {
+        return await(registerAsync(request, io), timeout, unit);
+        }
+    
+    private static SipResponse await(final SipClientTransactionFuture future)
+        throws IOException, InterruptedException
+        {
+        try
+            {
+            return future.get();
+            }
+        catch (final InterruptedException e)
+            {
+            future.cancel(false);
+            throw e;
+            }
+        catch (final ExecutionException e)
+            {
+            throw toIOException(e);
+            }
+        }
+    
+    private static SipResponse await(final SipClientTransactionFuture future,
+        final long timeout, final TimeUnit unit)
+        throws IOException, InterruptedException, TimeoutException
+        {
+        try
+            {
+            return future.get(timeout, unit);
+            }
+        catch (final InterruptedException e)
+            {
+            future.cancel(false);
+            throw e;
+            }
+        catch (final TimeoutException e)
+            {
+            if (future.cancel(false))
+                {
+                throw e;
+                }
+            // The response came in just as we gave up on it.
+            return await(future);
+            }
+        catch (final ExecutionException e)
+            {
+            throw toIOException(e);
+            }
+        }
+    
+    private static IOException toIOException(final ExecutionException e)
+        {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException)
+            {
+            return (IOException) cause;
+            }
+        final IOException ioe = new IOException("Could not send request");
+        ioe.initCause(cause);
+        return ioe;
+        }
+    
+    /**
+     * Starts a client transaction for a request with our Via added and 
+     * writes the request.
+     */
+    private SipClientTransaction send(final SipMessage viaAdded, 
+        final IoSession io, 
+        final OfferAnswerTransactionListener transactionListener)
+        {
         // We need to create the transaction after adding the Via header
         // because the branch ID in the Via is used in the key for the
         // transaction.
         final SipClientTransaction clientTransaction = 
             this.m_transactionFactory.createClientTransaction(viaAdded, 
-                transactionListener);
+                transactionListener, io);
         
-        write(viaAdded, io, true);
+        writeClientRequest(viaAdded, io, clientTransaction);
         return clientTransaction;
         }
 
@@ -157,7 +354,10 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
         try
             {
             final SipMessage viaAdded = addVia(request);
-            write(viaAdded, io);
+            if (isAccepted(io))
+                {
+                write(viaAdded, io);
+                }
             }
         catch (final UnknownHostException e)
             {
@@ -184,7 +384,7 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
     public boolean writeResponse(final InetSocketAddress socketAddress, 
         final SipResponse response)
         {
-        final IoSession io = this.m_socketAddressesToIo.get(socketAddress);
+        final IoSession io = this.m_connections.get(socketAddress);
         
         if (io == null)
             {
@@ -193,20 +393,86 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
             return false;
             }
         
+        if (!isAccepted(io))
+            {
+            return false;
+            }
         write(response, io);
+
+        // Only responses we actually sent are replayed for 
+        // retransmissions.
+        if (this.m_serverTransactions != null)
+            {
+            this.m_serverTransactions.onResponse(response);
+            }
         return true;
         }
     
-    private void write(final SipMessage message, final IoSession io)
+    /**
+     * Writes a request for a client transaction.  If the connection is 
+     * backed up and we're not writing to it, the transaction fails right
+     * away with a 408 just as if it had timed out, so its listener hears 
+     * about it without waiting for timer B or F.
+     */
+    private void writeClientRequest(final SipMessage request, final IoSession io,
+        final SipClientTransaction clientTransaction)
         {
-        write(message, io, true);
+        if (isAccepted(io))
+            {
+            write(request, io);
+            return;
+            }
+        final SipResponse timeout = 
+            this.m_messageFactory.createRequestTimeoutResponse(request);
+        timeout.accept(clientTransaction);
         }
     
-    private void write(final SipMessage message, final IoSession io, 
-        final boolean listen)
+    /**
+     * Applies the slow consumer policy to a message for the specified 
+     * connection.
+     * 
+     * @param io The connection.
+     * @return <code>true</code> if we should write the message, otherwise
+     * <code>false</code>.
+     */
+    private boolean isAccepted(final IoSession io)
         {
+        if (this.m_limiter == null || !this.m_limiter.isBackedUp(io))
+            {
+            return true;
+            }
+        switch (this.m_limiter.getPolicy())
+            {
+            case REJECT:
+                LOG.debug("Not writing to backed up session: {}", io);
+                this.m_metrics.onWriteRejected();
+                return false;
+            case CLOSE:
+                LOG.warn("Closing backed up session: {}", io);
+                this.m_metrics.onSlowConsumerClosed();
+                io.close();
+                return false;
+            case DROP_KEEP_ALIVES:
+            default:
+                return true;
+            }
+        }
+    
+    private void write(final SipMessage message, final IoSession io)
+        {
+        if (this.m_limiter != null)
+            {
+            this.m_limiter.onWritten(io);
+            }
+        if (this.m_coalescer != null)
+            {
+            this.m_coalescer.write(io, message);
+            return;
+            }
         final WriteFuture wf = io.write(message);
-        if (listen)
+        
+        // The listener only logs, so don't bother with it otherwise.
+        if (LOG.isDebugEnabled())
             {
             wf.addListener(this);
             }
@@ -218,19 +484,20 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
             {
             LOG.debug("Writing double CRLF");
             }
-        final String doubleCrlf = "\r\n\r\n";
-        final ByteBuffer buf;
-        try
+        
+        // There's no point telling a peer that's behind on reading that
+        // we're still here, whatever the policy.
+        if (this.m_limiter != null && this.m_limiter.isBackedUp(io))
             {
-            buf = ByteBuffer.wrap(doubleCrlf.getBytes("US-ASCII"));
+            LOG.debug("Dropping keep-alive for backed up session: {}", io);
+            this.m_metrics.onKeepAliveDropped();
+            return DefaultWriteFuture.newNotWrittenFuture(io);
             }
-        catch (final UnsupportedEncodingException e)
+        if (this.m_limiter != null)
             {
-            LOG.error("Bad encoding??", e);
-            return null;
+            this.m_limiter.onWritten(io);
             }
-
-        return io.write(buf);
+        return io.write(DoubleCrlfKeepAlive.getSharedWireForm());
         }
 
     public void writeResponse(final SipResponse response) throws IOException
@@ -243,43 +510,24 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
     public boolean hasConnectionForAny(
         final Collection<InetSocketAddress> socketAddresses)
         {
-        synchronized (this.m_socketAddressesToIo)
-            {
-            final Collection<InetSocketAddress> existingAddresses = 
-                this.m_socketAddressesToIo.keySet();
-            return CollectionUtils.containsAny(existingAddresses, 
-                socketAddresses);
-            }
+        return this.m_connections.getAny(socketAddresses) != null;
         }
 
     public void writeRequest(
         final Collection<InetSocketAddress> socketAddresses, 
         final Invite request)
         {
-        synchronized (this.m_socketAddressesToIo)
-            {
-            final Collection<InetSocketAddress> existingAddresses = 
-                this.m_socketAddressesToIo.keySet();
-            final Collection<InetSocketAddress> intersection = 
-                CollectionUtils.intersection(existingAddresses, 
-                    socketAddresses);
-            if (LOG.isDebugEnabled())
-                {
-                LOG.debug("Found "+intersection.size()+
-                    " matching connections...");
-                }
-            for (final InetSocketAddress socketAddress : intersection)
-                {
-                final IoSession io = 
-                    this.m_socketAddressesToIo.get(socketAddress);
-                writeRequestStatelessly(request, io);
-                
-                if (LOG.isDebugEnabled())
-                    {
-                    LOG.debug("Sent request to: "+io);
-                    }
-                return;
-                }
+        final IoSession io = this.m_connections.getAny(socketAddresses);
+        if (io == null)
+            {
+            LOG.debug("No matching connections...");
+            return;
+            }
+        writeRequestStatelessly(request, io);
+        
+        if (LOG.isDebugEnabled())
+            {
+            LOG.debug("Sent request to: "+io);
             }
         }
 
@@ -297,13 +545,12 @@ public final class SipTcpTransportLayerImpl implements SipTcpTransportLayer,
         {
         LOG.warn("No connection for socket address: "+socketAddress);
         LOG.warn("hashCode(): "+socketAddress.hashCode());
-        if (this.m_socketAddressesToIo.size() < 10)
+        if (this.m_connections.size() < 10)
             {
-            LOG.warn("Existing connections: "+
-                this.m_socketAddressesToIo);
-            final StringBuilder sb = new StringBuilder();
             final Set<InetSocketAddress> keys = 
-                this.m_socketAddressesToIo.keySet();
+                this.m_connections.getAddresses();
+            LOG.warn("Existing connections: "+keys);
+            final StringBuilder sb = new StringBuilder();
             for (final InetSocketAddress sa: keys)
                 {
                 sb.append(sa.toString());
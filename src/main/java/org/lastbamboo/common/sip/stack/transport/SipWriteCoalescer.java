@@ -0,0 +1,170 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageBatch;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gathers the messages written to each session over a short window and 
+ * sends them as a single {@link SipMessageBatch}, so a busy connection 
+ * does one encode and one socket write for many messages rather than one 
+ * of each per message.  A session's messages are flushed when the window 
+ * that started with the first of them closes, or as soon as there are 
+ * enough of them to fill a batch.<p>
+ *
+ * Messages are always written in the order they were queued.  Flushes at 
+ * the end of a window happen on the timer thread, so the timer should 
+ * either be dedicated to this or have an executor for running tasks.
+ */
+public class SipWriteCoalescer
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private static final String QUEUE_KEY = 
+        SipWriteCoalescer.class.getName() + ".queue";
+
+    private final SipTimer m_timer;
+
+    private final long m_windowMillis;
+
+    private final int m_maxMessages;
+
+    /**
+     * Creates a new coalescer.
+     * 
+     * @param timer The timer for flushing at the end of each window.
+     * @param windowMillis The longest a message waits for others to join
+     * it, in milliseconds.
+     * @param maxMessages The most messages in a single batch.
+     */
+    public SipWriteCoalescer(final SipTimer timer, final long windowMillis,
+        final int maxMessages)
+        {
+        if (windowMillis <= 0)
+            {
+            throw new IllegalArgumentException("Bad window: " + windowMillis);
+            }
+        if (maxMessages <= 0)
+            {
+            throw new IllegalArgumentException(
+                "Bad max messages: " + maxMessages);
+            }
+        this.m_timer = timer;
+        this.m_windowMillis = windowMillis;
+        this.m_maxMessages = maxMessages;
+        }
+
+    /**
+     * Queues a message to be written to the specified session.
+     * 
+     * @param session The session to write to.
+     * @param message The message.
+     */
+    public void write(final IoSession session, final SipMessage message)
+        {
+        final WriteQueue queue = getQueue(session);
+        boolean schedule = false;
+        synchronized (queue)
+            {
+            queue.m_messages.add(message);
+            if (queue.m_messages.size() >= this.m_maxMessages)
+                {
+                flush(session, queue);
+                }
+            else if (!queue.m_scheduled)
+                {
+                queue.m_scheduled = true;
+                schedule = true;
+                }
+            }
+        if (schedule)
+            {
+            this.m_timer.schedule(new Runnable()
+                {
+                public void run()
+                    {
+                    synchronized (queue)
+                        {
+                        queue.m_scheduled = false;
+                        flush(session, queue);
+                        }
+                    }
+                }, this.m_windowMillis);
+            }
+        }
+
+    /**
+     * Writes any messages queued for the specified session right away.
+     * 
+     * @param session The session.
+     */
+    public void flush(final IoSession session)
+        {
+        final WriteQueue queue = 
+            (WriteQueue) session.getAttribute(QUEUE_KEY);
+        if (queue == null)
+            {
+            return;
+            }
+        synchronized (queue)
+            {
+            flush(session, queue);
+            }
+        }
+
+    /**
+     * Writes the queued messages.  This must be called while holding the 
+     * lock on the queue, so batches go out in order.  Writing only queues
+     * the batch with MINA, so this doesn't block on the socket.
+     */
+    private void flush(final IoSession session, final WriteQueue queue)
+        {
+        final List<SipMessage> messages = queue.m_messages;
+        if (messages.isEmpty())
+            {
+            return;
+            }
+        queue.m_messages = new ArrayList<SipMessage>();
+        if (session.isClosing())
+            {
+            m_log.debug("Dropping {} messages for closed session", 
+                messages.size());
+            return;
+            }
+        if (messages.size() == 1)
+            {
+            session.write(messages.get(0));
+            }
+        else
+            {
+            session.write(new SipMessageBatch(messages));
+            }
+        }
+
+    private WriteQueue getQueue(final IoSession session)
+        {
+        final WriteQueue queue = (WriteQueue) session.getAttribute(QUEUE_KEY);
+        if (queue != null)
+            {
+            return queue;
+            }
+        final WriteQueue newQueue = new WriteQueue();
+        final WriteQueue existing = 
+            (WriteQueue) session.setAttributeIfAbsent(QUEUE_KEY, newQueue);
+        return existing == null ? newQueue : existing;
+        }
+
+    private static final class WriteQueue
+        {
+        private List<SipMessage> m_messages = new ArrayList<SipMessage>();
+
+        private boolean m_scheduled;
+        }
+    }
@@ -0,0 +1,310 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the bytes and messages waiting to be written to each session, so
+ * a peer that stops reading can't make us buffer without bound.  A session
+ * is backed up when either limit is reached, or when it has had data 
+ * waiting and written nothing for longer than the stall time.  The 
+ * {@link SipSlowConsumerPolicy} decides what happens to messages for a 
+ * backed up session.<p>
+ *
+ * This reads the queue sizes MINA already keeps for each session rather 
+ * than counting writes itself.  Each stall is only counted once, until 
+ * the session writes again.<p>
+ *
+ * Checking on writes alone misses the usual stuck client -- one that 
+ * stops reading while we have nothing more to send it.  Given a timer, we
+ * also check each session we've written to once the stall time has 
+ * passed, and keep checking until it has nothing waiting.  Under the 
+ * {@link SipSlowConsumerPolicy#CLOSE} policy, a session we find stalled 
+ * this way is closed, since no later write will close it.
+ */
+public class SipWriteLimiter
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default most bytes waiting to be written to a session.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    /**
+     * The default most messages waiting to be written to a session.
+     */
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+
+    /**
+     * The default time a session can have data waiting without writing 
+     * anything before we consider it stalled, in milliseconds.
+     */
+    public static final long DEFAULT_STALL_MILLIS = 30 * 1000;
+
+    private static final String WATCH_KEY = 
+        SipWriteLimiter.class.getName() + ".watch";
+
+    private final long m_maxBytes;
+
+    private final int m_maxMessages;
+
+    private final SipSlowConsumerPolicy m_policy;
+
+    private final long m_stallMillis;
+
+    private final SipTimer m_timer;
+
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
+
+    /**
+     * Creates a new limiter with the default limits.
+     * 
+     * @param policy What to do with messages for backed up sessions.
+     */
+    public SipWriteLimiter(final SipSlowConsumerPolicy policy)
+        {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_MESSAGES, policy, 
+            DEFAULT_STALL_MILLIS);
+        }
+
+    /**
+     * Creates a new limiter.
+     * 
+     * @param maxBytes The most bytes waiting to be written to a session.
+     * @param maxMessages The most messages waiting to be written to a 
+     * session.
+     * @param policy What to do with messages for backed up sessions.
+     * @param stallMillis How long a session can have data waiting without
+     * writing anything before we consider it stalled, in milliseconds.
+     */
+    public SipWriteLimiter(final long maxBytes, final int maxMessages, 
+        final SipSlowConsumerPolicy policy, final long stallMillis)
+        {
+        this(maxBytes, maxMessages, policy, stallMillis, null);
+        }
+
+    /**
+     * Creates a new limiter that also checks for stalls between writes.
+     * 
+     * @param maxBytes The most bytes waiting to be written to a session.
+     * @param maxMessages The most messages waiting to be written to a 
+     * session.
+     * @param policy What to do with messages for backed up sessions.
+     * @param stallMillis How long a session can have data waiting without
+     * writing anything before we consider it stalled, in milliseconds.
+     * @param timer The timer for checking sessions for stalls, or 
+     * <code>null</code> to only check when writing.
+     */
+    public SipWriteLimiter(final long maxBytes, final int maxMessages, 
+        final SipSlowConsumerPolicy policy, final long stallMillis,
+        final SipTimer timer)
+        {
+        if (maxBytes <= 0)
+            {
+            throw new IllegalArgumentException("Bad max bytes: " + maxBytes);
+            }
+        if (maxMessages <= 0)
+            {
+            throw new IllegalArgumentException(
+                "Bad max messages: " + maxMessages);
+            }
+        if (stallMillis <= 0)
+            {
+            throw new IllegalArgumentException(
+                "Bad stall time: " + stallMillis);
+            }
+        if (policy == null)
+            {
+            throw new NullPointerException("Null policy");
+            }
+        this.m_maxBytes = maxBytes;
+        this.m_maxMessages = maxMessages;
+        this.m_policy = policy;
+        this.m_stallMillis = stallMillis;
+        this.m_timer = timer;
+        }
+
+    /**
+     * Accessor for what to do with messages for backed up sessions.
+     * 
+     * @return The policy.
+     */
+    public SipSlowConsumerPolicy getPolicy()
+        {
+        return this.m_policy;
+        }
+
+    /**
+     * Checks whether the specified session is backed up, recording any 
+     * new write stall.
+     * 
+     * @param session The session.
+     * @return <code>true</code> if the session has reached either limit or
+     * has stalled, otherwise <code>false</code>.
+     */
+    public boolean isBackedUp(final IoSession session)
+        {
+        final long bytes = session.getScheduledWriteBytes();
+        final int messages = session.getScheduledWriteRequests();
+        if (bytes <= 0 && messages <= 0)
+            {
+            session.removeAttribute(WATCH_KEY);
+            return false;
+            }
+        if (isStalled(session))
+            {
+            return true;
+            }
+        return bytes >= this.m_maxBytes || messages >= this.m_maxMessages;
+        }
+
+    /**
+     * Tells the limiter we've written to the specified session, so it can 
+     * watch the session for a stall even if we write nothing more to it.
+     * This does nothing without a timer.
+     * 
+     * @param session The session.
+     */
+    public void onWritten(final IoSession session)
+        {
+        if (this.m_timer != null)
+            {
+            getWatch(session, session.getLastWriteTime(), 
+                System.currentTimeMillis());
+            }
+        }
+
+    /**
+     * Checks whether the session has written nothing since we first saw 
+     * data waiting for longer than the stall time.  We can't just compare
+     * the last write time with now, since a session that was quiet for a
+     * while would look stalled as soon as it had anything to write.
+     */
+    private boolean isStalled(final IoSession session)
+        {
+        final long now = System.currentTimeMillis();
+        final long lastWrite = session.getLastWriteTime();
+        final WriteWatch watch = getWatch(session, lastWrite, now);
+        synchronized (watch)
+            {
+            if (watch.m_lastWrite != lastWrite)
+                {
+                watch.m_lastWrite = lastWrite;
+                watch.m_since = now;
+                watch.m_stalled = false;
+                return false;
+                }
+            if (now - watch.m_since <= this.m_stallMillis)
+                {
+                return false;
+                }
+            if (!watch.m_stalled)
+                {
+                watch.m_stalled = true;
+                m_log.warn("Writes stalled on session: {}", session);
+                this.m_metrics.onWriteStall();
+                }
+            return true;
+            }
+        }
+
+    private WriteWatch getWatch(final IoSession session, final long lastWrite,
+        final long now)
+        {
+        final WriteWatch watch = (WriteWatch) session.getAttribute(WATCH_KEY);
+        if (watch != null)
+            {
+            return watch;
+            }
+        final WriteWatch newWatch = new WriteWatch(lastWrite, now);
+        final WriteWatch existing = 
+            (WriteWatch) session.setAttributeIfAbsent(WATCH_KEY, newWatch);
+        if (existing != null)
+            {
+            return existing;
+            }
+        scheduleCheck(session, newWatch, this.m_stallMillis + 1);
+        return newWatch;
+        }
+
+    private void scheduleCheck(final IoSession session, 
+        final WriteWatch watch, final long delay)
+        {
+        if (this.m_timer == null)
+            {
+            return;
+            }
+        this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                check(session, watch);
+                }
+            }, delay);
+        }
+
+    /**
+     * Checks a watched session for a stall from the timer, rather than 
+     * waiting for something else to be written to it.
+     */
+    private void check(final IoSession session, final WriteWatch watch)
+        {
+        if (session.getAttribute(WATCH_KEY) != watch || session.isClosing())
+            {
+            return;
+            }
+        if (session.getScheduledWriteBytes() <= 0 && 
+            session.getScheduledWriteRequests() <= 0)
+            {
+            session.removeAttribute(WATCH_KEY);
+            return;
+            }
+        if (!isStalled(session))
+            {
+            // Check again once it's been the stall time since the last 
+            // write we saw.
+            final long since;
+            synchronized (watch)
+                {
+                since = watch.m_since;
+                }
+            final long remaining = 
+                since + this.m_stallMillis - System.currentTimeMillis();
+            scheduleCheck(session, watch, Math.max(remaining, 0) + 1);
+            return;
+            }
+        if (this.m_policy == SipSlowConsumerPolicy.CLOSE)
+            {
+            m_log.warn("Closing stalled session: {}", session);
+            this.m_metrics.onSlowConsumerClosed();
+            session.close();
+            return;
+            }
+        scheduleCheck(session, watch, this.m_stallMillis);
+        }
+
+    /**
+     * The last write we saw on a session with data waiting, and when we 
+     * first saw it.
+     */
+    private static final class WriteWatch
+        {
+
+        private long m_lastWrite;
+
+        private long m_since;
+
+        private boolean m_stalled;
+
+        private WriteWatch(final long lastWrite, final long since)
+            {
+            this.m_lastWrite = lastWrite;
+            this.m_since = since;
+            }
+        }
+    }
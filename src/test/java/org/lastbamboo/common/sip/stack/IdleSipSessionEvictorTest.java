@@ -0,0 +1,144 @@
+package org.lastbamboo.common.sip.stack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Tests for closing idle sessions.
+ */
+public class IdleSipSessionEvictorTest extends TestCase
+    {
+
+    private SipTimer m_timer;
+
+    private final Map<IoSession, SipSessionEvictionReason> m_evicted = 
+        new ConcurrentHashMap<IoSession, SipSessionEvictionReason>();
+
+    private final IdleSipSessionEvictionListener m_listener = 
+        new IdleSipSessionEvictionListener()
+        {
+        public void onIdleSession(final IoSession session, 
+            final SipSessionEvictionReason reason)
+            {
+            m_evicted.put(session, reason);
+            }
+
+        public void onIdleSession()
+            {
+            fail("Should have been told the session");
+            }
+        };
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testIdleSessionsClosed() throws Exception
+        {
+        final IdleSipSessionEvictor evictor = 
+            new IdleSipSessionEvictor(m_timer, 100, 20, m_listener);
+        final Session idle = new Session(false);
+        final Session active = new Session(true);
+        final Session patient = new Session(false);
+        evictor.add(idle);
+        evictor.add(active);
+        evictor.add(patient, 1000);
+        assertEquals(3, evictor.size());
+
+        Thread.sleep(400);
+        assertTrue(idle.m_closed);
+        assertEquals(SipSessionEvictionReason.IDLE, m_evicted.get(idle));
+        assertFalse(active.m_closed);
+        assertFalse(patient.m_closed);
+        assertEquals(2, evictor.size());
+
+        evictor.remove(patient);
+        assertEquals(1, evictor.size());
+        evictor.stop();
+        }
+
+    public void testTimeoutsShrinkUnderLoad() throws Exception
+        {
+        final IdleSipSessionEvictor evictor = 
+            new IdleSipSessionEvictor(m_timer, 10000, 50, 10, 20, m_listener);
+        assertEquals(10000, evictor.getTimeoutMillis());
+        final Session[] sessions = new Session[10];
+        for (int i = 0; i < sessions.length; i++)
+            {
+            sessions[i] = new Session(false);
+            evictor.add(sessions[i]);
+            }
+        assertEquals(50, evictor.getTimeoutMillis());
+
+        Thread.sleep(500);
+        assertTrue(sessions[0].m_closed);
+        assertEquals(SipSessionEvictionReason.IDLE_UNDER_LOAD, 
+            m_evicted.get(sessions[0]));
+
+        // Closing one session takes us to 90% of capacity, halfway back to
+        // the full timeout, so the rest stay open.
+        assertEquals(9, evictor.size());
+        assertEquals(10000 - (10000 - 50) / 2, evictor.getTimeoutMillis(), 1);
+        evictor.stop();
+        }
+
+    /**
+     * Session that's either busy all the time or has been idle since it
+     * was created.
+     */
+    private static final class Session extends IoSessionStub
+        {
+
+        private final boolean m_active;
+
+        private final long m_creationTime = System.currentTimeMillis();
+
+        private volatile boolean m_closed;
+
+        private Session(final boolean active)
+            {
+            m_active = active;
+            }
+
+        @Override
+        public long getLastIoTime()
+            {
+            return m_active ? System.currentTimeMillis() : m_creationTime;
+            }
+
+        @Override
+        public long getCreationTime()
+            {
+            return m_creationTime;
+            }
+
+        @Override
+        public boolean isClosing()
+            {
+            return m_closed;
+            }
+
+        @Override
+        public CloseFuture close()
+            {
+            m_closed = true;
+            return null;
+            }
+        }
+    }
@@ -0,0 +1,114 @@
+package org.lastbamboo.common.sip.stack;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.stubs.SipTestMessages;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * Tests for shedding new requests when messages wait too long to be
+ * dispatched.
+ */
+public class SipOverloadControllerTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory =
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final List<Object> m_written = new ArrayList<Object>();
+
+    private final IoSessionStub m_session = new IoSessionStub()
+        {
+        @Override
+        public WriteFuture write(final Object message)
+            {
+            m_written.add(message);
+            return super.write(message);
+            }
+        };
+
+    public void testShedding() throws Exception
+        {
+        final SipOverloadController controller = new SipOverloadController(
+            m_messageFactory, m_headerFactory, 50, 100, 5, 10);
+        final long shed = SipStackMetrics.getInstance().getRequestsShed();
+
+        // A single slow message isn't enough.
+        assertFalse(controller.shed(m_session, createInvite(200)));
+        assertFalse(controller.isOverloaded());
+
+        Thread.sleep(150);
+        final Invite invite = createInvite(200);
+        assertTrue(controller.shed(m_session, invite));
+        assertTrue(controller.isOverloaded());
+        assertEquals(1, m_written.size());
+
+        final SipResponse response = (SipResponse) m_written.get(0);
+        assertEquals("SIP/2.0 503 Service Unavailable",
+            response.getStartLine());
+        assertEquals(invite.getHeader(SipHeaderNames.CALL_ID).getValue(),
+            response.getHeader(SipHeaderNames.CALL_ID).getValue());
+        final int retryAfter = Integer.parseInt(response.getHeader(
+            SipHeaderNames.RETRY_AFTER).getValue().getBaseValue());
+        assertTrue("Bad Retry-After: " + retryAfter,
+            retryAfter >= 5 && retryAfter <= 10);
+
+        final SipMessage register = m_messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice",
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(),
+            new URI("sip:alice@10.0.0.1"));
+        register.setDecodeTime(System.nanoTime() - 200 * 1000000L);
+        assertTrue(controller.shed(m_session, register));
+        assertEquals(shed + 2, SipStackMetrics.getInstance().getRequestsShed());
+
+        // Responses and requests within a dialog still go through.
+        final SipResponse ok = m_messageFactory.createInviteOk(invite,
+            UUID.randomUUID(), new URI("sip:bob@10.0.0.2"),
+            ByteBuffer.allocate(0));
+        ok.setDecodeTime(System.nanoTime() - 200 * 1000000L);
+        assertFalse(controller.shed(m_session, ok));
+
+        final Map<String, SipHeader> headers = invite.getHeaders();
+        final SipHeader to = m_headerFactory.createTo(
+            invite.getHeader(SipHeaderNames.TO));
+        headers.put(to.getName(), to);
+        final Invite reInvite = new Invite(invite.getStartLine(), headers,
+            ByteBuffer.allocate(0));
+        reInvite.setDecodeTime(System.nanoTime() - 200 * 1000000L);
+        assertFalse(controller.shed(m_session, reInvite));
+        assertEquals(2, m_written.size());
+
+        // A message that gets through quickly ends the overload.
+        assertFalse(controller.shed(m_session, createInvite(0)));
+        assertFalse(controller.isOverloaded());
+        assertFalse(controller.shed(m_session, createInvite(200)));
+        assertEquals(2, m_written.size());
+        }
+
+    private Invite createInvite(final long waitMillis) throws Exception
+        {
+        final Invite invite = SipTestMessages.createInvite();
+        invite.setDecodeTime(System.nanoTime() - waitMillis * 1000000L);
+        return invite;
+        }
+    }
@@ -0,0 +1,201 @@
+package org.lastbamboo.common.sip.stack.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+
+/**
+ * Tests for running each session's work in order off the I/O threads.
+ */
+public class SipDispatchStageTest extends TestCase
+    {
+
+    private ExecutorService m_executor;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_executor = Executors.newFixedThreadPool(4);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_executor.shutdownNow();
+        }
+
+    public void testOrderPerSession() throws Exception
+        {
+        final SipDispatchStage stage = new SipDispatchStage(m_executor);
+        final int sessions = 8;
+        final int tasks = 1000;
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(sessions * tasks);
+        for (int i = 0; i < sessions; i++)
+            {
+            final List<Integer> result =
+                Collections.synchronizedList(new ArrayList<Integer>());
+            results.add(result);
+            final Session session = new Session();
+            for (int j = 0; j < tasks; j++)
+                {
+                final Integer value = Integer.valueOf(j);
+                stage.execute(session, new Runnable()
+                    {
+                    public void run()
+                        {
+                        result.add(value);
+                        done.countDown();
+                        }
+                    });
+                }
+            }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        for (final List<Integer> result : results)
+            {
+            assertEquals(tasks, result.size());
+            for (int j = 0; j < tasks; j++)
+                {
+                assertEquals(j, result.get(j).intValue());
+                }
+            }
+
+        // The depth drops once each task has finished being timed.
+        Thread.sleep(100);
+        assertEquals(0, stage.getQueueDepth());
+        assertEquals(sessions * tasks, stage.getServiceTime().getCount());
+        assertEquals(sessions * tasks, stage.getQueueTime().getCount());
+        }
+
+    public void testSlowSessionDoesNotBlockOthers() throws Exception
+        {
+        final SipDispatchStage stage = new SipDispatchStage(m_executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowDone = new CountDownLatch(2);
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        final Session slow = new Session();
+        final Runnable slowTask = new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    release.await();
+                    }
+                catch (final InterruptedException e)
+                    {
+                    }
+                slowDone.countDown();
+                }
+            };
+        stage.execute(slow, slowTask);
+        stage.execute(slow, slowTask);
+        stage.execute(new Session(), new Runnable()
+            {
+            public void run()
+                {
+                fastDone.countDown();
+                }
+            });
+
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(2, stage.getQueueDepth());
+        release.countDown();
+        assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+        }
+
+    public void testReadsSuspendedWhenBackedUp() throws Exception
+        {
+        final SipDispatchStage stage = new SipDispatchStage(m_executor, 4, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(6);
+        final Session session = new Session();
+        final Runnable task = new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    release.await();
+                    }
+                catch (final InterruptedException e)
+                    {
+                    }
+                done.countDown();
+                }
+            };
+        for (int i = 0; i < 3; i++)
+            {
+            stage.execute(session, task);
+            }
+        assertFalse(session.m_suspended);
+        stage.execute(session, task);
+        assertTrue(session.m_suspended);
+
+        // Messages read before the suspension took effect still queue.
+        stage.execute(session, task);
+        stage.execute(session, task);
+        assertEquals(1, session.m_suspensions);
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(session.m_suspended);
+        assertEquals(1, session.m_suspensions);
+        }
+
+    /**
+     * Session with working attributes that tracks whether reads are
+     * suspended.
+     */
+    private static class Session extends IoSessionStub
+        {
+
+        private final ConcurrentMap<String, Object> m_attributes =
+            new ConcurrentHashMap<String, Object>();
+
+        private volatile boolean m_suspended;
+
+        private volatile int m_suspensions;
+
+        @Override
+        public Object getAttribute(final String key)
+            {
+            return m_attributes.get(key);
+            }
+
+        @Override
+        public Object setAttributeIfAbsent(final String key,
+            final Object value)
+            {
+            return m_attributes.putIfAbsent(key, value);
+            }
+
+        @Override
+        public synchronized void suspendRead()
+            {
+            assertFalse(m_suspended);
+            m_suspended = true;
+            m_suspensions++;
+            }
+
+        @Override
+        public synchronized void resumeRead()
+            {
+            assertTrue(m_suspended);
+            m_suspended = false;
+            }
+        }
+    }
@@ -1,5 +1,6 @@
 package org.lastbamboo.common.sip.stack.codec.decoder;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -14,6 +15,7 @@ import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.lastbamboo.common.sip.stack.codec.SipDecoderMode;
 import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
 import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoder;
 import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoderImpl;
@@ -27,6 +29,7 @@ import org.lastbamboo.common.sip.stack.message.SipResponse;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
 import org.littleshoot.util.mina.ByteBufferUtils;
 import org.littleshoot.util.mina.MinaUtils;
 import org.slf4j.Logger;
@@ -147,6 +150,260 @@ public class SipDecodingTest
     @SuppressWarnings("boxing")
     @Test
     public void ultimateSipDecodingTest() throws Exception
+        {
+        ultimateSipDecodingTest(SipDecoderMode.STATE_MACHINE);
+        }
+    
+    /**
+     * Runs the "ultimate" test against the single pass decoder.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void ultimateSinglePassSipDecodingTest() throws Exception
+        {
+        ultimateSipDecodingTest(SipDecoderMode.SINGLE_PASS);
+        }
+    
+    /**
+     * Makes sure the single pass decoder reads the same headers and body as
+     * the state machine decoder, including when the message arrives in
+     * pieces.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testSinglePassMatchesStateMachine() throws Exception
+        {
+        final Invite request = createInvite();
+        final SipMessageEncoder encoder = new SipMessageEncoderImpl();
+        final ByteBuffer buf = encoder.encode(request);
+        
+        final Invite expected = (Invite) decodeSingle(
+            SipDecoderMode.STATE_MACHINE, buf.duplicate(), buf.limit());
+        
+        for (int chunk = 1; chunk < buf.limit(); chunk += 37)
+            {
+            final Invite decoded = (Invite) decodeSingle(
+                SipDecoderMode.SINGLE_PASS, buf.duplicate(), chunk);
+            Assert.assertEquals(expected.getStartLine(), 
+                decoded.getStartLine());
+            Assert.assertEquals(expected.getBody(), decoded.getBody());
+            Assert.assertEquals(expected.getHeaders().keySet(), 
+                decoded.getHeaders().keySet());
+            Assert.assertEquals(expected.getBranchId(), 
+                decoded.getBranchId());
+            Assert.assertEquals(
+                expected.getHeader("Via").getValues().size(),
+                decoded.getHeader("Via").getValues().size());
+            }
+        }
+    
+    /**
+     * Tests that single CRLFs, as sent in response to double CRLF 
+     * keep-alives, are skipped by the single pass decoder.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testSinglePassSkipsSingleCrlf() throws Exception
+        {
+        final ByteBuffer register = 
+            new SipMessageEncoderImpl().encode(createRegister());
+        final Collection<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+        buffers.add(MinaUtils.toBuf("\r\n"));
+        buffers.add(register);
+        buffers.add(MinaUtils.toBuf("\r\n\r\n"));
+        final ByteBuffer buf = ByteBufferUtils.combine(buffers);
+        
+        final List<Object> messages = decodeAll(SipDecoderMode.SINGLE_PASS, 
+            buf, buf.limit());
+        Assert.assertEquals(2, messages.size());
+        Assert.assertTrue(messages.get(0) instanceof Register);
+        Assert.assertTrue(messages.get(1) instanceof DoubleCrlfKeepAlive);
+        }
+    
+    /**
+     * Tests that both decoders read the body when the Content-Length header
+     * uses a different case or its compact form.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testCompactAndMixedCaseContentLength() throws Exception
+        {
+        final String[] contentLengths = {"l: 4", "content-length: 4", 
+            "CONTENT-LENGTH : 4"};
+        for (final String contentLength : contentLengths)
+            {
+            final String message =
+                "INVITE sip:bob@lastbamboo.org SIP/2.0\r\n" +
+                "v: SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK776asdhds\r\n" +
+                "i: a84b4c76e66710\r\n" +
+                "CSeq: 1 INVITE\r\n" +
+                contentLength + "\r\n" +
+                "\r\n" +
+                "test";
+            for (final SipDecoderMode mode : SipDecoderMode.values())
+                {
+                final Invite invite = (Invite) decodeSingle(mode, 
+                    MinaUtils.toBuf(message), message.length());
+                Assert.assertEquals(MinaUtils.toBuf("test"), invite.getBody());
+                Assert.assertEquals("z9hG4bK776asdhds", invite.getBranchId());
+                Assert.assertNotNull(invite.getHeader("Call-ID"));
+                }
+            }
+        }
+    
+    /**
+     * Tests that forwarding an INVITE read by the single pass decoder only
+     * rewrites the top Via value and leaves every other byte as it arrived.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testForwardingSplicesTopVia() throws Exception
+        {
+        final String prefix =
+            "INVITE sip:bob@lastbamboo.org SIP/2.0\r\n" +
+            "i: a84b4c76e66710\r\n" +
+            "X-Custom:  kept  as is\r\n" +
+            "v: ";
+        final String topVia = "SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK776asdhds";
+        final String suffix = 
+            " , SIP/2.0/TCP 10.0.0.2;branch=z9hG4bK1\r\n" +
+            "CSeq: 1 INVITE\r\n" +
+            "l: 4\r\n" +
+            "\r\n" +
+            "test";
+        final String message = prefix + topVia + suffix;
+        final Invite invite = (Invite) decodeSingle(SipDecoderMode.SINGLE_PASS,
+            MinaUtils.toBuf(message), message.length());
+        
+        final SipMessageFactory messageFactory = new SipMessageFactoryImpl();
+        final Invite forwarded = messageFactory.createInviteToForward(
+            new InetSocketAddress("46.76.32.1", 3525), invite);
+        
+        // Only the top Via is new -- everything before and after it is
+        // written straight from the bytes we read.
+        final ByteBuffer[] slices = forwarded.getWireFormSlices();
+        Assert.assertEquals(3, slices.length);
+        Assert.assertEquals(prefix, MinaUtils.toAsciiString(slices[0]));
+        Assert.assertEquals(suffix, MinaUtils.toAsciiString(slices[2]));
+        
+        // Headers other than Via are shared rather than copied, and the
+        // original INVITE keeps its own Via.
+        Assert.assertSame(invite.getHeader("X-Custom"), 
+            forwarded.getHeader("X-Custom"));
+        Assert.assertSame(invite.getHeader(SipHeaderName.CALL_ID), 
+            forwarded.getHeader(SipHeaderName.CALL_ID));
+        Assert.assertNull(invite.getHeader(SipHeaderName.VIA).getValue()
+            .getParamValue("received"));
+        Assert.assertEquals("46.76.32.1", 
+            forwarded.getHeader(SipHeaderName.VIA).getValue().getParamValue(
+                "received"));
+        
+        final String wireForm = MinaUtils.toAsciiString(forwarded.getWireForm());
+        Assert.assertTrue(wireForm.startsWith(prefix + "SIP/2.0/TCP 10.0.0.1;"));
+        Assert.assertTrue(wireForm.endsWith(suffix));
+        final String splicedVia = wireForm.substring(prefix.length(), 
+            wireForm.length() - suffix.length());
+        Assert.assertTrue(splicedVia.contains(";branch=z9hG4bK776asdhds"));
+        Assert.assertTrue(splicedVia.contains(";received=46.76.32.1"));
+        Assert.assertTrue(splicedVia.contains(";rport=3525"));
+        
+        // The spliced bytes should decode to the same top Via we'd get from
+        // the forwarded message itself.
+        final Invite decoded = (Invite) decodeSingle(SipDecoderMode.SINGLE_PASS,
+            MinaUtils.toBuf(wireForm), wireForm.length());
+        Assert.assertEquals("46.76.32.1", 
+            decoded.getHeader(SipHeaderName.VIA).getValue().getParamValue(
+                "received"));
+        Assert.assertEquals(2, 
+            decoded.getHeader(SipHeaderName.VIA).getValues().size());
+        Assert.assertEquals(MinaUtils.toBuf("test"), decoded.getBody());
+        }
+    
+    /**
+     * Tests that the single pass decoder starts over cleanly after a message
+     * with a request URI we can't parse.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testSinglePassRecoversFromBadUri() throws Exception
+        {
+        final String bad =
+            "FOO sip:bob@lastbamboo.org^bad SIP/2.0\r\n" +
+            "i: a84b4c76e66710\r\n" +
+            "CSeq: 1 FOO\r\n" +
+            "l: 0\r\n" +
+            "\r\n";
+        final SipProtocolCodecFactory codecFactory = 
+            new SipProtocolCodecFactory(new SipHeaderFactoryImpl(), 
+                SipDecoderMode.SINGLE_PASS);
+        final ProtocolDecoder decoder = codecFactory.getDecoder();
+        final List<Object> messages = new ArrayList<Object>();
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput()
+            {
+            public void flush() {}
+
+            public void write(final Object message)
+                {
+                messages.add(message);
+                }
+            };
+        try
+            {
+            decoder.decode(null, MinaUtils.toBuf(bad), out);
+            Assert.fail("Should have rejected the request URI");
+            }
+        catch (final Exception e)
+            {
+            // Expected.
+            }
+        
+        decoder.decode(null, 
+            new SipMessageEncoderImpl().encode(createRegister()), out);
+        Assert.assertEquals(1, messages.size());
+        Assert.assertTrue(messages.get(0) instanceof Register);
+        }
+    
+    private static Object decodeSingle(final SipDecoderMode mode, 
+        final ByteBuffer buf, final int chunkSize) throws Exception
+        {
+        final List<Object> messages = decodeAll(mode, buf, chunkSize);
+        Assert.assertEquals(1, messages.size());
+        return messages.get(0);
+        }
+    
+    private static List<Object> decodeAll(final SipDecoderMode mode, 
+        final ByteBuffer buf, final int chunkSize) throws Exception
+        {
+        final SipProtocolCodecFactory codecFactory =
+            new SipProtocolCodecFactory(new SipHeaderFactoryImpl(), mode);
+        final ProtocolDecoder decoder = codecFactory.getDecoder();
+        final List<Object> messages = new ArrayList<Object>();
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput()
+            {
+            public void flush() {}
+
+            public void write(final Object message)
+                {
+                messages.add(message);
+                }
+            };
+        final int end = buf.limit();
+        for (int i = chunkSize; buf.position() < end; i += chunkSize)
+            {
+            buf.limit(Math.min(i, end));
+            decoder.decode(null, buf, out);
+            }
+        return messages;
+        }
+    
+    private void ultimateSipDecodingTest(final SipDecoderMode mode) 
+        throws Exception
         {
         final Collection<SipMessage> messages = new LinkedList<SipMessage>();
 
@@ -189,7 +446,7 @@ public class SipDecodingTest
         
         final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
         final SipProtocolCodecFactory codecFactory =
-            new SipProtocolCodecFactory(headerFactory);
+            new SipProtocolCodecFactory(headerFactory, mode);
         
         final ProtocolDecoder decoder = codecFactory.getDecoder();
         
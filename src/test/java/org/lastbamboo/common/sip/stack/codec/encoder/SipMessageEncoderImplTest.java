@@ -7,9 +7,12 @@ import java.util.List;
 
 import org.apache.commons.id.uuid.UUID;
 import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.PooledByteBufferAllocator;
 import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.littleshoot.mina.common.WriteFuture;
 import org.littleshoot.mina.filter.codec.ProtocolDecoder;
 import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.mina.filter.codec.ProtocolEncoderOutput;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -75,6 +78,97 @@ public class SipMessageEncoderImplTest
             }
         }
     
+    /**
+     * Tests that the presized encoder writes exactly what the original
+     * encoder writes, into a buffer of exactly the right size.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testPresizedEncoding() throws Exception
+        {
+        final SipMessageEncoder encoder = new SipMessageEncoderImpl();
+        final SipMessageEncoder presizedEncoder = 
+            new SipMessagePresizedEncoder(new SimpleByteBufferAllocator());
+        
+        final Collection<SipMessage> messages = new LinkedList<SipMessage>();
+        messages.add(createRegister());
+        messages.add(createRegisterOk());
+        messages.add(createInviteNoBody());
+        messages.add(createInvite());
+        messages.add(createInviteOk());
+        messages.add(createInviteOkNoBody());
+        messages.add(new DoubleCrlfKeepAlive());
+        
+        for (final SipMessage message : messages)
+            {
+            final ByteBuffer presized = presizedEncoder.encode(message);
+            Assert.assertEquals(presized.capacity(), presized.remaining());
+            
+            final ByteBuffer expected = encoder.encode(message);
+            Assert.assertEquals(MinaUtils.toAsciiString(expected), 
+                MinaUtils.toAsciiString(presized));
+            
+            final SipMessage decoded = decode(presized);
+            Assert.assertEquals(message.getClass(), decoded.getClass());
+            }
+        }
+
+    /**
+     * Tests that buffers from the presized encoder go back to the pool once
+     * MINA has written and released them.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testPresizedBuffersReleased() throws Exception
+        {
+        final PooledByteBufferAllocator allocator = 
+            new PooledByteBufferAllocator();
+        final SipMessageProtocolEncoder encoder = 
+            new SipMessageProtocolEncoder(
+                new SipMessagePresizedEncoder(allocator));
+        final List<ByteBuffer> written = new LinkedList<ByteBuffer>();
+        final ProtocolEncoderOutput out = new ProtocolEncoderOutput()
+            {
+            public WriteFuture flush()
+                {
+                return null;
+                }
+
+            public void mergeAll()
+                {
+                }
+
+            public void write(final ByteBuffer buf)
+                {
+                written.add(buf);
+                }
+            };
+        try
+            {
+            final Invite invite = createInvite();
+            encoder.encode(null, invite, out);
+            final ByteBuffer first = written.get(0);
+            final String expected = MinaUtils.toAsciiString(
+                new SipMessageEncoderImpl().encode(invite));
+            Assert.assertEquals(expected, 
+                MinaUtils.toAsciiString(first.duplicate()));
+            final java.nio.ByteBuffer pooled = first.buf();
+            
+            // MINA releases each buffer once it's written it to the socket,
+            // and the next message of the same size should get it back.
+            first.release();
+            encoder.encode(null, createInvite(), out);
+            final ByteBuffer second = written.get(1);
+            Assert.assertSame(pooled, second.buf());
+            second.release();
+            }
+        finally
+            {
+            allocator.dispose();
+            }
+        }
 
     private static SipMessage decode(final ByteBuffer encoded) throws Exception
         {
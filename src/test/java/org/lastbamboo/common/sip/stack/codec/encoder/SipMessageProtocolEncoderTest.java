@@ -0,0 +1,158 @@
+package org.lastbamboo.common.sip.stack.codec.encoder;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.id.uuid.UUID;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.mina.filter.codec.ProtocolEncoderOutput;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * Tests for the MINA protocol encoder for SIP messages.
+ */
+public class SipMessageProtocolEncoderTest
+    {
+
+    /**
+     * MINA does some funky things if we don't do this first.
+     */
+    @Before
+    public void setUp()
+        {
+        ByteBuffer.setUseDirectBuffers(false);
+        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        }
+
+    /**
+     * Tests that a message is only cached once it's written a second time,
+     * and that later writes reuse the cached wire form instead of encoding 
+     * it again.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testWireFormReused() throws Exception
+        {
+        final int[] encodes = new int[1];
+        final SipMessageEncoder counting = new SipMessageEncoder()
+            {
+            private final SipMessageEncoder m_delegate = 
+                new SipMessageEncoderImpl();
+            public ByteBuffer encode(final SipMessage message)
+                {
+                encodes[0]++;
+                return m_delegate.encode(message);
+                }
+            };
+        final SipMessageProtocolEncoder encoder = 
+            new SipMessageProtocolEncoder(counting);
+        
+        final SipMessageFactory messageFactory = new SipMessageFactoryImpl();
+        final Register register = messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Anonymous", 
+            new URI("sip:4279@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("alice@atlanta.com"));
+        
+        final List<ByteBuffer> written = new LinkedList<ByteBuffer>();
+        final ProtocolEncoderOutput out = new ProtocolEncoderOutput()
+            {
+            public WriteFuture flush()
+                {
+                return null;
+                }
+
+            public void mergeAll()
+                {
+                }
+
+            public void write(final ByteBuffer buf)
+                {
+                written.add(buf);
+                }
+            };
+        
+        encoder.encode(null, register, out);
+        final String first = MinaUtils.toAsciiString(written.get(0));
+        Assert.assertNull(register.getWireForm());
+        
+        // Consuming the written buffers must not affect later writes.
+        written.get(0).position(written.get(0).limit());
+        encoder.encode(null, register, out);
+        Assert.assertEquals(2, encodes[0]);
+        Assert.assertNotNull(register.getWireForm());
+        written.get(1).position(written.get(1).limit());
+        encoder.encode(null, register, out);
+        encoder.encode(null, register, out);
+        
+        Assert.assertEquals(2, encodes[0]);
+        Assert.assertEquals(4, written.size());
+        Assert.assertEquals(first, MinaUtils.toAsciiString(written.get(2)));
+        Assert.assertEquals(first, MinaUtils.toAsciiString(written.get(3)));
+        Assert.assertTrue(first.startsWith("REGISTER "));
+        
+        encoder.encode(null, new DoubleCrlfKeepAlive(), out);
+        Assert.assertEquals(2, encodes[0]);
+        Assert.assertEquals("\r\n\r\n", MinaUtils.toAsciiString(written.get(4)));
+        }
+
+    /**
+     * Tests that a batch is encoded into a single merged write.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test
+    public void testBatchMerged() throws Exception
+        {
+        final SipMessageProtocolEncoder encoder = 
+            new SipMessageProtocolEncoder();
+        final SipMessageFactory messageFactory = new SipMessageFactoryImpl();
+        final Register register = messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Anonymous", 
+            new URI("sip:4279@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("alice@atlanta.com"));
+        
+        final List<ByteBuffer> written = new LinkedList<ByteBuffer>();
+        final int[] merges = new int[1];
+        final ProtocolEncoderOutput out = new ProtocolEncoderOutput()
+            {
+            public WriteFuture flush()
+                {
+                return null;
+                }
+
+            public void mergeAll()
+                {
+                merges[0]++;
+                }
+
+            public void write(final ByteBuffer buf)
+                {
+                written.add(buf);
+                }
+            };
+        
+        encoder.encode(null, new SipMessageBatch(Arrays.<SipMessage>asList(
+            register, new DoubleCrlfKeepAlive(), register)), out);
+        Assert.assertEquals(1, merges[0]);
+        Assert.assertEquals(3, written.size());
+        Assert.assertTrue(
+            MinaUtils.toAsciiString(written.get(0)).startsWith("REGISTER "));
+        Assert.assertEquals("\r\n\r\n", 
+            MinaUtils.toAsciiString(written.get(1)));
+        Assert.assertEquals(MinaUtils.toAsciiString(written.get(0)), 
+            MinaUtils.toAsciiString(written.get(2)));
+        }
+    }
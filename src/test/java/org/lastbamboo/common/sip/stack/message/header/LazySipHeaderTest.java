@@ -0,0 +1,58 @@
+package org.lastbamboo.common.sip.stack.message.header;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for lazily parsed SIP headers.
+ */
+public class LazySipHeaderTest extends TestCase
+    {
+
+    public void testMultipleValuesFromBytes() throws Exception
+        {
+        final byte[] bytes = ("Via: SIP/2.0/TCP 192.168.1.10;branch=z9hG4bK1, " +
+            "SIP/2.0/TCP 192.168.1.11;received=127.0.0.1;branch=z9hG4bK2\r\n").getBytes("US-ASCII");
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        final SipHeader via =
+            headerFactory.createHeader("Via", bytes, 5, bytes.length - 7);
+
+        final List<SipHeaderValue> values = via.getValues();
+        assertEquals(2, values.size());
+        assertEquals("SIP/2.0/TCP 192.168.1.10", values.get(0).getBaseValue());
+        assertEquals("z9hG4bK1", values.get(0).getParamValue("branch"));
+        assertEquals("127.0.0.1", values.get(1).getParamValue("received"));
+        assertEquals("z9hG4bK2", values.get(1).getParamValue("branch"));
+        }
+
+    public void testCommasInQuotesAndBrackets() throws Exception
+        {
+        final String contact =
+            "\"Doe, John\" <sip:john@10.0.0.1;a=b,c>;+sip.instance=\"<urn:uuid:1>\"";
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        final SipHeader header = headerFactory.createHeader("Contact", contact);
+
+        final List<SipHeaderValue> values = header.getValues();
+        assertEquals(1, values.size());
+        assertEquals("\"<urn:uuid:1>\"",
+            header.getValue().getParamValue("+sip.instance"));
+        }
+
+    public void testFoldedValue() throws Exception
+        {
+        final byte[] bytes = "1 INVITE,\r\n 2 INVITE".getBytes("US-ASCII");
+        final SipHeader header = new LazySipHeader("X-Test", bytes, 0, bytes.length);
+        final List<SipHeaderValue> values = header.getValues();
+        assertEquals(2, values.size());
+        assertEquals("2 INVITE", values.get(1).getBaseValue());
+        }
+
+    public void testAddValue() throws Exception
+        {
+        final SipHeader header = new LazySipHeader("Via", "SIP/2.0/TCP 1.1.1.1");
+        header.addValue(new SipHeaderValueImpl("SIP/2.0/TCP 2.2.2.2"));
+        assertEquals(2, header.getValues().size());
+        assertEquals("SIP/2.0/TCP 2.2.2.2", header.getValue().getBaseValue());
+        }
+    }
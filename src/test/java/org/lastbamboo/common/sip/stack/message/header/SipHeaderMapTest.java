@@ -0,0 +1,73 @@
+package org.lastbamboo.common.sip.stack.message.header;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the map of SIP headers keyed by well-known header names.
+ */
+public class SipHeaderMapTest extends TestCase
+    {
+
+    public void testLookupFromBytes() throws Exception
+        {
+        final byte[] bytes = "xxContent-Lengthv Call-IDUser-Agent".getBytes("US-ASCII");
+        assertSame(SipHeaderName.CONTENT_LENGTH, SipHeaderName.lookup(bytes, 2, 14));
+        assertSame(SipHeaderName.VIA, SipHeaderName.lookup(bytes, 16, 1));
+        assertSame(SipHeaderName.CALL_ID, SipHeaderName.lookup(bytes, 18, 7));
+        assertNull(SipHeaderName.lookup(bytes, 25, 10));
+        assertNull(SipHeaderName.lookup(bytes, 17, 1));
+        }
+
+    public void testCaseInsensitiveLookup() throws Exception
+        {
+        final byte[] bytes = "content-lengthLCALL-idcseq".getBytes("US-ASCII");
+        assertSame(SipHeaderName.CONTENT_LENGTH, SipHeaderName.lookup(bytes, 0, 14));
+        assertSame(SipHeaderName.CONTENT_LENGTH, SipHeaderName.lookup(bytes, 14, 1));
+        assertSame(SipHeaderName.CALL_ID, SipHeaderName.lookup(bytes, 15, 7));
+        assertSame(SipHeaderName.CSEQ, SipHeaderName.lookup(bytes, 22, 4));
+        assertSame(SipHeaderName.RECORD_ROUTE, SipHeaderName.lookup("record-ROUTE"));
+        assertSame(SipHeaderName.CONTACT, SipHeaderName.lookup("M"));
+        assertNull(SipHeaderName.lookup("Content-Lengt"));
+        assertNull(SipHeaderName.lookup("x"));
+
+        for (final SipHeaderName name : SipHeaderName.values())
+            {
+            assertSame(name, SipHeaderName.lookup(name.getName()));
+            assertSame(name, SipHeaderName.lookup(name.getName().toUpperCase()));
+            if (name.getCompactForm() != 0)
+                {
+                assertSame(name, SipHeaderName.lookup(String.valueOf(name.getCompactForm())));
+                }
+            }
+        }
+
+    public void testKnownAndOtherHeaders() throws Exception
+        {
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        final SipHeaderMap headers = new SipHeaderMap();
+        final SipHeader userAgent = headerFactory.createHeader("User-Agent", "test");
+        final SipHeader via = headerFactory.createHeader("Via", "SIP/2.0/TCP 10.0.0.1");
+        headers.put("User-Agent", userAgent);
+        headers.put("v", via);
+
+        assertEquals(2, headers.size());
+        assertSame(via, headers.get(SipHeaderName.VIA));
+        assertSame(via, headers.get("Via"));
+        assertSame(userAgent, headers.get("User-Agent"));
+
+        // Known headers come first, under their canonical names.
+        final Iterator<Map.Entry<String, SipHeader>> iter = headers.entrySet().iterator();
+        assertEquals("Via", iter.next().getKey());
+        assertEquals("User-Agent", iter.next().getKey());
+        assertFalse(iter.hasNext());
+
+        final SipHeaderMap copy = new SipHeaderMap(headers);
+        assertSame(via, copy.remove("Via"));
+        assertEquals(1, copy.size());
+        assertEquals(2, headers.size());
+        assertEquals(headers.keySet(), new SipHeaderMap(headers).keySet());
+        }
+    }
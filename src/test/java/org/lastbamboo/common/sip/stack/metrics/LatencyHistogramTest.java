@@ -0,0 +1,62 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the fixed memory latency histogram.
+ */
+public class LatencyHistogramTest extends TestCase
+    {
+
+    public void testPercentiles() throws Exception
+        {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++)
+            {
+            histogram.record(i);
+            }
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000, snapshot.getMax());
+        assertEquals(50000.5, snapshot.getMean(), 0.001);
+        assertWithin(50000, snapshot.getValueAtPercentile(50.0));
+        assertWithin(99000, snapshot.getValueAtPercentile(99.0));
+        assertWithin(99900, snapshot.getValueAtPercentile(99.9));
+        assertEquals(100000, snapshot.getValueAtPercentile(100.0));
+        assertEquals(1, snapshot.getValueAtPercentile(0.0));
+        }
+
+    public void testSmallValuesAreExact() throws Exception
+        {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 128; i++)
+            {
+            histogram.record(i);
+            }
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(63, snapshot.getValueAtPercentile(50.0));
+        assertEquals(127, snapshot.getValueAtPercentile(100.0));
+        }
+
+    public void testLimits() throws Exception
+        {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getSnapshot().getValueAtPercentile(99.0));
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        histogram.recordNanos(3000000L);
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(LatencyHistogram.HIGHEST_MICROS, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(10.0));
+        assertWithin(3000, snapshot.getValueAtPercentile(50.0));
+        assertEquals(LatencyHistogram.HIGHEST_MICROS, 
+            snapshot.getValueAtPercentile(100.0));
+        }
+
+    private static void assertWithin(final long expected, final long actual)
+        {
+        assertTrue("Expected about " + expected + " but was " + actual, 
+            actual >= expected && actual <= expected + expected / 64);
+        }
+    }
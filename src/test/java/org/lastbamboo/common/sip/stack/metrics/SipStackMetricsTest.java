@@ -0,0 +1,90 @@
+package org.lastbamboo.common.sip.stack.metrics;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.sip.stack.codec.SipMethod;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+
+/**
+ * Tests for the stack metrics and the counters behind them.
+ */
+public class SipStackMetricsTest extends TestCase
+    {
+
+    public void testConcurrentCounting() throws Exception
+        {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 8;
+        final int increments = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++)
+            {
+            new Thread(new Runnable()
+                {
+                public void run()
+                    {
+                    for (int j = 0; j < increments; j++)
+                        {
+                        counter.increment();
+                        }
+                    counter.add(-10);
+                    done.countDown();
+                    }
+                }).start();
+            }
+        done.await();
+        assertEquals(threads * (increments - 10L), counter.sum());
+        }
+
+    public void testMessagesByMethodAndStatusClass() throws Exception
+        {
+        final SipStackMetrics metrics = new SipStackMetrics();
+        final SipMessageFactory messageFactory = new SipMessageFactoryImpl();
+        final Register register = messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice", 
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("sip:alice@10.0.0.1"));
+
+        metrics.onMessageDecoded(register);
+        metrics.onMessageDecoded(new DoubleCrlfKeepAlive());
+        metrics.onMessageEncoded(messageFactory.createRegisterOk(register), 
+            300);
+        metrics.onMessageEncoded(
+            messageFactory.createRequestTimeoutResponse(register), 200);
+
+        assertEquals(1, metrics.getRequestsDecoded(SipMethod.REGISTER));
+        assertEquals(1, 
+            metrics.getRequestsDecoded(SipMethod.DOUBLE_CRLF_KEEP_ALIVE));
+        assertEquals(0, metrics.getRequestsDecoded(SipMethod.INVITE));
+        assertEquals(1, metrics.getResponsesEncoded(2));
+        assertEquals(1, metrics.getResponsesEncoded(4));
+        assertEquals(500, metrics.getBytesOut());
+
+        final Map<String, Long> encoded = metrics.getResponsesEncoded();
+        assertEquals(6, encoded.size());
+        assertEquals(Long.valueOf(1), encoded.get("4xx"));
+        assertEquals(Long.valueOf(0), encoded.get("6xx"));
+        assertEquals(Long.valueOf(1), 
+            metrics.getRequestsDecoded().get("REGISTER"));
+        }
+
+    public void testGauges() throws Exception
+        {
+        final SipStackMetrics metrics = new SipStackMetrics();
+        metrics.onConnectionOpened();
+        metrics.onConnectionOpened();
+        metrics.onConnectionClosed();
+        metrics.onClientTransactionCreated();
+        metrics.onClientTransactionTerminated();
+        assertEquals(1, metrics.getActiveConnections());
+        assertEquals(0, metrics.getActiveClientTransactions());
+        }
+    }
@@ -0,0 +1,201 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the memory-mapped binding log.
+ */
+public class MappedSipBindingStoreTest extends TestCase
+    {
+
+    private File m_file;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_file = File.createTempFile("bindings", ".log");
+        m_file.delete();
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_file.delete();
+        new File(m_file.getPath() + ".compact").delete();
+        }
+
+    public void testAddRemoveAndReload() throws Exception
+        {
+        MappedSipBindingStore store = new MappedSipBindingStore(m_file);
+        final SipBindingRecord alice = record("alice", 1);
+        store.add(alice);
+        store.add(new SipBindingRecord(URI.create("sip:bob@lastbamboo.org"),
+            URI.create("sip:bob@10.0.0.2"), null, null, 2000L));
+        store.add(record("carol", 3));
+        store.remove(URI.create("sip:carol@lastbamboo.org"));
+        assertEquals(4, store.getRecordCount());
+        store.close();
+
+        store = new MappedSipBindingStore(m_file);
+        assertEquals(4, store.getRecordCount());
+
+        // Appends after reopening go after the existing records.
+        final SipBindingRecord newAlice = record("alice", 4);
+        store.add(newAlice);
+        final List<SipBindingRecord> records = store.load();
+        store.close();
+
+        assertEquals(2, records.size());
+        final SipBindingRecord loadedAlice = records.get(0);
+        assertEquals(newAlice.getAddressOfRecord(), 
+            loadedAlice.getAddressOfRecord());
+        assertEquals(newAlice.getContactUri(), loadedAlice.getContactUri());
+        assertEquals(newAlice.getInstanceId(), loadedAlice.getInstanceId());
+        assertEquals(newAlice.getRemoteAddress(), 
+            loadedAlice.getRemoteAddress());
+        assertEquals(newAlice.getExpirationTime(), 
+            loadedAlice.getExpirationTime());
+        final SipBindingRecord bob = records.get(1);
+        assertNull(bob.getInstanceId());
+        assertNull(bob.getRemoteAddress());
+        assertEquals(2000L, bob.getExpirationTime());
+        }
+
+    public void testGrowAndCompact() throws Exception
+        {
+        final MappedSipBindingStore store = new MappedSipBindingStore(m_file);
+        final List<SipBindingRecord> live = new ArrayList<SipBindingRecord>();
+        for (int i = 0; i < 50000; i++)
+            {
+            final SipBindingRecord record = record("user" + (i % 1000), i);
+            store.add(record);
+            if (i >= 49000)
+                {
+                live.add(record);
+                }
+            }
+        assertTrue(m_file.length() > 1024 * 1024);
+        assertEquals(1000, store.load().size());
+
+        store.compact(live);
+        assertEquals(1000, store.getRecordCount());
+        store.add(record("dave", 1));
+        final List<SipBindingRecord> records = store.load();
+        assertEquals(1001, records.size());
+        assertEquals(49000L, records.get(0).getExpirationTime());
+        store.close();
+        }
+
+    public void testAddsDuringCompaction() throws Exception
+        {
+        final MappedSipBindingStore store = new MappedSipBindingStore(m_file);
+        final SipBindingRecord alice = record("alice", 1);
+        store.add(alice);
+        store.add(record("bob", 2));
+        final List<SipBindingRecord> live = new ArrayList<SipBindingRecord>();
+        live.add(alice);
+        final List<Thread> writers = new ArrayList<Thread>();
+
+        store.compact(new Iterable<SipBindingRecord>()
+            {
+            public Iterator<SipBindingRecord> iterator()
+                {
+                // Another thread changes the bindings while we're 
+                // compacting, and doesn't have to wait for us to finish.
+                final Thread writer = new Thread(new Runnable()
+                    {
+                    public void run()
+                        {
+                        try
+                            {
+                            store.add(record("carol", 3));
+                            store.remove(URI.create(
+                                "sip:alice@lastbamboo.org"));
+                            }
+                        catch (final IOException e)
+                            {
+                            fail("Could not write: " + e);
+                            }
+                        }
+                    });
+                writer.start();
+                try
+                    {
+                    writer.join(5000);
+                    }
+                catch (final InterruptedException e)
+                    {
+                    fail("Interrupted");
+                    }
+                writers.add(writer);
+                return live.iterator();
+                }
+            });
+        assertFalse(writers.get(0).isAlive());
+
+        // Alice, then Carol and the removal of Alice.
+        assertEquals(3, store.getRecordCount());
+        final List<SipBindingRecord> records = store.load();
+        assertEquals(1, records.size());
+        assertEquals(URI.create("sip:carol@lastbamboo.org"), 
+            records.get(0).getAddressOfRecord());
+        store.close();
+        }
+
+    public void testTornRecordIgnored() throws Exception
+        {
+        MappedSipBindingStore store = new MappedSipBindingStore(m_file);
+        store.add(record("alice", 1));
+        store.close();
+
+        // Write the body of a record with no length, as if we crashed 
+        // between the two.
+        final RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.seek(8);
+        final int length = raf.readInt();
+        raf.seek(8 + 4 + length + 4);
+        raf.write(new byte[] {1, 2, 3, 4, 5});
+        raf.close();
+
+        store = new MappedSipBindingStore(m_file);
+        assertEquals(1, store.getRecordCount());
+        assertEquals(1, store.load().size());
+        store.close();
+        }
+
+    public void testNotABindingLog() throws Exception
+        {
+        final RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.writeInt(42);
+        raf.writeInt(1);
+        raf.close();
+        try
+            {
+            new MappedSipBindingStore(m_file);
+            fail("Should not have opened");
+            }
+        catch (final java.io.IOException e)
+            {
+            // Expected.
+            }
+        }
+
+    private static SipBindingRecord record(final String user, 
+        final long expirationTime)
+        {
+        return new SipBindingRecord(
+            URI.create("sip:" + user + "@lastbamboo.org"), 
+            URI.create("sip:" + user + "@10.0.0.1"), 
+            "urn:uuid:" + user, new InetSocketAddress("10.0.0.1", 5060), 
+            expirationTime);
+        }
+    }
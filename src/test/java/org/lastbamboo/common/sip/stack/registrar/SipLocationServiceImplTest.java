@@ -0,0 +1,345 @@
+package org.lastbamboo.common.sip.stack.registrar;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+
+/**
+ * Tests for the in-memory registrar location service.
+ */
+public class SipLocationServiceImplTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final URI m_aor = URI.create("sip:alice@lastbamboo.org");
+
+    private final URI m_contact = URI.create("sip:alice@10.0.0.1");
+
+    private SipTimer m_timer;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testLookups() throws Exception
+        {
+        final SipLocationService service = new SipLocationServiceImpl(m_timer);
+        final UUID instanceId = UUID.randomUUID();
+        final IoSessionStub session = new IoSessionStub();
+        final SipBinding binding = 
+            service.register(createRegister(instanceId, null), session);
+
+        assertEquals(m_aor, binding.getAddressOfRecord());
+        assertEquals(m_contact, binding.getContactUri());
+        assertSame(session, service.getSession(m_aor));
+        assertSame(binding, service.getBindingForContact(m_contact));
+        assertSame(binding, service.getBindingForInstance(instanceId.toUrn()));
+        assertSame(binding, 
+            service.getBindingForInstance("\"<" + instanceId.toUrn() + ">\""));
+        assertNull(service.getSession(URI.create("sip:bob@lastbamboo.org")));
+
+        // The Expires header from the factory is 7200 seconds.
+        final long expires = 
+            binding.getExpirationTime() - System.currentTimeMillis();
+        assertTrue(expires > 7100 * 1000L && expires <= 7200 * 1000L);
+        }
+
+    public void testReregisterReplacesBinding() throws Exception
+        {
+        final SipLocationService service = new SipLocationServiceImpl(m_timer);
+        final UUID oldInstance = UUID.randomUUID();
+        final UUID newInstance = UUID.randomUUID();
+        service.register(createRegister(oldInstance, null), new IoSessionStub());
+        final IoSessionStub session = new IoSessionStub();
+        final SipBinding binding = 
+            service.register(createRegister(newInstance, null), session);
+
+        assertEquals(1, service.size());
+        assertSame(session, service.getSession(m_aor));
+        assertNull(service.getBindingForInstance(oldInstance.toUrn()));
+        assertSame(binding, service.getBindingForInstance(newInstance.toUrn()));
+        assertSame(binding, service.getBindingForContact(m_contact));
+        }
+
+    public void testExpiration() throws Exception
+        {
+        final SipLocationService service = 
+            new SipLocationServiceImpl(m_timer, 1);
+        final UUID instanceId = UUID.randomUUID();
+        service.register(createRegister(instanceId, null), new IoSessionStub());
+        assertNotNull(service.getBinding(m_aor));
+        Thread.sleep(1500);
+        assertNull(service.getBinding(m_aor));
+        assertNull(service.getBindingForContact(m_contact));
+        assertNull(service.getBindingForInstance(instanceId.toUrn()));
+        assertEquals(0, service.size());
+        }
+
+    public void testZeroExpiresRemovesBinding() throws Exception
+        {
+        final SipLocationService service = new SipLocationServiceImpl(m_timer);
+        final UUID instanceId = UUID.randomUUID();
+        service.register(createRegister(instanceId, null), new IoSessionStub());
+        assertNull(service.register(createRegister(instanceId, "0"), 
+            new IoSessionStub()));
+        assertNull(service.getBinding(m_aor));
+        assertNull(service.getBindingForContact(m_contact));
+        assertEquals(0, service.size());
+        }
+
+    public void testClosedSessionRemoved() throws Exception
+        {
+        final SipLocationService service = new SipLocationServiceImpl(m_timer);
+        final IoSessionStub session = new IoSessionStub()
+            {
+            @Override
+            public boolean isClosing()
+                {
+                return true;
+                }
+            };
+        service.register(createRegister(UUID.randomUUID(), null), session);
+        assertEquals(1, service.size());
+        assertNull(service.getSession(m_aor));
+        assertEquals(0, service.size());
+        }
+
+    public void testRestoreAndAttach() throws Exception
+        {
+        final File file = File.createTempFile("bindings", ".log");
+        file.delete();
+        try
+            {
+            MappedSipBindingStore store = new MappedSipBindingStore(file);
+            SipLocationServiceImpl service = 
+                new SipLocationServiceImpl(m_timer, 3600, store);
+            final UUID instanceId = UUID.randomUUID();
+            final IoSessionStub session = new IoSessionStub();
+            service.register(createRegister(instanceId, null), session);
+            final SipBinding bob = service.register(
+                createRegister(URI.create("sip:bob@lastbamboo.org"), 
+                    URI.create("sip:bob@10.0.0.2")), 
+                new IoSessionStub());
+            service.unregister(bob.getAddressOfRecord());
+            store.close();
+
+            store = new MappedSipBindingStore(file);
+            service = new SipLocationServiceImpl(m_timer, 3600, store);
+            assertEquals(1, service.restore());
+            final SipBinding restored = service.getBinding(m_aor);
+            assertNull(restored.getSession());
+            assertEquals(session.getRemoteAddress(), 
+                restored.getRemoteAddress());
+            assertSame(restored, 
+                service.getBindingForInstance(instanceId.toUrn()));
+
+            // Connections from other addresses don't match.
+            assertNull(service.attach(new IoSessionStub()
+                {
+                @Override
+                public SocketAddress getRemoteAddress()
+                    {
+                    return new java.net.InetSocketAddress("10.0.0.9", 5060);
+                    }
+                }));
+            final IoSessionStub reconnected = new IoSessionStub();
+            assertSame(restored, service.attach(reconnected));
+            assertSame(reconnected, service.getSession(m_aor));
+            assertNull(service.attach(new IoSessionStub()));
+            store.close();
+            }
+        finally
+            {
+            file.delete();
+            }
+        }
+
+    public void testOnlyOwnerAttached() throws Exception
+        {
+        final File file = File.createTempFile("bindings", ".log");
+        file.delete();
+        try
+            {
+            MappedSipBindingStore store = new MappedSipBindingStore(file);
+            SipLocationServiceImpl service = 
+                new SipLocationServiceImpl(m_timer, 3600, store);
+            final UUID instanceId = UUID.randomUUID();
+            service.register(createRegister(instanceId, null), 
+                createSession("10.0.0.5", 1000));
+            store.close();
+
+            store = new MappedSipBindingStore(file);
+            service = new SipLocationServiceImpl(m_timer, 3600, store);
+            assertEquals(1, service.restore());
+
+            // Another client behind the same NAT doesn't get Alice's calls,
+            // even though hers is the only binding from that IP address.
+            assertNull(service.attach(createSession("10.0.0.5", 2000)));
+            assertNull(service.getSession(m_aor));
+
+            // Nor does a client registering another address-of-record with
+            // Alice's contact and instance ID.
+            final URI bob = URI.create("sip:bob@lastbamboo.org");
+            final IoSessionStub bobSession = createSession("10.0.0.5", 3000);
+            service.register(createRegister(bob, m_contact, instanceId, null),
+                bobSession);
+            assertSame(bobSession, service.getSession(bob));
+            assertNull(service.getSession(m_aor));
+
+            // Alice registering again from a new port gets them.
+            final IoSessionStub alice = createSession("10.0.0.5", 4000);
+            service.register(createRegister(instanceId, null), alice);
+            assertSame(alice, service.getSession(m_aor));
+            assertNull(service.attach(createSession("10.0.0.5", 1000)));
+            store.close();
+            }
+        finally
+            {
+            file.delete();
+            }
+        }
+
+    public void testCompactionOffCallingThread() throws Exception
+        {
+        final CountingStore store = new CountingStore();
+        final SipLocationService service = 
+            new SipLocationServiceImpl(m_timer, 3600, store);
+        final Register register = createRegister(UUID.randomUUID(), null);
+        final IoSessionStub session = new IoSessionStub();
+
+        // Each registration adds a record for the same binding.
+        for (int i = 0; i < 10000; i++)
+            {
+            service.register(register, session);
+            }
+        assertTrue(store.m_compacted.await(5, TimeUnit.SECONDS));
+        assertNotNull(store.m_compactor);
+        assertNotSame(Thread.currentThread(), store.m_compactor);
+        assertEquals(1, store.getRecordCount());
+        }
+
+    private IoSessionStub createSession(final String host, final int port)
+        {
+        return new IoSessionStub()
+            {
+            @Override
+            public SocketAddress getRemoteAddress()
+                {
+                return new InetSocketAddress(host, port);
+                }
+            };
+        }
+
+    private Register createRegister(final UUID instanceId, 
+        final String expires) throws Exception
+        {
+        return createRegister(m_aor, m_contact, instanceId, expires);
+        }
+
+    private Register createRegister(final URI aor, final URI contact) 
+        throws Exception
+        {
+        return createRegister(aor, contact, UUID.randomUUID(), null);
+        }
+
+    private Register createRegister(final URI aor, final URI contact,
+        final UUID instanceId, final String expires) throws Exception
+        {
+        final Register register = m_messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice", aor, instanceId, 
+            contact);
+        if (expires == null)
+            {
+            return register;
+            }
+        final Map<String, SipHeader> headers = 
+            new HashMap<String, SipHeader>(register.getHeaders());
+        headers.put(SipHeaderNames.EXPIRES, 
+            m_headerFactory.createHeader(SipHeaderNames.EXPIRES, expires));
+        return new Register(new URI("sip:lastbamboo.org"), headers);
+        }
+
+    /**
+     * Store that just counts records and notes the thread compacting it.
+     */
+    private static final class CountingStore implements SipBindingStore
+        {
+
+        private final CountDownLatch m_compacted = new CountDownLatch(1);
+
+        private volatile int m_records;
+
+        private volatile Thread m_compactor;
+
+        public void add(final SipBindingRecord record)
+            {
+            m_records++;
+            }
+
+        public void remove(final URI addressOfRecord)
+            {
+            m_records++;
+            }
+
+        public List<SipBindingRecord> load()
+            {
+            return new ArrayList<SipBindingRecord>();
+            }
+
+        public void compact(final Iterable<SipBindingRecord> records)
+            throws IOException
+            {
+            int count = 0;
+            for (final SipBindingRecord record : records)
+                {
+                count++;
+                }
+            m_records = count;
+            m_compactor = Thread.currentThread();
+            m_compacted.countDown();
+            }
+
+        public int getRecordCount()
+            {
+            return m_records;
+            }
+
+        public void close()
+            {
+            }
+        }
+    }
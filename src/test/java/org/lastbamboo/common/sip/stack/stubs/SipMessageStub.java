@@ -8,6 +8,8 @@ import org.lastbamboo.common.sip.stack.codec.SipMethod;
 import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderName;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderVisitor;
 
 /**
  * Stub for testing.
@@ -33,6 +35,12 @@ public class SipMessageStub implements SipMessage
         return null;
         }
 
+    public SipHeader getHeader(SipHeaderName headerName)
+        {
+        // TODO Auto-generated method stub
+        return null;
+        }
+
     public List getRouteSet()
         {
         // TODO Auto-generated method stub
@@ -63,6 +71,10 @@ public class SipMessageStub implements SipMessage
         return null;
         }
 
+    public void acceptHeaders(SipHeaderVisitor visitor)
+        {
+        }
+
     public String getTransactionKey() {
         // TODO Auto-generated method stub
         return null;
@@ -72,4 +84,32 @@ public class SipMessageStub implements SipMessage
         // TODO Auto-generated method stub
         return null;
     }
+    
+    public ByteBuffer getWireForm()
+        {
+        return null;
+        }
+
+    public ByteBuffer[] getWireFormSlices()
+        {
+        return null;
+        }
+
+    public void setWireForm(ByteBuffer encoded)
+        {
+        }
+
+    public boolean markWritten()
+        {
+        return false;
+        }
+
+    public long getDecodeTime()
+        {
+        return 0;
+        }
+
+    public void setDecodeTime(long decodeTime)
+        {
+        }
     }
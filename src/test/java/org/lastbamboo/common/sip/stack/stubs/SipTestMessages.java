@@ -0,0 +1,58 @@
+package org.lastbamboo.common.sip.stack.stubs;
+
+import java.net.URI;
+
+import org.apache.commons.id.uuid.UUID;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+
+/**
+ * Requests shared by the tests, so each test only adds what it needs.
+ */
+public final class SipTestMessages
+    {
+
+    private static final SipHeaderFactory HEADER_FACTORY =
+        new SipHeaderFactoryImpl();
+
+    private static final SipMessageFactory MESSAGE_FACTORY =
+        new SipMessageFactoryImpl(HEADER_FACTORY);
+
+    private SipTestMessages()
+        {
+        // Only static methods.
+        }
+
+    /**
+     * Creates an INVITE from Alice to Bob with no body and no Via.
+     *
+     * @return The INVITE.
+     * @throws Exception If the request couldn't be created.
+     */
+    public static Invite createInvite() throws Exception
+        {
+        return MESSAGE_FACTORY.createInviteRequest("Alice",
+            new URI("sip:bob@lastbamboo.org"),
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(),
+            new URI("sip:alice@10.0.0.1"),
+            ByteBuffer.allocate(0));
+        }
+
+    /**
+     * Creates a Via from Alice's host with a new branch, for requests that
+     * need to look as if they'd arrived over the network.
+     *
+     * @param transport The transport, such as "TCP" or "UDP".
+     * @return The Via header.
+     */
+    public static SipHeader createVia(final String transport)
+        {
+        return HEADER_FACTORY.createHeader("Via", "SIP/2.0/" + transport +
+            " 10.0.0.1;branch=z9hG4bK" + UUID.randomUUID().toString());
+        }
+    }
@@ -0,0 +1,83 @@
+package org.lastbamboo.common.sip.stack.timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the hashed timing wheel.
+ */
+public class HashedWheelSipTimerTest extends TestCase
+    {
+
+    private SipTimer m_timer;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 8, null);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testExpiresAfterDelay() throws Exception
+        {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+
+        // This is longer than one turn of the wheel, so it has to wait out
+        // some rounds.
+        final SipTimeout timeout = m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                latch.countDown();
+                }
+            }, 120);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 115);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        }
+
+    public void testCancel() throws Exception
+        {
+        final AtomicInteger fired = new AtomicInteger();
+        final Runnable task = new Runnable()
+            {
+            public void run()
+                {
+                fired.incrementAndGet();
+                }
+            };
+        final List<SipTimeout> timeouts = new ArrayList<SipTimeout>();
+        for (int i = 0; i < 10000; i++)
+            {
+            timeouts.add(m_timer.schedule(task, 500 + i % 50));
+            }
+        for (int i = 0; i < timeouts.size(); i += 2)
+            {
+            assertTrue(timeouts.get(i).cancel());
+            assertTrue(timeouts.get(i).isCancelled());
+            }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                latch.countDown();
+                }
+            }, 700);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(5000, fired.get());
+        }
+    }
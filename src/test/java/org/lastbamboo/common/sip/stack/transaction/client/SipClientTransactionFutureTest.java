@@ -0,0 +1,224 @@
+package org.lastbamboo.common.sip.stack.transaction.client;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.SipResponseCode;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.stubs.SipTestMessages;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * Tests for waiting on client transactions through futures.
+ */
+public class SipClientTransactionFutureTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory =
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final List<SipMessage> m_written =
+        Collections.synchronizedList(new ArrayList<SipMessage>());
+
+    private final IoSessionStub m_session = new IoSessionStub()
+        {
+        @Override
+        public WriteFuture write(final Object message)
+            {
+            m_written.add((SipMessage) message);
+            return super.write(message);
+            }
+        };
+
+    private SipTransactionTracker m_tracker;
+
+    private SipTimer m_timer;
+
+    private SipTcpTransportLayer m_transport;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_tracker = new SipTransactionTrackerImpl();
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        m_transport = new SipTcpTransportLayerImpl(
+            new SipTransactionFactoryImpl(m_tracker, m_messageFactory, 10,
+                m_timer), m_headerFactory, m_messageFactory);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testFinalResponse() throws Exception
+        {
+        final SipClientTransactionFuture future =
+            m_transport.inviteAsync(SipTestMessages.createInvite(), m_session);
+        assertFalse(future.isDone());
+        try
+            {
+            future.get(50, TimeUnit.MILLISECONDS);
+            fail("Should have timed out waiting");
+            }
+        catch (final TimeoutException e)
+            {
+            // Expected.
+            }
+
+        final Invite sent = (Invite) m_written.get(0);
+        final SipResponse ok = m_messageFactory.createInviteOk(sent,
+            UUID.randomUUID(), new URI("sip:bob@10.0.0.2"),
+            ByteBuffer.allocate(0));
+        ok.accept(m_tracker.getClientTransaction(ok));
+
+        assertTrue(future.isDone());
+        assertSame(ok, future.get());
+        assertNull(m_tracker.getClientTransaction(ok));
+        }
+
+    public void testTimeout() throws Exception
+        {
+        final SipClientTransactionFuture future =
+            m_transport.inviteAsync(SipTestMessages.createInvite(), m_session);
+
+        // Timer B is 64 * T1, or 640 milliseconds here.
+        final SipResponse response = future.get(5, TimeUnit.SECONDS);
+        assertEquals(SipResponseCode.REQUEST_TIMEOUT,
+            response.getStatusCode());
+        }
+
+    public void testInviteAndWaitTimesOut() throws Exception
+        {
+        try
+            {
+            m_transport.inviteAndWait(SipTestMessages.createInvite(), 
+                m_session, 50, TimeUnit.MILLISECONDS);
+            fail("Should have timed out waiting");
+            }
+        catch (final TimeoutException e)
+            {
+            // Expected.
+            }
+
+        // Giving up abandons the transaction.
+        assertNull(m_tracker.getClientTransaction(m_written.get(0)));
+        }
+
+    public void testInviteAndWaitAfterProvisional() throws Exception
+        {
+        final SipTcpTransportLayer transport = new SipTcpTransportLayerImpl(
+            new SipTransactionFactoryImpl(m_tracker, m_messageFactory, 5,
+                m_timer), m_headerFactory, m_messageFactory);
+
+        // Answers each INVITE with a 100 Trying and then nothing.
+        final IoSessionStub callee = new IoSessionStub()
+            {
+            @Override
+            public WriteFuture write(final Object message)
+                {
+                final Invite invite = (Invite) message;
+                try
+                    {
+                    final SipResponse trying = (SipResponse)
+                        m_messageFactory.createErrorResponse(invite,
+                            UUID.randomUUID(), new URI("sip:bob@10.0.0.2"),
+                            100, "Trying");
+                    trying.accept(m_tracker.getClientTransaction(trying));
+                    }
+                catch (final Exception e)
+                    {
+                    fail("Could not create response: " + e);
+                    }
+                return super.write(message);
+                }
+            };
+
+        // Timer C is 362 * T1, or 1810 milliseconds here, and the wait 
+        // ends with the 408 from timer C rather than the timeout.
+        final SipResponse response = transport.inviteAndWait(
+            SipTestMessages.createInvite(), callee, 10, TimeUnit.SECONDS);
+        assertEquals(SipResponseCode.REQUEST_TIMEOUT,
+            response.getStatusCode());
+        }
+
+    public void testCancel() throws Exception
+        {
+        final SipClientTransactionFuture future =
+            m_transport.inviteAsync(SipTestMessages.createInvite(), m_session);
+        final SipMessage sent = m_written.get(0);
+        final SipClientTransaction transaction =
+            m_tracker.getClientTransaction(sent);
+        assertNotNull(transaction);
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertFalse(future.cancel(false));
+        assertNull(m_tracker.getClientTransaction(sent));
+        try
+            {
+            future.get();
+            fail("Should have been cancelled");
+            }
+        catch (final CancellationException e)
+            {
+            // Expected.
+            }
+
+        assertEquals(SipClientTransactionState.TERMINATED,
+            transaction.getState());
+        assertFalse(transaction.cancel());
+        }
+
+    public void testRegisterAndWait() throws Exception
+        {
+        final SipTcpTransportLayer transport = new SipTcpTransportLayerImpl(
+            new SipTransactionFactoryImpl(m_tracker, m_messageFactory, 500,
+                m_timer), m_headerFactory, m_messageFactory);
+
+        // Answers each REGISTER as soon as it's written.
+        final IoSessionStub registrar = new IoSessionStub()
+            {
+            @Override
+            public WriteFuture write(final Object message)
+                {
+                final SipResponse ok =
+                    m_messageFactory.createRegisterOk((Register) message);
+                ok.accept(m_tracker.getClientTransaction(ok));
+                return super.write(message);
+                }
+            };
+        final Register register = m_messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice",
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(),
+            new URI("sip:alice@10.0.0.1"));
+        final SipResponse response =
+            transport.registerAndWait(register, registrar);
+        assertEquals(SipResponseCode.OK, response.getStatusCode());
+        }
+    }
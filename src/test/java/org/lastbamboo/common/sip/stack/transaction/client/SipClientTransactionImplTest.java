@@ -0,0 +1,290 @@
+package org.lastbamboo.common.sip.stack.transaction.client;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoder;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoderImpl;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessagePresizedEncoder;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.RequestTimeoutResponse;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.stubs.SipTestMessages;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * Tests for the client transaction state machines.
+ */
+public class SipClientTransactionImplTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final List<OfferAnswerMessage> m_succeeded = 
+        new ArrayList<OfferAnswerMessage>();
+
+    private final List<OfferAnswerMessage> m_failed = 
+        new ArrayList<OfferAnswerMessage>();
+
+    private final OfferAnswerTransactionListener m_listener = 
+        new OfferAnswerTransactionListener()
+        {
+        public void onTransactionSucceeded(final OfferAnswerMessage message)
+            {
+            m_succeeded.add(message);
+            }
+
+        public void onTransactionFailed(final OfferAnswerMessage message)
+            {
+            m_failed.add(message);
+            }
+        };
+
+    private SipTransactionTracker m_tracker;
+
+    private SipTimer m_timer;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_tracker = new SipTransactionTrackerImpl();
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testInviteWithProvisionalAndOk() throws Exception
+        {
+        final Invite invite = createInvite();
+        final SipClientTransaction ct = createTransaction(invite, 500, null);
+        assertEquals(SipClientTransactionState.CALLING, ct.getState());
+
+        ct.visitResponse((SipResponse) m_messageFactory.createErrorResponse(
+            invite, UUID.randomUUID(), new URI("sip:bob@10.0.0.2"), 180, 
+            "Ringing"));
+        assertEquals(SipClientTransactionState.PROCEEDING, ct.getState());
+        assertSame(ct, m_tracker.getClientTransaction(invite));
+
+        final SipResponse ok = m_messageFactory.createInviteOk(invite, 
+            UUID.randomUUID(), new URI("sip:bob@10.0.0.2"), invite.getBody());
+        ct.visitResponse(ok);
+        assertEquals(SipClientTransactionState.TERMINATED, ct.getState());
+        assertEquals(1, m_succeeded.size());
+        assertTrue(m_failed.isEmpty());
+        assertNull(m_tracker.getClientTransaction(invite));
+        }
+
+    public void testInviteErrorOverReliableTransport() throws Exception
+        {
+        final Invite invite = createInvite();
+        final SipClientTransaction ct = createTransaction(invite, 500, null);
+        ct.visitResponse(createBusy(invite));
+
+        // Timer D is zero over reliable transports.
+        assertEquals(SipClientTransactionState.TERMINATED, ct.getState());
+        assertEquals(1, m_failed.size());
+        assertNull(m_tracker.getClientTransaction(invite));
+        }
+
+    public void testInviteProvisionalThenSilence() throws Exception
+        {
+        final long timerC = SipStackMetrics.getInstance().getTimerCFirings();
+        final Invite invite = createInvite();
+        final SipClientTransaction ct = createTransaction(invite, 5, null);
+        ct.visitResponse((SipResponse) m_messageFactory.createErrorResponse(
+            invite, UUID.randomUUID(), new URI("sip:bob@10.0.0.2"), 100, 
+            "Trying"));
+        assertEquals(SipClientTransactionState.PROCEEDING, ct.getState());
+
+        // Timer B would have fired at 320 milliseconds, but it no longer
+        // applies.
+        Thread.sleep(500);
+        assertEquals(SipClientTransactionState.PROCEEDING, ct.getState());
+        assertTrue(m_failed.isEmpty());
+
+        // Timer C is 362 * T1, or 1810 milliseconds here.
+        final long end = System.currentTimeMillis() + 5000;
+        while (m_failed.isEmpty() && System.currentTimeMillis() < end)
+            {
+            Thread.sleep(10);
+            }
+        assertEquals(1, m_failed.size());
+        assertTrue(m_failed.get(0) instanceof RequestTimeoutResponse);
+        assertEquals(SipClientTransactionState.TERMINATED, ct.getState());
+        assertNull(m_tracker.getClientTransaction(invite));
+        assertEquals(timerC + 1, 
+            SipStackMetrics.getInstance().getTimerCFirings());
+        }
+
+    public void testAckEncoded() throws Exception
+        {
+        final List<Object> written = new ArrayList<Object>();
+        final IoSessionStub io = new IoSessionStub()
+            {
+            @Override
+            public WriteFuture write(final Object message)
+                {
+                written.add(message);
+                return super.write(message);
+                }
+            };
+        final Invite invite = createInvite();
+        final SipClientTransaction ct = createTransaction(invite, 500, io);
+        final SipResponse busy = createBusy(invite);
+        ct.visitResponse(busy);
+        assertEquals(1, written.size());
+
+        final SipMessage ack = (SipMessage) written.get(0);
+        final String encoded = 
+            MinaUtils.toAsciiString(new SipMessageEncoderImpl().encode(ack));
+        assertTrue(encoded, encoded.startsWith(
+            "ACK sip:bob@lastbamboo.org SIP/2.0\r\n"));
+        final String cseq = 
+            invite.getHeader("CSeq").getValue().getBaseValue();
+        assertTrue(encoded, encoded.contains("CSeq: " + 
+            cseq.replace("INVITE", "ACK") + "\r\n"));
+        assertTrue(encoded, encoded.contains("Content-Length: 0\r\n"));
+        assertTrue(encoded, encoded.contains("Via: SIP/2.0/UDP 10.0.0.1;"));
+        assertTrue(encoded, encoded.contains("Call-ID: " + 
+            invite.getHeader("Call-ID").getValue().getBaseValue() + "\r\n"));
+        final String toTag = 
+            busy.getHeader("To").getValue().getParamValue("tag");
+        assertNotNull(toTag);
+        assertTrue(encoded, encoded.contains("tag=" + toTag));
+        assertTrue(encoded, encoded.endsWith("\r\n\r\n"));
+
+        final SipMessageEncoder presized = 
+            new SipMessagePresizedEncoder(new SimpleByteBufferAllocator());
+        assertEquals(encoded, MinaUtils.toAsciiString(presized.encode(ack)));
+        }
+
+    public void testNonInviteTimeout() throws Exception
+        {
+        final Register register = createRegister();
+        final SipClientTransaction ct = createTransaction(register, 2, null);
+        assertEquals(SipClientTransactionState.TRYING, ct.getState());
+        
+        final long end = System.currentTimeMillis() + 5000;
+        while (m_failed.isEmpty() && System.currentTimeMillis() < end)
+            {
+            Thread.sleep(10);
+            }
+        assertEquals(1, m_failed.size());
+        assertTrue(m_failed.get(0) instanceof RequestTimeoutResponse);
+        assertEquals(SipClientTransactionState.TERMINATED, ct.getState());
+        assertNull(m_tracker.getClientTransaction(register));
+        
+        // A late response is ignored.
+        ct.visitResponse(m_messageFactory.createRegisterOk(register));
+        assertTrue(m_succeeded.isEmpty());
+        }
+
+    public void testRetransmissionsOverUnreliableTransport() throws Exception
+        {
+        final List<Object> written = new ArrayList<Object>();
+        final IoSessionStub io = new IoSessionStub()
+            {
+            @Override
+            public TransportType getTransportType()
+                {
+                return TransportType.DATAGRAM;
+                }
+
+            @Override
+            public WriteFuture write(final Object message)
+                {
+                synchronized (written)
+                    {
+                    written.add(message);
+                    }
+                return super.write(message);
+                }
+            };
+        final Invite invite = createInvite();
+        final SipClientTransaction ct = createTransaction(invite, 20, io);
+
+        // Timer A fires at 20, 60 and 140 milliseconds.
+        Thread.sleep(200);
+        final int retransmissions;
+        synchronized (written)
+            {
+            retransmissions = written.size();
+            }
+        assertTrue(retransmissions >= 2);
+
+        final SipResponse busy = createBusy(invite);
+        ct.visitResponse(busy);
+        assertEquals(SipClientTransactionState.COMPLETED, ct.getState());
+        assertEquals(1, m_failed.size());
+        assertSame(ct, m_tracker.getClientTransaction(invite));
+
+        // A retransmitted response is absorbed and just gets another ACK.
+        ct.visitResponse(busy);
+        assertEquals(1, m_failed.size());
+        Thread.sleep(100);
+        synchronized (written)
+            {
+            assertEquals(retransmissions + 2, written.size());
+            final Object ack = written.get(written.size() - 1);
+            assertTrue(ack instanceof UnknownSipRequest);
+            assertTrue(((SipMessage) ack).getStartLine().startsWith("ACK "));
+            }
+        }
+
+    private SipClientTransaction createTransaction(final SipMessage request,
+        final int t1, final IoSessionStub io)
+        {
+        final SipTransactionFactory factory = new SipTransactionFactoryImpl(
+            m_tracker, m_messageFactory, t1, m_timer);
+        return factory.createClientTransaction(request, m_listener, io);
+        }
+
+    private SipResponse createBusy(final Invite invite) throws Exception
+        {
+        return (SipResponse) m_messageFactory.createErrorResponse(invite, 
+            UUID.randomUUID(), new URI("sip:bob@10.0.0.2"), 486, "Busy Here");
+        }
+
+    private Invite createInvite() throws Exception
+        {
+        return m_messageFactory.addVia(SipTestMessages.createInvite(), 
+            SipTestMessages.createVia("UDP"));
+        }
+
+    private Register createRegister() throws Exception
+        {
+        final Register register = m_messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice", 
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("sip:alice@10.0.0.1"));
+        return m_messageFactory.addVia(register, 
+            SipTestMessages.createVia("TCP"));
+        }
+    }
@@ -0,0 +1,149 @@
+package org.lastbamboo.common.sip.stack.transaction.server;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.stubs.SipTestMessages;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * Tests for absorbing retransmitted requests in server transactions.
+ */
+public class SipServerTransactionTrackerImplTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final List<Object> m_written = new ArrayList<Object>();
+
+    private final IoSessionStub m_session = new IoSessionStub()
+        {
+        @Override
+        public WriteFuture write(final Object message)
+            {
+            m_written.add(message);
+            return super.write(message);
+            }
+        };
+
+    private SipTimer m_timer;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testRetransmittedRegisterGetsLastResponse() throws Exception
+        {
+        final SipServerTransactionTracker tracker = 
+            new SipServerTransactionTrackerImpl(m_timer, 500);
+        final Register register = createRegister();
+        assertTrue(tracker.onRequest(register, m_session));
+        assertEquals(SipServerTransactionState.TRYING, 
+            tracker.getServerTransaction(register).getState());
+
+        // Nothing to replay until we've responded.
+        assertFalse(tracker.onRequest(register, m_session));
+        assertTrue(m_written.isEmpty());
+
+        final SipResponse ok = m_messageFactory.createRegisterOk(register);
+        tracker.onResponse(ok);
+        final SipServerTransaction st = tracker.getServerTransaction(ok);
+        assertEquals(SipServerTransactionState.COMPLETED, st.getState());
+        assertSame(ok, st.getLastResponse());
+
+        assertFalse(tracker.onRequest(register, m_session));
+        assertEquals(1, m_written.size());
+        assertSame(ok, m_written.get(0));
+
+        // A different branch is a new transaction.
+        assertTrue(tracker.onRequest(createRegister(), m_session));
+        }
+
+    public void testInviteErrorAbsorbsAck() throws Exception
+        {
+        final SipServerTransactionTracker tracker = 
+            new SipServerTransactionTrackerImpl(m_timer, 500);
+        final Invite invite = createInvite();
+        assertTrue(tracker.onRequest(invite, m_session));
+        final SipServerTransaction st = tracker.getServerTransaction(invite);
+        assertEquals(SipServerTransactionState.PROCEEDING, st.getState());
+
+        final SipResponse busy = (SipResponse) 
+            m_messageFactory.createErrorResponse(invite, UUID.randomUUID(), 
+                new URI("sip:bob@10.0.0.2"), 486, "Busy Here");
+        tracker.onResponse(busy);
+        assertEquals(SipServerTransactionState.COMPLETED, st.getState());
+
+        final SipMessage ack = m_messageFactory.createAck(invite, busy);
+        assertFalse(tracker.onRequest(ack, m_session));
+        assertEquals(SipServerTransactionState.CONFIRMED, st.getState());
+
+        // Responses after the final response don't replace it.
+        tracker.onResponse(m_messageFactory.createInviteOk(invite, 
+            UUID.randomUUID(), new URI("sip:bob@10.0.0.2"), invite.getBody()));
+        assertSame(busy, st.getLastResponse());
+        }
+
+    public void testTransactionsExpire() throws Exception
+        {
+        final SipServerTransactionTracker tracker = 
+            new SipServerTransactionTrackerImpl(m_timer, 2);
+        final Register register = createRegister();
+        assertTrue(tracker.onRequest(register, m_session));
+        final SipServerTransaction st = tracker.getServerTransaction(register);
+        tracker.onResponse(m_messageFactory.createRegisterOk(register));
+
+        // 64*T1 is 128 milliseconds.
+        final long end = System.currentTimeMillis() + 5000;
+        while (st.getState() != SipServerTransactionState.TERMINATED && 
+            System.currentTimeMillis() < end)
+            {
+            Thread.sleep(10);
+            }
+        assertEquals(SipServerTransactionState.TERMINATED, st.getState());
+        assertNull(tracker.getServerTransaction(register));
+        assertTrue(tracker.onRequest(register, m_session));
+        }
+
+    private Invite createInvite() throws Exception
+        {
+        return m_messageFactory.addVia(SipTestMessages.createInvite(), 
+            SipTestMessages.createVia("TCP"));
+        }
+
+    private Register createRegister() throws Exception
+        {
+        final Register register = m_messageFactory.createRegisterRequest(
+            new URI("sip:lastbamboo.org"), "Alice", 
+            new URI("sip:alice@lastbamboo.org"), UUID.randomUUID(), 
+            new URI("sip:alice@10.0.0.1"));
+        return m_messageFactory.addVia(register, 
+            SipTestMessages.createVia("TCP"));
+        }
+    }
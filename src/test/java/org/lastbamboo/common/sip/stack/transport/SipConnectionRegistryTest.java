@@ -0,0 +1,91 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+
+/**
+ * Tests for the registry of connections keyed by remote address.
+ */
+public class SipConnectionRegistryTest extends TestCase
+    {
+
+    public void testLookups() throws Exception
+        {
+        final SipConnectionRegistry registry = new SipConnectionRegistry();
+        final InetSocketAddress first = new InetSocketAddress("10.0.0.1", 5060);
+        final InetSocketAddress second = new InetSocketAddress("10.0.0.2", 5060);
+        final InetSocketAddress third = new InetSocketAddress("10.0.0.3", 5060);
+        final Session firstSession = new Session(first);
+        final Session secondSession = new Session(second);
+        registry.add(firstSession);
+        registry.add(secondSession);
+
+        assertEquals(2, registry.size());
+        assertSame(firstSession, registry.get(first));
+        assertNull(registry.get(third));
+        assertSame(secondSession, registry.getAny(Arrays.asList(third, second, first)));
+        assertNull(registry.getAny(Arrays.asList(third)));
+        }
+
+    public void testRemoveOnlyRegisteredSession() throws Exception
+        {
+        final SipConnectionRegistry registry = new SipConnectionRegistry();
+        final InetSocketAddress address = new InetSocketAddress("10.0.0.1", 5060);
+        final Session oldSession = new Session(address);
+        final Session newSession = new Session(address);
+        registry.add(oldSession);
+        registry.add(newSession);
+
+        // The old session closing shouldn't drop the client's new connection.
+        assertFalse(registry.remove(oldSession));
+        assertSame(newSession, registry.get(address));
+        assertTrue(registry.remove(newSession));
+        assertEquals(0, registry.size());
+        }
+
+    public void testClosingSessionsRemoved() throws Exception
+        {
+        final SipConnectionRegistry registry = new SipConnectionRegistry();
+        final InetSocketAddress first = new InetSocketAddress("10.0.0.1", 5060);
+        final InetSocketAddress second = new InetSocketAddress("10.0.0.2", 5060);
+        final Session firstSession = new Session(first);
+        final Session secondSession = new Session(second);
+        registry.add(firstSession);
+        registry.add(secondSession);
+
+        firstSession.m_closing = true;
+        assertSame(secondSession, registry.getAny(Arrays.asList(first, second)));
+        assertEquals(1, registry.size());
+        assertNull(registry.get(first));
+        }
+
+    private static final class Session extends IoSessionStub
+        {
+
+        private final InetSocketAddress m_address;
+
+        private volatile boolean m_closing;
+
+        private Session(final InetSocketAddress address)
+            {
+            m_address = address;
+            }
+
+        @Override
+        public SocketAddress getRemoteAddress()
+            {
+            return m_address;
+            }
+
+        @Override
+        public boolean isClosing()
+            {
+            return m_closing;
+            }
+        }
+    }
@@ -0,0 +1,165 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.stack.IdleSipSessionListener;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * Tests for scheduling CRLF keep-alives and detecting dead flows.
+ */
+public class SipKeepAliveSchedulerTest extends TestCase
+    {
+
+    private SipTimer m_timer;
+
+    private SipTcpTransportLayer m_transport;
+
+    private final AtomicInteger m_deadFlows = new AtomicInteger();
+
+    private final IdleSipSessionListener m_listener = 
+        new IdleSipSessionListener()
+        {
+        public void onIdleSession()
+            {
+            m_deadFlows.incrementAndGet();
+            }
+        };
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        final SipMessageFactory messageFactory = 
+            new SipMessageFactoryImpl(headerFactory);
+        m_transport = new SipTcpTransportLayerImpl(
+            new SipTransactionFactoryImpl(new SipTransactionTrackerImpl(), 
+                messageFactory, 500), headerFactory, messageFactory);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testPongKeepsFlowOpen() throws Exception
+        {
+        final Flow flow = new Flow(true);
+        final SipKeepAliveScheduler scheduler = 
+            new SipKeepAliveScheduler(m_transport, m_timer, 100, 50, m_listener);
+        scheduler.add(flow);
+        Thread.sleep(600);
+
+        assertTrue("Expected several pings: " + flow.m_pings.get(), 
+            flow.m_pings.get() >= 3);
+        assertFalse(flow.m_closed);
+        assertEquals(1, scheduler.size());
+        assertEquals(0, m_deadFlows.get());
+
+        scheduler.remove(flow);
+        final int pings = flow.m_pings.get();
+        Thread.sleep(300);
+        assertEquals(pings, flow.m_pings.get());
+        }
+
+    public void testNoPongClosesFlow() throws Exception
+        {
+        final Flow flow = new Flow(false);
+        final SipKeepAliveScheduler scheduler = 
+            new SipKeepAliveScheduler(m_transport, m_timer, 100, 50, m_listener);
+        scheduler.add(flow);
+        Thread.sleep(500);
+
+        assertEquals(1, flow.m_pings.get());
+        assertTrue(flow.m_closed);
+        assertEquals(0, scheduler.size());
+        assertEquals(1, m_deadFlows.get());
+        }
+
+    public void testRecentTrafficSkipsPing() throws Exception
+        {
+        final Flow flow = new Flow(false)
+            {
+            @Override
+            public long getLastReadTime()
+                {
+                return System.currentTimeMillis();
+                }
+            };
+        final SipKeepAliveScheduler scheduler = 
+            new SipKeepAliveScheduler(m_transport, m_timer, 100, 50, m_listener);
+        scheduler.add(flow);
+        Thread.sleep(400);
+
+        assertEquals(0, flow.m_pings.get());
+        assertFalse(flow.m_closed);
+        }
+
+    /**
+     * Session that optionally answers each ping right away.
+     */
+    private static class Flow extends IoSessionStub
+        {
+
+        private final boolean m_pong;
+
+        private final AtomicInteger m_pings = new AtomicInteger();
+
+        private volatile long m_lastReadTime = System.currentTimeMillis();
+
+        private volatile boolean m_closed;
+
+        private Flow(final boolean pong)
+            {
+            m_pong = pong;
+            }
+
+        @Override
+        public WriteFuture write(final Object message)
+            {
+            assertEquals("\r\n\r\n", 
+                MinaUtils.toAsciiString((ByteBuffer) message));
+            m_pings.incrementAndGet();
+            if (m_pong)
+                {
+                m_lastReadTime = System.currentTimeMillis();
+                }
+            return super.write(message);
+            }
+
+        @Override
+        public long getLastReadTime()
+            {
+            return m_lastReadTime;
+            }
+
+        @Override
+        public boolean isClosing()
+            {
+            return m_closed;
+            }
+
+        @Override
+        public CloseFuture close()
+            {
+            m_closed = true;
+            return null;
+            }
+        }
+    }
@@ -0,0 +1,113 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageBatch;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * Tests for coalescing the messages written to a session.
+ */
+public class SipWriteCoalescerTest extends TestCase
+    {
+
+    private final List<Object> m_written = 
+        Collections.synchronizedList(new ArrayList<Object>());
+
+    private final IoSessionStub m_session = new IoSessionStub()
+        {
+        private final ConcurrentMap<String, Object> m_attributes = 
+            new ConcurrentHashMap<String, Object>();
+
+        @Override
+        public Object getAttribute(final String key)
+            {
+            return m_attributes.get(key);
+            }
+
+        @Override
+        public Object setAttributeIfAbsent(final String key, 
+            final Object value)
+            {
+            return m_attributes.putIfAbsent(key, value);
+            }
+
+        @Override
+        public WriteFuture write(final Object message)
+            {
+            m_written.add(message);
+            return super.write(message);
+            }
+        };
+
+    private SipTimer m_timer;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        m_timer = new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    public void testFlushWhenFull() throws Exception
+        {
+        final SipWriteCoalescer coalescer = 
+            new SipWriteCoalescer(m_timer, 60 * 1000, 3);
+        final SipMessage first = new DoubleCrlfKeepAlive();
+        final SipMessage second = new DoubleCrlfKeepAlive();
+        final SipMessage third = new DoubleCrlfKeepAlive();
+        coalescer.write(m_session, first);
+        coalescer.write(m_session, second);
+        assertTrue(m_written.isEmpty());
+        coalescer.write(m_session, third);
+
+        assertEquals(1, m_written.size());
+        final SipMessageBatch batch = (SipMessageBatch) m_written.get(0);
+        assertEquals(3, batch.getMessages().size());
+        assertSame(first, batch.getMessages().get(0));
+        assertSame(second, batch.getMessages().get(1));
+        assertSame(third, batch.getMessages().get(2));
+
+        // A single message goes out on its own rather than in a batch.
+        final SipMessage fourth = new DoubleCrlfKeepAlive();
+        coalescer.write(m_session, fourth);
+        assertEquals(1, m_written.size());
+        coalescer.flush(m_session);
+        assertEquals(2, m_written.size());
+        assertSame(fourth, m_written.get(1));
+        }
+
+    public void testFlushAfterWindow() throws Exception
+        {
+        final SipWriteCoalescer coalescer = 
+            new SipWriteCoalescer(m_timer, 20, 100);
+        coalescer.write(m_session, new DoubleCrlfKeepAlive());
+        coalescer.write(m_session, new DoubleCrlfKeepAlive());
+        assertTrue(m_written.isEmpty());
+
+        final long end = System.currentTimeMillis() + 2000;
+        while (m_written.isEmpty() && System.currentTimeMillis() < end)
+            {
+            Thread.sleep(10);
+            }
+        assertEquals(1, m_written.size());
+        assertEquals(2, 
+            ((SipMessageBatch) m_written.get(0)).getMessages().size());
+        }
+    }
@@ -0,0 +1,338 @@
+package org.lastbamboo.common.sip.stack.transport;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.metrics.SipStackMetrics;
+import org.lastbamboo.common.sip.stack.stubs.IoSessionStub;
+import org.lastbamboo.common.sip.stack.stubs.SipTestMessages;
+import org.lastbamboo.common.sip.stack.timer.HashedWheelSipTimer;
+import org.lastbamboo.common.sip.stack.timer.SipTimer;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.lastbamboo.common.sip.stack.transaction.server.SipServerTransaction;
+import org.lastbamboo.common.sip.stack.transaction.server.SipServerTransactionTracker;
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * Tests for limiting per-session write queues.
+ */
+public class SipWriteLimiterTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory =
+        new SipMessageFactoryImpl(m_headerFactory);
+
+    private final List<OfferAnswerMessage> m_failed =
+        Collections.synchronizedList(new ArrayList<OfferAnswerMessage>());
+
+    private final OfferAnswerTransactionListener m_listener =
+        new OfferAnswerTransactionListener()
+        {
+        public void onTransactionSucceeded(final OfferAnswerMessage message)
+            {
+            }
+
+        public void onTransactionFailed(final OfferAnswerMessage message)
+            {
+            m_failed.add(message);
+            }
+        };
+
+    private final SipStackMetrics m_metrics = SipStackMetrics.getInstance();
+
+    public void testLimits() throws Exception
+        {
+        final SipWriteLimiter limiter = new SipWriteLimiter(1000, 10,
+            SipSlowConsumerPolicy.REJECT, 60 * 1000);
+        final Session session = new Session();
+        assertFalse(limiter.isBackedUp(session));
+
+        session.m_bytes = 999;
+        session.m_requests = 9;
+        assertFalse(limiter.isBackedUp(session));
+
+        session.m_bytes = 1000;
+        assertTrue(limiter.isBackedUp(session));
+
+        session.m_bytes = 10;
+        session.m_requests = 10;
+        assertTrue(limiter.isBackedUp(session));
+        }
+
+    public void testStall() throws Exception
+        {
+        final SipWriteLimiter limiter = new SipWriteLimiter(1000, 10,
+            SipSlowConsumerPolicy.REJECT, 50);
+        final long stalls = m_metrics.getWriteStalls();
+        final Session session = new Session();
+
+        // A session that's been quiet for a long time isn't stalled as soon
+        // as it has something to write.
+        session.m_lastWriteTime = System.currentTimeMillis() - 60 * 1000;
+        session.m_bytes = 10;
+        session.m_requests = 1;
+        assertFalse(limiter.isBackedUp(session));
+
+        Thread.sleep(100);
+        assertTrue(limiter.isBackedUp(session));
+        assertTrue(limiter.isBackedUp(session));
+        assertEquals(stalls + 1, m_metrics.getWriteStalls());
+
+        // Writing anything ends the stall.
+        session.m_lastWriteTime = System.currentTimeMillis();
+        assertFalse(limiter.isBackedUp(session));
+        }
+
+    public void testStallFoundBetweenWrites() throws Exception
+        {
+        final SipTimer timer = 
+            new HashedWheelSipTimer("Test-Timer", 5, 64, null);
+        try
+            {
+            final SipWriteLimiter limiter = new SipWriteLimiter(1000, 10,
+                SipSlowConsumerPolicy.CLOSE, 50, timer);
+            final long stalls = m_metrics.getWriteStalls();
+            final long closed = m_metrics.getSlowConsumersClosed();
+
+            // A client that drains its queue stops being watched.
+            final Session drained = new Session();
+            drained.m_bytes = 10;
+            drained.m_requests = 1;
+            limiter.onWritten(drained);
+            drained.m_bytes = 0;
+            drained.m_requests = 0;
+
+            // A client that stops reading is closed even though we never 
+            // write to it again.
+            final Session stuck = new Session();
+            stuck.m_bytes = 10;
+            stuck.m_requests = 1;
+            limiter.onWritten(stuck);
+
+            final String watchKey = SipWriteLimiter.class.getName() + ".watch";
+            final long end = System.currentTimeMillis() + 5000;
+            while ((!stuck.m_closed || drained.getAttribute(watchKey) != null)
+                && System.currentTimeMillis() < end)
+                {
+                Thread.sleep(10);
+                }
+            assertTrue(stuck.m_closed);
+            assertEquals(stalls + 1, m_metrics.getWriteStalls());
+            assertEquals(closed + 1, m_metrics.getSlowConsumersClosed());
+            assertFalse(drained.m_closed);
+            assertNull(drained.getAttribute(watchKey));
+            }
+        finally
+            {
+            timer.stop();
+            }
+        }
+
+    public void testKeepAliveDropped() throws Exception
+        {
+        final SipTcpTransportLayer transport =
+            createTransport(SipSlowConsumerPolicy.DROP_KEEP_ALIVES);
+        final long dropped = m_metrics.getKeepAlivesDropped();
+        final Session session = new Session();
+        transport.writeCrlfKeepAlive(session);
+        assertEquals(1, session.m_written.size());
+
+        session.m_bytes = 1000;
+        transport.writeCrlfKeepAlive(session);
+        assertEquals(1, session.m_written.size());
+        assertEquals(dropped + 1, m_metrics.getKeepAlivesDropped());
+
+        // Everything else is still written.
+        transport.invite(SipTestMessages.createInvite(), session, m_listener);
+        assertEquals(2, session.m_written.size());
+        assertTrue(m_failed.isEmpty());
+        }
+
+    public void testReject() throws Exception
+        {
+        final SipTcpTransportLayer transport =
+            createTransport(SipSlowConsumerPolicy.REJECT);
+        final long rejected = m_metrics.getWritesRejected();
+        final Session session = new Session();
+        session.m_bytes = 1000;
+
+        assertNotNull(transport.invite(SipTestMessages.createInvite(), 
+            session, m_listener));
+        assertTrue(session.m_written.isEmpty());
+        assertEquals(1, m_failed.size());
+        assertFalse(session.m_closed);
+        assertEquals(rejected + 1, m_metrics.getWritesRejected());
+        }
+
+    public void testClose() throws Exception
+        {
+        final SipTcpTransportLayer transport =
+            createTransport(SipSlowConsumerPolicy.CLOSE);
+        final long closed = m_metrics.getSlowConsumersClosed();
+        final Session session = new Session();
+        session.m_requests = 10;
+
+        transport.invite(SipTestMessages.createInvite(), session, m_listener);
+        assertTrue(session.m_written.isEmpty());
+        assertEquals(1, m_failed.size());
+        assertTrue(session.m_closed);
+        assertEquals(closed + 1, m_metrics.getSlowConsumersClosed());
+        }
+
+    public void testRejectedResponseNotSent() throws Exception
+        {
+        final List<SipResponse> responses = new ArrayList<SipResponse>();
+        final SipServerTransactionTracker tracker = 
+            new SipServerTransactionTracker()
+            {
+            public boolean onRequest(final SipMessage request,
+                final IoSession session)
+                {
+                return true;
+                }
+
+            public void onResponse(final SipResponse response)
+                {
+                responses.add(response);
+                }
+
+            public SipServerTransaction getServerTransaction(
+                final SipMessage message)
+                {
+                return null;
+                }
+            };
+        final SipTcpTransportLayer transport =
+            createTransport(SipSlowConsumerPolicy.REJECT, tracker);
+        final Session session = new Session();
+        transport.addConnection(session);
+        final InetSocketAddress address =
+            (InetSocketAddress) session.getRemoteAddress();
+        final SipResponse busy = (SipResponse) 
+            m_messageFactory.createErrorResponse(
+                SipTestMessages.createInvite(), UUID.randomUUID(),
+                new URI("sip:bob@10.0.0.2"), 486, "Busy Here");
+
+        session.m_bytes = 1000;
+        assertFalse(transport.writeResponse(address, busy));
+        assertTrue(session.m_written.isEmpty());
+
+        // Retransmissions can't replay a response we never sent.
+        assertTrue(responses.isEmpty());
+
+        session.m_bytes = 0;
+        assertTrue(transport.writeResponse(address, busy));
+        assertEquals(1, session.m_written.size());
+        assertEquals(1, responses.size());
+        }
+
+    private SipTcpTransportLayer createTransport(
+        final SipSlowConsumerPolicy policy)
+        {
+        return createTransport(policy, null);
+        }
+
+    private SipTcpTransportLayer createTransport(
+        final SipSlowConsumerPolicy policy, 
+        final SipServerTransactionTracker serverTransactions)
+        {
+        final SipWriteLimiter limiter =
+            new SipWriteLimiter(1000, 10, policy, 60 * 1000);
+        return new SipTcpTransportLayerImpl(
+            new SipTransactionFactoryImpl(new SipTransactionTrackerImpl(),
+                m_messageFactory, 500), m_headerFactory, m_messageFactory,
+            serverTransactions, null, limiter);
+        }
+
+    /**
+     * Session with write queue sizes the test sets.
+     */
+    private static class Session extends IoSessionStub
+        {
+
+        private final ConcurrentMap<String, Object> m_attributes =
+            new ConcurrentHashMap<String, Object>();
+
+        private final List<Object> m_written = new ArrayList<Object>();
+
+        private volatile int m_bytes;
+
+        private volatile int m_requests;
+
+        private volatile long m_lastWriteTime = System.currentTimeMillis();
+
+        private volatile boolean m_closed;
+
+        @Override
+        public int getScheduledWriteBytes()
+            {
+            return m_bytes;
+            }
+
+        @Override
+        public int getScheduledWriteRequests()
+            {
+            return m_requests;
+            }
+
+        @Override
+        public long getLastWriteTime()
+            {
+            return m_lastWriteTime;
+            }
+
+        @Override
+        public Object getAttribute(final String key)
+            {
+            return m_attributes.get(key);
+            }
+
+        @Override
+        public Object setAttributeIfAbsent(final String key,
+            final Object value)
+            {
+            return m_attributes.putIfAbsent(key, value);
+            }
+
+        @Override
+        public Object removeAttribute(final String key)
+            {
+            return m_attributes.remove(key);
+            }
+
+        @Override
+        public WriteFuture write(final Object message)
+            {
+            m_written.add(message);
+            return super.write(message);
+            }
+
+        @Override
+        public CloseFuture close()
+            {
+            m_closed = true;
+            return null;
+            }
+        }
+    }